@@ -135,6 +135,28 @@ public interface IRemoteClient {
      */
     public void sendHandoverComplete() throws RemoteException;
 
+    /**
+     * Subscribe to the device and command state changes of the remote TF, instead of polling
+     * with {@link #sendListDevices()} and
+     * {@link #sendGetLastCommandResult(String, ICommandResultHandler)}.
+     * <p/>
+     * The changes are then received with {@link #readEvent(IRemoteEventHandler)}. The connection
+     * should not be used to send other operations afterwards.
+     *
+     * @return the list of devices known when subscribing
+     * @throws RemoteException
+     */
+    public List<DeviceDescriptor> sendSubscribe() throws RemoteException;
+
+    /**
+     * Wait for the next event after a {@link #sendSubscribe()}, and pass it to the given handler.
+     *
+     * @param handler the {@link IRemoteEventHandler} to notify of the event
+     * @return false if the remote TF closed the connection, true otherwise
+     * @throws RemoteException
+     */
+    public boolean readEvent(IRemoteEventHandler handler) throws RemoteException;
+
     /**
      * Close the connection to the {@link RemoteManager}.
      */
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.command.remote;
+
+import com.android.tradefed.device.DeviceAllocationState;
+import com.android.tradefed.device.FreeDeviceState;
+
+import java.util.Map;
+
+/**
+ * Callback for handling the events received after a {@link SubscribeOp}.
+ */
+public interface IRemoteEventHandler {
+
+    /**
+     * Called when the allocation state of a device changed.
+     */
+    public void deviceStateChanged(String serial, DeviceAllocationState oldState,
+            DeviceAllocationState newState);
+
+    /**
+     * Called when a command was scheduled for execution on a device.
+     */
+    public void commandStarted(String serial);
+
+    /**
+     * Called when the command executing on a device completed.
+     *
+     * @param serial the serial of the device
+     * @param success whether the invocation succeeded
+     * @param errorDetails the details of the invocation error, or null if it succeeded
+     * @param deviceState the state the device was freed with
+     * @param runMetrics the metrics reported by the command
+     */
+    public void commandCompleted(String serial, boolean success, String errorDetails,
+            FreeDeviceState deviceState, Map<String, String> runMetrics);
+}
@@ -18,6 +18,7 @@ package com.android.tradefed.command.remote;
 import com.android.ddmlib.Log;
 
 import org.json.JSONException;
+import org.json.JSONObject;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -26,7 +27,9 @@ import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayDeque;
 import java.util.List;
+import java.util.Queue;
 
 /**
  * Class for sending remote commands to another TF process.
@@ -43,6 +46,11 @@ public class RemoteClient implements IRemoteClient {
     private final Socket mSocket;
     private final PrintWriter mWriter;
     private final BufferedReader mReader;
+    /**
+     * events received while waiting for the response of a {@link SubscribeOp}. Also used as the
+     * lock for reading events, so that {@link #close()} can interrupt a blocked read.
+     */
+    private final Queue<JSONObject> mPendingEvents = new ArrayDeque<>();
 
     /**
      * Initialize the {@RemoteClient}, and instruct it to connect to the given port
@@ -244,6 +252,66 @@ public class RemoteClient implements IRemoteClient {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized List<DeviceDescriptor> sendSubscribe() throws RemoteException {
+        SubscribeOp op = new SubscribeOp();
+        try {
+            Log.d(TAG, String.format("Sending remote op %s", op.getType()));
+            mWriter.println(op.pack());
+            while (true) {
+                String response = mReader.readLine();
+                if (response == null) {
+                    throw new RemoteException("no response from remote manager");
+                }
+                JSONObject json = new JSONObject(response);
+                if (SubscribeOp.isEvent(json)) {
+                    // events can be sent as soon as the subscription is registered
+                    synchronized (mPendingEvents) {
+                        mPendingEvents.add(json);
+                    }
+                    continue;
+                }
+                return op.unpackResponseFromString(response);
+            }
+        } catch (IOException e) {
+            throw new RemoteException(e.getMessage(), e);
+        } catch (JSONException e) {
+            throw new RemoteException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean readEvent(IRemoteEventHandler handler) throws RemoteException {
+        JSONObject event = null;
+        try {
+            synchronized (mPendingEvents) {
+                event = mPendingEvents.poll();
+                while (event == null) {
+                    String line = mReader.readLine();
+                    if (line == null) {
+                        return false;
+                    }
+                    JSONObject json = new JSONObject(line);
+                    if (SubscribeOp.isEvent(json)) {
+                        event = json;
+                    }
+                }
+            }
+            SubscribeOp.dispatchEvent(event, handler);
+            return true;
+        } catch (IOException e) {
+            throw new RemoteException(e.getMessage(), e);
+        } catch (JSONException e) {
+            throw new RemoteException(e.getMessage(), e);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -25,11 +25,15 @@ import org.json.JSONObject;
 abstract class RemoteOperation<T> {
     private static final String TYPE = "type";
     private static final String VERSION = "version";
+    /** represents json key for the optional id echoed back in the response */
+    static final String ID = "id";
     /** represents json key for error message */
     static final String ERROR = "error";
 
     static final int CURRENT_PROTOCOL_VERSION = 8;
 
+    private String mId = null;
+
     /**
      * Represents all types of remote operations that can be performed
      */
@@ -45,6 +49,7 @@ abstract class RemoteOperation<T> {
         HANDOVER_COMPLETE,
         ADD_COMMAND_FILE,
         HANDOVER_INIT_COMPLETE,
+        SUBSCRIBE,
     }
 
     /**
@@ -99,10 +104,14 @@ abstract class RemoteOperation<T> {
                 case ADD_COMMAND_FILE:
                     rc = AddCommandFileOp.createFromJson(jsonData);
                     break;
+                case SUBSCRIBE:
+                    rc = SubscribeOp.createFromJson(jsonData);
+                    break;
                 default:
                     throw new RemoteException(String.format("unknown remote command '%s'", data));
 
             }
+            rc.setId(jsonData.optString(ID, null));
             return rc;
         } catch (JSONException e) {
             throw new RemoteException(e);
@@ -111,6 +120,23 @@ abstract class RemoteOperation<T> {
 
     protected abstract OperationType getType();
 
+    /**
+     * Returns the id the client attached to this operation to match it with its response when
+     * sending several operations without waiting for their response, or null if none.
+     */
+    String getId() {
+        return mId;
+    }
+
+    /**
+     * Sets the id to attach to this operation.
+     *
+     * @see #getId()
+     */
+    void setId(String id) {
+        mId = id;
+    }
+
     /**
      * Returns the RemoteCommand data in its wire protocol format
      */
@@ -128,6 +154,9 @@ abstract class RemoteOperation<T> {
         try {
             j.put(VERSION, protocolVersion);
             j.put(TYPE, getType().toString());
+            if (mId != null) {
+                j.put(ID, mId);
+            }
             packIntoJson(j);
         } catch (JSONException e) {
             throw new RemoteException("Failed to serialize RemoteOperation", e);
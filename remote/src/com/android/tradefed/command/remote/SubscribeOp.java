@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.command.remote;
+
+import com.android.tradefed.device.DeviceAllocationState;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.List;
+
+/**
+ * Remote operation for subscribing to device and command state changes.
+ * <p/>
+ * The response holds all known devices and their state, like a {@link ListDevicesOp}. After it,
+ * the remote manager pushes an event on the connection each time the allocation state of a device
+ * changes, or a command executed with {@link ExecCommandOp} changes state. Events are JSON objects
+ * with an {@link #EVENT} key, that responses never have. As the subscription starts before the
+ * device list is built, the first events received can already be reflected in that list.
+ */
+class SubscribeOp extends RemoteOperation<List<DeviceDescriptor>> {
+
+    /** represents json key for the type of an event */
+    static final String EVENT = "event";
+
+    private static final String DEVICE_STATE_EVENT = "DEVICE_STATE";
+    private static final String COMMAND_STATE_EVENT = "COMMAND_STATE";
+    private static final String SERIAL = "serial";
+    private static final String STATE = "state";
+    private static final String OLD_STATE = "old_state";
+
+    SubscribeOp() {
+    }
+
+    /**
+     * Factory method for creating a {@link SubscribeOp} from JSON data.
+     *
+     * @param json the data as a {@link JSONObject}
+     * @return a {@link SubscribeOp}
+     * @throws JSONException if failed to extract out data
+     */
+    static SubscribeOp createFromJson(JSONObject json) throws JSONException {
+        return new SubscribeOp();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected OperationType getType() {
+        return OperationType.SUBSCRIBE;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void packIntoJson(JSONObject j) throws JSONException {
+        // ignore, nothing to do
+    }
+
+    /**
+     * Unpacks the response from remote TF manager into this object.
+     */
+    @Override
+    protected List<DeviceDescriptor> unpackResponseFromJson(JSONObject j) throws JSONException {
+        return new ListDevicesOp().unpackResponseFromJson(j);
+    }
+
+    /**
+     * Packs the devices known when subscribing into the json response to send to remote client.
+     */
+    protected void packResponseIntoJson(List<DeviceDescriptor> devices, JSONObject result)
+            throws JSONException {
+        new ListDevicesOp().packResponseIntoJson(devices, result);
+    }
+
+    /**
+     * Packs a device allocation state change into an event to send to remote clients.
+     */
+    static JSONObject packDeviceEvent(String serial, DeviceAllocationState oldState,
+            DeviceAllocationState newState) throws JSONException {
+        JSONObject event = new JSONObject();
+        event.put(EVENT, DEVICE_STATE_EVENT);
+        event.put(SERIAL, serial);
+        event.put(OLD_STATE, oldState.name());
+        event.put(STATE, newState.name());
+        return event;
+    }
+
+    /**
+     * Packs a command state change into an event to send to remote clients.
+     */
+    static JSONObject packCommandEvent(String serial, CommandResult commandResult)
+            throws JSONException {
+        JSONObject event = new JSONObject();
+        event.put(EVENT, COMMAND_STATE_EVENT);
+        new GetLastCommandResultOp(serial).packResponseIntoJson(commandResult, event);
+        // after the result, to not be overridden
+        event.put(SERIAL, serial);
+        return event;
+    }
+
+    /**
+     * Returns true if the data received from the remote manager is an event rather than the
+     * response to an operation.
+     */
+    static boolean isEvent(JSONObject json) {
+        return json.has(EVENT);
+    }
+
+    /**
+     * Unpacks an event received from the remote manager and passes it to the handler.
+     *
+     * @throws JSONException if the event could not be parsed. Unknown events are ignored.
+     */
+    static void dispatchEvent(JSONObject event, IRemoteEventHandler handler)
+            throws JSONException {
+        String type = event.getString(EVENT);
+        String serial = event.getString(SERIAL);
+        if (DEVICE_STATE_EVENT.equals(type)) {
+            try {
+                handler.deviceStateChanged(serial,
+                        DeviceAllocationState.valueOf(event.getString(OLD_STATE)),
+                        DeviceAllocationState.valueOf(event.getString(STATE)));
+            } catch (IllegalArgumentException e) {
+                throw new JSONException(String.format("unrecognized state for device %s",
+                        serial));
+            }
+        } else if (COMMAND_STATE_EVENT.equals(type)) {
+            CommandResult r = new GetLastCommandResultOp(serial).unpackResponseFromJson(event);
+            switch (r.getStatus()) {
+                case EXECUTING:
+                    handler.commandStarted(serial);
+                    break;
+                case INVOCATION_SUCCESS:
+                    handler.commandCompleted(serial, true, null, r.getFreeDeviceState(),
+                            r.getRunMetrics());
+                    break;
+                case INVOCATION_ERROR:
+                    handler.commandCompleted(serial, false, r.getInvocationErrorDetails(),
+                            r.getFreeDeviceState(), r.getRunMetrics());
+                    break;
+                default:
+                    // not a command lifecycle change, ignore
+                    break;
+            }
+        }
+    }
+}
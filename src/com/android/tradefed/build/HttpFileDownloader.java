@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.build;
+
+import com.android.tradefed.config.Option;
+import com.android.tradefed.config.OptionClass;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+import com.android.tradefed.util.net.HttpHelper;
+import com.android.tradefed.util.net.IHttpHelper;
+import com.android.tradefed.util.net.RangedHttpDownloader;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A {@link IFileDownloader} for files served over HTTP.
+ * <p/>
+ * Remote paths are URLs, or paths relative to the --root-url option. With --ranged-download,
+ * files are fetched with a {@link RangedHttpDownloader}, over several connections and resuming
+ * interrupted downloads. Can be wrapped in a {@link FileDownloadCache}.
+ */
+@OptionClass(alias = "http-downloader")
+public class HttpFileDownloader implements IFileDownloader {
+
+    @Option(name = "root-url",
+            description = "the URL remote paths that are not URLs are relative to.")
+    private String mRootUrl = null;
+
+    @Option(name = "ranged-download",
+            description = "download files over several connections with range requests, "
+                    + "resuming interrupted downloads.")
+    private boolean mRangedDownload = false;
+
+    @Option(name = "ranged-download-connections",
+            description = "the number of connections of a ranged download.")
+    private int mConnections = 4;
+
+    @Option(name = "ranged-download-chunk-size",
+            description = "the size in bytes of the range requested by each request of a ranged "
+                    + "download.")
+    private long mChunkSize = 32 * 1024 * 1024;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public File downloadFile(String remoteFilePath) throws BuildRetrievalError {
+        File destFile = null;
+        try {
+            String fileName = getFileName(remoteFilePath);
+            destFile = FileUtil.createTempFile("http_" + FileUtil.getBaseName(fileName) + "_",
+                    FileUtil.getExtension(fileName));
+            downloadFile(remoteFilePath, destFile);
+            return destFile;
+        } catch (IOException e) {
+            throw new BuildRetrievalError(String.format("Failed to download %s",
+                    remoteFilePath), e);
+        } catch (BuildRetrievalError e) {
+            FileUtil.deleteFile(destFile);
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void downloadFile(String relativeRemotePath, File destFile)
+            throws BuildRetrievalError {
+        String url = getUrl(relativeRemotePath);
+        try {
+            if (mRangedDownload) {
+                RangedHttpDownloader downloader = createRangedDownloader();
+                downloader.setConnections(mConnections);
+                downloader.setChunkSize(mChunkSize);
+                downloader.download(url, destFile, null);
+                return;
+            }
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(destFile));
+            try {
+                getHttpHelper().doGet(url, out);
+            } finally {
+                StreamUtil.close(out);
+            }
+        } catch (IOException e) {
+            if (!mRangedDownload) {
+                FileUtil.deleteFile(destFile);
+            }
+            throw new BuildRetrievalError(String.format("Failed to download %s", url), e);
+        }
+    }
+
+    /**
+     * Returns the URL of a remote path.
+     */
+    String getUrl(String remotePath) {
+        if (mRootUrl == null || remotePath.matches("^[a-zA-Z][a-zA-Z0-9+.-]*://.*")) {
+            return remotePath;
+        }
+        if (mRootUrl.endsWith("/") || remotePath.startsWith("/")) {
+            return mRootUrl + remotePath;
+        }
+        return mRootUrl + "/" + remotePath;
+    }
+
+    private static String getFileName(String remotePath) {
+        String path = remotePath;
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Factory method for the {@link IHttpHelper}.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    IHttpHelper getHttpHelper() {
+        return new HttpHelper();
+    }
+
+    /**
+     * Factory method for the {@link RangedHttpDownloader}.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    RangedHttpDownloader createRangedDownloader() {
+        return new RangedHttpDownloader(getHttpHelper());
+    }
+}
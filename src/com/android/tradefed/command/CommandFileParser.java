@@ -18,15 +18,22 @@ package com.android.tradefed.command;
 import com.android.tradefed.config.ConfigurationException;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.QuotationAwareTokenizer;
+import com.android.tradefed.util.StreamUtil;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -44,6 +51,9 @@ import java.util.regex.Pattern;
  *   [options] config-name2
  *   ...
  * </pre>
+ * <p/>
+ * Parsed files are cached by content: a file is only tokenized again when its content changed,
+ * and the expansion of a file is only done again when the file or one of its includes changed.
  */
 public class CommandFileParser {
 
@@ -61,6 +71,44 @@ public class CommandFileParser {
 
     private Collection<String> mIncludedFiles = new HashSet<String>();
 
+    /** Maximum number of command files kept in each of the caches. */
+    private static final int MAX_CACHED_FILES = 1000;
+
+    /** Tokenized command files, by absolute path */
+    private static final Map<String, ScannedFile> sScannedFiles = createCache();
+    /** Fully expanded command files, by absolute path */
+    private static final Map<String, ExpandedFile> sExpandedFiles = createCache();
+
+    /** "path:digest" of every file scanned by the current parse, in scan order */
+    private List<String> mScannedDigests = new LinkedList<String>();
+
+    /**
+     * The lines of a command file, tokenized but before includes and macros are processed, so they
+     * can be replayed as long as the content of the file does not change.
+     */
+    static class ScannedFile {
+        private final String mDigest;
+        private final List<CommandLine> mLines = new ArrayList<CommandLine>();
+        /** index in mLines of a LONG MACRO line -> definition of the macro */
+        private final Map<Integer, List<CommandLine>> mLongMacroBodies =
+                new HashMap<Integer, List<CommandLine>>();
+
+        ScannedFile(String digest) {
+            mDigest = digest;
+        }
+    }
+
+    /** The result of expanding a command file, for a given content of it and its includes. */
+    private static class ExpandedFile {
+        private final String mKey;
+        private final List<CommandLine> mLines;
+
+        ExpandedFile(String key, List<CommandLine> lines) {
+            mKey = key;
+            mLines = copyLines(lines);
+        }
+    }
+
     @SuppressWarnings("serial")
     public static class CommandLine extends LinkedList<String> {
         private final File mFile;
@@ -259,87 +307,135 @@ public class CommandFileParser {
             mIncludedFiles.add(file.getAbsolutePath());
         }
 
+        ScannedFile scanned = getScannedFile(file);
+        mScannedDigests.add(file.getAbsolutePath() + ":" + scanned.mDigest);
+        for (int i = 0; i < scanned.mLines.size(); i++) {
+            CommandLine lArgs = scanned.mLines.get(i);
+            List<CommandLine> longMacroBody = scanned.mLongMacroBodies.get(i);
+            if (longMacroBody != null) {
+                String name = lArgs.get(2);
+                List<CommandLine> prev = mLongMacros.put(name, longMacroBody);
+                if (prev != null) {
+                    CLog.w("Overwrote long macro %s while parsing file %s", name, file);
+                    CLog.w("%d-line definition replaced previous %d-line definition",
+                            longMacroBody.size(), prev.size());
+                }
+            } else if (isLineMacro(lArgs)) {
+                // Expected format: MACRO <name> = <token> [<token>...]
+                String name = lArgs.get(1);
+                CommandLine expansion = new CommandLine(lArgs.subList(3, lArgs.size()),
+                        file, lArgs.getLineNumber());
+                CommandLine prev = mMacros.put(name, expansion);
+                if (prev != null) {
+                    CLog.w("Overwrote short macro '%s' while parsing file %s", name, file);
+                    CLog.w("value '%s' replaced previous value '%s'", expansion, prev);
+                }
+            } else if (isLineIncludeDirective(lArgs)) {
+                File toScan = new File(lArgs.get(1));
+                if (toScan.isAbsolute()) {
+                    CLog.d("Got an include directive for absolute path %s.", lArgs.get(1));
+                } else {
+                    File parent = file.getParentFile();
+                    toScan = new File(parent, lArgs.get(1));
+                    CLog.d("Got an include directive for relative path %s, using '%s' " +
+                            "for parent dir", lArgs.get(1), parent);
+                }
+                scanFile(toScan);
+            } else {
+                // copy, as macro expansion modifies the lines in place
+                mLines.add(new CommandLine(lArgs, file, lArgs.getLineNumber()));
+            }
+        }
+    }
+
+    /**
+     * Returns the tokenized lines of a command file, from the cache if its content did not change
+     * since it was last tokenized.
+     */
+    private ScannedFile getScannedFile(File file) throws IOException, ConfigurationException {
+        List<String> inputLines = new ArrayList<String>();
+        StringBuilder content = new StringBuilder();
         BufferedReader fileReader = createCommandFileReader(file);
-        String inputLine = null;
-        int lineNumber = 0;
         try {
+            String inputLine = null;
             while ((inputLine = fileReader.readLine()) != null) {
-                lineNumber++;
-                inputLine = inputLine.trim();
-                if (shouldParseLine(inputLine)) {
-                    CommandLine lArgs = null;
-                    try {
-                        String[] args = QuotationAwareTokenizer.tokenizeLine(inputLine);
-                        lArgs = new CommandLine(Arrays.asList(args), file,
-                                lineNumber);
-                    } catch (IllegalArgumentException e) {
-                        throw new ConfigurationException(e.getMessage());
-                    }
+                inputLines.add(inputLine);
+                content.append(inputLine).append('\n');
+            }
+        } finally {
+            fileReader.close();
+        }
+        String digest = StreamUtil.calculateMd5(new ByteArrayInputStream(
+                content.toString().getBytes(StandardCharsets.UTF_8)));
+        String path = file.getAbsolutePath();
+        ScannedFile scanned = sScannedFiles.get(path);
+        if (scanned != null && scanned.mDigest.equals(digest)) {
+            CLog.v("Content of %s did not change, using cached lines.", path);
+            return scanned;
+        }
+        scanned = tokenizeFile(file, digest, inputLines);
+        sScannedFiles.put(path, scanned);
+        return scanned;
+    }
 
-                    if (isLineMacro(lArgs)) {
-                        // Expected format: MACRO <name> = <token> [<token>...]
-                        String name = lArgs.get(1);
-                        CommandLine expansion = new CommandLine(lArgs.subList(3, lArgs.size()),
-                                file, lineNumber);
-                        CommandLine prev = mMacros.put(name, expansion);
-                        if (prev != null) {
-                            CLog.w("Overwrote short macro '%s' while parsing file %s", name, file);
-                            CLog.w("value '%s' replaced previous value '%s'", expansion, prev);
-                        }
-                    } else if (isLineLongMacro(lArgs)) {
-                        // Expected format: LONG MACRO <name>\n(multiline expansion)\nEND MACRO
-                        String name = lArgs.get(2);
-                        List<CommandLine> expansion = new LinkedList<CommandLine>();
+    /**
+     * Tokenizes the lines of a command file, and reads the definition of its long macros.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    ScannedFile tokenizeFile(File file, String digest, List<String> inputLines)
+            throws ConfigurationException {
+        ScannedFile scanned = new ScannedFile(digest);
+        int lineNumber = 0;
+        Iterator<String> lines = inputLines.iterator();
+        while (lines.hasNext()) {
+            String inputLine = lines.next();
+            lineNumber++;
+            inputLine = inputLine.trim();
+            if (shouldParseLine(inputLine)) {
+                CommandLine lArgs = null;
+                try {
+                    String[] args = QuotationAwareTokenizer.tokenizeLine(inputLine);
+                    lArgs = new CommandLine(Arrays.asList(args), file,
+                            lineNumber);
+                } catch (IllegalArgumentException e) {
+                    throw new ConfigurationException(e.getMessage());
+                }
 
-                        inputLine = fileReader.readLine();
-                        lineNumber++;
-                        while (!"END MACRO".equals(inputLine)) {
-                            if (inputLine == null) {
-                                // Syntax error
-                                throw new ConfigurationException(String.format(
-                                        "Syntax error: Unexpected EOF while reading definition " +
-                                        "for LONG MACRO %s.", name));
-                            }
-                            if (shouldParseLine(inputLine)) {
-                                // Store the tokenized line
-                                CommandLine line = new CommandLine(Arrays.asList(
-                                        QuotationAwareTokenizer.tokenizeLine(inputLine)),
-                                        file, lineNumber);
-                                expansion.add(line);
-                            }
-
-                            // Advance
-                            inputLine = fileReader.readLine();
-                            lineNumber++;
+                if (isLineLongMacro(lArgs)) {
+                    // Expected format: LONG MACRO <name>\n(multiline expansion)\nEND MACRO
+                    String name = lArgs.get(2);
+                    List<CommandLine> expansion = new LinkedList<CommandLine>();
+
+                    inputLine = lines.hasNext() ? lines.next() : null;
+                    lineNumber++;
+                    while (!"END MACRO".equals(inputLine)) {
+                        if (inputLine == null) {
+                            // Syntax error
+                            throw new ConfigurationException(String.format(
+                                    "Syntax error: Unexpected EOF while reading definition " +
+                                    "for LONG MACRO %s.", name));
                         }
-                        CLog.d("Parsed %d-line definition for long macro %s", expansion.size(),
-                                name);
-
-                        List<CommandLine> prev = mLongMacros.put(name, expansion);
-                        if (prev != null) {
-                            CLog.w("Overwrote long macro %s while parsing file %s", name, file);
-                            CLog.w("%d-line definition replaced previous %d-line definition",
-                                    expansion.size(), prev.size());
+                        if (shouldParseLine(inputLine)) {
+                            // Store the tokenized line
+                            CommandLine line = new CommandLine(Arrays.asList(
+                                    QuotationAwareTokenizer.tokenizeLine(inputLine)),
+                                    file, lineNumber);
+                            expansion.add(line);
                         }
-                    } else if (isLineIncludeDirective(lArgs)) {
-                        File toScan = new File(lArgs.get(1));
-                        if (toScan.isAbsolute()) {
-                            CLog.d("Got an include directive for absolute path %s.", lArgs.get(1));
-                        } else {
-                            File parent = file.getParentFile();
-                            toScan = new File(parent, lArgs.get(1));
-                            CLog.d("Got an include directive for relative path %s, using '%s' " +
-                                    "for parent dir", lArgs.get(1), parent);
-                        }
-                        scanFile(toScan);
-                    } else {
-                        mLines.add(lArgs);
+
+                        // Advance
+                        inputLine = lines.hasNext() ? lines.next() : null;
+                        lineNumber++;
                     }
+                    CLog.d("Parsed %d-line definition for long macro %s", expansion.size(),
+                            name);
+                    scanned.mLongMacroBodies.put(scanned.mLines.size(), expansion);
                 }
+                scanned.mLines.add(lArgs);
             }
-        } finally {
-            fileReader.close();
         }
+        return scanned;
     }
 
     /**
@@ -357,6 +453,7 @@ public class CommandFileParser {
         mMacros.clear();
         mLongMacros.clear();
         mLines.clear();
+        mScannedDigests.clear();
 
         // Parse this cmdfile and all of its dependencies.
         scanFile(file);
@@ -365,6 +462,25 @@ public class CommandFileParser {
         // mIncludedFiles
         mIncludedFiles.remove(file.getAbsolutePath());
 
+        // the expansion only depends on the content of the files scanned, re-use it if none of
+        // them changed
+        String expansionKey = String.join("|", mScannedDigests);
+        ExpandedFile expanded = sExpandedFiles.get(file.getAbsolutePath());
+        if (expanded != null && expanded.mKey.equals(expansionKey)) {
+            CLog.d("%s and its includes did not change, using cached expansion.", file);
+            mLines = copyLines(expanded.mLines);
+            return mLines;
+        }
+        expandMacros();
+        sExpandedFiles.put(file.getAbsolutePath(), new ExpandedFile(expansionKey, mLines));
+        return mLines;
+    }
+
+    /**
+     * Expand the macros used by the lines scanned, in place.
+     */
+    private void expandMacros() throws ConfigurationException {
+
         // Now perform macro expansion
         /**
          * inputBitmask is used to stop iterating when we're sure there are no more macros to
@@ -425,7 +541,6 @@ public class CommandFileParser {
                 }
             }
         }
-        return mLines;
     }
 
     /**
@@ -514,4 +629,34 @@ public class CommandFileParser {
     BufferedReader createCommandFileReader(File file) throws IOException {
         return new BufferedReader(new FileReader(file));
     }
+
+    /**
+     * Drop all the parsed command files cached.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    static void clearCache() {
+        sScannedFiles.clear();
+        sExpandedFiles.clear();
+    }
+
+    /** Copy command lines, so the copies can be modified without affecting the originals. */
+    private static List<CommandLine> copyLines(List<CommandLine> lines) {
+        List<CommandLine> copy = new LinkedList<CommandLine>();
+        for (CommandLine line : lines) {
+            copy.add(new CommandLine(line, line.getFile(), line.getLineNumber()));
+        }
+        return copy;
+    }
+
+    /** Create a synchronized map evicting its least recently used entries. */
+    @SuppressWarnings("serial")
+    private static <V> Map<String, V> createCache() {
+        return Collections.synchronizedMap(new LinkedHashMap<String, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > MAX_CACHED_FILES;
+            }
+        });
+    }
 }
@@ -22,27 +22,59 @@ import com.android.tradefed.util.RunUtil;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A simple class to watch a set of command files for changes, and to trigger a
  * reload of _all_ manually-loaded command files when such a change happens.
+ * <p/>
+ * The directories holding the command files and their dependencies are watched with a
+ * {@link WatchService}, and only the command files affected by a change are checked, once the
+ * changes settled. Files on network file systems, which do not deliver change events for changes
+ * made by other hosts, or in directories that cannot be watched, are polled instead. For symbolic
+ * links, both the directory of the link and the directory of its target are watched.
  */
 class CommandFileWatcher extends Thread {
     private static final long POLL_TIME_MS = 20 * 1000;  // 20 seconds
+    /** Time without change events to wait for before checking the files changed */
+    private static final long DEBOUNCE_TIME_MS = 1000;
+    /** Maximum time to wait for change events to settle */
+    private static final long MAX_DEBOUNCE_TIME_MS = 10 * 1000;
+    /** Types of the file stores whose files are polled */
+    private static final Set<String> POLLED_FILE_STORE_TYPES = new HashSet<>(Arrays.asList(
+            "nfs", "nfs4", "cifs", "smbfs", "smb2", "afs", "fuse.sshfs"));
     // thread-safe (for read-writes, not write during iteration) structure holding all commands
     // being watched. map of absolute file system path to command file
     private Map<String, CommandFile> mCmdFileMap = new Hashtable<>();
     boolean mCancelled = false;
     private final ICommandFileListener mListener;
 
+    private final Object mWatchLock = new Object();
+    /** the service watching directories, or null if not created yet or not supported */
+    private WatchService mWatchService = null;
+    private boolean mWatchServiceCreated = false;
+    /** directories watched, the files in other directories are polled */
+    private final Map<Path, WatchKey> mWatchedDirs = new HashMap<>();
+
     static interface ICommandFileListener {
         public void notifyFileChanged(File cmdFile, List<String> extraArgs);
     }
@@ -117,12 +149,250 @@ class CommandFileWatcher extends Thread {
      */
     @Override
     public void run() {
-        while (!isCancelled()) {
-            checkForUpdates();
-            getRunUtil().sleep(POLL_TIME_MS);
+        WatchService watchService = getWatchService();
+        if (watchService == null) {
+            while (!isCancelled()) {
+                checkForUpdates();
+                getRunUtil().sleep(POLL_TIME_MS);
+            }
+            return;
+        }
+        long nextPollTime = System.currentTimeMillis() + POLL_TIME_MS;
+        try {
+            while (!isCancelled()) {
+                // polled files are checked on time even when change events keep coming
+                long now = System.currentTimeMillis();
+                if (now >= nextPollTime) {
+                    checkForUpdates(getPolledCmdFiles());
+                    nextPollTime = now + POLL_TIME_MS;
+                }
+                WatchKey key = watchService.poll(nextPollTime - now, TimeUnit.MILLISECONDS);
+                if (key == null) {
+                    continue;
+                }
+                Set<File> changedFiles = new HashSet<>();
+                boolean overflow = !collectChanges(key, changedFiles);
+                // wait for the changes to settle, eg a file being written or several files
+                // being updated, to reload once
+                long deadline = System.currentTimeMillis() + MAX_DEBOUNCE_TIME_MS;
+                while (System.currentTimeMillis() < deadline
+                        && (key = watchService.poll(DEBOUNCE_TIME_MS,
+                                TimeUnit.MILLISECONDS)) != null) {
+                    overflow |= !collectChanges(key, changedFiles);
+                }
+                if (overflow) {
+                    // events were lost, check everything
+                    checkForUpdates();
+                } else {
+                    checkForUpdates(getCmdFilesDependingOn(changedFiles));
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            CLog.d("Command file watcher stopped");
+        } finally {
+            synchronized (mWatchLock) {
+                try {
+                    watchService.close();
+                } catch (IOException e) {
+                    CLog.w("Failed to close watch service: %s", e.getMessage());
+                }
+                mWatchService = null;
+                mWatchedDirs.clear();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void start() {
+        // watch the files added so far before returning, so no change is missed
+        getWatchService();
+        super.start();
+    }
+
+    /**
+     * Returns the {@link WatchService} watching the command file directories, creating it on first
+     * use, or null if watching is not supported.
+     */
+    private WatchService getWatchService() {
+        synchronized (mWatchLock) {
+            if (!mWatchServiceCreated) {
+                mWatchServiceCreated = true;
+                mWatchService = createWatchService();
+                if (mWatchService != null) {
+                    for (CommandFile cmd : getCmdFiles()) {
+                        watchCmdFile(cmd);
+                    }
+                }
+            }
+            return mWatchService;
+        }
+    }
+
+    /**
+     * Factory method for creating the {@link WatchService}, returns null to poll all files.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    WatchService createWatchService() {
+        try {
+            return FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            CLog.w("Cannot watch command files, polling them instead: %s", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Watch the directories of a command file and its dependencies, and the directories of their
+     * targets for symbolic links. Must be called with mWatchLock held.
+     */
+    private void watchCmdFile(CommandFile cmd) {
+        if (mWatchService == null) {
+            return;
+        }
+        watchDirectory(getDirectory(cmd.file));
+        watchDirectory(getDirectory(getRealFile(cmd.file)));
+        for (CommandFile dep : cmd.dependencies) {
+            watchCmdFile(dep);
         }
     }
 
+    /**
+     * Watch a directory, unless already watched or polled. Must be called with mWatchLock held.
+     */
+    private void watchDirectory(Path dir) {
+        if (dir != null && !mWatchedDirs.containsKey(dir)) {
+            try {
+                String type = Files.getFileStore(dir).type();
+                if (POLLED_FILE_STORE_TYPES.contains(type)) {
+                    CLog.d("Polling command files in %s, on a %s file system", dir, type);
+                } else {
+                    mWatchedDirs.put(dir, dir.register(mWatchService,
+                            StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY,
+                            StandardWatchEventKinds.ENTRY_DELETE));
+                }
+            } catch (IOException | UnsupportedOperationException e) {
+                CLog.w("Cannot watch %s, polling its command files instead: %s", dir,
+                        e.getMessage());
+            }
+        }
+    }
+
+    private static Path getDirectory(File file) {
+        if (file == null) {
+            return null;
+        }
+        File dir = file.getAbsoluteFile().getParentFile();
+        return dir == null ? null : dir.toPath();
+    }
+
+    /**
+     * Returns the file a path resolves to once symbolic links are followed, or null if it does
+     * not exist.
+     */
+    private static File getRealFile(File file) {
+        try {
+            return file.toPath().toRealPath().toFile();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Record the files changed in a directory.
+     *
+     * @return false if change events were lost
+     */
+    private boolean collectChanges(WatchKey key, Set<File> changedFiles) {
+        Path dir = (Path) key.watchable();
+        boolean complete = true;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (StandardWatchEventKinds.OVERFLOW.equals(event.kind())) {
+                complete = false;
+            } else {
+                File changed = dir.resolve((Path) event.context()).toFile();
+                changedFiles.add(changed);
+                // the directory may be reached through a link, match the command files by target
+                File realFile = getRealFile(changed);
+                if (realFile != null) {
+                    changedFiles.add(realFile);
+                }
+            }
+        }
+        if (!key.reset()) {
+            // the directory is gone, its files are polled until it is added back
+            synchronized (mWatchLock) {
+                mWatchedDirs.remove(dir);
+            }
+        }
+        return complete;
+    }
+
+    /**
+     * Returns the command files watched that are or depend on one of the given files.
+     */
+    private List<CommandFile> getCmdFilesDependingOn(Set<File> changedFiles) {
+        List<CommandFile> cmdFiles = new ArrayList<>();
+        for (CommandFile cmd : getCmdFiles()) {
+            if (dependsOn(cmd, changedFiles)) {
+                cmdFiles.add(cmd);
+            }
+        }
+        return cmdFiles;
+    }
+
+    private static boolean dependsOn(CommandFile cmd, Set<File> files) {
+        if (files.contains(cmd.file.getAbsoluteFile())) {
+            return true;
+        }
+        File realFile = getRealFile(cmd.file);
+        if (realFile != null && files.contains(realFile)) {
+            return true;
+        }
+        for (CommandFile dep : cmd.dependencies) {
+            if (dependsOn(dep, files)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the command files having the command file itself or a dependency in a directory
+     * that is not watched.
+     */
+    private List<CommandFile> getPolledCmdFiles() {
+        List<CommandFile> cmdFiles = new ArrayList<>();
+        synchronized (mWatchLock) {
+            for (CommandFile cmd : getCmdFiles()) {
+                if (isPolled(cmd)) {
+                    cmdFiles.add(cmd);
+                }
+            }
+        }
+        return cmdFiles;
+    }
+
+    private boolean isPolled(CommandFile cmd) {
+        if (!mWatchedDirs.containsKey(getDirectory(cmd.file))) {
+            return true;
+        }
+        Path targetDir = getDirectory(getRealFile(cmd.file));
+        if (targetDir != null && !mWatchedDirs.containsKey(targetDir)) {
+            return true;
+        }
+        for (CommandFile dep : cmd.dependencies) {
+            if (isPolled(dep)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Same as {@link #addCmdFile(File, List, Collection)} but accepts a list of {@link File}s
      * as dependencies
@@ -131,6 +401,9 @@ class CommandFileWatcher extends Thread {
     void addCmdFile(File cmdFile, List<String> extraArgs, List<File> dependencies) {
         CommandFile f = new CommandFile(cmdFile, extraArgs, dependencies);
         mCmdFileMap.put(cmdFile.getAbsolutePath(), f);
+        synchronized (mWatchLock) {
+            watchCmdFile(f);
+        }
     }
 
     /**
@@ -162,20 +435,31 @@ class CommandFileWatcher extends Thread {
      * Exposed for unit testing
      */
     void checkForUpdates() {
-        final Set<File> checkedFiles = new HashSet<File>();
+        checkForUpdates(getCmdFiles());
+    }
 
-        // iterate through a copy of the command list to limit time lock needs to be held
-        List<CommandFile> cmdCopy;
-        synchronized (mCmdFileMap) {
-            cmdCopy = new ArrayList<CommandFile>(mCmdFileMap.values());
-        }
-        for (CommandFile cmd : cmdCopy) {
+    /**
+     * Check if any of the given command files or their dependencies have changed.
+     */
+    private void checkForUpdates(Collection<CommandFile> cmdFiles) {
+        final Set<File> checkedFiles = new HashSet<File>();
+        for (CommandFile cmd : cmdFiles) {
             if (checkCommandFileForUpdate(cmd, checkedFiles)) {
                 mListener.notifyFileChanged(cmd.file, cmd.extraArgs);
             }
         }
     }
 
+    /**
+     * Returns a copy of the command files watched.
+     */
+    private List<CommandFile> getCmdFiles() {
+        // iterate through a copy of the command list to limit time lock needs to be held
+        synchronized (mCmdFileMap) {
+            return new ArrayList<CommandFile>(mCmdFileMap.values());
+        }
+    }
+
     boolean checkCommandFileForUpdate(CommandFile cmd, Set<File> checkedFiles) {
         if (checkedFiles.contains(cmd.file)) {
             return false;
@@ -249,6 +533,12 @@ class CommandFileWatcher extends Thread {
      */
     public void removeAllFiles() {
         mCmdFileMap.clear();
+        synchronized (mWatchLock) {
+            for (WatchKey key : mWatchedDirs.values()) {
+                key.cancel();
+            }
+            mWatchedDirs.clear();
+        }
     }
 
     /**
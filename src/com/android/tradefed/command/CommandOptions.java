@@ -21,6 +21,7 @@ import com.android.tradefed.config.Option.Importance;
 import com.android.tradefed.config.OptionCopier;
 import com.android.tradefed.config.OptionUpdateRule;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ResultForwarder.OverflowPolicy;
 import com.android.tradefed.util.UniqueMultiMap;
 
 /**
@@ -137,6 +138,30 @@ public class CommandOptions implements ICommandOptions {
     )
     private boolean mUseTfSharding = false;
 
+    @Option(
+        name = "async-result-forwarding",
+        description =
+                "Forward results to each result reporter from its own thread, so slow reporters "
+                        + "do not slow down the tests."
+    )
+    private boolean mAsyncResultForwarding = false;
+
+    @Option(
+        name = "result-forwarding-queue-size",
+        description =
+                "The number of results that can be queued for each result reporter when "
+                        + "forwarding asynchronously."
+    )
+    private int mResultForwardingQueueSize = 1000;
+
+    @Option(
+        name = "result-forwarding-overflow-policy",
+        description =
+                "What to do with results for a result reporter whose queue is full, when "
+                        + "forwarding asynchronously."
+    )
+    private OverflowPolicy mResultForwardingOverflowPolicy = OverflowPolicy.BLOCK;
+
     /**
      * Set the help mode for the config.
      * <p/>
@@ -388,4 +413,22 @@ public class CommandOptions implements ICommandOptions {
     public boolean shouldUseTfSharding() {
         return mUseTfSharding;
     }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean shouldForwardResultsAsync() {
+        return mAsyncResultForwarding;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getResultForwardingQueueSize() {
+        return mResultForwardingQueueSize;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public OverflowPolicy getResultForwardingOverflowPolicy() {
+        return mResultForwardingOverflowPolicy;
+    }
 }
@@ -56,6 +56,7 @@ import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.invoker.IRescheduler;
 import com.android.tradefed.invoker.ITestInvocation;
 import com.android.tradefed.invoker.InvocationContext;
+import com.android.tradefed.invoker.InvocationPhaseTimer;
 import com.android.tradefed.invoker.TestInvocation;
 import com.android.tradefed.log.ILogRegistry.EventType;
 import com.android.tradefed.log.LogRegistry;
@@ -66,11 +67,13 @@ import com.android.tradefed.util.ArrayUtil;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.QuotationAwareTokenizer;
 import com.android.tradefed.util.RunUtil;
+import com.android.tradefed.util.StreamingStats;
 import com.android.tradefed.util.TableFormatter;
 import com.android.tradefed.util.TimeUtil;
 import com.android.tradefed.util.hostmetric.IHostMonitor;
 import com.android.tradefed.util.hostmetric.IHostMonitor.HostDataPoint;
 import com.android.tradefed.util.hostmetric.IHostMonitor.HostMetricType;
+import com.android.tradefed.util.hostmetric.TelemetryHostMonitor;
 import com.android.tradefed.util.keystore.IKeyStoreClient;
 import com.android.tradefed.util.keystore.IKeyStoreFactory;
 import com.android.tradefed.util.keystore.KeyStoreException;
@@ -80,10 +83,12 @@ import org.json.JSONException;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -160,6 +165,9 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
     private ExitCode mLastInvocationExitCode = ExitCode.NO_ERROR;
     private Throwable mLastInvocationThrowable = null;
 
+    /** Time spent in each phase of the invocations in ms, across all invocations */
+    private final Map<String, StreamingStats> mInvocationPhaseStats = new LinkedHashMap<>();
+
     @Option(name = "reload-cmdfiles", description =
             "Whether to enable the command file autoreload mechanism")
     // FIXME: enable this to be enabled or disabled on a per-cmdfile basis
@@ -520,6 +528,8 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
         private final InvocationThreadMonitor mInvocationThreadMonitor;
         private final Timer mExecutionTimer;
         private long mStartTime = -1;
+        private long mStartCpuTime = -1;
+        private long mStartAllocatedBytes = -1;
 
         public InvocationThread(String name, IInvocationContext invocationContext,
                 ExecutableCommand command, IScheduledInvocationListener... listeners) {
@@ -546,6 +556,8 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
                 deviceStates.put(device, FreeDeviceState.AVAILABLE);
             }
             mStartTime = System.currentTimeMillis();
+            mStartCpuTime = TelemetryHostMonitor.getCurrentThreadCpuTime();
+            mStartAllocatedBytes = TelemetryHostMonitor.getCurrentThreadAllocatedBytes();
             ITestInvocation instance = getInvocation();
             IConfiguration config = mCmd.getConfiguration();
 
@@ -616,6 +628,12 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
                 }
 
                 checkStrayThreads();
+                try {
+                    reportResourceUsage(elapsedTime);
+                } catch (RuntimeException e) {
+                    // host monitoring should never prevent the devices from being freed
+                    CLog.w("Failed to report the invocation resource usage: %s", e.getMessage());
+                }
 
                 for (final IScheduledInvocationListener listener : mListeners) {
                     try {
@@ -626,6 +644,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
                     }
                 }
                 mCmd.commandFinished(elapsedTime);
+                addInvocationPhaseTimes(mInvocationContext);
                 logInvocationEndedEvent(
                         mCmd.getCommandTracker().getId(), elapsedTime, mInvocationContext);
             }
@@ -661,6 +680,38 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
                             numThread, Arrays.asList(listThreads)));
         }
 
+        /**
+         * Report the resources used by the invocation thread to the host monitors, so slow
+         * invocations can be correlated with the load of the host.
+         */
+        private void reportResourceUsage(long elapsedTime) {
+            List<IHostMonitor> hostMonitors = getHostMonitor();
+            if (hostMonitors == null || hostMonitors.isEmpty()) {
+                return;
+            }
+            String cmd = Arrays.asList(mCmd.getCommandTracker().getArgs()).toString();
+            List<HostDataPoint> usage = new ArrayList<>();
+            long cpuTime = TelemetryHostMonitor.getCurrentThreadCpuTime();
+            if (cpuTime >= 0 && mStartCpuTime >= 0) {
+                usage.add(new HostDataPoint(TelemetryHostMonitor.INVOCATION_CPU_KEY,
+                        (int) Math.min(Integer.MAX_VALUE, cpuTime - mStartCpuTime), cmd));
+            }
+            long allocated = TelemetryHostMonitor.getCurrentThreadAllocatedBytes();
+            if (allocated >= 0 && mStartAllocatedBytes >= 0) {
+                usage.add(new HostDataPoint(TelemetryHostMonitor.INVOCATION_ALLOCATED_KEY,
+                        (int) Math.min(Integer.MAX_VALUE,
+                                (allocated - mStartAllocatedBytes) / 1024), cmd));
+            }
+            // elapsed time last, the monitors report the host peaks during the invocation with it
+            usage.add(new HostDataPoint(TelemetryHostMonitor.INVOCATION_ELAPSED_KEY,
+                    (int) Math.min(Integer.MAX_VALUE, elapsedTime), cmd));
+            for (IHostMonitor hm : hostMonitors) {
+                for (HostDataPoint data : usage) {
+                    hm.addHostEvent(HostMetricType.INVOCATION_RESOURCES, data);
+                }
+            }
+        }
+
         /** Helper to log an invocation ended event. */
         private void logInvocationEndedEvent(
                 int invocId, long elapsedTime, final IInvocationContext context) {
@@ -1108,14 +1159,25 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
      */
     @Override
     public boolean addCommand(String[] args, long totalExecTime) throws ConfigurationException {
-        return internalAddCommand(args, totalExecTime, null);
+        return internalAddCommand(args, totalExecTime, null, null);
     }
 
-    private boolean internalAddCommand(String[] args, long totalExecTime, String cmdFilePath)
-            throws ConfigurationException {
+    /**
+     * Adds a command.
+     *
+     * @param args the command arguments
+     * @param totalExecTime the accumulated elapsed execution time of the command
+     * @param cmdFilePath the command file the command was read from, or null
+     * @param config the {@link IConfiguration} previously created for these exact arguments and
+     *            never used, or null to create it from the arguments
+     */
+    private boolean internalAddCommand(String[] args, long totalExecTime, String cmdFilePath,
+            IConfiguration config) throws ConfigurationException {
         assertStarted();
-        IConfiguration config = getConfigFactory().createConfigurationFromArgs(args, null,
-                getKeyStoreClient());
+        if (config == null) {
+            config = getConfigFactory().createConfigurationFromArgs(args, null,
+                    getKeyStoreClient());
+        }
         if (config.getCommandOptions().isHelpMode()) {
             getConfigFactory().printHelpForConfig(args, true, System.out);
         } else if (config.getCommandOptions().isFullHelpMode()) {
@@ -1163,15 +1225,24 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
             CLog.logAndDisplay(LogLevel.INFO,
                     "cmd file %s is already running and being watched for changes. Reloading",
                     cmdFilePath);
-            removeCommandsFromFile(cmdFile);
+            internalAddCommandFile(cmdFile, extraArgs, removeCommandsFromFile(cmdFile));
+        } else {
+            internalAddCommandFile(cmdFile, extraArgs,
+                    Collections.<List<String>, Deque<IConfiguration>>emptyMap());
         }
-        internalAddCommandFile(cmdFile, extraArgs);
     }
 
     /**
      * Adds a command file without verifying if its already being watched
+     *
+     * @param cmdFile the command file
+     * @param extraArgs the arguments to add to each command of the file
+     * @param unusedConfigs configurations of the commands previously added from the file and
+     *            never executed, by command arguments, to re-use for the same commands instead of
+     *            creating them again
      */
-    private void internalAddCommandFile(File cmdFile, List<String> extraArgs)
+    private void internalAddCommandFile(File cmdFile, List<String> extraArgs,
+            Map<List<String>, Deque<IConfiguration>> unusedConfigs)
             throws ConfigurationException {
         try {
             CommandFileParser parser = createCommandFileParser();
@@ -1188,8 +1259,13 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
                 final String prettyCmdLine = QuotationAwareTokenizer.combineTokens(arrayCommand);
                 CLog.d("Adding command %s", prettyCmdLine);
 
+                Deque<IConfiguration> configs = unusedConfigs.get(Arrays.asList(arrayCommand));
+                IConfiguration config = configs == null ? null : configs.poll();
+                if (config != null) {
+                    CLog.d("Command did not change, re-using its configuration");
+                }
                 try {
-                    internalAddCommand(arrayCommand, 0, cmdFile.getAbsolutePath());
+                    internalAddCommand(arrayCommand, 0, cmdFile.getAbsolutePath(), config);
                 } catch (ConfigurationException e) {
                     throw new ConfigurationException(String.format(
                             "Failed to add command '%s': %s", prettyCmdLine, e.getMessage()), e);
@@ -1551,8 +1627,12 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
     /**
      * Remove commands originally added via the given command file
      * @param cmdFile
+     * @return the configurations of the removed commands that were never executed, by command
+     *         arguments. They can be re-used if the same commands are added again.
      */
-    private synchronized void removeCommandsFromFile(File cmdFile) {
+    private synchronized Map<List<String>, Deque<IConfiguration>> removeCommandsFromFile(
+            File cmdFile) {
+        Map<List<String>, Deque<IConfiguration>> removedConfigs = new HashMap<>();
         Iterator<ExecutableCommand> cmdIter = mReadyCommands.iterator();
         while (cmdIter.hasNext()) {
             ExecutableCommand cmd = cmdIter.next();
@@ -1560,6 +1640,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
             if (path != null &&
                     path.equals(cmdFile.getAbsolutePath())) {
                 cmdIter.remove();
+                addRemovedConfig(removedConfigs, cmd);
             }
         }
         cmdIter = mSleepingCommands.iterator();
@@ -1569,11 +1650,28 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
             if (path != null &&
                     path.equals(cmdFile.getAbsolutePath())) {
                 cmdIter.remove();
+                addRemovedConfig(removedConfigs, cmd);
             }
         }
         if (isShuttingDown()) {
             mCommandProcessWait.signalEventReceived();
         }
+        return removedConfigs;
+    }
+
+    private static void addRemovedConfig(Map<List<String>, Deque<IConfiguration>> removedConfigs,
+            ExecutableCommand cmd) {
+        if (cmd.isRescheduled()) {
+            // shard or rescheduled configuration, not the one the command was added with
+            return;
+        }
+        List<String> args = Arrays.asList(cmd.getCommandTracker().getArgs());
+        Deque<IConfiguration> configs = removedConfigs.get(args);
+        if (configs == null) {
+            configs = new ArrayDeque<>();
+            removedConfigs.put(args, configs);
+        }
+        configs.add(cmd.getConfiguration());
     }
 
     /**
@@ -2077,11 +2175,11 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
     public void notifyFileChanged(File cmdFile, List<String> extraArgs) {
         CLog.logAndDisplay(LogLevel.INFO, "Detected update for cmdfile '%s'. Reloading",
                 cmdFile.getAbsolutePath());
-        removeCommandsFromFile(cmdFile);
+        Map<List<String>, Deque<IConfiguration>> unusedConfigs = removeCommandsFromFile(cmdFile);
         try {
             // just add the file again, including re-registering for command file watcher
             // don't want to remove the registration here in case file fails to load
-            internalAddCommandFile(cmdFile, extraArgs);
+            internalAddCommandFile(cmdFile, extraArgs, unusedConfigs);
         } catch (ConfigurationException e) {
             CLog.wtf(String.format("Failed to automatically reload cmdfile %s",
                     cmdFile.getAbsolutePath()), e);
@@ -2133,6 +2231,50 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
         return mLastInvocationThrowable;
     }
 
+    /**
+     * Aggregate the phase times reported by an invocation with the ones of the previous
+     * invocations.
+     *
+     * @see InvocationPhaseTimer
+     */
+    void addInvocationPhaseTimes(IInvocationContext context) {
+        Map<String, Long> spans = InvocationPhaseTimer.getSpans(context);
+        if (spans.isEmpty()) {
+            return;
+        }
+        StringBuilder summary = new StringBuilder();
+        synchronized (mInvocationPhaseStats) {
+            for (Map.Entry<String, Long> span : spans.entrySet()) {
+                StreamingStats stats = mInvocationPhaseStats.get(span.getKey());
+                if (stats == null) {
+                    stats = new StreamingStats();
+                    mInvocationPhaseStats.put(span.getKey(), stats);
+                }
+                double ms = span.getValue() / 1000000.0;
+                stats.add(ms);
+                summary.append(String.format("\n  %s: %.1f ms (p50 %.1f, p90 %.1f, p99 %.1f)",
+                        span.getKey(), ms, stats.quantile(0.5), stats.quantile(0.9),
+                        stats.quantile(0.99)));
+            }
+        }
+        CLog.d("Invocation phase times:%s", summary);
+    }
+
+    /**
+     * Returns the time spent in each phase of the invocations that ran so far, in ms.
+     *
+     * @return a copy of the {@link StreamingStats} of each phase, by phase name
+     */
+    public Map<String, StreamingStats> getInvocationPhaseStats() {
+        Map<String, StreamingStats> copy = new LinkedHashMap<>();
+        synchronized (mInvocationPhaseStats) {
+            for (Map.Entry<String, StreamingStats> stats : mInvocationPhaseStats.entrySet()) {
+                copy.put(stats.getKey(), new StreamingStats(stats.getValue()));
+            }
+        }
+        return copy;
+    }
+
     @Override
     public void setLastInvocationExitCode(ExitCode code, Throwable throwable) {
         mLastInvocationExitCode = code;
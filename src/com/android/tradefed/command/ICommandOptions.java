@@ -16,6 +16,7 @@
 
 package com.android.tradefed.command;
 
+import com.android.tradefed.result.ResultForwarder.OverflowPolicy;
 import com.android.tradefed.util.UniqueMultiMap;
 
 /**
@@ -154,4 +155,13 @@ public interface ICommandOptions {
 
     /** Returns true if we should use Tf new sharding logic */
     public boolean shouldUseTfSharding();
+
+    /** Returns true if results should be forwarded to each reporter from its own thread */
+    public boolean shouldForwardResultsAsync();
+
+    /** Returns the number of results that can be queued for each reporter */
+    public int getResultForwardingQueueSize();
+
+    /** Returns what to do with results for a reporter whose queue is full */
+    public OverflowPolicy getResultForwardingOverflowPolicy();
 }
@@ -35,6 +35,24 @@ class ExecCommandTracker implements IScheduledInvocationListener {
     private String mErrorDetails = null;
     private FreeDeviceState mState = null;
     Map<String, String> mRunMetrics = new HashMap<String, String>();
+    private final String mSerial;
+    private final RemoteEventPublisher mEventPublisher;
+
+    ExecCommandTracker() {
+        this(null, null);
+    }
+
+    /**
+     * Creates a {@link ExecCommandTracker} that notifies the remote clients subscribed to the
+     * given {@link RemoteEventPublisher} when the command completes.
+     *
+     * @param serial the serial of the device the command executes on
+     * @param publisher the {@link RemoteEventPublisher}, or null
+     */
+    ExecCommandTracker(String serial, RemoteEventPublisher publisher) {
+        mSerial = serial;
+        mEventPublisher = publisher;
+    }
 
     @Override
     public void invocationFailed(Throwable cause) {
@@ -70,6 +88,9 @@ class ExecCommandTracker implements IScheduledInvocationListener {
         } else {
             mStatus = CommandResult.Status.INVOCATION_SUCCESS;
         }
+        if (mEventPublisher != null) {
+            mEventPublisher.notifyCommandStateChange(mSerial, getCommandResult());
+        }
     }
 
     @Override
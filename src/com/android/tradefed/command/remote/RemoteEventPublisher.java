@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.command.remote;
+
+import com.android.tradefed.device.DeviceAllocationState;
+import com.android.tradefed.device.IDeviceMonitor;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Pushes device and command state changes to the remote clients that sent a {@link SubscribeOp}.
+ * <p/>
+ * Registered as an {@link IDeviceMonitor} to receive device allocation state changes, and
+ * notified by {@link ExecCommandTracker} of the command state changes. Events are only built
+ * when there are subscribers.
+ */
+class RemoteEventPublisher implements IDeviceMonitor {
+
+    /**
+     * A remote client receiving events.
+     */
+    interface ISubscriber {
+        /**
+         * Queue an event to send to the client. Called from the thread where the change happened,
+         * so should not block.
+         *
+         * @return false if the client is gone and should not receive events anymore.
+         */
+        boolean sendEvent(JSONObject event);
+    }
+
+    private final List<ISubscriber> mSubscribers = new CopyOnWriteArrayList<>();
+
+    /**
+     * Start sending events to the given subscriber.
+     */
+    void addSubscriber(ISubscriber subscriber) {
+        mSubscribers.add(subscriber);
+    }
+
+    /**
+     * Stop sending events to the given subscriber. Has no effect if it was not added.
+     */
+    void removeSubscriber(ISubscriber subscriber) {
+        mSubscribers.remove(subscriber);
+    }
+
+    /** Returns the number of subscribers. */
+    int getSubscriberCount() {
+        return mSubscribers.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void notifyDeviceStateChange(String serial, DeviceAllocationState oldState,
+            DeviceAllocationState newState) {
+        if (mSubscribers.isEmpty()) {
+            return;
+        }
+        try {
+            publish(SubscribeOp.packDeviceEvent(serial, oldState, newState));
+        } catch (JSONException e) {
+            CLog.e("Failed to build device state event for %s", serial);
+            CLog.e(e);
+        }
+    }
+
+    /**
+     * Notify the subscribers that the command executed on a device changed state.
+     *
+     * @param serial the serial of the device
+     * @param result the new {@link CommandResult} of the command
+     */
+    void notifyCommandStateChange(String serial, CommandResult result) {
+        if (mSubscribers.isEmpty()) {
+            return;
+        }
+        try {
+            publish(SubscribeOp.packCommandEvent(serial, result));
+        } catch (JSONException e) {
+            CLog.e("Failed to build command state event for %s", serial);
+            CLog.e(e);
+        }
+    }
+
+    private void publish(JSONObject event) {
+        for (ISubscriber subscriber : mSubscribers) {
+            if (!subscriber.sendEvent(event)) {
+                mSubscribers.remove(subscriber);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run() {
+        // ignore, events are pushed as they happen
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void stop() {
+        mSubscribers.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setDeviceLister(DeviceLister lister) {
+        // ignore, the device list is sent by the remote manager when subscribing
+    }
+}
@@ -37,16 +37,41 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Class that receives {@link com.android.tradefed.command.remote.RemoteOperation}s via a socket.
  * <p/>
- * Currently accepts only one remote connection at one time, and processes incoming commands
- * serially.
+ * By default, accepts only one remote connection at one time, and processes incoming commands
+ * serially. With the remote-mgr-nio option, connections are served concurrently from a single
+ * selector thread: operations of a client are executed in order on a pool of threads, so a
+ * client can send several operations without waiting for their responses, and match responses
+ * with the optional id of the operations. Clients can also subscribe to device and command
+ * state changes, that are then pushed to them as they happen.
  * <p/>
  * Usage:
  * <pre>
@@ -60,10 +85,16 @@ import java.net.SocketTimeoutException;
 @OptionClass(alias = "remote-manager")
 public class RemoteManager extends Thread {
 
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final long SHUTDOWN_TIMEOUT_MS = 5 * 1000;
+
     private ServerSocket mServerSocket = null;
-    private boolean mCancel = false;
+    private volatile boolean mCancel = false;
     private final IDeviceManager mDeviceManager;
     private final ICommandScheduler mScheduler;
+    private final RemoteEventPublisher mEventPublisher = new RemoteEventPublisher();
+    /** whether mEventPublisher was added to the device monitors, guarded by mEventPublisher */
+    private boolean mEventPublisherRegistered = false;
 
     @Option(name = "start-remote-mgr",
             description = "Whether or not to start a remote manager on boot.")
@@ -82,6 +113,68 @@ public class RemoteManager extends Thread {
             description = "Timeout for when accepting connections with the remote manager socket.")
     private static int mSocketTimeout = 2000;
 
+    @Option(name = "remote-mgr-nio",
+            description = "Whether to serve remote clients concurrently with a non-blocking "
+                    + "selector, instead of one client at a time.")
+    private static boolean mUseSelector = false;
+
+    @Option(name = "remote-mgr-op-threads",
+            description = "The number of threads executing remote operations when "
+                    + "remote-mgr-nio is set.")
+    private static int mOperationThreads = 4;
+
+    @Option(name = "remote-mgr-max-queued-bytes",
+            description = "The maximum number of bytes of responses and events waiting to be "
+                    + "sent to a client when remote-mgr-nio is set. Clients that do not read "
+                    + "fast enough to stay under it are disconnected.")
+    private static long mMaxQueuedBytes = 4 * 1024 * 1024;
+
+    @Option(name = "remote-mgr-max-line-bytes",
+            description = "The maximum length in bytes of an operation sent by a client when "
+                    + "remote-mgr-nio is set. Clients sending longer lines are disconnected.")
+    private static int mMaxLineBytes = 1024 * 1024;
+
+    /** Clients with responses to write, waiting for the selector thread to pick them up */
+    private final Queue<ClientConnection> mPendingWrites = new ConcurrentLinkedQueue<>();
+    private volatile Selector mSelector = null;
+    /**
+     * Locks serializing the operations that check and then change the command executing on a
+     * device, by serial, since operations of different clients run concurrently in nio mode.
+     */
+    private final ConcurrentMap<String, Object> mDeviceLocks = new ConcurrentHashMap<>();
+
+    /**
+     * State of a client connected in non-blocking mode.
+     */
+    private class ClientConnection implements RemoteEventPublisher.ISubscriber {
+        final SocketChannel mChannel;
+        SelectionKey mKey = null;
+        /** bytes of the last line received, not terminated yet */
+        byte[] mLine = new byte[256];
+        int mLineLength = 0;
+        /** operations received and not executed yet, guarded by this */
+        final Queue<String> mOperations = new ArrayDeque<>();
+        /** whether a thread is executing the operations, guarded by this */
+        boolean mExecuting = false;
+        final Queue<ByteBuffer> mResponses = new ConcurrentLinkedQueue<>();
+        /** number of bytes in mResponses */
+        final AtomicLong mQueuedBytes = new AtomicLong();
+        /** set when the client did not read its responses fast enough and must be closed */
+        volatile boolean mOverflowed = false;
+
+        ClientConnection(SocketChannel channel) {
+            mChannel = channel;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean sendEvent(JSONObject event) {
+            return queueResponse(this, event);
+        }
+    }
+
     public boolean getStartRemoteMgrOnBoot() {
         return mStartRemoteManagerOnBoot;
     }
@@ -102,6 +195,32 @@ public class RemoteManager extends Thread {
         return mAutoHandover;
     }
 
+    public void setUseSelector(boolean useSelector) {
+        mUseSelector = useSelector;
+    }
+
+    /**
+     * Set the maximum number of bytes waiting to be sent to a client in nio mode.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    void setMaxQueuedBytes(long maxQueuedBytes) {
+        mMaxQueuedBytes = maxQueuedBytes;
+    }
+
+    /**
+     * Set the maximum length of an operation received from a client in nio mode.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    void setMaxLineBytes(int maxLineBytes) {
+        mMaxLineBytes = maxLineBytes;
+    }
+
+    public boolean getUseSelector() {
+        return mUseSelector;
+    }
+
     public RemoteManager() {
         super("RemoteManager");
         mDeviceManager = null;
@@ -152,6 +271,16 @@ public class RemoteManager extends Thread {
      */
     private ServerSocket openSocket(int port) {
         try {
+            if (mUseSelector) {
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                try {
+                    channel.bind(new InetSocketAddress(port));
+                } catch (IOException e) {
+                    StreamUtil.close(channel);
+                    throw e;
+                }
+                return channel.socket();
+            }
             return new ServerSocket(port);
         } catch (IOException e) {
             // avoid printing a scary stack that is due to handover.
@@ -179,11 +308,19 @@ public class RemoteManager extends Thread {
             // Set a timeout as we don't want to be blocked listening for connections,
             // we could receive a request for cancel().
             mServerSocket.setSoTimeout(mSocketTimeout);
-            processClientConnections(mServerSocket);
+            if (mServerSocket.getChannel() != null) {
+                processClientChannels(mServerSocket.getChannel());
+            } else {
+                processClientConnections(mServerSocket);
+            }
         } catch (SocketException e) {
             CLog.e("Error when setting socket timeout");
             CLog.e(e);
+        } catch (IOException e) {
+            CLog.e("Error when serving remote clients");
+            CLog.e(e);
         } finally {
+            unregisterEventPublisher();
             freeAllDevices();
             closeSocket(mServerSocket);
         }
@@ -233,6 +370,259 @@ public class RemoteManager extends Thread {
         }
     }
 
+    /**
+     * Serve clients concurrently from a non-blocking server channel, until cancelled.
+     */
+    private void processClientChannels(ServerSocketChannel serverChannel) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, mOperationThreads),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "RemoteManager-op");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        List<ClientConnection> clients = new ArrayList<>();
+        Selector selector = Selector.open();
+        mSelector = selector;
+        try {
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            while (!mCancel) {
+                selector.select(mSocketTimeout);
+                ClientConnection pending = null;
+                while ((pending = mPendingWrites.poll()) != null) {
+                    if (pending.mOverflowed) {
+                        if (clients.contains(pending)) {
+                            closeClient(pending, clients);
+                        }
+                    } else if (pending.mKey.isValid()) {
+                        pending.mKey.interestOps(
+                                pending.mKey.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        acceptClient(serverChannel, selector, clients);
+                        continue;
+                    }
+                    ClientConnection client = (ClientConnection) key.attachment();
+                    try {
+                        if (key.isReadable() && !readClient(client, readBuffer, executor)) {
+                            closeClient(client, clients);
+                            continue;
+                        }
+                        if (key.isWritable()) {
+                            writeClient(client);
+                        }
+                    } catch (IOException e) {
+                        CLog.w("Closing remote client connection: %s", e.getMessage());
+                        closeClient(client, clients);
+                    }
+                }
+            }
+        } finally {
+            mSelector = null;
+            // let the operations in flight send their response, eg the one that closed us
+            executor.shutdown();
+            try {
+                executor.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                CLog.e(e);
+            }
+            executor.shutdownNow();
+            StreamUtil.close(selector);
+            for (ClientConnection client : clients) {
+                flushResponses(client);
+                StreamUtil.close(client.mChannel);
+            }
+        }
+    }
+
+    private void acceptClient(ServerSocketChannel serverChannel, Selector selector,
+            List<ClientConnection> clients) throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        ClientConnection client = new ClientConnection(channel);
+        client.mKey = channel.register(selector, SelectionKey.OP_READ, client);
+        clients.add(client);
+        CLog.d("Accepted remote client %s", channel.getRemoteAddress());
+    }
+
+    private void closeClient(ClientConnection client, List<ClientConnection> clients) {
+        mEventPublisher.removeSubscriber(client);
+        client.mKey.cancel();
+        StreamUtil.close(client.mChannel);
+        clients.remove(client);
+    }
+
+    /**
+     * Read the data available from a client, and queue the complete operations received.
+     *
+     * @return false if the client closed the connection, or sent a line too long and must be
+     *         disconnected.
+     */
+    private boolean readClient(ClientConnection client, ByteBuffer readBuffer,
+            ExecutorService executor) throws IOException {
+        readBuffer.clear();
+        int read = client.mChannel.read(readBuffer);
+        if (read < 0) {
+            return false;
+        }
+        byte[] data = readBuffer.array();
+        int lineStart = 0;
+        for (int i = 0; i < read; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            if (!appendLine(client, data, lineStart, i - lineStart)) {
+                return false;
+            }
+            int length = client.mLineLength;
+            if (length > 0 && client.mLine[length - 1] == '\r') {
+                length--;
+            }
+            queueOperation(client, new String(client.mLine, 0, length, StandardCharsets.UTF_8),
+                    executor);
+            client.mLineLength = 0;
+            lineStart = i + 1;
+        }
+        return appendLine(client, data, lineStart, read - lineStart);
+    }
+
+    /**
+     * Append data to the line being received from a client.
+     *
+     * @return false if the line is longer than allowed.
+     */
+    private boolean appendLine(ClientConnection client, byte[] data, int offset, int length) {
+        if (client.mLineLength + length > mMaxLineBytes) {
+            CLog.w("Remote client sent a line longer than %d bytes, disconnecting it",
+                    mMaxLineBytes);
+            return false;
+        }
+        if (client.mLineLength + length > client.mLine.length) {
+            client.mLine = Arrays.copyOf(client.mLine,
+                    Math.max(client.mLine.length * 2, client.mLineLength + length));
+        }
+        System.arraycopy(data, offset, client.mLine, client.mLineLength, length);
+        client.mLineLength += length;
+        return true;
+    }
+
+    /**
+     * Queue an operation of a client, to be executed after its previous operations.
+     */
+    private void queueOperation(final ClientConnection client, String line,
+            ExecutorService executor) {
+        synchronized (client) {
+            client.mOperations.add(line);
+            if (client.mExecuting) {
+                return;
+            }
+            client.mExecuting = true;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                executeOperations(client);
+            }
+        });
+    }
+
+    /**
+     * Execute the queued operations of a client, in order, and queue their responses.
+     */
+    private void executeOperations(ClientConnection client) {
+        while (true) {
+            String line = null;
+            synchronized (client) {
+                line = client.mOperations.poll();
+                if (line == null || mCancel) {
+                    client.mOperations.clear();
+                    client.mExecuting = false;
+                    return;
+                }
+            }
+            JSONObject result = new JSONObject();
+            Thread postOp = executeOperation(line, result, client);
+            queueResponse(client, result);
+            if (postOp != null) {
+                postOp.start();
+            }
+        }
+    }
+
+    /**
+     * Queue a response or event to write to a client.
+     *
+     * @return false if the connection to the client is closed.
+     */
+    private boolean queueResponse(ClientConnection client, JSONObject response) {
+        if (!client.mChannel.isOpen() || client.mOverflowed) {
+            return false;
+        }
+        byte[] data = (response.toString() + "\n").getBytes(StandardCharsets.UTF_8);
+        if (client.mQueuedBytes.addAndGet(data.length) > mMaxQueuedBytes) {
+            CLog.w("Remote client is not reading its responses, %d bytes queued. Closing it.",
+                    client.mQueuedBytes.get());
+            client.mOverflowed = true;
+        } else {
+            client.mResponses.add(ByteBuffer.wrap(data));
+        }
+        mPendingWrites.add(client);
+        Selector selector = mSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        return !client.mOverflowed;
+    }
+
+    /**
+     * Write the queued responses of a client, as much as its connection accepts without blocking.
+     */
+    private void writeClient(ClientConnection client) throws IOException {
+        ByteBuffer response = null;
+        while ((response = client.mResponses.peek()) != null) {
+            client.mChannel.write(response);
+            if (response.hasRemaining()) {
+                // wait for the client to be writable again
+                return;
+            }
+            client.mResponses.poll();
+            client.mQueuedBytes.addAndGet(-response.limit());
+        }
+        client.mKey.interestOps(client.mKey.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Write the remaining responses of a client before closing its connection.
+     */
+    private void flushResponses(ClientConnection client) {
+        try {
+            client.mChannel.configureBlocking(true);
+            ByteBuffer response = null;
+            while ((response = client.mResponses.poll()) != null) {
+                while (response.hasRemaining()) {
+                    client.mChannel.write(response);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            CLog.d("Failed to send the last responses to a remote client: %s", e.getMessage());
+        }
+    }
+
     /**
      * Process {@link com.android.tradefed.command.remote.RemoteClient} operations.
      *
@@ -245,55 +635,7 @@ public class RemoteManager extends Thread {
         String line = null;
         while ((line = in.readLine()) != null && !mCancel) {
             JSONObject result = new JSONObject();
-            RemoteOperation<?> rc;
-            Thread postOp = null;
-            try {
-                rc = RemoteOperation.createRemoteOpFromString(line);
-                switch (rc.getType()) {
-                    case ADD_COMMAND:
-                        processAdd((AddCommandOp)rc, result);
-                        break;
-                    case ADD_COMMAND_FILE:
-                        processAddCommandFile((AddCommandFileOp)rc, result);
-                        break;
-                    case CLOSE:
-                        processClose((CloseOp)rc, result);
-                        break;
-                    case ALLOCATE_DEVICE:
-                        processAllocate((AllocateDeviceOp)rc, result);
-                        break;
-                    case FREE_DEVICE:
-                        processFree((FreeDeviceOp)rc, result);
-                        break;
-                    case START_HANDOVER:
-                        postOp = processStartHandover((StartHandoverOp)rc, result);
-                        break;
-                    case HANDOVER_INIT_COMPLETE:
-                        processHandoverInitComplete((HandoverInitCompleteOp)rc, result);
-                        break;
-                    case HANDOVER_COMPLETE:
-                        postOp = processHandoverComplete((HandoverCompleteOp)rc, result);
-                        break;
-                    case LIST_DEVICES:
-                        processListDevices((ListDevicesOp)rc, result);
-                        break;
-                    case EXEC_COMMAND:
-                        processExecCommand((ExecCommandOp)rc, result);
-                        break;
-                    case GET_LAST_COMMAND_RESULT:
-                        processGetLastCommandResult((GetLastCommandResultOp)rc, result);
-                        break;
-                    default:
-                        result.put(RemoteOperation.ERROR, "Unrecognized operation");
-                        break;
-                }
-            } catch (RemoteException e) {
-                addErrorToResult(result, e);
-            } catch (JSONException e) {
-                addErrorToResult(result, e);
-            } catch (RuntimeException e) {
-                addErrorToResult(result, e);
-            }
+            Thread postOp = executeOperation(line, result);
             sendAck(result, out);
             if (postOp != null) {
                 postOp.start();
@@ -301,6 +643,87 @@ public class RemoteManager extends Thread {
         }
     }
 
+    /**
+     * Execute a {@link com.android.tradefed.command.remote.RemoteClient} operation.
+     *
+     * @param line the operation, as received from the client.
+     * @param result the {@link JSONObject} to fill with the response to the operation.
+     * @return a {@link Thread} to start once the response was sent, or null.
+     */
+    @VisibleForTesting
+    Thread executeOperation(String line, JSONObject result) {
+        return executeOperation(line, result, null);
+    }
+
+    /**
+     * Execute a {@link com.android.tradefed.command.remote.RemoteClient} operation.
+     *
+     * @param line the operation, as received from the client.
+     * @param result the {@link JSONObject} to fill with the response to the operation.
+     * @param subscriber the client, to send events to if it subscribes to them, or null if it
+     *        cannot receive events.
+     * @return a {@link Thread} to start once the response was sent, or null.
+     */
+    private Thread executeOperation(String line, JSONObject result,
+            RemoteEventPublisher.ISubscriber subscriber) {
+        RemoteOperation<?> rc;
+        Thread postOp = null;
+        try {
+            rc = RemoteOperation.createRemoteOpFromString(line);
+            if (rc.getId() != null) {
+                result.put(RemoteOperation.ID, rc.getId());
+            }
+            switch (rc.getType()) {
+                case ADD_COMMAND:
+                    processAdd((AddCommandOp)rc, result);
+                    break;
+                case ADD_COMMAND_FILE:
+                    processAddCommandFile((AddCommandFileOp)rc, result);
+                    break;
+                case CLOSE:
+                    processClose((CloseOp)rc, result);
+                    break;
+                case ALLOCATE_DEVICE:
+                    processAllocate((AllocateDeviceOp)rc, result);
+                    break;
+                case FREE_DEVICE:
+                    processFree((FreeDeviceOp)rc, result);
+                    break;
+                case START_HANDOVER:
+                    postOp = processStartHandover((StartHandoverOp)rc, result);
+                    break;
+                case HANDOVER_INIT_COMPLETE:
+                    processHandoverInitComplete((HandoverInitCompleteOp)rc, result);
+                    break;
+                case HANDOVER_COMPLETE:
+                    postOp = processHandoverComplete((HandoverCompleteOp)rc, result);
+                    break;
+                case LIST_DEVICES:
+                    processListDevices((ListDevicesOp)rc, result);
+                    break;
+                case EXEC_COMMAND:
+                    processExecCommand((ExecCommandOp)rc, result);
+                    break;
+                case GET_LAST_COMMAND_RESULT:
+                    processGetLastCommandResult((GetLastCommandResultOp)rc, result);
+                    break;
+                case SUBSCRIBE:
+                    processSubscribe((SubscribeOp)rc, result, subscriber);
+                    break;
+                default:
+                    result.put(RemoteOperation.ERROR, "Unrecognized operation");
+                    break;
+            }
+        } catch (RemoteException e) {
+            addErrorToResult(result, e);
+        } catch (JSONException e) {
+            addErrorToResult(result, e);
+        } catch (RuntimeException e) {
+            addErrorToResult(result, e);
+        }
+        return postOp;
+    }
+
     private void addErrorToResult(JSONObject result, Exception e) {
         try {
             CLog.e("Failed to handle remote command");
@@ -321,6 +744,34 @@ public class RemoteManager extends Thread {
         }
     }
 
+    private void processSubscribe(SubscribeOp c, JSONObject result,
+            RemoteEventPublisher.ISubscriber subscriber) throws JSONException {
+        if (subscriber == null) {
+            // a blocking connection would keep all the other clients waiting
+            result.put(RemoteOperation.ERROR, "Subscribing requires the remote-mgr-nio option");
+            return;
+        }
+        synchronized (mEventPublisher) {
+            if (!mEventPublisherRegistered) {
+                mDeviceManager.addDeviceMonitor(mEventPublisher);
+                mEventPublisherRegistered = true;
+            }
+        }
+        // subscribe first so that no change is missed while listing devices
+        mEventPublisher.addSubscriber(subscriber);
+        c.packResponseIntoJson(mDeviceManager.listAllDevices(), result);
+    }
+
+    private void unregisterEventPublisher() {
+        mEventPublisher.stop();
+        synchronized (mEventPublisher) {
+            if (mEventPublisherRegistered) {
+                mDeviceManager.removeDeviceMonitor(mEventPublisher);
+                mEventPublisherRegistered = false;
+            }
+        }
+    }
+
     @VisibleForTesting
     DeviceTracker getDeviceTracker() {
         return DeviceTracker.getInstance();
@@ -414,6 +865,13 @@ public class RemoteManager extends Thread {
     }
 
     private void processExecCommand(ExecCommandOp c, JSONObject result) throws JSONException {
+        Object deviceLock = mDeviceLocks.computeIfAbsent(c.getDeviceSerial(), k -> new Object());
+        synchronized (deviceLock) {
+            execCommand(c, result);
+        }
+    }
+
+    private void execCommand(ExecCommandOp c, JSONObject result) throws JSONException {
         ITestDevice device = getDeviceTracker().getDeviceForSerial(c.getDeviceSerial());
         if (device == null) {
             String msg = String.format("Could not find remotely allocated device with serial %s",
@@ -434,14 +892,18 @@ public class RemoteManager extends Thread {
         }
         CLog.logAndDisplay(LogLevel.INFO, "Executing command '%s'", ArrayUtil.join(" ",
                 (Object[])c.getCommandArgs()));
+        ExecCommandTracker tracker = new ExecCommandTracker(c.getDeviceSerial(), mEventPublisher);
+        // notify before scheduling, the command could complete before execCommand returns
+        mEventPublisher.notifyCommandStateChange(c.getDeviceSerial(), tracker.getCommandResult());
         try {
-            ExecCommandTracker tracker = new ExecCommandTracker();
             mScheduler.execCommand(tracker, device, c.getCommandArgs());
             getDeviceTracker().setCommandTracker(c.getDeviceSerial(), tracker);
         } catch (ConfigurationException e) {
             CLog.e("Failed to exec command");
             CLog.e(e);
             result.put(RemoteOperation.ERROR, "Config error: " + e.toString());
+            mEventPublisher.notifyCommandStateChange(c.getDeviceSerial(), new CommandResult(
+                    Status.INVOCATION_ERROR, e.toString(), null, null));
         }
     }
 
@@ -482,6 +944,10 @@ public class RemoteManager extends Thread {
     public synchronized void cancel() {
         if (!mCancel) {
             mCancel  = true;
+            Selector selector = mSelector;
+            if (selector != null) {
+                selector.wakeup();
+            }
             CLog.logAndDisplay(LogLevel.INFO, "Closing remote manager at port %d", getPort());
         }
     }
@@ -29,6 +29,7 @@ import com.android.tradefed.host.IHostOptions;
 import com.android.tradefed.invoker.shard.IShardHelper;
 import com.android.tradefed.invoker.shard.StrictShardHelper;
 import com.android.tradefed.log.ITerribleFailureHandler;
+import com.android.tradefed.profiler.ISamplingProfiler;
 import com.android.tradefed.util.ArrayUtil;
 import com.android.tradefed.util.MultiMap;
 import com.android.tradefed.util.hostmetric.IHostMonitor;
@@ -63,6 +64,7 @@ public class GlobalConfiguration implements IGlobalConfiguration {
     public static final String MULTI_DEVICE_RECOVERY_TYPE_NAME = "multi_device_recovery";
     public static final String KEY_STORE_TYPE_NAME = "key_store";
     public static final String SHARDING_STRATEGY_TYPE_NAME = "sharding_strategy";
+    public static final String SAMPLING_PROFILER_TYPE_NAME = "sampling_profiler";
 
     private static Map<String, ObjTypeInfo> sObjTypeMap = null;
     private static IGlobalConfiguration sInstance = null;
@@ -228,6 +230,8 @@ public class GlobalConfiguration implements IGlobalConfiguration {
                     new ObjTypeInfo(IKeyStoreFactory.class, false));
             sObjTypeMap.put(
                     SHARDING_STRATEGY_TYPE_NAME, new ObjTypeInfo(IShardHelper.class, false));
+            sObjTypeMap.put(
+                    SAMPLING_PROFILER_TYPE_NAME, new ObjTypeInfo(ISamplingProfiler.class, false));
 
         }
         return sObjTypeMap;
@@ -311,6 +315,12 @@ public class GlobalConfiguration implements IGlobalConfiguration {
         return (IShardHelper) getConfigurationObject(SHARDING_STRATEGY_TYPE_NAME);
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public ISamplingProfiler getSamplingProfiler() {
+        return (ISamplingProfiler) getConfigurationObject(SAMPLING_PROFILER_TYPE_NAME);
+    }
+
     /** {@inheritDoc} */
     @Override
     public IDeviceManager getDeviceManager() {
@@ -463,6 +473,12 @@ public class GlobalConfiguration implements IGlobalConfiguration {
         setConfigurationObjectNoThrow(SHARDING_STRATEGY_TYPE_NAME, sharding);
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public void setSamplingProfiler(ISamplingProfiler profiler) {
+        setConfigurationObjectNoThrow(SAMPLING_PROFILER_TYPE_NAME, profiler);
+    }
+
     /** {@inheritDoc} */
     @Override
     public void setDeviceManager(IDeviceManager manager) {
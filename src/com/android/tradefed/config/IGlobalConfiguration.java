@@ -25,6 +25,7 @@ import com.android.tradefed.device.IMultiDeviceRecovery;
 import com.android.tradefed.host.IHostOptions;
 import com.android.tradefed.invoker.shard.IShardHelper;
 import com.android.tradefed.log.ITerribleFailureHandler;
+import com.android.tradefed.profiler.ISamplingProfiler;
 import com.android.tradefed.util.hostmetric.IHostMonitor;
 import com.android.tradefed.util.keystore.IKeyStoreFactory;
 
@@ -200,6 +201,13 @@ public interface IGlobalConfiguration {
     /** Returns the {@link IShardHelper} that defines the way to shard a configuration. */
     public IShardHelper getShardingStrategy();
 
+    /**
+     * Gets the {@link ISamplingProfiler} profiling the invocations on the host.
+     *
+     * @return the {@link ISamplingProfiler} or null if invocations are not profiled.
+     */
+    public ISamplingProfiler getSamplingProfiler();
+
     /**
      * Set the {@link IHostOptions}, replacing any existing values.
      *
@@ -233,6 +241,9 @@ public interface IGlobalConfiguration {
     /** Sets the {@link IShardHelper} to be used when sharding a configuration. */
     public void setShardingStrategy(IShardHelper sharding);
 
+    /** Sets the {@link ISamplingProfiler} profiling the invocations on the host. */
+    public void setSamplingProfiler(ISamplingProfiler profiler);
+
     /**
      * Generic method to set the config object with the given name, replacing any existing value.
      *
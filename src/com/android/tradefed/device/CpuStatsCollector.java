@@ -18,7 +18,10 @@ package com.android.tradefed.device;
 
 import com.android.ddmlib.MultiLineReceiver;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.BinarySampleWriter;
 import com.android.tradefed.util.SimpleStats;
+import com.android.tradefed.util.StreamUtil;
+import com.android.tradefed.util.StreamingStats;
 
 import java.io.BufferedWriter;
 import java.io.File;
@@ -43,12 +46,24 @@ import java.util.Map;
  * </p><p>
  * The {@code cpustats} command was added in the Jellybean release, so this collector should only be
  * used for new tests.
+ * </p><p>
+ * For long running tests, {@link #setStreamingMode(boolean)} stops keeping every parsed
+ * {@link CpuStats}: only the aggregates returned by {@link #getCpuStatsAggregates()} are kept, in
+ * constant memory, and raw samples can be spilled to a binary file with
+ * {@link #spillToFile(File)}.
  * </p>
  * @see TopHelper
  */
 public class CpuStatsCollector extends Thread {
     private static final String CPU_STATS_CMD = "cpustats -m -d %s";
 
+    /** Default number of recent samples kept by each {@link CpuStatsAggregate}. */
+    public static final int DEFAULT_WINDOW_SIZE = 60;
+
+    /** Columns of the samples spilled by {@link #spillToFile(File)}. */
+    static final String[] SPILL_COLUMNS = {"user", "nice", "sys", "idle", "iow", "irq", "sirq",
+        "estimated_mhz", "used_mhz_percentage"};
+
     private final ITestDevice mTestDevice;
     private long mDelay;
 
@@ -191,15 +206,121 @@ public class CpuStatsCollector extends Thread {
         }
     }
 
+    /**
+     * Class for holding running statistics over all the {@link CpuStats} of a label, in constant
+     * memory.
+     * <p>
+     * Each statistic gives the same values as the corresponding mean method of
+     * {@link CpuStatsCollector} over the full list of {@link CpuStats}, and also provides the
+     * variance, extremes, estimated quantiles and most recent values.
+     * </p>
+     */
+    public static class CpuStatsAggregate {
+        private final StreamingStats mTotalPercentage;
+        private final StreamingStats mUserPercentage;
+        private final StreamingStats mSystemPercentage;
+        private final StreamingStats mIowPercentage;
+        private final StreamingStats mIrqPercentage;
+        private final StreamingStats mEstimatedMhz;
+        private final StreamingStats mUsedMhzPercentage;
+
+        CpuStatsAggregate(int windowSize) {
+            mTotalPercentage = newStats(windowSize);
+            mUserPercentage = newStats(windowSize);
+            mSystemPercentage = newStats(windowSize);
+            mIowPercentage = newStats(windowSize);
+            mIrqPercentage = newStats(windowSize);
+            mEstimatedMhz = newStats(windowSize);
+            mUsedMhzPercentage = newStats(windowSize);
+        }
+
+        CpuStatsAggregate(CpuStatsAggregate other) {
+            mTotalPercentage = new StreamingStats(other.mTotalPercentage);
+            mUserPercentage = new StreamingStats(other.mUserPercentage);
+            mSystemPercentage = new StreamingStats(other.mSystemPercentage);
+            mIowPercentage = new StreamingStats(other.mIowPercentage);
+            mIrqPercentage = new StreamingStats(other.mIrqPercentage);
+            mEstimatedMhz = new StreamingStats(other.mEstimatedMhz);
+            mUsedMhzPercentage = new StreamingStats(other.mUsedMhzPercentage);
+        }
+
+        private static StreamingStats newStats(int windowSize) {
+            return new StreamingStats(StreamingStats.DEFAULT_QUANTILES, windowSize);
+        }
+
+        void add(CpuStats s) {
+            mTotalPercentage.add(100 * s.getTotalUsage());
+            mUserPercentage.add(s.getPercentage(TimeCategory.USER)
+                    + s.getPercentage(TimeCategory.NICE));
+            mSystemPercentage.add(s.getPercentage(TimeCategory.SYS));
+            mIowPercentage.add(s.getPercentage(TimeCategory.IOW));
+            mIrqPercentage.add(s.getPercentage(TimeCategory.IRQ)
+                    + s.getPercentage(TimeCategory.SIRQ));
+            if (!s.mFreqStats.isEmpty()) {
+                mEstimatedMhz.add(s.getEstimatedMhz());
+                mUsedMhzPercentage.add(s.getUsedMhzPercentage());
+            }
+        }
+
+        /** Get the statistics of the total CPU usage, as a percentage (0 to 100). */
+        public StreamingStats getTotalPercentage() {
+            return mTotalPercentage;
+        }
+
+        /** Get the statistics of the user and nice CPU usage, as a percentage (0 to 100). */
+        public StreamingStats getUserPercentage() {
+            return mUserPercentage;
+        }
+
+        /** Get the statistics of the system CPU usage, as a percentage (0 to 100). */
+        public StreamingStats getSystemPercentage() {
+            return mSystemPercentage;
+        }
+
+        /** Get the statistics of the iow CPU usage, as a percentage (0 to 100). */
+        public StreamingStats getIowPercentage() {
+            return mIowPercentage;
+        }
+
+        /** Get the statistics of the IRQ and SIRQ CPU usage, as a percentage (0 to 100). */
+        public StreamingStats getIrqPercentage() {
+            return mIrqPercentage;
+        }
+
+        /**
+         * Get the statistics of the estimated MHz, empty if frequencies were not reported.
+         *
+         * @see CpuStats#getEstimatedMhz()
+         */
+        public StreamingStats getEstimatedMhz() {
+            return mEstimatedMhz;
+        }
+
+        /**
+         * Get the statistics of the used MHz, as a percentage (0 to 100), empty if frequencies
+         * were not reported.
+         *
+         * @see CpuStats#getUsedMhzPercentage()
+         */
+        public StreamingStats getUsedMhzPercentage() {
+            return mUsedMhzPercentage;
+        }
+    }
+
     /**
      * Receiver which parses the output from {@code cpustats} and optionally logs to a file.
      */
     public static class CpuStatsReceiver extends MultiLineReceiver {
         private Map<String, List<CpuStats>> mCpuStats = new HashMap<String, List<CpuStats>>(4);
+        private Map<String, CpuStatsAggregate> mAggregates =
+                new HashMap<String, CpuStatsAggregate>(4);
 
         private boolean mIsCancelled = false;
+        private boolean mStreaming = false;
+        private int mWindowSize = DEFAULT_WINDOW_SIZE;
         private File mLogFile = null;
         private BufferedWriter mLogWriter = null;
+        private BinarySampleWriter mSpillWriter = null;
 
         public CpuStatsReceiver() {
             setTrimLine(false);
@@ -223,6 +344,41 @@ public class CpuStatsCollector extends Thread {
             }
         }
 
+        /**
+         * Specify a file to spill the parsed samples to, in the binary format of
+         * {@link BinarySampleWriter}, with the {@link #SPILL_COLUMNS} as percentages of the total
+         * time and MHz.
+         * <p>
+         * This can be called at any time in the receivers life cycle, but only new samples will be
+         * written to the file.
+         * </p>
+         */
+        public synchronized void spillToFile(File spillFile) {
+            try {
+                mSpillWriter = new BinarySampleWriter(spillFile, SPILL_COLUMNS);
+            } catch (IOException e) {
+                CLog.e("IOException when creating a spill file:");
+                CLog.e(e);
+                mSpillWriter = null;
+            }
+        }
+
+        /**
+         * Set whether to stop keeping every parsed {@link CpuStats}, and only keep the
+         * {@link CpuStatsAggregate}s.
+         */
+        public synchronized void setStreamingMode(boolean streaming) {
+            mStreaming = streaming;
+        }
+
+        /**
+         * Set the number of recent samples kept by the {@link CpuStatsAggregate}s. Only applies to
+         * labels first seen after the call.
+         */
+        public synchronized void setWindowSize(int windowSize) {
+            mWindowSize = windowSize;
+        }
+
         /**
          * {@inheritDoc}
          */
@@ -260,10 +416,7 @@ public class CpuStatsCollector extends Thread {
                                     Integer.parseInt(args[9 + i]));
                         }
                         synchronized(this) {
-                            if (!mCpuStats.containsKey(args[0])) {
-                                mCpuStats.put(args[0], new LinkedList<CpuStats>());
-                            }
-                            mCpuStats.get(args[0]).add(s);
+                            addCpuStats(args[0], s);
                         }
                     } catch (NumberFormatException e) {
                         CLog.w("Unexpected input: %s", line.trim());
@@ -276,6 +429,41 @@ public class CpuStatsCollector extends Thread {
             }
         }
 
+        private void addCpuStats(String label, CpuStats s) {
+            if (!mStreaming) {
+                if (!mCpuStats.containsKey(label)) {
+                    mCpuStats.put(label, new LinkedList<CpuStats>());
+                }
+                mCpuStats.get(label).add(s);
+            }
+            CpuStatsAggregate aggregate = mAggregates.get(label);
+            if (aggregate == null) {
+                aggregate = new CpuStatsAggregate(mWindowSize);
+                mAggregates.put(label, aggregate);
+            }
+            aggregate.add(s);
+            if (mSpillWriter != null) {
+                boolean hasFreq = !s.mFreqStats.isEmpty();
+                try {
+                    mSpillWriter.write(label, System.currentTimeMillis(),
+                            s.getPercentage(TimeCategory.USER),
+                            s.getPercentage(TimeCategory.NICE),
+                            s.getPercentage(TimeCategory.SYS),
+                            s.getPercentage(TimeCategory.IDLE),
+                            s.getPercentage(TimeCategory.IOW),
+                            s.getPercentage(TimeCategory.IRQ),
+                            s.getPercentage(TimeCategory.SIRQ),
+                            hasFreq ? s.getEstimatedMhz() : Double.NaN,
+                            hasFreq ? s.getUsedMhzPercentage() : Double.NaN);
+                } catch (IOException e) {
+                    CLog.e("Error writing to spill file");
+                    CLog.e(e);
+                    StreamUtil.close(mSpillWriter);
+                    mSpillWriter = null;
+                }
+            }
+        }
+
         /**
          * Cancels the {@code cpustats} command.
          */
@@ -284,6 +472,10 @@ public class CpuStatsCollector extends Thread {
                 return;
             }
             mIsCancelled = true;
+            if (mSpillWriter != null) {
+                StreamUtil.close(mSpillWriter);
+                mSpillWriter = null;
+            }
             if (mLogWriter != null) {
                 try {
                     mLogWriter.flush();
@@ -316,6 +508,18 @@ public class CpuStatsCollector extends Thread {
             }
             return copy;
         }
+
+        /**
+         * Get a copy of the running statistics as a map from label to {@link CpuStatsAggregate}.
+         */
+        public synchronized Map<String, CpuStatsAggregate> getCpuStatsAggregates() {
+            Map<String, CpuStatsAggregate> copy = new HashMap<String, CpuStatsAggregate>(
+                    mAggregates.size());
+            for (Map.Entry<String, CpuStatsAggregate> e : mAggregates.entrySet()) {
+                copy.put(e.getKey(), new CpuStatsAggregate(e.getValue()));
+            }
+            return copy;
+        }
     }
 
     private CpuStatsReceiver mReceiver = new CpuStatsReceiver();
@@ -350,6 +554,33 @@ public class CpuStatsCollector extends Thread {
         mReceiver.logToFile(logFile);
     }
 
+    /**
+     * Specify a file to spill the parsed samples to, in a compact binary format.
+     *
+     * @param spillFile the file to write samples to.
+     * @see CpuStatsReceiver#spillToFile(File)
+     */
+    public void spillToFile(File spillFile) {
+        mReceiver.spillToFile(spillFile);
+    }
+
+    /**
+     * Set whether to stop keeping every parsed {@link CpuStats}, so that memory use does not grow
+     * with the duration of the collection. {@link #getCpuStats()} then returns an empty map, and
+     * {@link #getCpuStatsAggregates()} should be used instead.
+     */
+    public void setStreamingMode(boolean streaming) {
+        mReceiver.setStreamingMode(streaming);
+    }
+
+    /**
+     * Set the number of recent samples kept by each {@link CpuStatsAggregate}, defaults to
+     * {@link #DEFAULT_WINDOW_SIZE}. Should be called before starting the collection.
+     */
+    public void setWindowSize(int windowSize) {
+        mReceiver.setWindowSize(windowSize);
+    }
+
     /**
      * Cancels the {@code cpustats} command.
      */
@@ -389,6 +620,20 @@ public class CpuStatsCollector extends Thread {
         return mReceiver.getCpuStats();
     }
 
+    /**
+     * Get the mapping of labels to running statistics over all the samples parsed so far.
+     * <p>
+     * Unlike the mean methods, this does not iterate over the samples, and is available in
+     * streaming mode.
+     * </p>
+     *
+     * @return a mapping of labels to {@link CpuStatsAggregate} snapshots, with the same labels as
+     * {@link #getCpuStats()}.
+     */
+    public Map<String, CpuStatsAggregate> getCpuStatsAggregates() {
+        return mReceiver.getCpuStatsAggregates();
+    }
+
     /**
      * Get the mean of the total CPU usage for a list of {@link CpuStats}.
      *
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.ShellCommandUnresponsiveException;
+import com.android.ddmlib.TimeoutException;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.StreamingLineReceiver;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a device becoming ready with a single long-lived shell command.
+ * <p/>
+ * Rather than issuing a command per attempt from the host, a script runs on the device that
+ * evaluates each readiness check in turn, re-trying it every second on the device side, and
+ * prints a line as soon as a check passes. Callers block in {@link #waitForStage(String, long)}
+ * until the line for a stage is received.
+ * <p/>
+ * The first line is printed as soon as the command starts, which doubles as a check that the
+ * shell is responsive (stage {@link #SHELL_STAGE}).
+ */
+public class DeviceReadinessWatcher extends StreamingLineReceiver {
+
+    /** The stage reached when the watcher command starts running */
+    public static final String SHELL_STAGE = "shell";
+
+    static final String READY_MARKER = "TF_READY ";
+    static final String FAIL_MARKER = "TF_FAIL ";
+
+    private final IDevice mDevice;
+    private final Map<String, String> mChecks;
+    private final long mStartTime;
+
+    /** stage -> time in ms after the start when it was reached */
+    private final Map<String, Long> mReachedStages = new LinkedHashMap<>();
+    private String mFailedStage = null;
+    private boolean mDone = false;
+    private boolean mCancelled = false;
+
+    /**
+     * Creates a {@link DeviceReadinessWatcher}.
+     *
+     * @param device the {@link IDevice} to watch
+     * @param checks a {@link Map} of stage names to the shell condition that must be true for the
+     *            stage to be reached, in the order they should be checked. A condition can print
+     *            a line starting with {@link #FAIL_MARKER} and the stage name, then exit, if the
+     *            stage can never be reached.
+     */
+    public DeviceReadinessWatcher(IDevice device, Map<String, String> checks) {
+        mDevice = device;
+        mChecks = checks;
+        mStartTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the script run on the device.
+     */
+    String getScript() {
+        StringBuilder script = new StringBuilder();
+        script.append("echo ").append(READY_MARKER).append(SHELL_STAGE).append(';');
+        for (Map.Entry<String, String> check : mChecks.entrySet()) {
+            script.append(String.format(" until %s; do sleep 1; done; echo %s%s;",
+                    check.getValue(), READY_MARKER, check.getKey()));
+        }
+        return script.toString();
+    }
+
+    /**
+     * Start running the watcher command in the background.
+     *
+     * @param timeoutMs the maximum time in ms to let the command run
+     */
+    public void start(final long timeoutMs) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWatcher(timeoutMs);
+            }
+        }, "DeviceReadinessWatcher-" + mDevice.getSerialNumber());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Run the watcher command until it completes.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    void runWatcher(long timeoutMs) {
+        try {
+            mDevice.executeShellCommand(getScript(), this, timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (IOException | AdbCommandRejectedException | ShellCommandUnresponsiveException
+                | TimeoutException e) {
+            CLog.d("Readiness watcher on %s stopped: %s", mDevice.getSerialNumber(),
+                    e.toString());
+        } finally {
+            synchronized (this) {
+                mDone = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Block until a stage is reached.
+     *
+     * @param stage the stage to wait for
+     * @param timeoutMs the maximum time in ms to wait
+     * @return {@link Boolean#TRUE} if the stage was reached, {@link Boolean#FALSE} if it failed or
+     *         was not reached in time, or <code>null</code> if the watcher stopped running before,
+     *         in which case readiness should be checked another way.
+     */
+    public synchronized Boolean waitForStage(String stage, long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!mReachedStages.containsKey(stage) && mFailedStage == null && !mDone) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return Boolean.FALSE;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                CLog.w("Waiting for %s to be ready was interrupted", mDevice.getSerialNumber());
+                return Boolean.FALSE;
+            }
+        }
+        if (mReachedStages.containsKey(stage)) {
+            return Boolean.TRUE;
+        }
+        if (mFailedStage != null) {
+            CLog.w("Device %s %s readiness check failed", mDevice.getSerialNumber(),
+                    mFailedStage);
+            return Boolean.FALSE;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the stages reached so far, with the time in ms it took to reach them.
+     */
+    public synchronized Map<String, Long> getStageTimes() {
+        return new LinkedHashMap<>(mReachedStages);
+    }
+
+    /**
+     * Stop the watcher command.
+     */
+    public synchronized void cancel() {
+        mCancelled = true;
+        notifyAll();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void processLine(CharSequence line) {
+        if (startsWith(line, READY_MARKER)) {
+            String stage = line.subSequence(READY_MARKER.length(), line.length()).toString();
+            synchronized (this) {
+                mReachedStages.put(stage, System.currentTimeMillis() - mStartTime);
+                notifyAll();
+            }
+        } else if (startsWith(line, FAIL_MARKER)) {
+            String stage = line.subSequence(FAIL_MARKER.length(), line.length()).toString();
+            synchronized (this) {
+                mFailedStage = stage;
+                notifyAll();
+            }
+        }
+    }
+}
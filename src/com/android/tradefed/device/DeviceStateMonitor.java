@@ -23,6 +23,8 @@ import com.android.ddmlib.TimeoutException;
 import com.android.tradefed.log.LogUtil.CLog;
 
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -30,6 +32,8 @@ import java.util.concurrent.TimeUnit;
  */
 public class DeviceStateMonitor extends NativeDeviceStateMonitor {
 
+    static final String PM_STAGE = "pm";
+
     public DeviceStateMonitor(IDeviceManager mgr, IDevice device, boolean fastbootEnabled) {
         super(mgr, device, fastbootEnabled);
     }
@@ -84,4 +88,22 @@ public class DeviceStateMonitor extends NativeDeviceStateMonitor {
         long elapsedTime = System.currentTimeMillis() - startTime;
         return super.postOnlineCheck(waitTime - elapsedTime);
     }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Also waits for the package manager to be responsive, after boot complete.
+     */
+    @Override
+    protected Map<String, String> getReadinessChecks() {
+        Map<String, String> checks = new LinkedHashMap<>();
+        for (Map.Entry<String, String> check : super.getReadinessChecks().entrySet()) {
+            if (STORE_STAGE.equals(check.getKey())) {
+                checks.put(PM_STAGE, "case \"$(pm path android 2>/dev/null)\" in "
+                        + "*package:*) true;; *) false;; esac");
+            }
+            checks.put(check.getKey(), check.getValue());
+        }
+        return checks;
+    }
 }
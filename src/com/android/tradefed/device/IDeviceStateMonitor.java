@@ -171,4 +171,10 @@ public interface IDeviceStateMonitor {
      */
     public void setDefaultAvailableTimeout(long timeoutMs);
 
+    /**
+     * Set whether to wait for the device to be available with a single long-lived command
+     * watching the device state, rather than by polling it with a command per attempt.
+     */
+    public void setReadinessWatcherEnabled(boolean enabled);
+
 }
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+/**
+ * Receives the {@link LogcatEntry}s of a {@link LogcatSubscription} as they are logged.
+ */
+public interface ILogcatEntryListener {
+
+    /**
+     * Called for each entry matching the subscription filter, from the thread parsing logcat.
+     * Implementations should return quickly, since entries for all the subscriptions of the
+     * device are delivered from the same thread.
+     *
+     * @param entry the {@link LogcatEntry}
+     */
+    public void entryReceived(LogcatEntry entry);
+}
@@ -18,6 +18,8 @@ package com.android.tradefed.device;
 
 import com.android.tradefed.result.InputStreamSource;
 
+import java.util.TimeZone;
+
 /**
  * A class that provides the output of a device's logcat as an {@link InputStreamSource}.
  */
@@ -32,5 +34,33 @@ public interface ILogcatReceiver {
     public InputStreamSource getLogcatData();
 
     public InputStreamSource getLogcatData(int maxBytes);
+
+    /**
+     * Returns the logcat data captured since the given time, without querying the device.
+     *
+     * @param date the time in ms since epoch
+     * @param timeZone the time zone of the device, that logcat timestamps are in
+     * @return the logcat data, or <code>null</code> if the data captured does not go back to the
+     *         given time, can not be searched by time, or is behind the device.
+     */
+    public InputStreamSource getLogcatSince(long date, TimeZone timeZone);
+
+    /**
+     * Subscribe to the logcat entries matching a filter, as they are logged.
+     *
+     * @param filter the {@link LogcatFilter} selecting the entries
+     * @param capacity the maximum number of entries to queue before dropping the oldest ones
+     * @return the {@link LogcatSubscription} to retrieve the entries from
+     */
+    public LogcatSubscription subscribe(LogcatFilter filter, int capacity);
+
+    /**
+     * Subscribe to the logcat entries matching a filter, as they are logged.
+     *
+     * @param filter the {@link LogcatFilter} selecting the entries
+     * @param listener the {@link ILogcatEntryListener} to pass the entries to
+     * @return the {@link LogcatSubscription}, to close when done
+     */
+    public LogcatSubscription subscribe(LogcatFilter filter, ILogcatEntryListener listener);
 }
 
@@ -26,6 +26,7 @@ import com.android.tradefed.util.FixedByteArrayOutputStream;
 import com.android.tradefed.util.SizeLimitedOutputStream;
 import com.android.tradefed.util.StreamUtil;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -136,6 +137,62 @@ public class LargeOutputReceiver implements IShellOutputReceiver {
         return new ByteArrayInputStreamSource(new byte[0]);
     }
 
+    /**
+     * Gets part of the collected output as a {@link InputStreamSource}, read directly from the
+     * backing files rather than copied.
+     * <p/>
+     * Offsets are counted from the start of the collected output, see {@link #getDataStart()}
+     * and {@link #getDataEnd()}. The data is read when {@link InputStreamSource#createInputStream()}
+     * is called: data that is discarded or cleared in the meantime will be missing.
+     *
+     * @param startOffset the offset of the first byte of output to return
+     * @param endOffset the offset of the end of the output to return
+     */
+    public synchronized InputStreamSource getData(final long startOffset, final long endOffset) {
+        final SizeLimitedOutputStream outStream = mOutStream;
+        if (outStream == null) {
+            return new ByteArrayInputStreamSource(new byte[0]);
+        }
+        return new InputStreamSource() {
+
+            @Override
+            public InputStream createInputStream() {
+                try {
+                    return outStream.getData(startOffset, endOffset);
+                } catch (IOException e) {
+                    CLog.e("failed to get %s data for %s.", mDescriptor, mSerialNumber);
+                    CLog.e(e);
+                    return new ByteArrayInputStream(new byte[0]);
+                }
+            }
+
+            @Override
+            public void cancel() {
+                // ignore, nothing to do
+            }
+
+            @Override
+            public long size() {
+                return endOffset - startOffset;
+            }
+        };
+    }
+
+    /**
+     * Returns the offset of the oldest output still available.
+     */
+    public synchronized long getDataStart() {
+        return mOutStream == null ? 0 : mOutStream.getStartOffset();
+    }
+
+    /**
+     * Returns the offset of the end of the output collected, ie the amount of output collected
+     * since the receiver was created or cleared.
+     */
+    public synchronized long getDataEnd() {
+        return mOutStream == null ? 0 : mOutStream.getEndOffset();
+    }
+
     /**
      * {@inheritDoc}
      */
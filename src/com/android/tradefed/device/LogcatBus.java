@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.StreamingLineReceiver;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Dispatches the logcat output of a device to {@link LogcatSubscription}s.
+ * <p/>
+ * Output is handed over as it is received to a single thread, which splits it into lines, parses
+ * them into {@link LogcatEntry}s, and delivers them to the subscriptions whose filter they match.
+ * Nothing is parsed while there are no subscriptions.
+ * <p/>
+ * Receiving output never blocks: if the parsing thread falls behind by more than
+ * {@link #MAX_PENDING_CHUNKS} chunks of output, new output is dropped until it catches up.
+ */
+public class LogcatBus {
+
+    /** Maximum number of chunks of output waiting to be parsed */
+    static final int MAX_PENDING_CHUNKS = 1024;
+
+    private final String mSerialNumber;
+    private final List<LogcatSubscription> mSubscriptions = new CopyOnWriteArrayList<>();
+    private final BlockingQueue<Chunk> mChunks = new ArrayBlockingQueue<>(MAX_PENDING_CHUNKS);
+    private Thread mParserThread = null;
+    private boolean mClosed = false;
+
+    /** sequence number of the next chunk received, to detect dropped chunks */
+    private long mNextChunk = 0;
+    private long mDroppedChunks = 0;
+
+    private static class Chunk {
+        final byte[] mData;
+        final long mSequence;
+
+        Chunk(byte[] data, long sequence) {
+            mData = data;
+            mSequence = sequence;
+        }
+    }
+
+    /**
+     * Splits output into lines and delivers them.
+     */
+    private class EntryParser extends StreamingLineReceiver {
+        @Override
+        public void processLine(CharSequence line) {
+            if (mSubscriptions.isEmpty()) {
+                return;
+            }
+            LogcatEntry entry = LogcatEntry.parse(line);
+            if (entry == null) {
+                return;
+            }
+            for (LogcatSubscription subscription : mSubscriptions) {
+                subscription.deliver(entry);
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    }
+
+    /**
+     * Creates a {@link LogcatBus}.
+     *
+     * @param serialNumber the serial number of the device. For logging only.
+     */
+    public LogcatBus(String serialNumber) {
+        mSerialNumber = serialNumber;
+    }
+
+    /**
+     * Subscribe to the entries matching a filter, queuing them.
+     *
+     * @param filter the {@link LogcatFilter}
+     * @param capacity the maximum number of entries to queue
+     * @return the {@link LogcatSubscription}
+     */
+    public LogcatSubscription subscribe(LogcatFilter filter, int capacity) {
+        return addSubscription(new LogcatSubscription(this, filter, capacity));
+    }
+
+    /**
+     * Subscribe to the entries matching a filter, passing them to a listener.
+     *
+     * @param filter the {@link LogcatFilter}
+     * @param listener the {@link ILogcatEntryListener}
+     * @return the {@link LogcatSubscription}
+     */
+    public LogcatSubscription subscribe(LogcatFilter filter, ILogcatEntryListener listener) {
+        return addSubscription(new LogcatSubscription(this, filter, listener));
+    }
+
+    private synchronized LogcatSubscription addSubscription(LogcatSubscription subscription) {
+        if (mClosed) {
+            subscription.close();
+            return subscription;
+        }
+        mSubscriptions.add(subscription);
+        if (mParserThread == null) {
+            mParserThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    parseOutput();
+                }
+            }, "LogcatBus-" + mSerialNumber);
+            mParserThread.setDaemon(true);
+            mParserThread.start();
+        }
+        return subscription;
+    }
+
+    /**
+     * Remove a subscription.
+     */
+    void unsubscribe(LogcatSubscription subscription) {
+        mSubscriptions.remove(subscription);
+    }
+
+    /**
+     * Returns the number of subscriptions.
+     */
+    public int getSubscriptionCount() {
+        return mSubscriptions.size();
+    }
+
+    /**
+     * Publish output received from logcat.
+     *
+     * @param data the output
+     * @param offset the start of the output in <var>data</var>
+     * @param length the length of the output
+     */
+    public void publish(byte[] data, int offset, int length) {
+        if (mSubscriptions.isEmpty()) {
+            synchronized (this) {
+                // skip a sequence number, so the parser does not join a partial line received
+                // before with the next output
+                mNextChunk++;
+            }
+            return;
+        }
+        synchronized (this) {
+            Chunk chunk = new Chunk(Arrays.copyOfRange(data, offset, offset + length),
+                    mNextChunk++);
+            if (!mChunks.offer(chunk)) {
+                if (mDroppedChunks++ == 0) {
+                    CLog.w("Logcat subscribers of %s are falling behind, dropping output",
+                            mSerialNumber);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of chunks of output dropped because parsing fell behind.
+     */
+    public synchronized long getDroppedChunkCount() {
+        return mDroppedChunks;
+    }
+
+    /**
+     * Stop delivering entries, and close all the subscriptions.
+     */
+    public void close() {
+        Thread parserThread;
+        synchronized (this) {
+            mClosed = true;
+            parserThread = mParserThread;
+        }
+        for (LogcatSubscription subscription : mSubscriptions) {
+            subscription.close();
+        }
+        if (parserThread != null) {
+            parserThread.interrupt();
+        }
+    }
+
+    private synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Parse output until the bus is closed.
+     */
+    private void parseOutput() {
+        EntryParser parser = new EntryParser();
+        long expectedChunk = 0;
+        while (!isClosed()) {
+            Chunk chunk;
+            try {
+                chunk = mChunks.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (chunk.mSequence != expectedChunk) {
+                // output was dropped, discard the partial line
+                parser = new EntryParser();
+            }
+            expectedChunk = chunk.mSequence + 1;
+            parser.addOutput(chunk.mData, 0, chunk.mData.length);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A line of logcat output in the 'threadtime' format, eg
+ * "01-23 10:11:12.345  1234  1235 I Tag     : message".
+ */
+public class LogcatEntry {
+
+    private static final Pattern THREADTIME_PATTERN = Pattern.compile(
+            "^(\\d\\d-\\d\\d \\d\\d:\\d\\d:\\d\\d\\.\\d{3})\\s+(\\d+)\\s+(\\d+)\\s+([VDIWEFA])\\s"
+            + "(.*?)\\s*: (.*)$");
+
+    /** Priorities, from the lowest to the highest */
+    private static final String PRIORITIES = "VDIWEF";
+
+    private final String mTimestamp;
+    private final int mPid;
+    private final int mTid;
+    private final char mPriority;
+    private final String mTag;
+    private final String mMessage;
+
+    public LogcatEntry(String timestamp, int pid, int tid, char priority, String tag,
+            String message) {
+        mTimestamp = timestamp;
+        mPid = pid;
+        mTid = tid;
+        mPriority = priority;
+        mTag = tag;
+        mMessage = message;
+    }
+
+    /**
+     * Parse a line of logcat output.
+     *
+     * @param line the line
+     * @return the {@link LogcatEntry}, or <code>null</code> if the line is not in the 'threadtime'
+     *         format.
+     */
+    public static LogcatEntry parse(CharSequence line) {
+        if (line == null) {
+            return null;
+        }
+        Matcher m = THREADTIME_PATTERN.matcher(line);
+        if (!m.matches()) {
+            return null;
+        }
+        try {
+            return new LogcatEntry(m.group(1), Integer.parseInt(m.group(2)),
+                    Integer.parseInt(m.group(3)), m.group(4).charAt(0), m.group(5), m.group(6));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the level of a priority, to compare priorities. 'A' (assert) is the same level as
+     * 'F' (fatal).
+     *
+     * @param priority the priority, eg 'I'
+     * @return the level, higher for higher priorities, or -1 if the priority is unknown.
+     */
+    public static int getPriorityLevel(char priority) {
+        return PRIORITIES.indexOf(priority == 'A' ? 'F' : priority);
+    }
+
+    /** Returns the time the entry was logged at, eg "01-23 10:11:12.345", in device time. */
+    public String getTimestamp() {
+        return mTimestamp;
+    }
+
+    public int getPid() {
+        return mPid;
+    }
+
+    public int getTid() {
+        return mTid;
+    }
+
+    /** Returns the priority of the entry, eg 'I' for info. */
+    public char getPriority() {
+        return mPriority;
+    }
+
+    public String getTag() {
+        return mTag;
+    }
+
+    public String getMessage() {
+        return mMessage;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return String.format("%s %5d %5d %c %-8s: %s", mTimestamp, mPid, mTid, mPriority, mTag,
+                mMessage);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Selects the {@link LogcatEntry}s a {@link LogcatSubscription} receives, by tag, priority and
+ * message.
+ */
+public class LogcatFilter {
+
+    private final Set<String> mTags;
+    private final int mMinPriorityLevel;
+    private final Pattern mMessagePattern;
+
+    /**
+     * Creates a {@link LogcatFilter}.
+     *
+     * @param tags the tags to accept, or <code>null</code> to accept all tags
+     * @param minPriority the lowest priority to accept, eg 'W' for warnings and above
+     * @param messageRegex a regex that messages must contain a match of, or <code>null</code> to
+     *            accept all messages
+     */
+    public LogcatFilter(Collection<String> tags, char minPriority, String messageRegex) {
+        mTags = tags == null ? null : new HashSet<>(tags);
+        mMinPriorityLevel = Math.max(0, LogcatEntry.getPriorityLevel(minPriority));
+        mMessagePattern = messageRegex == null ? null : Pattern.compile(messageRegex);
+    }
+
+    /**
+     * Creates a {@link LogcatFilter} accepting all the entries of the given tag at or above the
+     * given priority.
+     */
+    public LogcatFilter(String tag, char minPriority) {
+        this(Collections.singleton(tag), minPriority, null);
+    }
+
+    /**
+     * Returns true if the entry is accepted by this filter.
+     */
+    public boolean matches(LogcatEntry entry) {
+        if (mTags != null && !mTags.contains(entry.getTag())) {
+            return false;
+        }
+        if (LogcatEntry.getPriorityLevel(entry.getPriority()) < mMinPriorityLevel) {
+            return false;
+        }
+        return mMessagePattern == null || mMessagePattern.matcher(entry.getMessage()).find();
+    }
+}
@@ -15,7 +15,15 @@
  */
 package com.android.tradefed.device;
 
+import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.util.StreamUtil;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.TimeZone;
 
 /**
  * Class that collects logcat in background. Continues to capture logcat even if device goes
@@ -23,10 +31,13 @@ import com.android.tradefed.result.InputStreamSource;
  */
 public class LogcatReceiver implements ILogcatReceiver {
     private BackgroundDeviceAction mDeviceAction;
-    private LargeOutputReceiver mReceiver;
+    private IndexedOutputReceiver mReceiver;
+    private LogcatBus mBus;
 
     static final String LOGCAT_CMD = "logcat -v threadtime";
     private static final String LOGCAT_DESC = "logcat";
+    /** Maximum time to wait for the capture to receive the lines logged before a query */
+    private static final long CATCH_UP_TIMEOUT_MS = 1000;
 
     /**
      * Creates an instance with any specified logcat command
@@ -39,8 +50,9 @@ public class LogcatReceiver implements ILogcatReceiver {
     public LogcatReceiver(ITestDevice device, String logcatCmd,
             long maxFileSize, int logStartDelay) {
 
-        mReceiver = new LargeOutputReceiver(LOGCAT_DESC, device.getSerialNumber(),
-                maxFileSize);
+        mBus = new LogcatBus(device.getSerialNumber());
+        mReceiver = new IndexedOutputReceiver(LOGCAT_DESC, device.getSerialNumber(),
+                maxFileSize, mBus);
         // FIXME: remove mLogStartDelay. Currently delay starting logcat, as starting
         // immediately after a device comes online has caused adb instability
         mDeviceAction = new BackgroundDeviceAction(logcatCmd, LOGCAT_DESC, device,
@@ -67,6 +79,7 @@ public class LogcatReceiver implements ILogcatReceiver {
         mDeviceAction.cancel();
         mReceiver.cancel();
         mReceiver.delete();
+        mBus.close();
     }
 
     @Override
@@ -79,8 +92,200 @@ public class LogcatReceiver implements ILogcatReceiver {
         return mReceiver.getData(maxBytes);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Lines are looked up by their timestamp, so this only works with logcat formats starting with
+     * the date, like the default 'threadtime' one. Timestamps do not include the year, and lines
+     * can be logged out of order, so the data returned may start a bit earlier than requested.
+     * <p/>
+     * Lines reach the capture some time after being logged, so this waits briefly for a line
+     * logged at or after the current time, and returns <code>null</code> if none is received
+     * in time, for the device to be queried instead.
+     */
+    @Override
+    public InputStreamSource getLogcatSince(long date, TimeZone timeZone) {
+        long now = LogcatTimeIndex.getTime(System.currentTimeMillis(), timeZone);
+        if (!mReceiver.waitForTime(now, CATCH_UP_TIMEOUT_MS)) {
+            CLog.d("Logcat capture is behind the device, querying it instead");
+            return null;
+        }
+        return mReceiver.getDataSince(LogcatTimeIndex.getTime(date, timeZone));
+    }
+
+    @Override
+    public LogcatSubscription subscribe(LogcatFilter filter, int capacity) {
+        return mBus.subscribe(filter, capacity);
+    }
+
+    @Override
+    public LogcatSubscription subscribe(LogcatFilter filter, ILogcatEntryListener listener) {
+        return mBus.subscribe(filter, listener);
+    }
+
     @Override
     public void clear() {
         mReceiver.clear();
     }
+
+    /**
+     * A {@link LargeOutputReceiver} that keeps a {@link LogcatTimeIndex} of its output, to look
+     * up the output logged since a given time without reading it all, and publishes it to a
+     * {@link LogcatBus}.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    static class IndexedOutputReceiver extends LargeOutputReceiver {
+        private final LogcatTimeIndex mIndex;
+        private final LogcatBus mBus;
+        /** the time of the latest line received, or -1 if none */
+        private long mLastLineTime = -1;
+        /** whether the next output starts a new line */
+        private boolean mAtLineStart = true;
+
+        IndexedOutputReceiver(String descriptor, String serialNumber, long maxDataSize,
+                LogcatBus bus) {
+            this(descriptor, serialNumber, maxDataSize, new LogcatTimeIndex(), bus);
+        }
+
+        IndexedOutputReceiver(String descriptor, String serialNumber, long maxDataSize,
+                LogcatTimeIndex index, LogcatBus bus) {
+            super(descriptor, serialNumber, maxDataSize);
+            mIndex = index;
+            mBus = bus;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized void addOutput(byte[] data, int offset, int length) {
+            if (isCancelled()) {
+                return;
+            }
+            if (mBus != null) {
+                mBus.publish(data, offset, length);
+            }
+            long streamOffset = getDataEnd();
+            super.addOutput(data, offset, length);
+            if (getDataEnd() == streamOffset + length) {
+                mIndex.addOutput(data, offset, length, streamOffset);
+                mIndex.trim(getDataStart());
+            } else if (getDataEnd() != streamOffset) {
+                // offsets can not be trusted after a partial write, start over
+                mIndex.clear();
+            }
+            updateLastLineTime(data, offset, length);
+            notifyAll();
+        }
+
+        /**
+         * Record the time of the last line starting in the given output that has a timestamp.
+         */
+        private void updateLastLineTime(byte[] data, int offset, int length) {
+            if (length == 0) {
+                return;
+            }
+            int end = offset + length;
+            boolean atLineStart = mAtLineStart;
+            mAtLineStart = data[end - 1] == '\n';
+            for (int lineStart = end - 1; lineStart >= offset; lineStart--) {
+                if (lineStart == offset ? atLineStart : data[lineStart - 1] == '\n') {
+                    long time = LogcatTimeIndex.parseTime(data, lineStart, end);
+                    if (time >= 0) {
+                        mLastLineTime = Math.max(mLastLineTime, time);
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Wait until a line logged at or after the given time was received.
+         *
+         * @param time the time, as returned by {@link LogcatTimeIndex#getTime(long, TimeZone)}
+         * @param timeoutMs the maximum time to wait
+         * @return <code>true</code> if such a line was received
+         */
+        synchronized boolean waitForTime(long time, long timeoutMs) {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            long remaining = timeoutMs;
+            while (mLastLineTime < time && remaining > 0 && !isCancelled()) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+            return mLastLineTime >= time;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized void clear() {
+            super.clear();
+            mIndex.clear();
+            mLastLineTime = -1;
+            mAtLineStart = true;
+        }
+
+        /**
+         * Gets the output logged at or after the given time.
+         *
+         * @param time the time, as returned by {@link LogcatTimeIndex#getTime(long, TimeZone)}
+         * @return the output, or <code>null</code> if the output available starts after
+         *         <var>time</var> or has no timestamps.
+         */
+        synchronized InputStreamSource getDataSince(long time) {
+            if (mIndex.size() == 0 || time < mIndex.getFirstTime()) {
+                return null;
+            }
+            long end = getDataEnd();
+            long start = findFirstLine(time, mIndex.getOffsetBefore(time), end);
+            return getData(start, end);
+        }
+
+        /**
+         * Find the first line logged at or after <var>time</var>, reading from the given offset
+         * up to the next index entry.
+         *
+         * @return the offset of the line, or <var>startOffset</var> if it could not be found, or
+         *         <var>endOffset</var> if there is none yet.
+         */
+        private long findFirstLine(long time, long startOffset, long endOffset) {
+            int maxBytes = (int) Math.min(endOffset - startOffset,
+                    mIndex.getInterval() * 2L + LogcatTimeIndex.TIMESTAMP_LENGTH);
+            byte[] data = new byte[maxBytes];
+            int length = 0;
+            InputStream stream = null;
+            try {
+                stream = getData(startOffset, startOffset + maxBytes).createInputStream();
+                length = ByteStreams.read(stream, data, 0, maxBytes);
+            } catch (IOException e) {
+                CLog.e(e);
+                return startOffset;
+            } finally {
+                StreamUtil.close(stream);
+            }
+            int lineStart = 0;
+            while (lineStart < length) {
+                if (LogcatTimeIndex.parseTime(data, lineStart, length) >= time) {
+                    return startOffset + lineStart;
+                }
+                while (lineStart < length && data[lineStart] != '\n') {
+                    lineStart++;
+                }
+                lineStart++;
+            }
+            if (startOffset + length == endOffset) {
+                // nothing logged since
+                return endOffset;
+            }
+            return startOffset;
+        }
+    }
 }
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A subscription to the logcat entries of a device, created with
+ * {@link ILogcatReceiver#subscribe(LogcatFilter, int)} or
+ * {@link ILogcatReceiver#subscribe(LogcatFilter, ILogcatEntryListener)}.
+ * <p/>
+ * Entries matching the filter are either queued, to be retrieved with {@link #poll(long)}, or
+ * passed to a {@link ILogcatEntryListener}. Queues are bounded: when a subscriber falls behind,
+ * the oldest entries are dropped rather than holding up logcat for the other subscribers.
+ * <p/>
+ * Subscriptions should be closed with {@link #close()} when no longer needed.
+ */
+public class LogcatSubscription {
+
+    private final LogcatBus mBus;
+    private final LogcatFilter mFilter;
+    private final BlockingQueue<LogcatEntry> mQueue;
+    private final ILogcatEntryListener mListener;
+    private long mDroppedCount = 0;
+    private volatile boolean mClosed = false;
+
+    /**
+     * Creates a subscription queuing the entries.
+     */
+    LogcatSubscription(LogcatBus bus, LogcatFilter filter, int capacity) {
+        mBus = bus;
+        mFilter = filter;
+        mQueue = new ArrayBlockingQueue<>(capacity);
+        mListener = null;
+    }
+
+    /**
+     * Creates a subscription passing the entries to a listener.
+     */
+    LogcatSubscription(LogcatBus bus, LogcatFilter filter, ILogcatEntryListener listener) {
+        mBus = bus;
+        mFilter = filter;
+        mQueue = null;
+        mListener = listener;
+    }
+
+    /**
+     * Deliver an entry to the subscriber if it matches the filter.
+     */
+    void deliver(LogcatEntry entry) {
+        if (mClosed || !mFilter.matches(entry)) {
+            return;
+        }
+        if (mListener != null) {
+            try {
+                mListener.entryReceived(entry);
+            } catch (RuntimeException e) {
+                CLog.e("Logcat listener failed on %s", entry);
+                CLog.e(e);
+            }
+            return;
+        }
+        while (!mQueue.offer(entry)) {
+            // drop the oldest entry
+            if (mQueue.poll() != null) {
+                synchronized (this) {
+                    if (mDroppedCount++ == 0) {
+                        CLog.w("Logcat subscriber is falling behind, dropping entries");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Retrieve the next entry, waiting up to the given time for one to be logged.
+     *
+     * @param timeoutMs the maximum time to wait, in ms
+     * @return the next {@link LogcatEntry}, or <code>null</code> if none was logged in time or
+     *         the subscription is closed.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public LogcatEntry poll(long timeoutMs) throws InterruptedException {
+        if (mQueue == null) {
+            throw new IllegalStateException("Entries are passed to a listener");
+        }
+        if (mClosed) {
+            return mQueue.poll();
+        }
+        return mQueue.poll(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the number of entries dropped because the queue was full.
+     */
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Stop receiving entries. Entries already queued can still be retrieved.
+     */
+    public void close() {
+        mClosed = true;
+        mBus.unsubscribe(this);
+    }
+
+    /**
+     * Returns true if the subscription was closed.
+     */
+    public boolean isClosed() {
+        return mClosed;
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * A sparse index from logcat timestamps to offsets in the logcat output.
+ * <p/>
+ * Roughly every {@link #DEFAULT_INTERVAL} bytes of output, the timestamp of the next line is
+ * recorded with the offset of that line. Timestamps are the ones printed by the 'time' and
+ * 'threadtime' logcat formats, eg "01-23 10:11:12.345", in the device time zone. Lines that do
+ * not start with a timestamp are not indexed.
+ * <p/>
+ * Logcat output is not strictly ordered (eg logcat is restarted after the device reconnects and
+ * dumps its buffer again), so each recorded timestamp is the highest seen so far. That keeps the
+ * index sorted for binary searches, at the cost of looking up offsets earlier than needed when
+ * timestamps go back in time.
+ * <p/>
+ * Not thread safe.
+ */
+class LogcatTimeIndex {
+
+    /** Default number of bytes between index entries. */
+    static final int DEFAULT_INTERVAL = 16 * 1024;
+
+    /** Length of a "MM-DD HH:MM:SS.mmm" timestamp. */
+    static final int TIMESTAMP_LENGTH = 18;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int mInterval;
+
+    private long[] mTimes = new long[INITIAL_CAPACITY];
+    private long[] mOffsets = new long[INITIAL_CAPACITY];
+    private int mFirst = 0;
+    private int mSize = 0;
+
+    /** Offset of the last line recorded in the index, or -1 if none yet */
+    private long mLastIndexedOffset = -1;
+    private boolean mAtLineStart = true;
+    /** Offset of the line whose timestamp is being read, or -1 */
+    private long mLineOffset = -1;
+    private final byte[] mTimestamp = new byte[TIMESTAMP_LENGTH];
+    private int mTimestampLength = 0;
+
+    LogcatTimeIndex() {
+        this(DEFAULT_INTERVAL);
+    }
+
+    /**
+     * Exposed for unit testing.
+     */
+    LogcatTimeIndex(int interval) {
+        mInterval = interval;
+    }
+
+    /**
+     * Index output appended to the logcat data.
+     *
+     * @param data the output
+     * @param offset the start of the output in <var>data</var>
+     * @param length the length of the output
+     * @param streamOffset the offset of the output in the logcat data
+     */
+    void addOutput(byte[] data, int offset, int length, long streamOffset) {
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            if (mLineOffset >= 0) {
+                // reading the timestamp of a line
+                byte b = data[i];
+                if (b == '\n') {
+                    // too short, try the next line
+                    mLineOffset = -1;
+                    mAtLineStart = true;
+                    i++;
+                    continue;
+                }
+                mTimestamp[mTimestampLength++] = b;
+                i++;
+                if (mTimestampLength == TIMESTAMP_LENGTH) {
+                    long time = parseTime(mTimestamp, 0, TIMESTAMP_LENGTH);
+                    if (time >= 0) {
+                        record(time, mLineOffset);
+                    }
+                    mLineOffset = -1;
+                }
+                continue;
+            }
+            if (mAtLineStart) {
+                mAtLineStart = false;
+                long lineOffset = streamOffset + (i - offset);
+                if (mLastIndexedOffset < 0 || lineOffset - mLastIndexedOffset >= mInterval) {
+                    mLineOffset = lineOffset;
+                    mTimestampLength = 0;
+                    continue;
+                }
+            }
+            // skip to the next line, no need to look at every line until the next interval
+            if (mLastIndexedOffset >= 0) {
+                long skip = mLastIndexedOffset + mInterval - 1 - (streamOffset + (i - offset));
+                if (skip > 0) {
+                    i = (int) Math.min(end, i + skip);
+                }
+            }
+            while (i < end && data[i] != '\n') {
+                i++;
+            }
+            if (i < end) {
+                mAtLineStart = true;
+                i++;
+            }
+        }
+    }
+
+    private void record(long time, long offset) {
+        if (mSize > 0) {
+            long last = mTimes[mFirst + mSize - 1];
+            if (time < last) {
+                time = last;
+            }
+        }
+        if (mFirst + mSize == mTimes.length) {
+            if (mFirst > mSize) {
+                // more than half of the entries were trimmed, compact
+                System.arraycopy(mTimes, mFirst, mTimes, 0, mSize);
+                System.arraycopy(mOffsets, mFirst, mOffsets, 0, mSize);
+                mFirst = 0;
+            } else {
+                mTimes = Arrays.copyOf(mTimes, mTimes.length * 2);
+                mOffsets = Arrays.copyOf(mOffsets, mOffsets.length * 2);
+            }
+        }
+        mTimes[mFirst + mSize] = time;
+        mOffsets[mFirst + mSize] = offset;
+        mSize++;
+        mLastIndexedOffset = offset;
+    }
+
+    /**
+     * Drop the entries for data that is no longer available.
+     *
+     * @param minOffset the offset of the oldest data still available
+     */
+    void trim(long minOffset) {
+        while (mSize > 0 && mOffsets[mFirst] < minOffset) {
+            mFirst++;
+            mSize--;
+        }
+        if (mSize == 0) {
+            mFirst = 0;
+        }
+    }
+
+    /**
+     * Look up where to start reading to get the lines logged at or after the given time.
+     *
+     * @param time the time, as returned by {@link #getTime(long, TimeZone)}
+     * @return the offset of the last indexed line logged before <var>time</var>, or the offset of
+     *         the first indexed line if none was, or -1 if nothing is indexed.
+     */
+    long getOffsetBefore(long time) {
+        if (mSize == 0) {
+            return -1;
+        }
+        // find the first entry >= time
+        int low = mFirst;
+        int high = mFirst + mSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mTimes[mid] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return mOffsets[Math.max(mFirst, low - 1)];
+    }
+
+    /**
+     * Returns the time of the oldest entry in the index, or -1 if it is empty.
+     */
+    long getFirstTime() {
+        return mSize == 0 ? -1 : mTimes[mFirst];
+    }
+
+    /** Returns the number of bytes between index entries. */
+    int getInterval() {
+        return mInterval;
+    }
+
+    /** Returns the number of entries in the index. */
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Drop all entries, and start indexing from offset 0 again.
+     */
+    void clear() {
+        mFirst = 0;
+        mSize = 0;
+        mLastIndexedOffset = -1;
+        mAtLineStart = true;
+        mLineOffset = -1;
+    }
+
+    /**
+     * Parse the timestamp at the start of a logcat line.
+     *
+     * @param data the bytes holding the line
+     * @param offset the start of the line in <var>data</var>
+     * @param end the end of the valid bytes in <var>data</var>
+     * @return a time ordered like the timestamps, compatible with {@link #getTime(long, TimeZone)},
+     *         or -1 if the line does not start with a timestamp.
+     */
+    static long parseTime(byte[] data, int offset, int end) {
+        if (end - offset < TIMESTAMP_LENGTH || data[offset + 2] != '-'
+                || data[offset + 5] != ' ' || data[offset + 8] != ':' || data[offset + 11] != ':'
+                || data[offset + 14] != '.') {
+            return -1;
+        }
+        int month = parseDigits(data, offset, 2);
+        int day = parseDigits(data, offset + 3, 2);
+        int hour = parseDigits(data, offset + 6, 2);
+        int minute = parseDigits(data, offset + 9, 2);
+        int second = parseDigits(data, offset + 12, 2);
+        int millis = parseDigits(data, offset + 15, 3);
+        if (month < 0 || day < 0 || hour < 0 || minute < 0 || second < 0 || millis < 0) {
+            return -1;
+        }
+        return getTime(month, day, hour, minute, second, millis);
+    }
+
+    /**
+     * Convert an epoch time to the time format of the index.
+     *
+     * @param epochMs the time in ms since epoch
+     * @param timeZone the device time zone, that logcat timestamps use
+     */
+    static long getTime(long epochMs, TimeZone timeZone) {
+        Calendar calendar = Calendar.getInstance(timeZone);
+        calendar.setTimeInMillis(epochMs);
+        return getTime(calendar.get(Calendar.MONTH) + 1, calendar.get(Calendar.DAY_OF_MONTH),
+                calendar.get(Calendar.HOUR_OF_DAY), calendar.get(Calendar.MINUTE),
+                calendar.get(Calendar.SECOND), calendar.get(Calendar.MILLISECOND));
+    }
+
+    private static long getTime(int month, int day, int hour, int minute, int second,
+            int millis) {
+        // not an actual duration, only needs to be ordered the same way as the timestamps
+        long days = month * 32L + day;
+        return (((days * 24 + hour) * 60 + minute) * 60 + second) * 1000 + millis;
+    }
+
+    private static int parseDigits(byte[] data, int offset, int count) {
+        int value = 0;
+        for (int i = offset; i < offset + count; i++) {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+}
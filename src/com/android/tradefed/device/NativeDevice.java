@@ -181,6 +181,8 @@ public class NativeDevice implements IManagedTestDevice {
     private TestDeviceState mState = TestDeviceState.ONLINE;
     private final ReentrantLock mFastbootLock = new ReentrantLock();
     private LogcatReceiver mLogcatReceiver;
+    /** the device time zone, used to look up logcat lines by time */
+    private TimeZone mLogcatTimeZone = null;
     private boolean mFastbootEnabled = true;
     private String mFastbootPath = "fastboot";
 
@@ -282,6 +284,7 @@ public class NativeDevice implements IManagedTestDevice {
         mOptions = options;
         mStateMonitor.setDefaultOnlineTimeout(options.getOnlineTimeout());
         mStateMonitor.setDefaultAvailableTimeout(options.getAvailableTimeout());
+        mStateMonitor.setReadinessWatcherEnabled(options.useReadinessWatcher());
     }
 
     /**
@@ -1775,6 +1778,7 @@ public class NativeDevice implements IManagedTestDevice {
             return;
         }
         mLogcatReceiver = createLogcatReceiver();
+        mLogcatTimeZone = null;
         mLogcatReceiver.start();
     }
 
@@ -1821,6 +1825,17 @@ public class NativeDevice implements IManagedTestDevice {
      */
     @Override
     public InputStreamSource getLogcatSince(long date) {
+        if (mLogcatReceiver != null) {
+            // serve from the background capture when it goes back far enough
+            if (mLogcatTimeZone == null) {
+                mLogcatTimeZone = TimeZone.getTimeZone(getDeviceTimezone());
+            }
+            InputStreamSource logcat = mLogcatReceiver.getLogcatSince(date * 1000,
+                    mLogcatTimeZone);
+            if (logcat != null) {
+                return logcat;
+            }
+        }
         try {
             if (getApiLevel() <= 22) {
                 CLog.i("Api level too low to use logcat -t 'time' reverting to dump");
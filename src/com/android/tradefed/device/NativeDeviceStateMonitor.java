@@ -28,7 +28,9 @@ import com.android.tradefed.util.RunUtil;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
@@ -39,6 +41,10 @@ public class NativeDeviceStateMonitor implements IDeviceStateMonitor {
 
     static final String BOOTCOMPLETE_PROP = "dev.bootcomplete";
 
+    /** Readiness stages checked by the {@link DeviceReadinessWatcher} */
+    static final String BOOT_STAGE = "boot";
+    static final String STORE_STAGE = "store";
+
     private IDevice mDevice;
     private TestDeviceState mDeviceState;
 
@@ -57,6 +63,7 @@ public class NativeDeviceStateMonitor implements IDeviceStateMonitor {
     private List<DeviceStateListener> mStateListeners;
     private IDeviceManager mMgr;
     private final boolean mFastbootEnabled;
+    private boolean mReadinessWatcherEnabled = false;
 
     protected static final String PERM_DENIED_ERROR_PATTERN = "Permission denied";
 
@@ -94,6 +101,14 @@ public class NativeDeviceStateMonitor implements IDeviceStateMonitor {
         mDefaultAvailableTimeout = timeoutMs;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setReadinessWatcherEnabled(boolean enabled) {
+        mReadinessWatcherEnabled = enabled;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -209,6 +224,14 @@ public class NativeDeviceStateMonitor implements IDeviceStateMonitor {
             return null;
         }
         long elapsedTime = System.currentTimeMillis() - startTime;
+        if (mReadinessWatcherEnabled) {
+            Boolean ready = waitForReadiness(getReadinessChecks(), waitTime - elapsedTime);
+            if (ready != null) {
+                return ready ? device : null;
+            }
+            CLog.i("Readiness watcher unavailable on %s, polling instead", getSerialNumber());
+            elapsedTime = System.currentTimeMillis() - startTime;
+        }
         if (!waitForBootComplete(waitTime - elapsedTime)) {
             return null;
         }
@@ -216,9 +239,81 @@ public class NativeDeviceStateMonitor implements IDeviceStateMonitor {
         if (!postOnlineCheck(waitTime - elapsedTime)) {
             return null;
         }
+        CLog.i("Device %s available after %d ms", getSerialNumber(),
+                System.currentTimeMillis() - startTime);
         return device;
     }
 
+    /**
+     * Waits for the device to pass readiness checks, using a {@link DeviceReadinessWatcher}.
+     *
+     * @param checks the checks to run, see {@link #getReadinessChecks()}
+     * @param waitTime time in ms to wait before giving up
+     * @return {@link Boolean#TRUE} if all the checks passed before waitTime expires,
+     *         {@link Boolean#FALSE} if one failed or did not pass in time, or <code>null</code> if
+     *         the watcher could not run and readiness should be polled instead.
+     */
+    Boolean waitForReadiness(Map<String, String> checks, long waitTime) {
+        long startTime = System.currentTimeMillis();
+        DeviceReadinessWatcher watcher = createReadinessWatcher(checks);
+        watcher.start(waitTime);
+        try {
+            // don't wait for the whole time when the shell itself is unresponsive
+            Boolean ready = watcher.waitForStage(DeviceReadinessWatcher.SHELL_STAGE,
+                    Math.min(MAX_OP_TIME, waitTime));
+            if (!Boolean.TRUE.equals(ready)) {
+                return null;
+            }
+            for (String stage : checks.keySet()) {
+                long elapsedTime = System.currentTimeMillis() - startTime;
+                ready = watcher.waitForStage(stage, waitTime - elapsedTime);
+                if (ready == null) {
+                    return null;
+                }
+                if (!ready) {
+                    CLog.w("Device %s did not pass the %s check after %d ms", getSerialNumber(),
+                            stage, waitTime);
+                    return false;
+                }
+            }
+            CLog.i("Device %s available after %d ms, stages reached after (ms): %s",
+                    getSerialNumber(), System.currentTimeMillis() - startTime,
+                    watcher.getStageTimes());
+            return true;
+        } finally {
+            watcher.cancel();
+        }
+    }
+
+    /**
+     * Returns the checks a device must pass after being online to be available, for the
+     * {@link DeviceReadinessWatcher}: a {@link Map} of stage names to shell conditions, in the
+     * order they must pass.
+     */
+    protected Map<String, String> getReadinessChecks() {
+        Map<String, String> checks = new LinkedHashMap<>();
+        checks.put(BOOT_STAGE, String.format("[ \"$(getprop %s)\" = 1 ]", BOOTCOMPLETE_PROP));
+        String externalStore = getMountPoint(IDevice.MNT_EXTERNAL_STORAGE);
+        if (externalStore == null || externalStore.isEmpty()) {
+            externalStore = "$" + IDevice.MNT_EXTERNAL_STORAGE;
+        }
+        // same as waitForStoreMount: write, read back and delete a file, giving up on
+        // permission errors
+        checks.put(STORE_STAGE, String.format("{ f=\"%s/tf_ready_$$\"; "
+                + "o=$(echo ready 2>&1 > \"$f\"; cat \"$f\" 2>&1); rm -f \"$f\" 2>/dev/null; "
+                + "case \"$o\" in *'%s'*) echo %s%s; exit 1;; esac; [ \"$o\" = ready ]; }",
+                externalStore, PERM_DENIED_ERROR_PATTERN, DeviceReadinessWatcher.FAIL_MARKER,
+                STORE_STAGE));
+        return checks;
+    }
+
+    /**
+     * Exposed for testing
+     */
+    DeviceReadinessWatcher createReadinessWatcher(Map<String, String> checks) {
+        return new DeviceReadinessWatcher(getIDevice(), checks);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -74,6 +74,11 @@ public class TestDeviceOptions {
             + "to be available aka fully boot.")
     private long mAvailableTimeout = 6 * 60 * 1000;
 
+    @Option(name = "readiness-watcher", description = "wait for the device to be available with "
+            + "a single long-lived command watching the device state, instead of polling it with "
+            + "a command per attempt. Falls back to polling if the command can not run.")
+    private boolean mReadinessWatcher = false;
+
     @Option(name = "conn-check-url",
             description = "default URL to be used for connectivity checks.")
     private String mConnCheckUrl = "http://www.google.com";
@@ -237,6 +242,18 @@ public class TestDeviceOptions {
         return mAvailableTimeout;
     }
 
+    /**
+     * @return true if the device availability should be watched by a long-lived command rather
+     *         than polled.
+     */
+    public boolean useReadinessWatcher() {
+        return mReadinessWatcher;
+    }
+
+    public void setUseReadinessWatcher(boolean readinessWatcher) {
+        mReadinessWatcher = readinessWatcher;
+    }
+
     /**
      * @return the default URL to be used for connectivity tests.
      */
@@ -18,7 +18,10 @@ package com.android.tradefed.device;
 
 import com.android.ddmlib.MultiLineReceiver;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.BinarySampleWriter;
 import com.android.tradefed.util.SimpleStats;
+import com.android.tradefed.util.StreamUtil;
+import com.android.tradefed.util.StreamingStats;
 
 import java.io.BufferedWriter;
 import java.io.File;
@@ -36,6 +39,11 @@ import java.util.regex.Pattern;
  * Provides a method to record the output of top and get all recorded CPU usage measurements or an
  * average of a specified range of measurements.  Note that top can cause approximately a 10%
  * overhead to the CPU usage while running, so results will not be entirely accurate.
+ * </p><p>
+ * For long running tests, {@link #setStreamingMode(boolean)} stops keeping every parsed
+ * {@link TopStats}: only the aggregate returned by {@link #getTopStatsAggregate()} is kept, in
+ * constant memory, and raw samples can be spilled to a binary file with
+ * {@link #spillToFile(File)}.
  * </p>
  */
 public class TopHelper extends Thread {
@@ -45,6 +53,12 @@ public class TopHelper extends Thread {
     private static final Pattern TOP_PERCENT_PATTERN =
             Pattern.compile("User (\\d+)%, System (\\d+)%, IOW (\\d+)%, IRQ (\\d+)%");
 
+    /** Default number of recent samples kept by the {@link TopStatsAggregate}. */
+    public static final int DEFAULT_WINDOW_SIZE = 60;
+
+    /** Columns of the samples spilled by {@link #spillToFile(File)}. */
+    static final String[] SPILL_COLUMNS = {"user", "system", "iow", "irq"};
+
     private ITestDevice mTestDevice;
     private int mDelay;
 
@@ -74,19 +88,120 @@ public class TopHelper extends Thread {
         public Double mIrqPercent = null;
     }
 
+    /**
+     * Class for holding running statistics over all the {@link TopStats}, in constant memory.
+     * <p>
+     * Each statistic gives the same value as the corresponding average method of
+     * {@link TopHelper} over the full list of {@link TopStats}, and also provides the variance,
+     * extremes, estimated quantiles and most recent values.
+     * </p>
+     */
+    public static class TopStatsAggregate {
+        private final StreamingStats mTotal;
+        private final StreamingStats mUser;
+        private final StreamingStats mSystem;
+        private final StreamingStats mIow;
+        private final StreamingStats mIrq;
+
+        TopStatsAggregate(int windowSize) {
+            mTotal = new StreamingStats(StreamingStats.DEFAULT_QUANTILES, windowSize);
+            mUser = new StreamingStats(StreamingStats.DEFAULT_QUANTILES, windowSize);
+            mSystem = new StreamingStats(StreamingStats.DEFAULT_QUANTILES, windowSize);
+            mIow = new StreamingStats(StreamingStats.DEFAULT_QUANTILES, windowSize);
+            mIrq = new StreamingStats(StreamingStats.DEFAULT_QUANTILES, windowSize);
+        }
+
+        TopStatsAggregate(TopStatsAggregate other) {
+            mTotal = new StreamingStats(other.mTotal);
+            mUser = new StreamingStats(other.mUser);
+            mSystem = new StreamingStats(other.mSystem);
+            mIow = new StreamingStats(other.mIow);
+            mIrq = new StreamingStats(other.mIrq);
+        }
+
+        void add(TopStats s) {
+            mTotal.add(s.mTotalPercent);
+            mUser.add(s.mUserPercent);
+            mSystem.add(s.mSystemPercent);
+            mIow.add(s.mIowPercent);
+            mIrq.add(s.mIrqPercent);
+        }
+
+        /** Get the statistics of the total CPU usage, as a percentage (0 to 100). */
+        public StreamingStats getTotal() {
+            return mTotal;
+        }
+
+        /** Get the statistics of the user CPU usage, as a percentage (0 to 100). */
+        public StreamingStats getUser() {
+            return mUser;
+        }
+
+        /** Get the statistics of the system CPU usage, as a percentage (0 to 100). */
+        public StreamingStats getSystem() {
+            return mSystem;
+        }
+
+        /** Get the statistics of the IOW CPU usage, as a percentage (0 to 100). */
+        public StreamingStats getIow() {
+            return mIow;
+        }
+
+        /** Get the statistics of the IRQ CPU usage, as a percentage (0 to 100). */
+        public StreamingStats getIrq() {
+            return mIrq;
+        }
+    }
+
     /**
      * Receiver which parses the output from top.
      */
     static class TopReceiver extends MultiLineReceiver {
         private List<TopStats> mTopStats = new LinkedList<TopStats>();
+        private TopStatsAggregate mAggregate = null;
         private boolean mIsCancelled = false;
+        private boolean mStreaming = false;
+        private int mWindowSize = DEFAULT_WINDOW_SIZE;
         private File mLogFile = null;
         private BufferedWriter mLogWriter = null;
+        private BinarySampleWriter mSpillWriter = null;
 
         public TopReceiver() {
             setTrimLine(false);
         }
 
+        /**
+         * Specify a file to spill the parsed samples to, in the binary format of
+         * {@link BinarySampleWriter}, with the {@link #SPILL_COLUMNS} as percentages.
+         *
+         * @param spillFile the file to write samples to.
+         */
+        public synchronized void spillToFile(File spillFile) {
+            try {
+                mSpillWriter = new BinarySampleWriter(spillFile, SPILL_COLUMNS);
+            } catch (IOException e) {
+                CLog.e("Error creating spill file:");
+                CLog.e(e);
+                mSpillWriter = null;
+            }
+        }
+
+        /**
+         * Set whether to stop keeping every parsed {@link TopStats}, and only keep the
+         * {@link TopStatsAggregate}.
+         */
+        public synchronized void setStreamingMode(boolean streaming) {
+            mStreaming = streaming;
+        }
+
+        /**
+         * Set the number of recent samples kept by the {@link TopStatsAggregate}. Only applies
+         * before the first sample is parsed.
+         */
+        public synchronized void setWindowSize(int windowSize) {
+            mWindowSize = windowSize;
+        }
+
         /**
          * Specify a file to log the top output to.
          *
@@ -137,12 +252,33 @@ public class TopHelper extends Thread {
                     s.mTotalPercent = (s.mUserPercent + s.mSystemPercent + s.mIowPercent +
                             s.mIrqPercent);
                     synchronized(this) {
-                        mTopStats.add(s);
+                        addTopStats(s);
                     }
                 }
             }
         }
 
+        private void addTopStats(TopStats s) {
+            if (!mStreaming) {
+                mTopStats.add(s);
+            }
+            if (mAggregate == null) {
+                mAggregate = new TopStatsAggregate(mWindowSize);
+            }
+            mAggregate.add(s);
+            if (mSpillWriter != null) {
+                try {
+                    mSpillWriter.write("top", System.currentTimeMillis(), s.mUserPercent,
+                            s.mSystemPercent, s.mIowPercent, s.mIrqPercent);
+                } catch (IOException e) {
+                    CLog.e("Error writing to spill file:");
+                    CLog.e(e);
+                    StreamUtil.close(mSpillWriter);
+                    mSpillWriter = null;
+                }
+            }
+        }
+
         /**
          * Cancels the top command.
          */
@@ -151,6 +287,10 @@ public class TopHelper extends Thread {
                 return;
             }
             mIsCancelled = true;
+            if (mSpillWriter != null) {
+                StreamUtil.close(mSpillWriter);
+                mSpillWriter = null;
+            }
             if (mLogWriter != null) {
                 try {
                     mLogWriter.flush();
@@ -180,6 +320,16 @@ public class TopHelper extends Thread {
         public synchronized List<TopStats> getTopStats() {
             return new ArrayList<TopStats>(mTopStats);
         }
+
+        /**
+         * Gets a copy of the running statistics over all the parsed {@link TopStats}.
+         */
+        public synchronized TopStatsAggregate getTopStatsAggregate() {
+            if (mAggregate == null) {
+                return new TopStatsAggregate(mWindowSize);
+            }
+            return new TopStatsAggregate(mAggregate);
+        }
     }
 
     private TopReceiver mReceiver = new TopReceiver();
@@ -214,6 +364,33 @@ public class TopHelper extends Thread {
         mReceiver.logToFile(logFile);
     }
 
+    /**
+     * Specify a file to spill the parsed samples to, in a compact binary format.
+     *
+     * @param spillFile the file to write samples to.
+     * @see TopReceiver#spillToFile(File)
+     */
+    public void spillToFile(File spillFile) {
+        mReceiver.spillToFile(spillFile);
+    }
+
+    /**
+     * Set whether to stop keeping every parsed {@link TopStats}, so that memory use does not grow
+     * with the duration of the collection. {@link #getTopStats()} then returns an empty list, and
+     * {@link #getTopStatsAggregate()} should be used instead.
+     */
+    public void setStreamingMode(boolean streaming) {
+        mReceiver.setStreamingMode(streaming);
+    }
+
+    /**
+     * Set the number of recent samples kept by the {@link TopStatsAggregate}, defaults to
+     * {@link #DEFAULT_WINDOW_SIZE}. Should be called before starting top.
+     */
+    public void setWindowSize(int windowSize) {
+        mReceiver.setWindowSize(windowSize);
+    }
+
     /**
      * Cancels the top command.
      */
@@ -252,6 +429,19 @@ public class TopHelper extends Thread {
         return mReceiver.getTopStats();
     }
 
+    /**
+     * Gets running statistics over all the {@link TopStats} parsed so far.
+     * <p>
+     * Unlike the average methods, this does not iterate over the samples, and is available in
+     * streaming mode.
+     * </p>
+     *
+     * @return a {@link TopStatsAggregate} snapshot.
+     */
+    public TopStatsAggregate getTopStatsAggregate() {
+        return mReceiver.getTopStatsAggregate();
+    }
+
     /**
      * Get the average total CPU usage for a list of {@link TopStats}.
      *
@@ -30,6 +30,15 @@ public class HostOptions implements IHostOptions {
             "The maximum number of concurrent flashers (may be useful to avoid memory constraints)")
     private Integer mConcurrentFlasherLimit = null;
 
+    @Option(name = "concurrent-flash-size-limit", description =
+            "The maximum size in MB of the images being flashed concurrently (may be useful to "
+            + "avoid disk and USB bandwidth saturation)")
+    private Integer mConcurrentFlashSizeLimit = null;
+
+    @Option(name = "concurrent-flasher-per-usb-bus-limit", description =
+            "The maximum number of concurrent flashers on the same USB bus")
+    private Integer mConcurrentFlasherPerBusLimit = null;
+
     @Option(
         name = "concurrent-download-limit",
         description =
@@ -46,6 +55,18 @@ public class HostOptions implements IHostOptions {
         return mConcurrentFlasherLimit;
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public Integer getConcurrentFlashSizeLimit() {
+        return mConcurrentFlashSizeLimit;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Integer getConcurrentFlasherPerBusLimit() {
+        return mConcurrentFlasherPerBusLimit;
+    }
+
     /** {@inheritDoc} */
     @Override
     public Integer getConcurrentDownloadLimit() {
@@ -32,6 +32,22 @@ public interface IHostOptions {
      */
     Integer getConcurrentFlasherLimit();
 
+    /**
+     * Returns the max number of megabytes being flashed concurrently. Used by
+     * {@link DeviceFlashPreparer}.
+     *
+     * @return the concurrent flashing size limit in MB, or <code>null</code> for no limit.
+     */
+    Integer getConcurrentFlashSizeLimit();
+
+    /**
+     * Returns the max number of concurrent flashing to allow per USB bus. Used by
+     * {@link DeviceFlashPreparer}.
+     *
+     * @return the concurrent flasher limit per USB bus, or <code>null</code> for no limit.
+     */
+    Integer getConcurrentFlasherPerBusLimit();
+
     /**
      * Returns the max number of concurrent downloads allowed. Used by {@link IBuildProvider} that
      * downloads remote builds.
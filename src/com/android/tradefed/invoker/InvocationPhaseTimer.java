@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.invoker;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records how long each phase of an invocation takes: fetching the build, sharding, setting up
+ * and tearing down each target preparer, running the tests, saving logs...
+ * <p/>
+ * Spans are measured in nanoseconds with {@link System#nanoTime()}, and spans of the same phase
+ * are summed up, for example the time spent in a preparer class on all the devices. Phases can
+ * nest or overlap: {@link #SETUP} includes the time of each preparer, and {@link #LOG_SAVING}
+ * happens during all the other phases.
+ * <p/>
+ * The spans are reported as invocation attributes, named "phase_&lt;phase&gt;_ns", so reporters
+ * and the scheduler can get them from the {@link IInvocationContext}.
+ * <p/>
+ * Thread safe.
+ */
+public class InvocationPhaseTimer {
+
+    public static final String FETCH_BUILD = "fetch_build";
+    public static final String SHARDING = "sharding";
+    public static final String SETUP = "setup";
+    public static final String TEST = "test";
+    public static final String TEARDOWN = "teardown";
+    public static final String CLEANUP = "cleanup";
+    public static final String LOG_SAVING = "log_saving";
+
+    static final String ATTRIBUTE_PREFIX = "phase_";
+    static final String ATTRIBUTE_SUFFIX = "_ns";
+
+    /** phase -> total nanoseconds, in the order phases were first recorded */
+    private final Map<String, Long> mSpans = new LinkedHashMap<>();
+    private boolean mReported = false;
+
+    /** Returns the start time of a span, to pass to {@link #record(String, long)}. */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record a span that ends now.
+     *
+     * @param phase the name of the phase
+     * @param startNanos the start of the span, as returned by {@link #start()}
+     */
+    public void record(String phase, long startNanos) {
+        add(phase, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Add a span to a phase.
+     *
+     * @param phase the name of the phase
+     * @param durationNanos the duration of the span in ns
+     */
+    public synchronized void add(String phase, long durationNanos) {
+        Long total = mSpans.get(phase);
+        mSpans.put(phase, total == null ? durationNanos : total + durationNanos);
+    }
+
+    /** Returns the total time of each phase in ns, in the order they were first recorded. */
+    public synchronized Map<String, Long> getSpans() {
+        return new LinkedHashMap<>(mSpans);
+    }
+
+    /** Drop all the spans recorded so far. */
+    public synchronized void reset() {
+        mSpans.clear();
+        mReported = false;
+    }
+
+    /**
+     * Add the spans recorded so far to the invocation attributes. Only the first call does, so
+     * reporting again on another path of the invocation is harmless.
+     */
+    public synchronized void reportToContext(IInvocationContext context) {
+        if (mReported) {
+            return;
+        }
+        mReported = true;
+        for (Map.Entry<String, Long> span : mSpans.entrySet()) {
+            context.addInvocationAttribute(ATTRIBUTE_PREFIX + span.getKey() + ATTRIBUTE_SUFFIX,
+                    Long.toString(span.getValue()));
+        }
+    }
+
+    /**
+     * Returns the name of the phase of a single preparer, for example "setup.DeviceSetup".
+     *
+     * @param phase the overall phase, e.g. {@link #SETUP} or {@link #TEARDOWN}
+     * @param preparer the preparer
+     */
+    public static String getPreparerPhase(String phase, Object preparer) {
+        String name = preparer.getClass().getSimpleName();
+        if (name.isEmpty()) {
+            // anonymous class
+            name = preparer.getClass().getName();
+            name = name.substring(name.lastIndexOf('.') + 1);
+        }
+        return phase + "." + name;
+    }
+
+    /**
+     * Returns the phase spans reported in the attributes of an invocation.
+     *
+     * @param context the {@link IInvocationContext} of the invocation
+     * @return the total time of each phase in ns
+     */
+    public static Map<String, Long> getSpans(IInvocationContext context) {
+        Map<String, Long> spans = new LinkedHashMap<>();
+        for (String key : context.getAttributes().keySet()) {
+            if (!key.startsWith(ATTRIBUTE_PREFIX) || !key.endsWith(ATTRIBUTE_SUFFIX)
+                    || key.length() <= ATTRIBUTE_PREFIX.length() + ATTRIBUTE_SUFFIX.length()) {
+                continue;
+            }
+            List<String> values = context.getAttributes().get(key);
+            if (values == null || values.isEmpty()) {
+                continue;
+            }
+            try {
+                spans.put(key.substring(ATTRIBUTE_PREFIX.length(),
+                        key.length() - ATTRIBUTE_SUFFIX.length()),
+                        Long.parseLong(values.get(0)));
+            } catch (NumberFormatException e) {
+                // not a phase attribute
+            }
+        }
+        return Collections.unmodifiableMap(spans);
+    }
+}
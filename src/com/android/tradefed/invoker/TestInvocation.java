@@ -37,6 +37,7 @@ import com.android.tradefed.log.ILeveledLogOutput;
 import com.android.tradefed.log.ILogRegistry;
 import com.android.tradefed.log.LogRegistry;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.profiler.ISamplingProfiler;
 import com.android.tradefed.result.AggregatingProfilerListener;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.ITestLoggerReceiver;
@@ -120,6 +121,8 @@ public class TestInvocation implements ITestInvocation {
 
     private String mStatus = "(not invoked)";
     private boolean mStopRequested = false;
+    private final InvocationPhaseTimer mPhaseTimer = new InvocationPhaseTimer();
+    private ISamplingProfiler mSamplingProfiler = null;
 
     /**
      * A {@link ResultForwarder} for forwarding resumed invocations.
@@ -167,7 +170,12 @@ public class TestInvocation implements ITestInvocation {
     private boolean shardConfig(
             IConfiguration config, IInvocationContext context, IRescheduler rescheduler) {
         mStatus = "sharding";
-        return createShardHelper().shardConfig(config, context, rescheduler);
+        long start = InvocationPhaseTimer.start();
+        try {
+            return createShardHelper().shardConfig(config, context, rescheduler);
+        } finally {
+            mPhaseTimer.record(InvocationPhaseTimer.SHARDING, start);
+        }
     }
 
     /** Create an return the {@link IShardHelper} to be used. */
@@ -176,6 +184,11 @@ public class TestInvocation implements ITestInvocation {
         return GlobalConfiguration.getInstance().getShardingStrategy();
     }
 
+    /** Returns the {@link ISamplingProfiler} to profile the invocation with, or null if none. */
+    protected ISamplingProfiler getSamplingProfiler() {
+        return GlobalConfiguration.getInstance().getSamplingProfiler();
+    }
+
     /**
      * Update the {@link IBuildInfo} with additional info from the {@link IConfiguration}.
      *
@@ -383,6 +396,7 @@ public class TestInvocation implements ITestInvocation {
                 }
             }
             mStatus = "tearing down";
+            long teardownStart = InvocationPhaseTimer.start();
             try {
                 doTeardown(config, context, exception);
             } catch (Throwable e) {
@@ -393,11 +407,15 @@ public class TestInvocation implements ITestInvocation {
                     // only report when the exception is new during tear down
                     reportFailure(tearDownException, listener, config, context, rescheduler);
                 }
+            } finally {
+                mPhaseTimer.record(InvocationPhaseTimer.TEARDOWN, teardownStart);
             }
             mStatus = "done running tests";
             try {
                 // Clean up host.
+                long cleanUpStart = InvocationPhaseTimer.start();
                 doCleanUp(config, context, exception);
+                mPhaseTimer.record(InvocationPhaseTimer.CLEANUP, cleanUpStart);
                 if (config.getProfiler() != null) {
                     config.getProfiler().reportAllMetrics(listener);
                 }
@@ -415,8 +433,13 @@ public class TestInvocation implements ITestInvocation {
                             "====================================================================="
                                     + "====");
                 }
+                if (mSamplingProfiler != null) {
+                    mSamplingProfiler.stopProfiling(
+                            Thread.currentThread().getThreadGroup(), listener);
+                }
                 reportHostLog(listener, config.getLogOutput());
                 elapsedTime = System.currentTimeMillis() - startTime;
+                mPhaseTimer.reportToContext(context);
                 if (!resumed) {
                     listener.invocationEnded(elapsedTime);
                 }
@@ -441,9 +464,19 @@ public class TestInvocation implements ITestInvocation {
             throws Throwable {
         getRunUtil().allowInterrupt(true);
         logDeviceBatteryLevel(context, "initial -> setup");
-        doSetup(config, context, listener);
+        long start = InvocationPhaseTimer.start();
+        try {
+            doSetup(config, context, listener);
+        } finally {
+            mPhaseTimer.record(InvocationPhaseTimer.SETUP, start);
+        }
         logDeviceBatteryLevel(context, "setup -> test");
-        runTests(context, config, listener);
+        start = InvocationPhaseTimer.start();
+        try {
+            runTests(context, config, listener);
+        } finally {
+            mPhaseTimer.record(InvocationPhaseTimer.TEST, start);
+        }
         logDeviceBatteryLevel(context, "after test");
     }
 
@@ -472,7 +505,13 @@ public class TestInvocation implements ITestInvocation {
                 CLog.d(
                         "starting preparer '%s' on device: '%s'",
                         preparer, device.getSerialNumber());
-                preparer.setUp(device, context.getBuildInfo(deviceName));
+                long start = InvocationPhaseTimer.start();
+                try {
+                    preparer.setUp(device, context.getBuildInfo(deviceName));
+                } finally {
+                    mPhaseTimer.record(InvocationPhaseTimer.getPreparerPhase(
+                            InvocationPhaseTimer.SETUP, preparer), start);
+                }
                 CLog.d(
                         "done with preparer '%s' on device: '%s'",
                         preparer, device.getSerialNumber());
@@ -485,7 +524,13 @@ public class TestInvocation implements ITestInvocation {
                 ((ITestLoggerReceiver) multipreparer).setTestLogger(listener);
             }
             CLog.d("Starting multi target preparer '%s'", multipreparer);
-            multipreparer.setUp(context);
+            long start = InvocationPhaseTimer.start();
+            try {
+                multipreparer.setUp(context);
+            } finally {
+                mPhaseTimer.record(InvocationPhaseTimer.getPreparerPhase(
+                        InvocationPhaseTimer.SETUP, multipreparer), start);
+            }
             CLog.d("done with multi target preparer '%s'", multipreparer);
         }
         if (config.getProfiler() != null) {
@@ -507,7 +552,13 @@ public class TestInvocation implements ITestInvocation {
         while (iterator.hasPrevious()) {
             IMultiTargetPreparer multipreparer = iterator.previous();
             CLog.d("Starting multi target tearDown '%s'", multipreparer);
-            multipreparer.tearDown(context, throwable);
+            long start = InvocationPhaseTimer.start();
+            try {
+                multipreparer.tearDown(context, throwable);
+            } finally {
+                mPhaseTimer.record(InvocationPhaseTimer.getPreparerPhase(
+                        InvocationPhaseTimer.TEARDOWN, multipreparer), start);
+            }
             CLog.d("Done with multi target tearDown '%s'", multipreparer);
         }
 
@@ -523,6 +574,7 @@ public class TestInvocation implements ITestInvocation {
                 if(preparer instanceof ITargetCleaner) {
                     ITargetCleaner cleaner = (ITargetCleaner) preparer;
                     if (cleaner != null) {
+                        long start = InvocationPhaseTimer.start();
                         try {
                             CLog.d("starting tearDown '%s' on device: '%s'", preparer,
                                     device.getSerialNumber());
@@ -534,6 +586,9 @@ public class TestInvocation implements ITestInvocation {
                             // Only the last one will be thrown but all should be logged.
                             CLog.e("Deferring throw for: %s", e);
                             throwable = e;
+                        } finally {
+                            mPhaseTimer.record(InvocationPhaseTimer.getPreparerPhase(
+                                    InvocationPhaseTimer.TEARDOWN, preparer), start);
                         }
                     }
                 }
@@ -814,13 +869,19 @@ public class TestInvocation implements ITestInvocation {
         if (config.getProfiler() != null) {
             allListeners.add(new AggregatingProfilerListener(config.getProfiler()));
         }
-        ITestInvocationListener listener = new LogSaverResultForwarder(config.getLogSaver(),
+        mPhaseTimer.reset();
+        LogSaverResultForwarder listener = new LogSaverResultForwarder(config.getLogSaver(),
                 allListeners);
+        listener.setPhaseTimer(mPhaseTimer);
         String currentDeviceName = null;
         try {
             mStatus = "fetching build";
             config.getLogOutput().init();
             getLogRegistry().registerLogger(config.getLogOutput());
+            mSamplingProfiler = getSamplingProfiler();
+            if (mSamplingProfiler != null) {
+                mSamplingProfiler.startProfiling(Thread.currentThread().getThreadGroup());
+            }
             for (String deviceName : context.getDeviceConfigNames()) {
                 context.getDevice(deviceName).clearLastConnectedWifiNetwork();
                 context.getDevice(deviceName).setOptions(
@@ -850,10 +911,15 @@ public class TestInvocation implements ITestInvocation {
                     ((IInvocationContextReceiver)provider).setInvocationContext(context);
                 }
                 // Get the build
-                if (provider instanceof IDeviceBuildProvider) {
-                    info = ((IDeviceBuildProvider)provider).getBuild(device);
-                } else {
-                    info = provider.getBuild();
+                long fetchStart = InvocationPhaseTimer.start();
+                try {
+                    if (provider instanceof IDeviceBuildProvider) {
+                        info = ((IDeviceBuildProvider)provider).getBuild(device);
+                    } else {
+                        info = provider.getBuild();
+                    }
+                } finally {
+                    mPhaseTimer.record(InvocationPhaseTimer.FETCH_BUILD, fetchStart);
                 }
                 if (info != null) {
                     info.setDeviceSerial(device.getSerialNumber());
@@ -883,6 +949,12 @@ public class TestInvocation implements ITestInvocation {
                 if (config.getTests() == null || config.getTests().isEmpty()) {
                     CLog.e("No tests to run");
                 } else {
+                    if (config.getCommandOptions().shouldForwardResultsAsync()) {
+                        // drained when the invocation ends
+                        listener.setAsyncForwarding(
+                                config.getCommandOptions().getResultForwardingQueueSize(),
+                                config.getCommandOptions().getResultForwardingOverflowPolicy());
+                    }
                     performInvocation(config, context, rescheduler, listener);
                     setExitCode(ExitCode.NO_ERROR, null);
                 }
@@ -901,11 +973,20 @@ public class TestInvocation implements ITestInvocation {
                 reportLogs(device, listener, Stage.ERROR);
             }
             reportHostLog(listener, config.getLogOutput());
+            mPhaseTimer.reportToContext(context);
             listener.invocationEnded(0);
             return;
         } catch (IOException e) {
             CLog.e(e);
         } finally {
+            // no-op if already reported before the invocation ended
+            mPhaseTimer.reportToContext(context);
+            // no-op if already drained when the invocation ended
+            listener.drainAsyncForwarding();
+            if (mSamplingProfiler != null) {
+                // discard the profile if it was not logged
+                mSamplingProfiler.stopProfiling(Thread.currentThread().getThreadGroup(), null);
+            }
             // ensure we always deregister the logger
             for (String deviceName : context.getDeviceConfigNames()) {
                 if (!(context.getDevice(deviceName).getIDevice() instanceof StubDevice)) {
@@ -920,6 +1001,13 @@ public class TestInvocation implements ITestInvocation {
         }
     }
 
+    /**
+     * Returns the {@link InvocationPhaseTimer} recording the phases of the invocation.
+     */
+    public InvocationPhaseTimer getPhaseTimer() {
+        return mPhaseTimer;
+    }
+
     /**
      * Helper to set the exit code. Exposed for testing.
      */
@@ -59,6 +59,14 @@ public interface ILogRegistry extends ILogOutput {
      */
     public LogLevel getGlobalLogDisplayLevel();
 
+    /**
+     * Returns true if a message of the given level would be logged by the logger in effect for
+     * the current thread, so callers can avoid building messages that would be discarded.
+     *
+     * @param logLevel the {@link LogLevel} of the message
+     */
+    public boolean isLoggable(LogLevel logLevel);
+
     /**
      * Registers the logger as the instance to use for the current thread.
      */
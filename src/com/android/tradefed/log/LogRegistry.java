@@ -181,6 +181,14 @@ public class LogRegistry implements ILogRegistry {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isLoggable(LogLevel logLevel) {
+        return logLevel.getPriority() >= getLogger().getLogLevel().getPriority();
+    }
+
     /**
      * {@inheritDoc}
      */
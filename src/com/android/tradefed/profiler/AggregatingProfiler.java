@@ -23,6 +23,8 @@ import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.profiler.recorder.IMetricsRecorder;
+import com.android.tradefed.profiler.recorder.MetricAccumulator;
+import com.android.tradefed.profiler.recorder.MetricType;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.LogDataType;
 
@@ -31,11 +33,17 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * An {@link ITestProfiler} which handles aggregating metrics across multiple devices and test runs.
  * This class should be used as a base class for any profiler which sends different metrics for
  * {@link #getAggregateMetrics}.
+ * <p>
+ * Metrics with a {@link MetricType} are aggregated with {@link MetricAccumulator}s, so that the
+ * aggregates of several profilers, for example of different shards, can be combined with
+ * {@link #mergeAggregateMetrics(AggregatingProfiler)} regardless of the order. Other metrics are
+ * aggregated with the merge function of their recorder.
  */
 public class AggregatingProfiler implements IAggregatingTestProfiler {
 
@@ -53,11 +61,13 @@ public class AggregatingProfiler implements IAggregatingTestProfiler {
     private List<IMetricsRecorder> mRecorders;
     private MetricOutputData mOutputUtil;
     private Map<String, Double> mAggregateMetrics;
+    private Map<String, MetricAccumulator> mAggregateAccumulators;
 
     public AggregatingProfiler() {
         // some data needs to be accessible before setUp is invoked
         mRecorders = new ArrayList<>();
         mAggregateMetrics = new HashMap<String, Double>();
+        mAggregateAccumulators = new ConcurrentHashMap<>();
         mOutputUtil = new MetricOutputData();
     }
 
@@ -93,11 +103,19 @@ public class AggregatingProfiler implements IAggregatingTestProfiler {
     @Override
     public Map<String, Double> stopRecordingMetrics(TestIdentifier test) throws DeviceNotAvailableException {
         Map<String, Double> allMetrics = new HashMap<>();
+        Map<String, MetricAccumulator> testAccumulators = new HashMap<>();
         for (ITestDevice device : getDevices()) {
             for (IMetricsRecorder recorder : getRecorders()) {
                 Map<String, Double> metrics = recorder.stopMetrics(device);
                 for (Map.Entry<String, Double> entry : metrics.entrySet()) {
                     String key = entry.getKey();
+                    MetricType type = recorder.getMetricType(key);
+                    if (type != null) {
+                        // accumulate metrics across devices, and across tests for the aggregate
+                        getAccumulator(testAccumulators, key, type).add(entry.getValue());
+                        getAccumulator(mAggregateAccumulators, key, type).add(entry.getValue());
+                        continue;
+                    }
                     // merge metrics into the aggregate map unmodified
                     mAggregateMetrics.merge(key, entry.getValue(), recorder.getMergeFunction(key));
                     // this map aggregates metrics just across devices
@@ -106,10 +124,55 @@ public class AggregatingProfiler implements IAggregatingTestProfiler {
                 }
             }
         }
+        for (Map.Entry<String, MetricAccumulator> entry : testAccumulators.entrySet()) {
+            allMetrics.put(entry.getKey(), entry.getValue().getValue());
+            updateAggregateMetric(entry.getKey());
+        }
         getMetricOutputUtil().addMetrics("test", test, allMetrics);
         return allMetrics;
     }
 
+    /**
+     * Merge the metrics aggregated by another profiler, for example of another shard, into the
+     * aggregate metrics of this profiler. Only metrics with a {@link MetricType} are merged.
+     *
+     * @param other the {@link AggregatingProfiler} to merge metrics from, left unchanged.
+     */
+    public void mergeAggregateMetrics(AggregatingProfiler other) {
+        for (Map.Entry<String, MetricAccumulator> entry :
+                other.getAggregateAccumulators().entrySet()) {
+            MetricAccumulator accumulator = entry.getValue();
+            getAccumulator(mAggregateAccumulators, entry.getKey(), accumulator.getType())
+                    .merge(accumulator);
+            updateAggregateMetric(entry.getKey());
+        }
+    }
+
+    /**
+     * Returns the {@link MetricAccumulator}s of the aggregate metrics which have a
+     * {@link MetricType}. Each accumulator holds the value of the metric for each test and device.
+     */
+    public Map<String, MetricAccumulator> getAggregateAccumulators() {
+        return mAggregateAccumulators;
+    }
+
+    private void updateAggregateMetric(String key) {
+        Double value = mAggregateAccumulators.get(key).getValue();
+        if (value != null) {
+            mAggregateMetrics.put(key, value);
+        }
+    }
+
+    /**
+     * Get the accumulator of a metric, creating it if needed. Values are already aggregated over a
+     * test and a device, so they are accumulated according to {@link MetricType#getAggregateType}.
+     */
+    private static MetricAccumulator getAccumulator(Map<String, MetricAccumulator> accumulators,
+            String key, MetricType type) {
+        return accumulators.computeIfAbsent(key,
+                k -> new MetricAccumulator(type.getAggregateType()));
+    }
+
     /** {@inheritDoc} */
     @Override
     public void reportAllMetrics(ITestInvocationListener listener) {
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.profiler;
+
+import com.android.tradefed.log.ITestLogger;
+
+/**
+ * Profiles the host side of invocations by periodically sampling the stacks of their threads.
+ * <p/>
+ * Invocations run each in their own {@link ThreadGroup}, which is used to tell apart the threads
+ * of concurrent invocations, the same way {@link com.android.tradefed.log.LogRegistry} does.
+ */
+public interface ISamplingProfiler {
+
+    /**
+     * Start sampling the threads of an invocation.
+     *
+     * @param group the {@link ThreadGroup} of the invocation
+     */
+    public void startProfiling(ThreadGroup group);
+
+    /**
+     * Stop sampling the threads of an invocation, and log the profile.
+     *
+     * @param group the {@link ThreadGroup} of the invocation
+     * @param logger the {@link ITestLogger} to log the profile to, or null to discard it.
+     */
+    public void stopProfiling(ThreadGroup group, ITestLogger logger);
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.profiler;
+
+import com.android.tradefed.config.Option;
+import com.android.tradefed.config.OptionClass;
+import com.android.tradefed.log.ITestLogger;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link ISamplingProfiler} that samples the stacks of the invocation threads at a fixed
+ * interval, and logs them as folded stacks when the invocation ends, the format used by flame
+ * graph tools: one line per distinct stack, with its frames from the root separated by ';',
+ * followed by a space and the weight of the stack.
+ * <p/>
+ * Two profiles are logged:
+ * <ul>
+ * <li>a CPU profile, where the weight is the number of samples in which a thread was running the
+ * stack. Threads blocked in native code, e.g. reading a socket, are seen as running by the JVM,
+ * so this is an approximation.</li>
+ * <li>an allocation profile, where the weight is the number of bytes allocated by a thread between
+ * two samples, attributed to the stack of the later sample. Only logged if the JVM supports
+ * measuring thread allocations.</li>
+ * </ul>
+ * All the invocations are sampled by a single thread, only running while at least one invocation
+ * is profiled.
+ */
+@OptionClass(alias = "sampling-profiler")
+public class SamplingProfiler implements ISamplingProfiler {
+
+    static final String CPU_PROFILE_NAME = "host_cpu_profile";
+    static final String ALLOCATION_PROFILE_NAME = "host_allocation_profile";
+    /** The stack counting the samples of stacks over the maximum number of stacks */
+    static final String OTHER_STACKS = "[other]";
+
+    @Option(name = "sample-interval", description = "the time between samples.",
+            isTimeVal = true)
+    private long mSampleInterval = 100;
+
+    @Option(name = "max-stack-depth", description = "the maximum number of frames sampled per "
+            + "stack, starting from the top of the stack.")
+    private int mMaxStackDepth = 128;
+
+    @Option(name = "max-stacks", description = "the maximum number of distinct stacks kept per "
+            + "invocation. Samples of other stacks are counted as \"" + OTHER_STACKS + "\".")
+    private int mMaxStacks = 20000;
+
+    /** The group the sampling thread runs in, not to count it as a thread of an invocation */
+    private final ThreadGroup mThreadGroup;
+
+    private final Map<ThreadGroup, Profile> mProfiles = new HashMap<>();
+    private ScheduledExecutorService mSampler = null;
+
+    /** The samples of an invocation. */
+    static class Profile {
+        final Map<String, Long> mCpuSamples = new HashMap<>();
+        final Map<String, Long> mAllocatedBytes = new HashMap<>();
+        /** thread id -> bytes allocated by the thread as of the previous sample */
+        final Map<Long, Long> mLastAllocated = new HashMap<>();
+        long mSampleCount = 0;
+    }
+
+    public SamplingProfiler() {
+        mThreadGroup = Thread.currentThread().getThreadGroup();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void startProfiling(ThreadGroup group) {
+        mProfiles.put(group, new Profile());
+        if (mSampler == null && mSampleInterval > 0) {
+            mSampler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(mThreadGroup, r, "SamplingProfiler");
+                t.setDaemon(true);
+                return t;
+            });
+            mSampler.scheduleAtFixedRate(() -> sample(), mSampleInterval, mSampleInterval,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void stopProfiling(ThreadGroup group, ITestLogger logger) {
+        Profile profile;
+        synchronized (this) {
+            profile = mProfiles.remove(group);
+            if (mProfiles.isEmpty() && mSampler != null) {
+                mSampler.shutdownNow();
+                mSampler = null;
+            }
+        }
+        if (profile == null || logger == null) {
+            return;
+        }
+        CLog.d("Sampled the invocation threads %d times, %d distinct running stacks",
+                profile.mSampleCount, profile.mCpuSamples.size());
+        logProfile(logger, CPU_PROFILE_NAME, profile.mCpuSamples);
+        if (!profile.mAllocatedBytes.isEmpty()) {
+            logProfile(logger, ALLOCATION_PROFILE_NAME, profile.mAllocatedBytes);
+        }
+    }
+
+    /**
+     * Sample the threads of all the invocations profiled.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    synchronized void sample() {
+        if (mProfiles.isEmpty()) {
+            return;
+        }
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        for (Map.Entry<ThreadGroup, Profile> entry : mProfiles.entrySet()) {
+            Thread[] threads = getThreads(entry.getKey());
+            long[] ids = new long[threads.length];
+            for (int i = 0; i < threads.length; i++) {
+                ids[i] = threads[i].getId();
+            }
+            // a single safepoint for all the threads of the invocation
+            ThreadInfo[] infos = threadBean.getThreadInfo(ids, mMaxStackDepth);
+            long[] allocated = getAllocatedBytes(threadBean, ids);
+            Profile profile = entry.getValue();
+            profile.mSampleCount++;
+            for (int i = 0; i < ids.length; i++) {
+                if (infos[i] == null) {
+                    // thread died in the meantime
+                    continue;
+                }
+                String stack = foldStack(infos[i].getStackTrace());
+                if (stack.isEmpty()) {
+                    continue;
+                }
+                if (Thread.State.RUNNABLE.equals(infos[i].getThreadState())) {
+                    addSample(profile.mCpuSamples, stack, 1);
+                }
+                if (allocated != null && allocated[i] >= 0) {
+                    Long last = profile.mLastAllocated.put(ids[i], allocated[i]);
+                    if (last != null && allocated[i] > last) {
+                        addSample(profile.mAllocatedBytes, stack, allocated[i] - last);
+                    }
+                }
+            }
+        }
+    }
+
+    private void addSample(Map<String, Long> samples, String stack, long weight) {
+        if (!samples.containsKey(stack) && samples.size() >= mMaxStacks) {
+            stack = OTHER_STACKS;
+        }
+        Long total = samples.get(stack);
+        samples.put(stack, total == null ? weight : total + weight);
+    }
+
+    /** Returns the live threads of a group and its sub groups. */
+    private static Thread[] getThreads(ThreadGroup group) {
+        // leave room for threads started while enumerating
+        Thread[] threads = new Thread[group.activeCount() + 8];
+        int count = group.enumerate(threads, true);
+        return Arrays.copyOf(threads, count);
+    }
+
+    /** Returns the bytes allocated by each thread, or null if not supported by the JVM. */
+    private static long[] getAllocatedBytes(ThreadMXBean threadBean, long[] ids) {
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadBean;
+        if (!bean.isThreadAllocatedMemorySupported() || !bean.isThreadAllocatedMemoryEnabled()) {
+            return null;
+        }
+        return bean.getThreadAllocatedBytes(ids);
+    }
+
+    /**
+     * Fold a stack into a single line, from the root frame to the top frame.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    static String foldStack(StackTraceElement[] frames) {
+        StringBuilder stack = new StringBuilder();
+        for (int i = frames.length - 1; i >= 0; i--) {
+            if (stack.length() > 0) {
+                stack.append(';');
+            }
+            stack.append(frames[i].getClassName()).append('.').append(frames[i].getMethodName());
+        }
+        return stack.toString();
+    }
+
+    /**
+     * Format a profile as folded stacks, heaviest first.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    static String formatProfile(Map<String, Long> samples) {
+        List<Map.Entry<String, Long>> stacks = new ArrayList<>(samples.entrySet());
+        stacks.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        StringBuilder profile = new StringBuilder();
+        for (Map.Entry<String, Long> stack : stacks) {
+            profile.append(stack.getKey()).append(' ').append(stack.getValue()).append('\n');
+        }
+        return profile.toString();
+    }
+
+    private static void logProfile(ITestLogger logger, String name, Map<String, Long> samples) {
+        InputStreamSource source = new ByteArrayInputStreamSource(
+                formatProfile(samples).getBytes(StandardCharsets.UTF_8));
+        try {
+            logger.testLog(name, LogDataType.TEXT, source);
+        } finally {
+            source.cancel();
+        }
+    }
+}
@@ -68,6 +68,18 @@ public interface IMetricsRecorder {
      */
     public BiFunction<Double, Double, Double> getMergeFunction(String key);
 
+    /**
+     * Returns the {@link MetricType} of a metric. Profilers aggregate metrics which have a type
+     * with {@link MetricAccumulator}s, which can be merged concurrently and in any order, and
+     * only use {@link #getMergeFunction} for the others.
+     *
+     * @param key the name of the metric
+     * @return the {@link MetricType} of the metric, or {@code null} if it has none.
+     */
+    public default MetricType getMetricType(String key) {
+        return null;
+    }
+
     /**
      * Returns a name for this {@link IMetricsRecorder}.
      *
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.profiler.recorder;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accumulates the values of a metric into primitive cells: count, count of non-zero values, sum,
+ * min, max and a histogram with power of two buckets.
+ * <p/>
+ * Values can be added concurrently without locking, and accumulators can be merged in any order
+ * with {@link #merge(MetricAccumulator)}, for example to combine metrics from several devices or
+ * shards. The value of the metric is derived from the cells according to its {@link MetricType},
+ * so unlike running merge functions, it does not depend on the order values were added in.
+ */
+public class MetricAccumulator {
+
+    /** Number of buckets of the histogram. */
+    public static final int HISTOGRAM_BUCKETS = 64;
+
+    private final MetricType mType;
+    private final LongAdder mCount = new LongAdder();
+    private final LongAdder mNonZeroCount = new LongAdder();
+    private final DoubleAdder mSum = new DoubleAdder();
+    private final DoubleAccumulator mMin =
+            new DoubleAccumulator(Math::min, Double.POSITIVE_INFINITY);
+    private final DoubleAccumulator mMax =
+            new DoubleAccumulator(Math::max, Double.NEGATIVE_INFINITY);
+    private final AtomicLongArray mHistogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+    /**
+     * Creates a {@link MetricAccumulator}.
+     *
+     * @param type the {@link MetricType} that defines the value of the metric
+     */
+    public MetricAccumulator(MetricType type) {
+        mType = type;
+    }
+
+    /**
+     * Add a value of the metric.
+     */
+    public void add(double value) {
+        mCount.increment();
+        if (value != 0) {
+            mNonZeroCount.increment();
+        }
+        mSum.add(value);
+        mMin.accumulate(value);
+        mMax.accumulate(value);
+        mHistogram.incrementAndGet(getBucket(value));
+    }
+
+    /**
+     * Add all the values accumulated by another {@link MetricAccumulator}.
+     */
+    public void merge(MetricAccumulator other) {
+        long count = other.mCount.sum();
+        if (count == 0) {
+            return;
+        }
+        mCount.add(count);
+        mNonZeroCount.add(other.mNonZeroCount.sum());
+        mSum.add(other.mSum.sum());
+        mMin.accumulate(other.mMin.get());
+        mMax.accumulate(other.mMax.get());
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            long bucketCount = other.mHistogram.get(i);
+            if (bucketCount != 0) {
+                mHistogram.addAndGet(i, bucketCount);
+            }
+        }
+    }
+
+    /** Returns the {@link MetricType} of the metric. */
+    public MetricType getType() {
+        return mType;
+    }
+
+    /**
+     * Returns the value of the metric according to its {@link MetricType}: the number of values
+     * for {@link MetricType#COUNT}, the number of non-zero values for {@link MetricType#COUNTPOS},
+     * the sum of the values for {@link MetricType#SUM} and their average otherwise.
+     *
+     * @return the value, or {@code null} if no value was added
+     */
+    public Double getValue() {
+        if (getCount() == 0) {
+            return null;
+        }
+        switch (mType) {
+            case COUNT:
+                return (double) getCount();
+            case COUNTPOS:
+                return (double) mNonZeroCount.sum();
+            case SUM:
+                return getSum();
+            case AVG:
+            case AVGTIME:
+                return getAverage();
+            default:
+                throw new IllegalArgumentException("unknown metric type " + mType);
+        }
+    }
+
+    /** Returns the number of values added. */
+    public long getCount() {
+        return mCount.sum();
+    }
+
+    /** Returns the sum of the values added. */
+    public double getSum() {
+        return mSum.sum();
+    }
+
+    /** Returns the average of the values added, or {@code null} if none was. */
+    public Double getAverage() {
+        long count = getCount();
+        return count == 0 ? null : getSum() / count;
+    }
+
+    /** Returns the smallest value added, or {@code null} if none was. */
+    public Double getMin() {
+        return getCount() == 0 ? null : mMin.get();
+    }
+
+    /** Returns the largest value added, or {@code null} if none was. */
+    public Double getMax() {
+        return getCount() == 0 ? null : mMax.get();
+    }
+
+    /**
+     * Returns the histogram of the values added. Bucket 0 counts values lower than 1, and bucket
+     * {@code i} counts values from 2^(i-1) included to 2^i excluded, the last bucket also counting
+     * all larger values.
+     */
+    public long[] getHistogram() {
+        long[] histogram = new long[HISTOGRAM_BUCKETS];
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            histogram[i] = mHistogram.get(i);
+        }
+        return histogram;
+    }
+
+    /** Returns the histogram bucket of a value. */
+    static int getBucket(double value) {
+        if (!(value >= 1)) {
+            return 0;
+        }
+        return Math.min(HISTOGRAM_BUCKETS - 1, Math.getExponent(value) + 1);
+    }
+}
@@ -24,5 +24,20 @@ public enum MetricType {
     SUM,
     COUNTPOS,
     AVG,
-    AVGTIME
+    AVGTIME;
+
+    /**
+     * Returns how values of this type, each already aggregated over a single test on a single
+     * device, are aggregated over several tests or devices: counts and sums are added up, and
+     * averages are averaged.
+     */
+    public MetricType getAggregateType() {
+        switch (this) {
+            case AVG:
+            case AVGTIME:
+                return AVG;
+            default:
+                return SUM;
+        }
+    }
 }
@@ -16,12 +16,19 @@
 
 package com.android.tradefed.profiler.recorder;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiFunction;
 
 /**
  * A {@link IMetricsRecorder} that aggregates metrics using some basic numeric functions. This class
  * doesn't implement any methods of the {@link IMetricsRecorder} interface, it just provides
  * (possibly stateful) numeric functions to its subclasses.
+ * <p>
+ * Subclasses should prefer recording values into {@link MetricAccumulator}s with
+ * {@link #record(Map, String, MetricType, double)}, which does not allocate per value and does not
+ * depend on shared state, over the merge functions.
  */
 public abstract class NumericMetricsRecorder implements IMetricsRecorder {
 
@@ -56,10 +63,61 @@ public abstract class NumericMetricsRecorder implements IMetricsRecorder {
 
     /**
      * Provides an aggregator function which average values.
+     * <p>
+     * The count of values is shared by all the functions returned, so averages are only correct
+     * for a single metric merged from a single thread.
      *
      * @return an average function
+     * @deprecated record values into a {@link MetricAccumulator} of type {@link MetricType#AVG}
+     *     instead.
      */
+    @Deprecated
     protected BiFunction<Double, Double, Double> avg() {
         return (prevAvg, newVal) -> prevAvg + ((newVal - prevAvg) / ++mRunningCount);
     }
+
+    /**
+     * Record a value of a metric into its {@link MetricAccumulator}, creating it if needed.
+     *
+     * @param accumulators the {@link MetricAccumulator}s by metric name, may be concurrent.
+     * @param key the name of the metric
+     * @param type the {@link MetricType} of the metric
+     * @param value the value to record
+     */
+    protected static void record(Map<String, MetricAccumulator> accumulators, String key,
+            MetricType type, double value) {
+        MetricAccumulator accumulator = accumulators.get(key);
+        if (accumulator == null) {
+            accumulator = new MetricAccumulator(type);
+            MetricAccumulator previous = accumulators.putIfAbsent(key, accumulator);
+            if (previous != null) {
+                accumulator = previous;
+            }
+        }
+        accumulator.add(value);
+    }
+
+    /**
+     * Creates a concurrent map to hold {@link MetricAccumulator}s by metric name.
+     */
+    protected static Map<String, MetricAccumulator> createAccumulators() {
+        return new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Converts {@link MetricAccumulator}s to the value of each metric.
+     *
+     * @param accumulators the {@link MetricAccumulator}s by metric name
+     * @return a {@link Map} of metric name to value, skipping metrics without values.
+     */
+    protected static Map<String, Double> getValues(Map<String, MetricAccumulator> accumulators) {
+        Map<String, Double> metrics = new HashMap<>();
+        for (Map.Entry<String, MetricAccumulator> entry : accumulators.entrySet()) {
+            Double value = entry.getValue().getValue();
+            if (value != null) {
+                metrics.put(entry.getKey(), value);
+            }
+        }
+        return metrics;
+    }
 }
@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.profiler.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Aggregates {@link TraceMetric}s from an ftrace text file, such as /d/tracing/trace or the output
+ * of atrace, in a single streaming pass.
+ * <p/>
+ * The file is read through memory mapped windows, and lines are scanned in place: function names
+ * are matched against the configured metrics with an automaton built once, and only the parameter
+ * of the matched metric is parsed. No object is created per line, unlike {@link TraceParser},
+ * which makes it suitable for traces of hundreds of MB.
+ * <p/>
+ * Values are aggregated the same way {@link TraceMetricsRecorder} always did: a line of a
+ * {@link MetricType#AVGTIME} metric marks a start time, and the next matched line records the
+ * time elapsed since; other lines record the value of the parameter of their metric.
+ * <p/>
+ * Lines which are not in the ftrace format are ignored. Not thread safe.
+ */
+public class TraceMetricsProcessor {
+
+    /** Maximum size of the file mapped in memory at once. */
+    static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private static final int ALPHABET_SIZE = 128;
+
+    private final int mWindowSize;
+    private final TraceMetric[] mMetrics;
+    private final String[] mKeys;
+    /** "param=" of each metric, in bytes */
+    private final byte[][] mParamPrefixes;
+    /** Transitions of the automaton matching function names, by state and character */
+    private int[][] mTransitions;
+    /** Index of the metric accepted in each state of the automaton, or -1 */
+    private int[] mAccepted;
+    private int mStateCount = 0;
+
+    // state of the pass in progress
+    private MetricAccumulator[] mAccumulators;
+    private double mStartTimestamp = Double.NaN;
+    private long mParamValue = 0;
+
+    /**
+     * Creates a {@link TraceMetricsProcessor}.
+     *
+     * @param metrics the {@link TraceMetric}s to aggregate. If several metrics have the same
+     *     function name, only the last one is aggregated.
+     */
+    public TraceMetricsProcessor(Collection<TraceMetric> metrics) {
+        this(metrics, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Exposed for unit testing.
+     */
+    TraceMetricsProcessor(Collection<TraceMetric> metrics, int windowSize) {
+        mWindowSize = windowSize;
+        mMetrics = metrics.toArray(new TraceMetric[metrics.size()]);
+        mKeys = new String[mMetrics.length];
+        mParamPrefixes = new byte[mMetrics.length][];
+        mTransitions = new int[1][];
+        mAccepted = new int[1];
+        newState();
+        for (int i = 0; i < mMetrics.length; i++) {
+            mKeys[i] = mMetrics[i].toString();
+            mParamPrefixes[i] = (mMetrics[i].getParam() + "=").getBytes(StandardCharsets.UTF_8);
+            addFunctionName(mMetrics[i].getFuncName(), i);
+        }
+    }
+
+    private int newState() {
+        if (mStateCount == mTransitions.length) {
+            mTransitions = Arrays.copyOf(mTransitions, mStateCount * 2);
+            mAccepted = Arrays.copyOf(mAccepted, mStateCount * 2);
+        }
+        int[] transitions = new int[ALPHABET_SIZE];
+        Arrays.fill(transitions, -1);
+        mTransitions[mStateCount] = transitions;
+        mAccepted[mStateCount] = -1;
+        return mStateCount++;
+    }
+
+    private void addFunctionName(String name, int metric) {
+        int state = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= ALPHABET_SIZE) {
+                throw new IllegalArgumentException("Invalid function name " + name);
+            }
+            if (mTransitions[state][c] < 0) {
+                int next = newState();
+                mTransitions[state][c] = next;
+            }
+            state = mTransitions[state][c];
+        }
+        mAccepted[state] = metric;
+    }
+
+    /**
+     * Aggregate the metrics of a trace file.
+     *
+     * @param trace the trace {@link File}
+     * @return a {@link Map} of the string representation of each {@link TraceMetric} to its
+     *     {@link MetricAccumulator}, only for metrics found in the trace.
+     * @throws IOException if the file cannot be read
+     */
+    public Map<String, MetricAccumulator> process(File trace) throws IOException {
+        startPass();
+        try (RandomAccessFile file = new RandomAccessFile(trace, "r");
+                FileChannel channel = file.getChannel()) {
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                long length = Math.min(mWindowSize, size - position);
+                ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                boolean last = position + length == size;
+                int consumed = processLines(window, 0, (int) length, last);
+                if (consumed == 0) {
+                    // a single line longer than the window, skip it
+                    position = skipLine(channel, position + length);
+                } else {
+                    position += consumed;
+                }
+            }
+        }
+        return endPass();
+    }
+
+    /**
+     * Aggregate the metrics of a trace held in a buffer, from its position to its limit.
+     *
+     * @see #process(File)
+     */
+    public Map<String, MetricAccumulator> process(ByteBuffer trace) {
+        startPass();
+        processLines(trace, trace.position(), trace.limit(), true);
+        return endPass();
+    }
+
+    private void startPass() {
+        mAccumulators = new MetricAccumulator[mMetrics.length];
+        mStartTimestamp = Double.NaN;
+    }
+
+    private Map<String, MetricAccumulator> endPass() {
+        Map<String, MetricAccumulator> metrics = new HashMap<>();
+        for (int i = 0; i < mMetrics.length; i++) {
+            if (mAccumulators[i] != null) {
+                metrics.put(mKeys[i], mAccumulators[i]);
+            }
+        }
+        mAccumulators = null;
+        return metrics;
+    }
+
+    /**
+     * Returns the position after the first new line at or after the given position, or the size
+     * of the channel.
+     */
+    private long skipLine(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+        long size = channel.size();
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    /**
+     * Process the lines of a buffer between two positions.
+     *
+     * @param last whether the end of the buffer is the end of the trace, in which case a last
+     *     unterminated line is processed too
+     * @return the number of bytes of the lines processed, from <var>start</var>.
+     */
+    private int processLines(ByteBuffer buffer, int start, int end, boolean last) {
+        int lineStart = start;
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) == '\n') {
+                processLine(buffer, lineStart, i);
+                lineStart = i + 1;
+            }
+        }
+        if (last && lineStart < end) {
+            processLine(buffer, lineStart, end);
+            lineStart = end;
+        }
+        return lineStart - start;
+    }
+
+    /**
+     * Process a line in the ftrace format, eg:
+     * "  mmcqd/0-260   [000] d..2 87062.293003: mmc_cmd_rw_start: cmd=1,arg=0x40000080"
+     * where the flags column is optional.
+     */
+    private void processLine(ByteBuffer buffer, int start, int end) {
+        if (end > start && buffer.get(end - 1) == '\r') {
+            end--;
+        }
+        int i = skipSpaces(buffer, start, end);
+        if (i == end || buffer.get(i) == '#') {
+            return;
+        }
+        // skip the task and cpu number
+        while (i < end && buffer.get(i) != ']') {
+            i++;
+        }
+        i = skipSpaces(buffer, i + 1, end);
+        int tokenEnd = skipToken(buffer, i, end);
+        if (tokenEnd == i) {
+            return;
+        }
+        if (buffer.get(tokenEnd - 1) != ':') {
+            // flags column
+            i = skipSpaces(buffer, tokenEnd, end);
+            tokenEnd = skipToken(buffer, i, end);
+            if (tokenEnd == i || buffer.get(tokenEnd - 1) != ':') {
+                return;
+            }
+        }
+        double timestamp = parseTimestamp(buffer, i, tokenEnd - 1);
+        if (Double.isNaN(timestamp)) {
+            return;
+        }
+        // match the function name
+        i = skipSpaces(buffer, tokenEnd, end);
+        int state = 0;
+        while (i < end) {
+            byte b = buffer.get(i);
+            if (b == ':') {
+                break;
+            }
+            if (b < 0 || (state = mTransitions[state][b]) < 0) {
+                return;
+            }
+            i++;
+        }
+        if (i == end || mAccepted[state] < 0) {
+            return;
+        }
+        int metric = mAccepted[state];
+        if (mMetrics[metric].getMetricType() == MetricType.AVGTIME) {
+            mStartTimestamp = timestamp;
+        } else if (!Double.isNaN(mStartTimestamp)) {
+            record(metric, timestamp - mStartTimestamp);
+            mStartTimestamp = Double.NaN;
+        } else if (findParam(buffer, i + 1, end, mParamPrefixes[metric])) {
+            record(metric, mParamValue);
+        }
+    }
+
+    private void record(int metric, double value) {
+        if (mAccumulators[metric] == null) {
+            mAccumulators[metric] = new MetricAccumulator(mMetrics[metric].getMetricType());
+        }
+        mAccumulators[metric].add(value);
+    }
+
+    /**
+     * Find a parameter in a "name=value,name=value" or "name=value name=value" list and parse its
+     * value, in decimal or in hexadecimal with a "0x" prefix, into {@link #mParamValue}.
+     *
+     * @return true if the parameter was found and parsed.
+     */
+    private boolean findParam(ByteBuffer buffer, int start, int end, byte[] prefix) {
+        int i = skipSpaces(buffer, start, end);
+        while (i < end) {
+            if (regionMatches(buffer, i, end, prefix)) {
+                return parseValue(buffer, i + prefix.length, end);
+            }
+            // next parameter
+            while (i < end && buffer.get(i) != ',' && buffer.get(i) != ' ') {
+                i++;
+            }
+            while (i < end && (buffer.get(i) == ',' || buffer.get(i) == ' ')) {
+                i++;
+            }
+        }
+        return false;
+    }
+
+    private boolean parseValue(ByteBuffer buffer, int start, int end) {
+        int i = start;
+        int radix = 10;
+        boolean negative = false;
+        if (i + 1 < end && buffer.get(i) == '0' && buffer.get(i + 1) == 'x') {
+            radix = 16;
+            i += 2;
+        } else if (i < end && buffer.get(i) == '-') {
+            negative = true;
+            i++;
+        }
+        long value = 0;
+        int digits = 0;
+        for (; i < end; i++) {
+            int digit = Character.digit(buffer.get(i), radix);
+            if (digit < 0) {
+                break;
+            }
+            value = value * radix + digit;
+            digits++;
+        }
+        if (digits == 0 || (i < end && buffer.get(i) != ',' && buffer.get(i) != ' ')) {
+            return false;
+        }
+        mParamValue = negative ? -value : value;
+        return true;
+    }
+
+    /** Parse a "seconds.micros" timestamp, or returns NaN if it is not one. */
+    private static double parseTimestamp(ByteBuffer buffer, int start, int end) {
+        long integer = 0;
+        long fraction = 0;
+        long scale = 1;
+        boolean inFraction = false;
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b == '.' && !inFraction) {
+                inFraction = true;
+            } else if (b >= '0' && b <= '9') {
+                if (inFraction) {
+                    fraction = fraction * 10 + (b - '0');
+                    scale *= 10;
+                } else {
+                    integer = integer * 10 + (b - '0');
+                }
+            } else {
+                return Double.NaN;
+            }
+        }
+        if (!inFraction || scale == 1) {
+            return Double.NaN;
+        }
+        return integer + (double) fraction / scale;
+    }
+
+    private static boolean regionMatches(ByteBuffer buffer, int start, int end, byte[] bytes) {
+        if (end - start < bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (buffer.get(start + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipSpaces(ByteBuffer buffer, int start, int end) {
+        int i = start;
+        while (i < end && (buffer.get(i) == ' ' || buffer.get(i) == '\t')) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int skipToken(ByteBuffer buffer, int start, int end) {
+        int i = start;
+        while (i < end && buffer.get(i) != ' ' && buffer.get(i) != '\t') {
+            i++;
+        }
+        return i;
+    }
+}
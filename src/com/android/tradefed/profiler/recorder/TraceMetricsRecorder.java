@@ -19,12 +19,9 @@ package com.android.tradefed.profiler.recorder;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.log.LogUtil.CLog;
-import com.android.tradefed.util.StreamUtil;
+import com.android.tradefed.util.FileUtil;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.HashMap;
@@ -36,6 +33,8 @@ import java.util.function.BiFunction;
  *
  * Metrics to be recorded need to be provided as TraceMetrics. The default descriptor
  * has the format prefix:funcname:param[=expectedval]:metrictype.
+ *
+ * The pulled trace is aggregated in a single streaming pass by a {@link TraceMetricsProcessor}.
  */
 public class TraceMetricsRecorder extends NumericMetricsRecorder {
 
@@ -44,14 +43,14 @@ public class TraceMetricsRecorder extends NumericMetricsRecorder {
 
     private Map<String, TraceMetric> mTraceMetrics;
     private Map<TraceMetric, BiFunction<Double, Double, Double>> mMergeFunctions;
-    private TraceParser mParser;
+    private TraceMetricsProcessor mProcessor;
 
     @Override
     public void setUp(ITestDevice device, Collection<String> descriptors)
             throws DeviceNotAvailableException {
         mMergeFunctions = new HashMap<>();
         mTraceMetrics = new HashMap<>();
-        mParser = new TraceParser();
+        mProcessor = null;
         for (String descriptor : descriptors) {
             TraceMetric metric = TraceMetric.parse(descriptor);
             enableSingleEventTrace(device, metric.getPrefix() + "/" + metric.getFuncName());
@@ -68,57 +67,21 @@ public class TraceMetricsRecorder extends NumericMetricsRecorder {
     @Override
     public Map<String, Double> stopMetrics(ITestDevice device) throws DeviceNotAvailableException {
         disableTracing(device);
-        Map<String, Double> metrics = new HashMap<>();
         File fullTrace = device.pullFile(TRACE_DIR + "/trace");
         if (fullTrace == null) {
             throw new AssertionError("Failed to pull trace file");
         }
-        BufferedReader trace = null;
+        Map<String, MetricAccumulator> metrics;
         try {
-            trace = getReaderFromFile(fullTrace);
-            String line;
-            Double lastTimestamp = null;
-            while ((line = trace.readLine()) != null) {
-                if (line.startsWith("#")) {
-                    continue;
-                }
-                line = line.trim();
-                CLog.v("Got trace line %s", line);
-                TraceLine descriptor = mParser.parseTraceLine(line);
-                TraceMetric matchedMetric = mTraceMetrics.get(descriptor.getFunctionName());
-                // There's no template for handling this metric, so ignore it.
-                if (matchedMetric == null) {
-                    continue;
-                }
-                if (matchedMetric.getMetricType() == MetricType.AVGTIME) {
-                    lastTimestamp = descriptor.getTimestamp();
-                    continue;
-                } else if (lastTimestamp != null) {
-                    double timeDiff = descriptor.getTimestamp() - lastTimestamp;
-                    lastTimestamp = null;
-                    metrics.merge(
-                            matchedMetric.toString(), timeDiff, mMergeFunctions.get(matchedMetric));
-                } else {
-                    Long baseParamValue =
-                            descriptor.getFunctionParams().get(matchedMetric.getParam());
-                    if (baseParamValue == null) {
-                        continue;
-                    }
-                    metrics.merge(
-                            matchedMetric.toString(), Double.valueOf(baseParamValue),
-                            mMergeFunctions.get(matchedMetric));
-                }
-            }
-        } catch (FileNotFoundException e) {
-            throw new RuntimeException(e);
+            metrics = getProcessor().process(fullTrace);
         } catch (IOException e) {
             throw new RuntimeException(e);
         } finally {
-            StreamUtil.close(trace);
+            FileUtil.deleteFile(fullTrace);
         }
         // Clear out the trace
         device.executeShellCommand("echo > " + TRACE_DIR + "/trace");
-        return metrics;
+        return getValues(metrics);
     }
 
     @Override
@@ -127,6 +90,14 @@ public class TraceMetricsRecorder extends NumericMetricsRecorder {
         return mMergeFunctions.get(TraceMetric.parse(key));
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public MetricType getMetricType(String key) {
+        return TraceMetric.parse(key).getMetricType();
+    }
+
     @Override
     public String getName() {
         return "TraceMetricsRecorder";
@@ -158,7 +129,13 @@ public class TraceMetricsRecorder extends NumericMetricsRecorder {
         }
     }
 
-    protected BufferedReader getReaderFromFile(File trace) throws FileNotFoundException {
-        return new BufferedReader(new FileReader(trace));
+    /**
+     * Returns the {@link TraceMetricsProcessor} aggregating the configured metrics.
+     */
+    protected TraceMetricsProcessor getProcessor() {
+        if (mProcessor == null) {
+            mProcessor = new TraceMetricsProcessor(mTraceMetrics.values());
+        }
+        return mProcessor;
     }
 }
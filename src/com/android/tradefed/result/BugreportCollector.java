@@ -194,8 +194,8 @@ public class BugreportCollector implements ITestInvocationListener {
     private ITestInvocationListener mListener;
     private ITestDevice mTestDevice;
     private List<Predicate> mPredicates = new LinkedList<Predicate>();
-    @SuppressWarnings("unused")
-    private boolean mAsynchronous = false;
+    /** captures the bugreports in the background when asynchronous, null otherwise */
+    private DeviceArtifactCollector mArtifactCollector = null;
     @SuppressWarnings("unused")
     private boolean mCapturedBugreport = false;
 
@@ -240,18 +240,28 @@ public class BugreportCollector implements ITestInvocationListener {
      * collecting a bugreport, return immediately
      */
     public void blockUntilIdle() {
-        // FIXME
-        return;
+        if (mArtifactCollector != null) {
+            mArtifactCollector.flush();
+        }
     }
 
     /**
      * Set whether bugreport collection should collect the bugreport in a different thread
      * ({@code asynchronous = true}), or block the caller until the bugreport is captured
      * ({@code asynchronous = false}).
+     * <p/>
+     * Bugreports collected asynchronously are passed to the child listener as the next events are
+     * received, or by {@link #blockUntilIdle()}. Bugreports requested within
+     * {@link DeviceArtifactCollector#DEFAULT_BUGREPORT_COALESCE_WINDOW_MS} of the previous one
+     * are skipped.
      */
     public void setAsynchronous(boolean asynchronous) {
-        // FIXME do something
-        mAsynchronous = asynchronous;
+        if (asynchronous && mArtifactCollector == null) {
+            mArtifactCollector = new DeviceArtifactCollector(mTestDevice, mListener);
+        } else if (!asynchronous && mArtifactCollector != null) {
+            mArtifactCollector.close();
+            mArtifactCollector = null;
+        }
     }
 
     /**
@@ -273,6 +283,23 @@ public class BugreportCollector implements ITestInvocationListener {
         }
         String logName = String.format("bug-%s.%d", logDesc, System.currentTimeMillis());
         CLog.v("Log name is %s", logName);
+        if (mArtifactCollector != null) {
+            mArtifactCollector.request(DeviceArtifactCollector.ArtifactType.BUGREPORT, logName,
+                    LogDataType.BUGREPORT, () -> captureBugreport());
+            return;
+        }
+        InputStreamSource bugreport = captureBugreport();
+        try {
+            mListener.testLog(logName, LogDataType.BUGREPORT, bugreport);
+        } finally {
+            bugreport.cancel();
+        }
+    }
+
+    /**
+     * Wait for the device to be online, and capture a bugreport.
+     */
+    private InputStreamSource captureBugreport() {
         if (mDeviceWaitTimeSecs >= 0) {
             try {
                 mTestDevice.waitForDeviceOnline((long)mDeviceWaitTimeSecs * 1000);
@@ -285,12 +312,7 @@ public class BugreportCollector implements ITestInvocationListener {
                 CLog.e(e);
             }
         }
-        InputStreamSource bugreport = mTestDevice.getBugreport();
-        try {
-            mListener.testLog(logName, LogDataType.BUGREPORT, bugreport);
-        } finally {
-            bugreport.cancel();
-        }
+        return mTestDevice.getBugreport();
     }
 
     Predicate getPredicate(Predicate predicate) {
@@ -319,6 +341,10 @@ public class BugreportCollector implements ITestInvocationListener {
     }
 
     boolean check(Relation relation, Noun noun, TestIdentifier test) {
+        if (mArtifactCollector != null) {
+            // pass along the bugreports collected so far
+            mArtifactCollector.logCompleted();
+        }
         // Expect to get something like "AFTER", "TESTCASE"
 
         // All freqs that could match _right now_.  Should be added in decreasing order of
@@ -547,6 +573,9 @@ public class BugreportCollector implements ITestInvocationListener {
         mListener.invocationEnded(elapsedTime);
         mCollector.invocationEnded(elapsedTime);
         check(Relation.AFTER, Noun.INVOCATION);
+        if (mArtifactCollector != null) {
+            mArtifactCollector.close();
+        }
     }
 
     /**
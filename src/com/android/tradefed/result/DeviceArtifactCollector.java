@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.ITestLogger;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Captures artifacts of a device, such as bugreports, screenshots and logcat, in the background
+ * and logs them to a {@link ITestLogger}.
+ * <p/>
+ * Each {@link ArtifactType} is captured by its own thread: the device only takes one bugreport at
+ * a time, but the logcat can be read from the host buffer and a screenshot taken meanwhile.
+ * Requests for a {@link ArtifactType} made within its coalescing window of the previous one are
+ * dropped, so that many failures in a row only result in one bugreport.
+ * <p/>
+ * Captured artifacts are not logged from the capture threads, since {@link ITestLogger}s are not
+ * expected to be thread-safe. They are logged, in the order they were requested, by the thread
+ * calling {@link #logCompleted()} or {@link #flush()}. If that thread is interrupted, or the
+ * collector is closed, the captures not logged yet are cancelled and their data deleted.
+ */
+public class DeviceArtifactCollector {
+
+    /** The default coalescing window for bugreports. */
+    public static final long DEFAULT_BUGREPORT_COALESCE_WINDOW_MS = 60 * 1000;
+
+    /** The kinds of artifacts, each of them captured by its own thread. */
+    public enum ArtifactType {
+        BUGREPORT,
+        SCREENSHOT,
+        LOGCAT,
+    }
+
+    private final ITestDevice mDevice;
+    private final ITestLogger mLogger;
+
+    private final Map<ArtifactType, ExecutorService> mExecutors =
+            new EnumMap<>(ArtifactType.class);
+    private final Map<ArtifactType, Long> mCoalesceWindowMs = new EnumMap<>(ArtifactType.class);
+    private final Map<ArtifactType, Long> mLastRequestTime = new EnumMap<>(ArtifactType.class);
+    /** captures not logged yet, in the order they were requested */
+    private final List<Capture> mCaptures = new LinkedList<>();
+    private int mCoalescedCount = 0;
+
+    /** An artifact being captured. */
+    private static class Capture {
+        private final String mDataName;
+        private final LogDataType mDataType;
+        private Future<InputStreamSource> mFuture = null;
+        /** set once cancelled, guarded by this */
+        private boolean mCancelled = false;
+
+        Capture(String dataName, LogDataType dataType) {
+            mDataName = dataName;
+            mDataType = dataType;
+        }
+
+        /**
+         * Run the capture on its thread, deleting its data if it was cancelled meanwhile.
+         */
+        InputStreamSource run(Callable<InputStreamSource> capture) throws Exception {
+            InputStreamSource source = capture.call();
+            synchronized (this) {
+                if (!mCancelled) {
+                    return source;
+                }
+            }
+            if (source != null) {
+                source.cancel();
+            }
+            return null;
+        }
+
+        /**
+         * Cancel the capture, and delete its data if it already completed.
+         */
+        void cancel() {
+            synchronized (this) {
+                mCancelled = true;
+            }
+            if (mFuture.cancel(true) || !mFuture.isDone()) {
+                return;
+            }
+            try {
+                InputStreamSource source = mFuture.get();
+                if (source != null) {
+                    source.cancel();
+                }
+            } catch (ExecutionException | InterruptedException e) {
+                // nothing to delete
+            }
+        }
+    }
+
+    /**
+     * Creates a {@link DeviceArtifactCollector}, coalescing bugreports requested within
+     * {@link #DEFAULT_BUGREPORT_COALESCE_WINDOW_MS}.
+     *
+     * @param device the {@link ITestDevice} to capture artifacts from
+     * @param logger the {@link ITestLogger} to log the artifacts to
+     */
+    public DeviceArtifactCollector(ITestDevice device, ITestLogger logger) {
+        mDevice = device;
+        mLogger = logger;
+        mCoalesceWindowMs.put(ArtifactType.BUGREPORT, DEFAULT_BUGREPORT_COALESCE_WINDOW_MS);
+    }
+
+    /**
+     * Set the time during which requests for a {@link ArtifactType} are dropped after a request
+     * for it was accepted. 0 to capture all the requests.
+     */
+    public synchronized void setCoalesceWindow(ArtifactType type, long windowMs) {
+        mCoalesceWindowMs.put(type, windowMs);
+    }
+
+    /**
+     * Request a bugreport of the device.
+     *
+     * @param dataName the name to log the bugreport with
+     * @return false if the request was coalesced with a previous one
+     */
+    public boolean requestBugreport(String dataName) {
+        return request(ArtifactType.BUGREPORT, dataName, LogDataType.BUGREPORT,
+                () -> mDevice.getBugreport());
+    }
+
+    /**
+     * Request a screenshot of the device.
+     *
+     * @param dataName the name to log the screenshot with
+     * @return false if the request was coalesced with a previous one
+     */
+    public boolean requestScreenshot(String dataName) {
+        return request(ArtifactType.SCREENSHOT, dataName, LogDataType.PNG,
+                () -> mDevice.getScreenshot());
+    }
+
+    /**
+     * Request an artifact of the device.
+     *
+     * @param type the {@link ArtifactType} of the artifact
+     * @param dataName the name to log the artifact with
+     * @param dataType the {@link LogDataType} to log the artifact with
+     * @param capture captures the artifact, run on the thread of <var>type</var>. May return null
+     *            if there is nothing to log.
+     * @return false if the request was coalesced with a previous one
+     */
+    public synchronized boolean request(ArtifactType type, String dataName,
+            LogDataType dataType, Callable<InputStreamSource> capture) {
+        long now = System.currentTimeMillis();
+        Long window = mCoalesceWindowMs.get(type);
+        Long last = mLastRequestTime.get(type);
+        if (window != null && window > 0 && last != null && now - last < window) {
+            mCoalescedCount++;
+            CLog.d("Skipping %s for %s, one was requested %d ms ago", type, dataName, now - last);
+            return false;
+        }
+        mLastRequestTime.put(type, now);
+        Capture pending = new Capture(dataName, dataType);
+        pending.mFuture = getExecutor(type).submit(() -> pending.run(capture));
+        mCaptures.add(pending);
+        return true;
+    }
+
+    /**
+     * Returns the number of requests dropped because they were made within the coalescing window
+     * of a previous one.
+     */
+    public synchronized int getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    /**
+     * Log the artifacts that were captured so far, without waiting for the others.
+     */
+    public void logCompleted() {
+        List<Capture> completed = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Capture> it = mCaptures.iterator();
+            while (it.hasNext()) {
+                Capture capture = it.next();
+                if (capture.mFuture.isDone()) {
+                    completed.add(capture);
+                    it.remove();
+                }
+            }
+        }
+        logAll(completed);
+    }
+
+    /**
+     * Wait for all the artifacts requested to be captured, and log them.
+     */
+    public void flush() {
+        List<Capture> captures;
+        synchronized (this) {
+            captures = new ArrayList<>(mCaptures);
+            mCaptures.clear();
+        }
+        logAll(captures);
+    }
+
+    /**
+     * Log the artifacts requested and stop the capture threads. Captures requested meanwhile, or
+     * not logged because the calling thread was interrupted, are cancelled.
+     */
+    public void close() {
+        flush();
+        synchronized (this) {
+            for (Capture capture : mCaptures) {
+                capture.cancel();
+            }
+            mCaptures.clear();
+            for (ExecutorService executor : mExecutors.values()) {
+                executor.shutdownNow();
+            }
+            mExecutors.clear();
+        }
+    }
+
+    /**
+     * Log captures in order. If interrupted, the captures not logged are cancelled.
+     */
+    private void logAll(List<Capture> captures) {
+        Iterator<Capture> it = captures.iterator();
+        while (it.hasNext()) {
+            if (!log(it.next())) {
+                while (it.hasNext()) {
+                    it.next().cancel();
+                }
+            }
+        }
+    }
+
+    private ExecutorService getExecutor(ArtifactType type) {
+        ExecutorService executor = mExecutors.get(type);
+        if (executor == null) {
+            final String threadName = String.format("%s-%s",
+                    type.name().toLowerCase(), mDevice.getSerialNumber());
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, threadName);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            mExecutors.put(type, executor);
+        }
+        return executor;
+    }
+
+    /**
+     * Wait for an artifact to be captured, and log it.
+     *
+     * @return false if interrupted, in which case the capture is cancelled
+     */
+    private boolean log(Capture capture) {
+        InputStreamSource source = null;
+        try {
+            source = capture.mFuture.get();
+        } catch (ExecutionException e) {
+            CLog.e("Failed to capture %s from %s", capture.mDataName, mDevice.getSerialNumber());
+            CLog.e(e.getCause());
+            return true;
+        } catch (CancellationException e) {
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            CLog.e("Interrupted while capturing %s", capture.mDataName);
+            capture.cancel();
+            return false;
+        }
+        if (source == null) {
+            return true;
+        }
+        try {
+            mLogger.testLog(capture.mDataName, capture.mDataType, source);
+        } finally {
+            source.cancel();
+        }
+        return true;
+    }
+}
@@ -27,23 +27,39 @@ import com.android.tradefed.config.Option.Importance;
 import com.android.tradefed.config.OptionClass;
 import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.StreamUtil;
 import com.android.tradefed.util.net.HttpHelper;
 import com.android.tradefed.util.net.IHttpHelper;
+import com.android.tradefed.util.net.SpooledHttpUploader;
 import com.google.common.base.Joiner;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * A result reporter that encode test metrics results and branch, device info into JSON and POST
  * into an HTTP service endpoint
+ * <p/>
+ * With --stream-results, the results of each test run are posted as soon as the run ends, in a
+ * document of their own with the same format. Each document is written gzip compressed to a
+ * spool directory, and posted from there in the background, retrying until the endpoint accepts
+ * it. Documents still in the spool at the end of the invocation are posted by later invocations
+ * using the same spool directory and endpoint.
  */
 @OptionClass(alias = "json-reporter")
 public class JsonHttpTestResultReporter extends CollectingTestListener {
@@ -77,6 +93,22 @@ public class JsonHttpTestResultReporter extends CollectingTestListener {
             description = "suffix to append after the regular reporting unit key")
     private String mReportingUnitKeySuffix = null;
 
+    @Option(name = "stream-results", description = "post the results of each test run as soon "
+            + "as it ends, through a local spool retried in the background, rather than all the "
+            + "results at the end of the invocation.")
+    private boolean mStreamResults = false;
+
+    @Option(name = "spool-dir", description = "directory holding the results not posted yet, "
+            + "with --stream-results. Defaults to a directory in the temporary directory.")
+    private File mSpoolDir = null;
+
+    @Option(name = "upload-timeout", description = "maximum time to wait at the end of the "
+            + "invocation for streamed results to be posted, before leaving them in the spool.",
+            isTimeVal = true)
+    private long mUploadTimeoutMs = 5 * 60 * 1000;
+
+    private SpooledHttpUploader mUploader = null;
+    private final List<File> mSpooledResults = new ArrayList<>();
 
     private boolean mHasInvocationFailures = false;
     private IInvocationContext mInvocationContext = null;
@@ -93,11 +125,22 @@ public class JsonHttpTestResultReporter extends CollectingTestListener {
         mHasInvocationFailures = true;
     }
 
+    @Override
+    public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+        super.testRunEnded(elapsedTime, runMetrics);
+        if (mStreamResults && !mSkipReporting) {
+            spoolResults(getCurrentRunResults());
+        }
+    }
+
     @Override
     public void invocationEnded(long elapsedTime) {
         super.invocationEnded(elapsedTime);
 
-        if (mSkipReporting) {
+        if (mStreamResults) {
+            // results were already queued as test runs ended, invocation failures or not
+            awaitSpooledResults();
+        } else if (mSkipReporting) {
             CLog.d("Skipping reporting because it's disabled.");
         } else if (mHasInvocationFailures) {
             CLog.d("Skipping reporting beacuse there are invocation failures.");
@@ -146,6 +189,151 @@ public class JsonHttpTestResultReporter extends CollectingTestListener {
         }
     }
 
+    /**
+     * Queue the results of a test run for posting.
+     */
+    private void spoolResults(TestRunResult runResult) {
+        try {
+            if (mUploader == null) {
+                File spoolDir = mSpoolDir;
+                if (spoolDir == null) {
+                    spoolDir = new File(System.getProperty("java.io.tmpdir"),
+                            "json-reporter-spool");
+                }
+                mUploader = getUploader(spoolDir, mPostingEndpoint);
+            }
+            File payload = mUploader.createPayloadFile();
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new GZIPOutputStream(new FileOutputStream(payload)),
+                    StandardCharsets.UTF_8))) {
+                writeResultsJson(runResult, writer);
+            } catch (IOException | RuntimeException e) {
+                FileUtil.deleteFile(payload);
+                throw e;
+            }
+            mSpooledResults.add(mUploader.enqueue(payload));
+            CLog.d("Queued results of %s for %s", runResult.getName(), mPostingEndpoint);
+        } catch (IOException e) {
+            CLog.e("IOException occurred while spooling results of %s", runResult.getName());
+            CLog.e(e);
+        }
+    }
+
+    /**
+     * Get the uploader to the endpoint. Exposed for unit testing.
+     */
+    SpooledHttpUploader getUploader(File spoolDir, String endpoint) throws IOException {
+        return SpooledHttpUploader.getInstance(spoolDir, endpoint);
+    }
+
+    /**
+     * Wait for the results spooled by this invocation to be posted.
+     */
+    private void awaitSpooledResults() {
+        if (mUploader == null || mSpooledResults.isEmpty()) {
+            return;
+        }
+        try {
+            if (mUploader.awaitSent(mSpooledResults, mUploadTimeoutMs)) {
+                CLog.d("Successfully posted results of %d test runs", mSpooledResults.size());
+            } else {
+                CLog.w("Results not posted after %d ms, leaving them in the spool to be posted "
+                        + "later", mUploadTimeoutMs);
+            }
+        } catch (InterruptedException e) {
+            CLog.w("Interrupted while waiting for results to be posted");
+        }
+    }
+
+    /**
+     * Write the results of a test run to json, in the same format as
+     * {@link #convertMetricsToJson(Collection)} without building the document in memory.
+     */
+    void writeResultsJson(TestRunResult runResult, Writer writer) throws IOException {
+        StringBuilder resultsName = new StringBuilder();
+        writer.write('{');
+        writer.write(JSONObject.quote(KEY_METRICS));
+        writer.write(":{");
+        boolean first = true;
+        if (runResult.getRunMetrics().size() > 0) {
+            String reportingUnit = getReportingUnit(runResult.getName());
+            first = writeMetrics(writer, reportingUnit, runResult.getRunMetrics(), first);
+            resultsName.append(String.format("%s%s", reportingUnit, RESULT_SEPARATOR));
+        }
+        for (Entry<TestIdentifier, TestResult> entry : runResult.getTestResults().entrySet()) {
+            String reportingUnit = getReportingUnit(runResult, entry.getKey());
+            resultsName.append(String.format("%s%s", reportingUnit, RESULT_SEPARATOR));
+            if (entry.getValue().getMetrics().size() > 0) {
+                first = writeMetrics(writer, reportingUnit, entry.getValue().getMetrics(), first);
+            }
+        }
+        writer.write('}');
+        IBuildInfo buildInfo = getSingleBuildInfo();
+        writeField(writer, KEY_RESULTS_NAME, resultsName.toString());
+        writeField(writer, KEY_BRANCH, buildInfo.getBuildBranch());
+        writeField(writer, KEY_BUILD_FLAVOR, buildInfo.getBuildFlavor());
+        writeField(writer, KEY_BUILD_ID, buildInfo.getBuildId());
+        writer.write('}');
+    }
+
+    private static boolean writeMetrics(Writer writer, String reportingUnit,
+            Map<String, String> metrics, boolean first) throws IOException {
+        if (!first) {
+            writer.write(',');
+        }
+        writer.write(JSONObject.quote(reportingUnit));
+        writer.write(":{");
+        boolean firstMetric = true;
+        for (Entry<String, String> metric : metrics.entrySet()) {
+            if (!firstMetric) {
+                writer.write(',');
+            }
+            firstMetric = false;
+            writer.write(JSONObject.quote(metric.getKey()));
+            writer.write(':');
+            writer.write(JSONObject.quote(metric.getValue()));
+        }
+        writer.write('}');
+        return false;
+    }
+
+    private static void writeField(Writer writer, String key, String value) throws IOException {
+        if (value == null) {
+            // as JSONObject#put, null values are omitted
+            return;
+        }
+        writer.write(',');
+        writer.write(JSONObject.quote(key));
+        writer.write(':');
+        writer.write(JSONObject.quote(value));
+    }
+
+    private String getReportingUnit(String name) {
+        if (mReportingUnitKeySuffix != null && !mReportingUnitKeySuffix.isEmpty()) {
+            return name + mReportingUnitKeySuffix;
+        }
+        return name;
+    }
+
+    private String getReportingUnit(TestRunResult runResult, TestIdentifier testIdentifier) {
+        Joiner joiner = Joiner.on(SEPARATOR).skipNulls();
+        return getReportingUnit(joiner.join(mIncludeRunName ? runResult.getName() : null,
+                testIdentifier.getClassName(), testIdentifier.getTestName()));
+    }
+
+    /**
+     * Returns the build info of the invocation, throwing an exception if there are multiple
+     * (not supporting multi-device result reporting).
+     */
+    private IBuildInfo getSingleBuildInfo() {
+        List<IBuildInfo> buildInfos = mInvocationContext.getBuildInfos();
+        if (buildInfos.size() != 1) {
+            throw new IllegalArgumentException(String.format(
+                    "Only expected 1 build info, actual: [%d]", buildInfos.size()));
+        }
+        return buildInfos.get(0);
+    }
+
     /**
      * A util method that converts test metrics and invocation context to json format
      */
@@ -159,10 +347,7 @@ public class JsonHttpTestResultReporter extends CollectingTestListener {
             // Parse run metrics
             if (runResult.getRunMetrics().size() > 0) {
                 JSONObject runResultMetrics = new JSONObject(runResult.getRunMetrics());
-                String reportingUnit = runResult.getName();
-                if (mReportingUnitKeySuffix != null && !mReportingUnitKeySuffix.isEmpty()) {
-                    reportingUnit += mReportingUnitKeySuffix;
-                }
+                String reportingUnit = getReportingUnit(runResult.getName());
                 allTestMetrics.put(reportingUnit, runResultMetrics);
                 resultsName.append(String.format("%s%s", reportingUnit, RESULT_SEPARATOR));
             } else {
@@ -174,13 +359,7 @@ public class JsonHttpTestResultReporter extends CollectingTestListener {
             for (Entry<TestIdentifier, TestResult> entry : testResultMap.entrySet()) {
                 TestIdentifier testIdentifier = entry.getKey();
                 TestResult testResult = entry.getValue();
-                Joiner joiner = Joiner.on(SEPARATOR).skipNulls();
-                String reportingUnit = joiner.join(
-                        mIncludeRunName ? runResult.getName() : null,
-                        testIdentifier.getClassName(), testIdentifier.getTestName());
-                if (mReportingUnitKeySuffix != null && !mReportingUnitKeySuffix.isEmpty()) {
-                    reportingUnit += mReportingUnitKeySuffix;
-                }
+                String reportingUnit = getReportingUnit(runResult, testIdentifier);
                 resultsName.append(String.format("%s%s", reportingUnit, RESULT_SEPARATOR));
                 if (testResult.getMetrics().size() > 0) {
                     JSONObject testResultMetrics = new JSONObject(testResult.getMetrics());
@@ -190,14 +369,7 @@ public class JsonHttpTestResultReporter extends CollectingTestListener {
                 }
             }
         }
-        // get build info, and throw an exception if there are multiple (not supporting multi-device
-        // result reporting
-        List<IBuildInfo> buildInfos = mInvocationContext.getBuildInfos();
-        if (buildInfos.size() != 1) {
-            throw new IllegalArgumentException(String.format(
-                    "Only expected 1 build info, actual: [%d]", buildInfos.size()));
-        }
-        IBuildInfo buildInfo = buildInfos.get(0);
+        IBuildInfo buildInfo = getSingleBuildInfo();
         JSONObject result = new JSONObject();
         result.put(KEY_RESULTS_NAME, resultsName);
         result.put(KEY_METRICS, allTestMetrics);
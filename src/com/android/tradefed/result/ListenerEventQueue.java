@@ -0,0 +1,437 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ResultForwarder.OverflowPolicy;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+import com.android.tradefed.util.SubprocessEventHelper.BaseTestEventInfo;
+import com.android.tradefed.util.SubprocessEventHelper.FailedTestEventInfo;
+import com.android.tradefed.util.SubprocessEventHelper.TestEndedEventInfo;
+import com.android.tradefed.util.SubprocessEventHelper.TestRunEndedEventInfo;
+import com.android.tradefed.util.SubprocessEventHelper.TestRunFailedEventInfo;
+import com.android.tradefed.util.SubprocessEventHelper.TestRunStartedEventInfo;
+import com.android.tradefed.util.SubprocessEventHelper.TestStartedEventInfo;
+import com.android.tradefed.util.SubprocessTestResultsParser.StatusKeys;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * An ordered queue of events for a single {@link ITestInvocationListener}, delivered by a
+ * dedicated thread, so a slow listener does not slow down the thread reporting the events.
+ * <p/>
+ * The queue is bounded by its capacity. With {@link OverflowPolicy#SPILL}, events past the
+ * capacity are written to a spill file in their {@link StatusKeys} serialized form instead, and
+ * read back in order once the listener caught up with the events in memory. Events without a
+ * serialized form wait for the spill file to be drained, so the order is kept.
+ * <p/>
+ * The delivery thread is created in the thread group of the caller of {@link #start()}, so the
+ * listener logs end up in the same place as when it is called directly.
+ */
+class ListenerEventQueue {
+
+    private final ITestInvocationListener mListener;
+    private final int mCapacity;
+    private final OverflowPolicy mPolicy;
+
+    private final Deque<Event> mEvents = new ArrayDeque<>();
+    private Thread mDeliveryThread = null;
+    /** true while the delivery thread is running an event */
+    private boolean mDelivering = false;
+    private boolean mStopped = false;
+
+    // spilled events, guarded by this
+    private File mSpillFile = null;
+    private BufferedWriter mSpillWriter = null;
+    private BufferedReader mSpillReader = null;
+    /** number of events written to the spill file and not read back yet */
+    private long mSpillPending = 0;
+
+    // statistics, guarded by this
+    private long mDeliveredCount = 0;
+    private long mDroppedLogCount = 0;
+    private long mSpilledCount = 0;
+    private int mMaxDepth = 0;
+    private long mTotalLatencyMs = 0;
+    private long mMaxLatencyMs = 0;
+    private long mBlockedMs = 0;
+
+    /** An event waiting to be delivered. */
+    private static class Event {
+        private final String mName;
+        private final Consumer<ITestInvocationListener> mCall;
+        private final Runnable mOnDelivered;
+        private final long mQueuedTime;
+
+        Event(String name, Consumer<ITestInvocationListener> call, Runnable onDelivered) {
+            this(name, call, onDelivered, System.currentTimeMillis());
+        }
+
+        Event(String name, Consumer<ITestInvocationListener> call, Runnable onDelivered,
+                long queuedTime) {
+            mName = name;
+            mCall = call;
+            mOnDelivered = onDelivered;
+            mQueuedTime = queuedTime;
+        }
+    }
+
+    /**
+     * Creates a {@link ListenerEventQueue}.
+     *
+     * @param listener the {@link ITestInvocationListener} to deliver events to
+     * @param capacity the number of events that can be queued before the {@link OverflowPolicy}
+     *            applies
+     * @param policy what to do with new events when the queue is full
+     */
+    ListenerEventQueue(ITestInvocationListener listener, int capacity, OverflowPolicy policy) {
+        mListener = listener;
+        mCapacity = Math.max(1, capacity);
+        mPolicy = policy;
+    }
+
+    /** Returns the {@link ITestInvocationListener} events are delivered to. */
+    ITestInvocationListener getListener() {
+        return mListener;
+    }
+
+    /**
+     * Start the delivery thread.
+     */
+    synchronized void start() {
+        mDeliveryThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                deliverEvents();
+            }
+        }, "result-forwarder-" + mListener.getClass().getSimpleName());
+        mDeliveryThread.setDaemon(true);
+        mDeliveryThread.start();
+    }
+
+    /**
+     * Queue an event for the listener.
+     *
+     * @param name the name of the event, for logging
+     * @param call the call to make on the listener
+     * @param isLog whether the event holds log data, that can be dropped when the queue is full
+     * @param onDelivered called once the event was delivered, or null
+     * @return false if the event was dropped, in which case <var>onDelivered</var> is not called.
+     */
+    boolean offer(String name, Consumer<ITestInvocationListener> call, boolean isLog,
+            Runnable onDelivered) {
+        return offer(name, call, isLog, onDelivered, null);
+    }
+
+    /**
+     * Queue an event for the listener.
+     *
+     * @param name the name of the event, for logging
+     * @param call the call to make on the listener
+     * @param isLog whether the event holds log data, that can be dropped when the queue is full
+     * @param onDelivered called once the event was delivered, or null
+     * @param serialized the event as a line of a {@link StatusKeys} key followed by its json
+     *            info, for {@link OverflowPolicy#SPILL}, or null if it cannot be serialized
+     * @return false if the event was dropped, in which case <var>onDelivered</var> is not called.
+     */
+    synchronized boolean offer(String name, Consumer<ITestInvocationListener> call,
+            boolean isLog, Runnable onDelivered, Supplier<String> serialized) {
+        boolean spill = OverflowPolicy.SPILL.equals(mPolicy);
+        if (spill && serialized != null && (mSpillPending > 0 || mEvents.size() >= mCapacity)
+                && spill(serialized.get())) {
+            return true;
+        }
+        if (mEvents.size() >= mCapacity || (spill && mSpillPending > 0)) {
+            if (isLog && OverflowPolicy.DROP_LOGS.equals(mPolicy)) {
+                mDroppedLogCount++;
+                CLog.w("%s is falling behind, dropping %s event", mListener.getClass().getName(),
+                        name);
+                return false;
+            }
+            long start = System.currentTimeMillis();
+            while ((mEvents.size() >= mCapacity || mSpillPending > 0) && !mStopped) {
+                if (!waitForChange()) {
+                    // queue the event anyway rather than lose it
+                    break;
+                }
+            }
+            mBlockedMs += System.currentTimeMillis() - start;
+        }
+        mEvents.add(new Event(name, call, onDelivered));
+        mMaxDepth = Math.max(mMaxDepth, mEvents.size());
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Append a serialized event to the spill file, creating it if needed.
+     *
+     * @return false if the event could not be written
+     */
+    private boolean spill(String line) {
+        try {
+            if (mSpillWriter == null) {
+                mSpillFile = FileUtil.createTempFile("result-forwarder-spill", ".txt");
+                mSpillWriter = new BufferedWriter(new FileWriter(mSpillFile));
+                mSpillReader = new BufferedReader(new FileReader(mSpillFile));
+            }
+            mSpillWriter.write(line);
+            mSpillWriter.newLine();
+        } catch (IOException e) {
+            CLog.e("Failed to spill event for %s, waiting for it to catch up instead",
+                    mListener.getClass().getName());
+            CLog.e(e);
+            if (mSpillPending == 0) {
+                closeSpill();
+            }
+            return false;
+        }
+        mSpillPending++;
+        mSpilledCount++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Read back the oldest spilled event. The spill file is deleted once all its events were
+     * read back.
+     */
+    private Event unspill() {
+        String line = null;
+        try {
+            mSpillWriter.flush();
+            line = mSpillReader.readLine();
+        } catch (IOException e) {
+            CLog.e(e);
+        }
+        if (line == null) {
+            CLog.e("Lost %d spilled events for %s", mSpillPending, mListener.getClass().getName());
+            mSpillPending = 0;
+        } else {
+            mSpillPending--;
+        }
+        if (mSpillPending == 0) {
+            closeSpill();
+        }
+        return line == null ? null : parseSpilledEvent(line);
+    }
+
+    private void closeSpill() {
+        StreamUtil.close(mSpillWriter);
+        StreamUtil.close(mSpillReader);
+        FileUtil.deleteFile(mSpillFile);
+        mSpillWriter = null;
+        mSpillReader = null;
+        mSpillFile = null;
+    }
+
+    /**
+     * Turn a spilled line back into an {@link Event}.
+     *
+     * @return the {@link Event}, or null if it could not be parsed
+     */
+    private static Event parseSpilledEvent(String line) {
+        int separator = line.indexOf(' ');
+        if (separator < 0) {
+            CLog.e("Ignoring invalid spilled event: %s", line);
+            return null;
+        }
+        String key = line.substring(0, separator);
+        Consumer<ITestInvocationListener> call;
+        try {
+            JSONObject json = new JSONObject(line.substring(separator + 1));
+            switch (key) {
+                case StatusKeys.TEST_RUN_STARTED:
+                    TestRunStartedEventInfo runStarted = new TestRunStartedEventInfo(json);
+                    call = l -> l.testRunStarted(runStarted.mRunName, runStarted.mTestCount);
+                    break;
+                case StatusKeys.TEST_RUN_FAILED:
+                    TestRunFailedEventInfo runFailed = new TestRunFailedEventInfo(json);
+                    call = l -> l.testRunFailed(runFailed.mReason);
+                    break;
+                case StatusKeys.TEST_RUN_ENDED:
+                    TestRunEndedEventInfo runEnded = new TestRunEndedEventInfo(json);
+                    call = l -> l.testRunEnded(runEnded.mTime, runEnded.mRunMetrics);
+                    break;
+                case StatusKeys.TEST_STARTED:
+                    TestStartedEventInfo started = new TestStartedEventInfo(json);
+                    call = l -> l.testStarted(getTest(started), started.mStartTime);
+                    break;
+                case StatusKeys.TEST_FAILED:
+                    FailedTestEventInfo failed = new FailedTestEventInfo(json);
+                    call = l -> l.testFailed(getTest(failed), failed.mTrace);
+                    break;
+                case StatusKeys.TEST_ASSUMPTION_FAILURE:
+                    FailedTestEventInfo assumption = new FailedTestEventInfo(json);
+                    call = l -> l.testAssumptionFailure(getTest(assumption), assumption.mTrace);
+                    break;
+                case StatusKeys.TEST_IGNORED:
+                    BaseTestEventInfo ignored = new BaseTestEventInfo(json);
+                    call = l -> l.testIgnored(getTest(ignored));
+                    break;
+                case StatusKeys.TEST_ENDED:
+                    TestEndedEventInfo ended = new TestEndedEventInfo(json);
+                    call = l -> l.testEnded(getTest(ended), ended.mEndTime, ended.mRunMetrics);
+                    break;
+                default:
+                    CLog.e("Ignoring unknown spilled event: %s", line);
+                    return null;
+            }
+        } catch (JSONException e) {
+            CLog.e("Ignoring invalid spilled event: %s", line);
+            CLog.e(e);
+            return null;
+        }
+        // the queue time of spilled events is not kept, their latency starts when read back
+        return new Event(key, call, null);
+    }
+
+    private static TestIdentifier getTest(BaseTestEventInfo info) {
+        return new TestIdentifier(info.mClassName, info.mTestName);
+    }
+
+    /**
+     * Wait until all the events queued so far were delivered, and stop the delivery thread.
+     * <p/>
+     * If interrupted, stops waiting: the events still queued are not delivered, and the
+     * interrupted status of the thread is kept.
+     */
+    synchronized void drainAndStop() {
+        while ((!mEvents.isEmpty() || mSpillPending > 0 || mDelivering)
+                && mDeliveryThread != null && mDeliveryThread.isAlive()) {
+            if (!waitForChange()) {
+                CLog.w("Interrupted while draining events for %s, %d events not delivered",
+                        mListener.getClass().getName(), mEvents.size() + mSpillPending);
+                break;
+            }
+        }
+        mStopped = true;
+        notifyAll();
+    }
+
+    private void deliverEvents() {
+        while (true) {
+            Event event;
+            synchronized (this) {
+                while (mEvents.isEmpty() && mSpillPending == 0 && !mStopped) {
+                    if (!waitForChange()) {
+                        mStopped = true;
+                    }
+                }
+                if (mStopped) {
+                    if (mSpillPending > 0) {
+                        closeSpill();
+                        mSpillPending = 0;
+                    }
+                    if (mEvents.isEmpty()) {
+                        notifyAll();
+                        return;
+                    }
+                }
+                if (!mEvents.isEmpty()) {
+                    event = mEvents.poll();
+                } else {
+                    event = unspill();
+                    if (event == null) {
+                        notifyAll();
+                        continue;
+                    }
+                }
+                mDelivering = true;
+                notifyAll();
+            }
+            try {
+                event.mCall.accept(mListener);
+            } catch (RuntimeException e) {
+                CLog.e("RuntimeException while invoking %s#%s", mListener.getClass().getName(),
+                        event.mName);
+                CLog.e(e);
+            } finally {
+                if (event.mOnDelivered != null) {
+                    event.mOnDelivered.run();
+                }
+            }
+            synchronized (this) {
+                long latency = System.currentTimeMillis() - event.mQueuedTime;
+                mDeliveredCount++;
+                mTotalLatencyMs += latency;
+                mMaxLatencyMs = Math.max(mMaxLatencyMs, latency);
+                mDelivering = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Wait for the state of the queue to change.
+     *
+     * @return false if interrupted, in which case the interrupted status of the thread is restored
+     */
+    private boolean waitForChange() {
+        try {
+            wait();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /** Returns the number of events delivered. */
+    synchronized long getDeliveredCount() {
+        return mDeliveredCount;
+    }
+
+    /** Returns the number of log events dropped because the queue was full. */
+    synchronized long getDroppedLogCount() {
+        return mDroppedLogCount;
+    }
+
+    /** Returns the number of events written to the spill file because the queue was full. */
+    synchronized long getSpilledCount() {
+        return mSpilledCount;
+    }
+
+    /** Returns the maximum number of events waiting in the queue. */
+    synchronized int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    /**
+     * Returns a summary of the delivery statistics of the queue.
+     */
+    synchronized String getStats() {
+        return String.format("%s: %d events, average latency %d ms, max latency %d ms, "
+                + "max queue depth %d, caller blocked %d ms, %d logs dropped, %d events spilled",
+                mListener.getClass().getName(), mDeliveredCount,
+                mDeliveredCount == 0 ? 0 : mTotalLatencyMs / mDeliveredCount, mMaxLatencyMs,
+                mMaxDepth, mBlockedMs, mDroppedLogCount, mSpilledCount);
+    }
+}
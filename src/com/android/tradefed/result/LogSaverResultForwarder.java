@@ -17,6 +17,7 @@
 package com.android.tradefed.result;
 
 import com.android.tradefed.invoker.IInvocationContext;
+import com.android.tradefed.invoker.InvocationPhaseTimer;
 import com.android.tradefed.log.LogUtil.CLog;
 
 import java.io.IOException;
@@ -28,6 +29,7 @@ import java.util.List;
 public class LogSaverResultForwarder extends ResultForwarder {
 
     ILogSaver mLogSaver;
+    private InvocationPhaseTimer mPhaseTimer = null;
 
     public LogSaverResultForwarder(ILogSaver logSaver,
             List<ITestInvocationListener> listeners) {
@@ -40,6 +42,13 @@ public class LogSaverResultForwarder extends ResultForwarder {
         }
     }
 
+    /**
+     * Set the {@link InvocationPhaseTimer} recording the time spent saving logs.
+     */
+    public void setPhaseTimer(InvocationPhaseTimer phaseTimer) {
+        mPhaseTimer = phaseTimer;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -47,15 +56,7 @@ public class LogSaverResultForwarder extends ResultForwarder {
     public void invocationStarted(IInvocationContext context) {
         // Intentionally call invocationStarted for the log saver first.
         mLogSaver.invocationStarted(context);
-        for (ITestInvocationListener listener : getListeners()) {
-            try {
-                listener.invocationStarted(context);
-            } catch (RuntimeException e) {
-                // don't let the listener leave the invocation in a bad state
-                CLog.e("Caught runtime exception from ITestInvocationListener");
-                CLog.e(e);
-            }
-        }
+        super.invocationStarted(context);
     }
 
     /**
@@ -63,7 +64,7 @@ public class LogSaverResultForwarder extends ResultForwarder {
      */
     @Override
     public void invocationEnded(long elapsedTime) {
-        InvocationSummaryHelper.reportInvocationEnded(getListeners(), elapsedTime);
+        super.invocationEnded(elapsedTime);
         // Intentionally call invocationEnded for the log saver last.
         mLogSaver.invocationEnded(elapsedTime);
     }
@@ -77,19 +78,40 @@ public class LogSaverResultForwarder extends ResultForwarder {
      */
     @Override
     public void testLog(String dataName, LogDataType dataType, InputStreamSource dataStream) {
-        super.testLog(dataName, dataType, dataStream);
+        // share the same data between testLog and testLogSaved when forwarding asynchronously
+        InputStreamSource source = acquireLog(dataStream);
+        try {
+            super.testLog(dataName, dataType, source);
+            saveLog(dataName, dataType, dataStream, source);
+        } finally {
+            releaseLog(source);
+        }
+    }
+
+    /**
+     * Save the log file with the global {@link ILogSaver}, and forward it to the
+     * {@link ILogSaverListener}s.
+     */
+    private void saveLog(String dataName, LogDataType dataType, InputStreamSource dataStream,
+            InputStreamSource forwardedStream) {
+        long start = InvocationPhaseTimer.start();
         try {
             LogFile logFile = mLogSaver.saveLogData(dataName, dataType,
                     dataStream.createInputStream());
             for (ITestInvocationListener listener : getListeners()) {
                 if (listener instanceof ILogSaverListener) {
-                    ((ILogSaverListener) listener).testLogSaved(dataName, dataType,
-                            dataStream, logFile);
+                    forwardLog(listener, "testLogSaved", forwardedStream,
+                            (l, s) -> ((ILogSaverListener) l).testLogSaved(dataName, dataType,
+                                    s, logFile));
                 }
             }
         } catch (IOException e) {
             CLog.e("Failed to save log data");
             CLog.e(e);
+        } finally {
+            if (mPhaseTimer != null) {
+                mPhaseTimer.record(InvocationPhaseTimer.LOG_SAVING, start);
+            }
         }
     }
 }
\ No newline at end of file
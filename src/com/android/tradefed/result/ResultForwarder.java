@@ -18,18 +18,96 @@ package com.android.tradefed.result;
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.SubprocessEventHelper.BaseTestEventInfo;
+import com.android.tradefed.util.SubprocessEventHelper.FailedTestEventInfo;
+import com.android.tradefed.util.SubprocessEventHelper.TestEndedEventInfo;
+import com.android.tradefed.util.SubprocessEventHelper.TestRunEndedEventInfo;
+import com.android.tradefed.util.SubprocessEventHelper.TestRunFailedEventInfo;
+import com.android.tradefed.util.SubprocessEventHelper.TestRunStartedEventInfo;
+import com.android.tradefed.util.SubprocessEventHelper.TestStartedEventInfo;
+import com.android.tradefed.util.SubprocessTestResultsParser.StatusKeys;
+
+import java.io.InputStream;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * A {@link ITestInvocationListener} that forwards invocation results to a list of other listeners.
+ * <p/>
+ * By default events are forwarded to each listener in turn on the calling thread. With
+ * {@link #setAsyncForwarding(int, OverflowPolicy)}, each listener gets its own bounded queue of
+ * events delivered in order by a dedicated thread instead, so a slow listener does not slow down
+ * the tests. Queues are drained on {@link #invocationEnded(long)}.
  */
 public class ResultForwarder implements ITestInvocationListener {
 
+    /**
+     * What to do with an event for a listener whose queue is full, in asynchronous mode.
+     */
+    public enum OverflowPolicy {
+        /** wait for the listener to catch up */
+        BLOCK,
+        /** drop log events for the listener, wait for it to catch up for other events */
+        DROP_LOGS,
+        /**
+         * write test and run events to a spill file on disk, read back in order once the listener
+         * caught up, so the caller does not wait for them. Other events, like logs, wait for the
+         * listener to catch up.
+         */
+        SPILL,
+    }
+
     private List<ITestInvocationListener> mListeners;
 
+    /** listener -> its event queue, when forwarding asynchronously */
+    private Map<ITestInvocationListener, ListenerEventQueue> mQueues = null;
+
+    /**
+     * A snapshot of log data shared by the queues it was forwarded to, deleted once delivered to
+     * all of them.
+     */
+    private static class LogSnapshot implements InputStreamSource {
+        private final SnapshotInputStreamSource mSource;
+        private int mReferences = 1;
+
+        LogSnapshot(InputStream stream) {
+            mSource = new SnapshotInputStreamSource(stream);
+        }
+
+        synchronized void retain() {
+            mReferences++;
+        }
+
+        synchronized void release() {
+            mReferences--;
+            if (mReferences == 0) {
+                mSource.cancel();
+            }
+        }
+
+        @Override
+        public InputStream createInputStream() {
+            return mSource.createInputStream();
+        }
+
+        @Override
+        public void cancel() {
+            // shared by several listeners, only deleted once delivered to all of them
+        }
+
+        @Override
+        public long size() {
+            return mSource.size();
+        }
+    }
+
     /**
      * Create a {@link ResultForwarder} with deferred listener setting.  Intended only for use by
      * subclasses.
@@ -84,35 +162,193 @@ public class ResultForwarder implements ITestInvocationListener {
     }
 
     /**
-     * {@inheritDoc}
+     * Forward events asynchronously from now on, through a queue and a delivery thread per
+     * listener. Must be called from the invocation thread, after the listeners are set.
+     *
+     * @param queueSize the number of events that can be queued for each listener before the
+     *            {@link OverflowPolicy} applies
+     * @param policy the {@link OverflowPolicy} for listeners falling behind
      */
-    @Override
-    public void invocationStarted(IInvocationContext context) {
+    public synchronized void setAsyncForwarding(int queueSize, OverflowPolicy policy) {
+        if (mQueues != null) {
+            return;
+        }
+        Map<ITestInvocationListener, ListenerEventQueue> queues = new IdentityHashMap<>();
         for (ITestInvocationListener listener : mListeners) {
-            try {
-                listener.invocationStarted(context);
-            } catch (RuntimeException e) {
-                CLog.e("RuntimeException while invoking %s#invocationStarted",
-                        listener.getClass().getName());
-                CLog.e(e);
+            if (!queues.containsKey(listener)) {
+                ListenerEventQueue queue = new ListenerEventQueue(listener, queueSize, policy);
+                queue.start();
+                queues.put(listener, queue);
             }
         }
+        mQueues = queues;
     }
 
     /**
-     * {@inheritDoc}
+     * Wait for all the events queued to be delivered, and go back to forwarding events
+     * synchronously.
      */
-    @Override
-    public void invocationFailed(Throwable cause) {
+    public void drainAsyncForwarding() {
+        Map<ITestInvocationListener, ListenerEventQueue> queues;
+        synchronized (this) {
+            queues = mQueues;
+            mQueues = null;
+        }
+        if (queues == null) {
+            return;
+        }
+        for (ListenerEventQueue queue : queues.values()) {
+            queue.drainAndStop();
+            CLog.d("Result forwarding to %s", queue.getStats());
+        }
+    }
+
+    /**
+     * Returns the event queue of a listener, or null if events are forwarded synchronously.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    synchronized ListenerEventQueue getQueue(ITestInvocationListener listener) {
+        return mQueues == null ? null : mQueues.get(listener);
+    }
+
+    /**
+     * Forward an event to all the listeners.
+     *
+     * @param eventName the name of the event, for logging
+     * @param call the call to make on each listener
+     */
+    protected void forward(String eventName, Consumer<ITestInvocationListener> call) {
+        forward(eventName, call, null);
+    }
+
+    /**
+     * Forward an event that has a serialized form to all the listeners.
+     *
+     * @param eventName the name of the event, for logging
+     * @param call the call to make on each listener
+     * @param serialized the event as a {@link StatusKeys} key followed by its json info, only
+     *            computed if the event is spilled to disk, or null
+     */
+    private void forward(String eventName, Consumer<ITestInvocationListener> call,
+            Supplier<String> serialized) {
         for (ITestInvocationListener listener : mListeners) {
-            try {
-                listener.invocationFailed(cause);
-            } catch (RuntimeException e) {
-                CLog.e("RuntimeException while invoking %s#invocationFailed",
-                        listener.getClass().getName());
-                CLog.e(e);
+            forward(listener, eventName, call, serialized);
+        }
+    }
+
+    /**
+     * Forward an event to a listener, directly or through its queue in asynchronous mode.
+     *
+     * @param listener the {@link ITestInvocationListener} to forward to
+     * @param eventName the name of the event, for logging
+     * @param call the call to make on the listener
+     */
+    protected void forward(ITestInvocationListener listener, String eventName,
+            Consumer<ITestInvocationListener> call) {
+        forward(listener, eventName, call, null);
+    }
+
+    private void forward(ITestInvocationListener listener, String eventName,
+            Consumer<ITestInvocationListener> call, Supplier<String> serialized) {
+        ListenerEventQueue queue = getQueue(listener);
+        if (queue != null) {
+            queue.offer(eventName, call, false, null, serialized);
+            return;
+        }
+        try {
+            call.accept(listener);
+        } catch (RuntimeException e) {
+            CLog.e("RuntimeException while invoking %s#%s", listener.getClass().getName(),
+                    eventName);
+            CLog.e(e);
+        }
+    }
+
+    /**
+     * Copy metrics when forwarding asynchronously, the sender may keep modifying its map after the
+     * event was queued.
+     */
+    private synchronized Map<String, String> copyIfQueued(Map<String, String> metrics) {
+        if (mQueues == null || metrics == null) {
+            return metrics;
+        }
+        return new HashMap<>(metrics);
+    }
+
+    /**
+     * Returns a {@link InputStreamSource} of log data that stays valid while queued. Must be
+     * released with {@link #releaseLog(InputStreamSource)}.
+     * <p/>
+     * When forwarding synchronously, this is <var>dataStream</var> itself. Otherwise this is a
+     * snapshot of the data, since callers usually cancel their {@link InputStreamSource} once
+     * they reported it.
+     */
+    protected InputStreamSource acquireLog(InputStreamSource dataStream) {
+        if (dataStream instanceof LogSnapshot) {
+            ((LogSnapshot) dataStream).retain();
+            return dataStream;
+        }
+        synchronized (this) {
+            if (mQueues == null || dataStream == null) {
+                return dataStream;
             }
         }
+        InputStream stream = dataStream.createInputStream();
+        if (stream == null) {
+            // no data to keep
+            return dataStream;
+        }
+        return new LogSnapshot(stream);
+    }
+
+    /**
+     * Release a {@link InputStreamSource} returned by {@link #acquireLog(InputStreamSource)}.
+     */
+    protected void releaseLog(InputStreamSource dataStream) {
+        if (dataStream instanceof LogSnapshot) {
+            ((LogSnapshot) dataStream).release();
+        }
+    }
+
+    /**
+     * Forward an event holding log data to a listener. When the listener falls behind, the event
+     * may be dropped depending on the {@link OverflowPolicy}.
+     *
+     * @param listener the {@link ITestInvocationListener} to forward to
+     * @param eventName the name of the event, for logging
+     * @param dataStream the log data, as returned by {@link #acquireLog(InputStreamSource)}
+     * @param call the call to make on the listener with the log data
+     */
+    protected void forwardLog(ITestInvocationListener listener, String eventName,
+            InputStreamSource dataStream,
+            BiConsumer<ITestInvocationListener, InputStreamSource> call) {
+        ListenerEventQueue queue = getQueue(listener);
+        if (queue == null || !(dataStream instanceof LogSnapshot)) {
+            forward(listener, eventName, l -> call.accept(l, dataStream));
+            return;
+        }
+        LogSnapshot snapshot = (LogSnapshot) dataStream;
+        snapshot.retain();
+        if (!queue.offer(eventName, l -> call.accept(l, snapshot), true, snapshot::release)) {
+            snapshot.release();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void invocationStarted(IInvocationContext context) {
+        forward("invocationStarted", l -> l.invocationStarted(context));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void invocationFailed(Throwable cause) {
+        forward("invocationFailed", l -> l.invocationFailed(cause));
     }
 
     /**
@@ -120,6 +356,8 @@ public class ResultForwarder implements ITestInvocationListener {
      */
     @Override
     public void invocationEnded(long elapsedTime) {
+        // summaries are gathered from all listeners, wait for them to get all the events first
+        drainAsyncForwarding();
         InvocationSummaryHelper.reportInvocationEnded(mListeners, elapsedTime);
     }
 
@@ -137,14 +375,14 @@ public class ResultForwarder implements ITestInvocationListener {
      */
     @Override
     public void testLog(String dataName, LogDataType dataType, InputStreamSource dataStream) {
-        for (ITestInvocationListener listener : mListeners) {
-            try {
-                listener.testLog(dataName, dataType, dataStream);
-            } catch (RuntimeException e) {
-                CLog.e("RuntimeException while invoking %s#testLog",
-                        listener.getClass().getName());
-                CLog.e(e);
+        InputStreamSource source = acquireLog(dataStream);
+        try {
+            for (ITestInvocationListener listener : mListeners) {
+                forwardLog(listener, "testLog", source,
+                        (l, s) -> l.testLog(dataName, dataType, s));
             }
+        } finally {
+            releaseLog(source);
         }
     }
 
@@ -153,15 +391,9 @@ public class ResultForwarder implements ITestInvocationListener {
      */
     @Override
     public void testRunStarted(String runName, int testCount) {
-        for (ITestInvocationListener listener : mListeners) {
-            try {
-                listener.testRunStarted(runName, testCount);
-            } catch (RuntimeException e) {
-                CLog.e("RuntimeException while invoking %s#testRunStarted",
-                        listener.getClass().getName());
-                CLog.e(e);
-            }
-        }
+        forward("testRunStarted", l -> l.testRunStarted(runName, testCount),
+                () -> serialize(StatusKeys.TEST_RUN_STARTED,
+                        new TestRunStartedEventInfo(runName, testCount)));
     }
 
     /**
@@ -169,15 +401,9 @@ public class ResultForwarder implements ITestInvocationListener {
      */
     @Override
     public void testRunFailed(String errorMessage) {
-        for (ITestInvocationListener listener : mListeners) {
-            try {
-                listener.testRunFailed(errorMessage);
-            } catch (RuntimeException e) {
-                CLog.e("RuntimeException while invoking %s#testRunFailed",
-                        listener.getClass().getName());
-                CLog.e(e);
-            }
-        }
+        forward("testRunFailed", l -> l.testRunFailed(errorMessage),
+                () -> serialize(StatusKeys.TEST_RUN_FAILED,
+                        new TestRunFailedEventInfo(errorMessage)));
     }
 
     /**
@@ -185,15 +411,7 @@ public class ResultForwarder implements ITestInvocationListener {
      */
     @Override
     public void testRunStopped(long elapsedTime) {
-        for (ITestInvocationListener listener : mListeners) {
-            try {
-                listener.testRunStopped(elapsedTime);
-            } catch (RuntimeException e) {
-                CLog.e("RuntimeException while invoking %s#testRunStopped",
-                        listener.getClass().getName());
-                CLog.e(e);
-            }
-        }
+        forward("testRunStopped", l -> l.testRunStopped(elapsedTime));
     }
 
     /**
@@ -201,15 +419,10 @@ public class ResultForwarder implements ITestInvocationListener {
      */
     @Override
     public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
-        for (ITestInvocationListener listener : mListeners) {
-            try {
-                listener.testRunEnded(elapsedTime, runMetrics);
-            } catch (RuntimeException e) {
-                CLog.e("RuntimeException while invoking %s#testRunEnded",
-                        listener.getClass().getName());
-                CLog.e(e);
-            }
-        }
+        Map<String, String> metrics = copyIfQueued(runMetrics);
+        forward("testRunEnded", l -> l.testRunEnded(elapsedTime, metrics),
+                () -> serialize(StatusKeys.TEST_RUN_ENDED,
+                        new TestRunEndedEventInfo(elapsedTime, metrics)));
     }
 
     /**
@@ -223,30 +436,17 @@ public class ResultForwarder implements ITestInvocationListener {
     /** {@inheritDoc} */
     @Override
     public void testStarted(TestIdentifier test, long startTime) {
-        for (ITestInvocationListener listener : mListeners) {
-            try {
-                listener.testStarted(test, startTime);
-            } catch (RuntimeException e) {
-                CLog.e(
-                        "RuntimeException while invoking %s#testStarted",
-                        listener.getClass().getName());
-                CLog.e(e);
-            }
-        }
+        forward("testStarted", l -> l.testStarted(test, startTime),
+                () -> serialize(StatusKeys.TEST_STARTED, new TestStartedEventInfo(
+                        test.getClassName(), test.getTestName(), startTime)));
     }
 
     /** {@inheritDoc} */
     @Override
     public void testFailed(TestIdentifier test, String trace) {
-        for (ITestInvocationListener listener : mListeners) {
-            try {
-                listener.testFailed(test, trace);
-            } catch (RuntimeException e) {
-                CLog.e("RuntimeException while invoking %s#testFailed",
-                        listener.getClass().getName());
-                CLog.e(e);
-            }
-        }
+        forward("testFailed", l -> l.testFailed(test, trace),
+                () -> serialize(StatusKeys.TEST_FAILED, new FailedTestEventInfo(
+                        test.getClassName(), test.getTestName(), trace)));
     }
 
     /**
@@ -260,41 +460,31 @@ public class ResultForwarder implements ITestInvocationListener {
     /** {@inheritDoc} */
     @Override
     public void testEnded(TestIdentifier test, long endTime, Map<String, String> testMetrics) {
-        for (ITestInvocationListener listener : mListeners) {
-            try {
-                listener.testEnded(test, endTime, testMetrics);
-            } catch (RuntimeException e) {
-                CLog.e(
-                        "RuntimeException while invoking %s#testEnded",
-                        listener.getClass().getName());
-                CLog.e(e);
-            }
-        }
+        Map<String, String> metrics = copyIfQueued(testMetrics);
+        forward("testEnded", l -> l.testEnded(test, endTime, metrics),
+                () -> serialize(StatusKeys.TEST_ENDED, new TestEndedEventInfo(
+                        test.getClassName(), test.getTestName(), endTime, metrics)));
     }
 
     @Override
     public void testAssumptionFailure(TestIdentifier test, String trace) {
-        for (ITestInvocationListener listener : mListeners) {
-            try {
-                listener.testAssumptionFailure(test, trace);
-            } catch (RuntimeException e) {
-                CLog.e("RuntimeException while invoking %s#testAssumptionFailure",
-                        listener.getClass().getName());
-                CLog.e(e);
-            }
-        }
+        forward("testAssumptionFailure", l -> l.testAssumptionFailure(test, trace),
+                () -> serialize(StatusKeys.TEST_ASSUMPTION_FAILURE, new FailedTestEventInfo(
+                        test.getClassName(), test.getTestName(), trace)));
     }
 
     @Override
     public void testIgnored(TestIdentifier test) {
-        for (ITestInvocationListener listener : mListeners) {
-            try {
-                listener.testIgnored(test);
-            } catch (RuntimeException e) {
-                CLog.e("RuntimeException while invoking %s#testIgnored",
-                        listener.getClass().getName());
-                CLog.e(e);
-            }
-        }
+        forward("testIgnored", l -> l.testIgnored(test),
+                () -> serialize(StatusKeys.TEST_IGNORED,
+                        new BaseTestEventInfo(test.getClassName(), test.getTestName())));
+    }
+
+    /**
+     * Returns the serialized form of an event, in the same format as
+     * {@link SubprocessResultsReporter}.
+     */
+    private static String serialize(String key, Object info) {
+        return String.format("%s %s", key, info.toString());
     }
 }
@@ -21,6 +21,7 @@ import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.StreamUtil;
+import com.android.tradefed.util.SubprocessBinaryEventHelper;
 import com.android.tradefed.util.SubprocessEventHelper.BaseTestEventInfo;
 import com.android.tradefed.util.SubprocessEventHelper.FailedTestEventInfo;
 import com.android.tradefed.util.SubprocessEventHelper.InvocationFailedEventInfo;
@@ -56,8 +57,18 @@ public class SubprocessResultsReporter implements ITestInvocationListener, AutoC
     @Option(name = "output-test-log", description = "Option to report test logs to parent process.")
     private boolean mOutputTestlog = false;
 
+    @Option(name = "subprocess-binary-events", description = "Send the events to the "
+            + "subprocess-report-port in a binary encoding, with the tests that pass sent in "
+            + "batches. Tests still running when the process dies may not be reported as started.")
+    private boolean mBinaryEvents = false;
+
+    @Option(name = "subprocess-max-batch-size", description = "The maximum number of tests that "
+            + "pass sent together with subprocess-binary-events.")
+    private int mMaxBatchSize = SubprocessBinaryEventHelper.DEFAULT_MAX_BATCH_SIZE;
+
     private Socket mReportSocket = null;
     private PrintWriter mPrintWriter = null;
+    private SubprocessBinaryEventHelper.EventWriter mEventWriter = null;
 
     private boolean mPrintWarning = true;
 
@@ -191,7 +202,14 @@ public class SubprocessResultsReporter implements ITestInvocationListener, AutoC
      */
     @Override
     public void invocationEnded(long elapsedTime) {
-        // ignore
+        if (mEventWriter != null) {
+            try {
+                // send the tests held back for batching
+                mEventWriter.flush();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
     }
 
     /**
@@ -236,11 +254,20 @@ public class SubprocessResultsReporter implements ITestInvocationListener, AutoC
             try {
                 if (mReportSocket == null) {
                     mReportSocket = new Socket("localhost", mReportPort.intValue());
-                    mPrintWriter = new PrintWriter(mReportSocket.getOutputStream(), true);
+                    if (mBinaryEvents) {
+                        mEventWriter = new SubprocessBinaryEventHelper.EventWriter(
+                                mReportSocket.getOutputStream(), mMaxBatchSize);
+                    } else {
+                        mPrintWriter = new PrintWriter(mReportSocket.getOutputStream(), true);
+                    }
                 }
                 if (!mReportSocket.isConnected()) {
                     throw new RuntimeException("Reporter Socket is not connected");
                 }
+                if (mEventWriter != null) {
+                    mEventWriter.writeEvent(key, event);
+                    return;
+                }
                 String eventLog = String.format("%s %s\n", key, event.toString());
                 mPrintWriter.print(eventLog);
                 mPrintWriter.flush();
@@ -260,6 +287,7 @@ public class SubprocessResultsReporter implements ITestInvocationListener, AutoC
     /** {@inheritDoc} */
     @Override
     public void close() {
+        StreamUtil.close(mEventWriter);
         StreamUtil.close(mReportSocket);
         StreamUtil.close(mPrintWriter);
     }
@@ -22,16 +22,25 @@ import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.ddmlib.testrunner.TestResult;
 import com.android.ddmlib.testrunner.TestResult.TestStatus;
 import com.android.ddmlib.testrunner.TestRunResult;
+import com.android.tradefed.config.Option;
 import com.android.tradefed.config.OptionClass;
+import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.StreamUtil;
 
 import org.kxml2.io.KXmlSerializer;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Map;
@@ -46,6 +55,11 @@ import java.util.TimeZone;
  * <p/>
  * Collects all test info in memory, then dumps to file when invocation is complete.
  * <p/>
+ * With --stream-results, test results are not kept in memory: each testcase element is written
+ * to a temporary file as the test ends, and copied into the report under a testsuite element
+ * written with the final counts when the invocation is complete. Tests of a test run re-run under
+ * the same name are then reported once per run rather than merged.
+ * <p/>
  * Ported from dalvik runner XmlReportPrinter.
  * <p/>
  * Result files will be stored in path constructed via [--output-file-path]/[build_id]
@@ -76,7 +90,115 @@ public class XmlResultReporter extends CollectingTestListener implements ILogSav
     /** the XML namespace */
     private static final String NS = null;
 
+    @Option(name = "stream-results", description = "write each test result to disk when the "
+            + "test ends, rather than keeping all the results in memory until the end of the "
+            + "invocation.")
+    private boolean mStreamResults = false;
+
     private ILogSaver mLogSaver;
+    private StreamingResultWriter mStreamingWriter = null;
+
+    /**
+     * Writes the testcase elements of the report to a temporary file as tests end.
+     */
+    private class StreamingResultWriter {
+        private final File mFile;
+        private final OutputStream mOutput;
+        private final KXmlSerializer mSerializer = new KXmlSerializer();
+        private TestIdentifier mTest = null;
+        private TestResult mResult = null;
+        private int mTotalCount = 0;
+        private int mFailureCount = 0;
+
+        StreamingResultWriter() throws IOException {
+            mFile = FileUtil.createTempFile("xml-testcases", ".xml");
+            mOutput = new BufferedOutputStream(new FileOutputStream(mFile));
+            mSerializer.setOutput(mOutput, "UTF-8");
+            mSerializer.setFeature(
+                    "http://xmlpull.org/v1/doc/features.html#indent-output", true);
+        }
+
+        void testStarted(TestIdentifier test) throws IOException {
+            // a test that never ended is reported as incomplete
+            writeCurrentTest();
+            mTest = test;
+            mResult = new TestResult();
+        }
+
+        void setResult(TestIdentifier test, TestStatus status, String trace) {
+            if (test.equals(mTest)) {
+                mResult.setStatus(status);
+                mResult.setStackTrace(trace);
+            }
+        }
+
+        void testEnded(TestIdentifier test) throws IOException {
+            if (!test.equals(mTest)) {
+                return;
+            }
+            if (TestStatus.INCOMPLETE.equals(mResult.getStatus())) {
+                // as TestRunResult, a test ending without failing passed
+                mResult.setStatus(TestStatus.PASSED);
+            }
+            writeCurrentTest();
+        }
+
+        private void writeCurrentTest() throws IOException {
+            if (mTest == null) {
+                return;
+            }
+            mTotalCount++;
+            if (TestStatus.FAILURE.equals(mResult.getStatus())) {
+                mFailureCount++;
+            }
+            print(mSerializer, mTest, mResult);
+            mTest = null;
+            mResult = null;
+        }
+
+        int getTotalCount() {
+            return mTotalCount;
+        }
+
+        int getFailureCount() {
+            return mFailureCount;
+        }
+
+        /** Write the last test if it did not end, and complete the temporary file. */
+        void finish() throws IOException {
+            writeCurrentTest();
+            mSerializer.flush();
+            mOutput.close();
+        }
+
+        /** Copy the testcase elements written, once finished. */
+        void copyTo(OutputStream output) throws IOException {
+            try (InputStream input = new BufferedInputStream(new FileInputStream(mFile))) {
+                StreamUtil.copyStreams(input, output);
+            }
+        }
+
+        void close() {
+            StreamUtil.close(mOutput);
+            FileUtil.deleteFile(mFile);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void invocationStarted(IInvocationContext context) {
+        super.invocationStarted(context);
+        if (mStreamResults) {
+            try {
+                mStreamingWriter = new StreamingResultWriter();
+            } catch (IOException e) {
+                CLog.e("Failed to create temporary file, keeping results in memory");
+                CLog.e(e);
+            }
+        }
+    }
 
     /**
      * {@inheritDoc}
@@ -84,15 +206,87 @@ public class XmlResultReporter extends CollectingTestListener implements ILogSav
     @Override
     public void invocationEnded(long elapsedTime) {
         super.invocationEnded(elapsedTime);
-        generateSummary(elapsedTime);
+        if (mStreamingWriter != null) {
+            generateStreamedSummary(elapsedTime);
+        } else {
+            generateSummary(elapsedTime);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testStarted(TestIdentifier test, long startTime) {
+        if (mStreamingWriter == null) {
+            super.testStarted(test, startTime);
+            return;
+        }
+        try {
+            mStreamingWriter.testStarted(test);
+        } catch (IOException e) {
+            streamingFailed(e);
+        }
     }
 
     @Override
     public void testFailed(TestIdentifier test, String trace) {
-        super.testFailed(test, trace);
+        if (mStreamingWriter == null) {
+            super.testFailed(test, trace);
+        } else {
+            mStreamingWriter.setResult(test, TestStatus.FAILURE, trace);
+        }
         CLog.d("%s : %s", test, trace);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testAssumptionFailure(TestIdentifier test, String trace) {
+        if (mStreamingWriter == null) {
+            super.testAssumptionFailure(test, trace);
+        } else {
+            mStreamingWriter.setResult(test, TestStatus.ASSUMPTION_FAILURE, trace);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testIgnored(TestIdentifier test) {
+        if (mStreamingWriter == null) {
+            super.testIgnored(test);
+        } else {
+            mStreamingWriter.setResult(test, TestStatus.IGNORED, "");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testEnded(TestIdentifier test, long endTime, Map<String, String> testMetrics) {
+        if (mStreamingWriter == null) {
+            super.testEnded(test, endTime, testMetrics);
+            return;
+        }
+        try {
+            mStreamingWriter.testEnded(test);
+        } catch (IOException e) {
+            streamingFailed(e);
+        }
+    }
+
+    private void streamingFailed(IOException e) {
+        // the results of the invocation cannot be reported anymore, do not keep trying
+        CLog.e("Failed to write test result to temporary file, results will be incomplete");
+        CLog.e(e);
+        mStreamingWriter.close();
+        mStreamingWriter = null;
+    }
+
     /**
      * Creates a report file and populates it with the report data from the completed tests.
      */
@@ -129,6 +323,53 @@ public class XmlResultReporter extends CollectingTestListener implements ILogSav
         }
     }
 
+    /**
+     * Creates a report file from the testcase elements streamed to disk.
+     */
+    private void generateStreamedSummary(long elapsedTime) {
+        String timestamp = getTimestamp();
+
+        File reportFile = null;
+        OutputStream outputStream = null;
+        InputStream inputStream = null;
+
+        try {
+            mStreamingWriter.finish();
+            reportFile = FileUtil.createTempFile(TEST_RESULT_FILE_PREFIX, ".xml");
+            outputStream = new BufferedOutputStream(new FileOutputStream(reportFile));
+            KXmlSerializer serializer = new KXmlSerializer();
+            serializer.setOutput(outputStream, "UTF-8");
+            serializer.startDocument("UTF-8", null);
+            serializer.setFeature(
+                    "http://xmlpull.org/v1/doc/features.html#indent-output", true);
+            startTestSuite(serializer, timestamp, elapsedTime, mStreamingWriter.getTotalCount(),
+                    mStreamingWriter.getFailureCount());
+            // the start tag is complete, insert the testcase elements written so far
+            serializer.flush();
+            mStreamingWriter.copyTo(outputStream);
+            serializer.endTag(NS, TESTSUITE);
+            serializer.endDocument();
+            outputStream.close();
+
+            inputStream = new BufferedInputStream(new FileInputStream(reportFile));
+            LogFile log = mLogSaver.saveLogData(TEST_RESULT_FILE_PREFIX, LogDataType.XML,
+                    inputStream);
+
+            String msg = String.format("XML test result file generated at %s. Total tests %d, " +
+                    "Failed %d", log.getPath(), mStreamingWriter.getTotalCount(),
+                    mStreamingWriter.getFailureCount());
+            Log.logAndDisplay(LogLevel.INFO, LOG_TAG, msg);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to generate report data");
+        } finally {
+            StreamUtil.close(outputStream);
+            StreamUtil.close(inputStream);
+            FileUtil.deleteFile(reportFile);
+            mStreamingWriter.close();
+            mStreamingWriter = null;
+        }
+    }
+
     /**
      * Return the current timestamp as a {@link String}.
      */
@@ -150,17 +391,8 @@ public class XmlResultReporter extends CollectingTestListener implements ILogSav
 
     void printTestResults(KXmlSerializer serializer, String timestamp, long elapsedTime)
             throws IOException {
-        serializer.startTag(NS, TESTSUITE);
-        serializer.attribute(NS, ATTR_NAME, getInvocationContext().getTestTag());
-        serializer.attribute(NS, ATTR_TESTS, Integer.toString(getNumTotalTests()));
-        serializer.attribute(
-                NS, ATTR_FAILURES, Integer.toString(getNumTestsInState(TestStatus.FAILURE)));
-        serializer.attribute(NS, ATTR_ERRORS, "0");
-        serializer.attribute(NS, ATTR_TIME, Long.toString(elapsedTime));
-        serializer.attribute(NS, TIMESTAMP, timestamp);
-        serializer.attribute(NS, HOSTNAME, "localhost");
-        serializer.startTag(NS, PROPERTIES);
-        serializer.endTag(NS, PROPERTIES);
+        startTestSuite(serializer, timestamp, elapsedTime, getNumTotalTests(),
+                getNumTestsInState(TestStatus.FAILURE));
 
         for (TestRunResult runResult : getRunResults()) {
             // TODO: add test run summaries as TESTSUITES ?
@@ -173,6 +405,23 @@ public class XmlResultReporter extends CollectingTestListener implements ILogSav
         serializer.endTag(NS, TESTSUITE);
     }
 
+    /**
+     * Write the testsuite start tag and its properties.
+     */
+    private void startTestSuite(KXmlSerializer serializer, String timestamp, long elapsedTime,
+            int totalTests, int failedTests) throws IOException {
+        serializer.startTag(NS, TESTSUITE);
+        serializer.attribute(NS, ATTR_NAME, getInvocationContext().getTestTag());
+        serializer.attribute(NS, ATTR_TESTS, Integer.toString(totalTests));
+        serializer.attribute(NS, ATTR_FAILURES, Integer.toString(failedTests));
+        serializer.attribute(NS, ATTR_ERRORS, "0");
+        serializer.attribute(NS, ATTR_TIME, Long.toString(elapsedTime));
+        serializer.attribute(NS, TIMESTAMP, timestamp);
+        serializer.attribute(NS, HOSTNAME, "localhost");
+        serializer.startTag(NS, PROPERTIES);
+        serializer.endTag(NS, PROPERTIES);
+    }
+
     void print(KXmlSerializer serializer, TestIdentifier testId, TestResult testResult)
             throws IOException {
 
@@ -203,6 +452,9 @@ public class XmlResultReporter extends CollectingTestListener implements ILogSav
      * Returns the text in a format that is safe for use in an XML document.
      */
     private String sanitize(String text) {
+        if (text == null) {
+            return "";
+        }
         return text.replace("\0", "<\\0>");
     }
 
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.targetprep;
+
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.DeviceConcurrentUtil;
+import com.android.tradefed.util.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Installs a batch of apks on a device.
+ * <p/>
+ * Apks are first pushed to the device in parallel, then installed from the device side one
+ * package manager session at a time. Apks whose exact content is already installed on the
+ * device (which implies the same package, version code and signature) can be skipped.
+ */
+public class BatchApkInstaller {
+
+    private static final String REMOTE_TMP_DIR = "/data/local/tmp/";
+    private static final String INSTALL_SUCCESS = "Success";
+    private static final long PUSH_TIMEOUT_MS = 10 * 60 * 1000;
+    private static final String PACKAGE_PREFIX = "package:";
+    /** Characters of apk file names that are not safe in shell commands */
+    private static final String UNSAFE_FILE_NAME_CHARS = "[^a-zA-Z0-9._-]";
+
+    private final ITestDevice mDevice;
+    private final List<String> mInstallArgs;
+    private final int mPushThreads;
+    private final boolean mSkipInstalled;
+
+    /** apk -> package name, in installation order */
+    private final Map<File, String> mApks = new LinkedHashMap<>();
+    /** apks skipped because they were already installed */
+    private final Set<File> mSkippedApks = new HashSet<>();
+
+    private int mSkippedCount = 0;
+    private int mInstalledCount = 0;
+    private long mInstalledBytes = 0;
+
+    /**
+     * Creates a {@link BatchApkInstaller}.
+     *
+     * @param device the {@link ITestDevice} to install on
+     * @param installArgs additional arguments to pass to the install command
+     * @param pushThreads the maximum number of apks to push concurrently
+     * @param skipInstalled whether to skip apks whose content is already installed
+     */
+    public BatchApkInstaller(ITestDevice device, List<String> installArgs, int pushThreads,
+            boolean skipInstalled) {
+        mDevice = device;
+        mInstallArgs = installArgs;
+        mPushThreads = Math.max(1, pushThreads);
+        mSkipInstalled = skipInstalled;
+    }
+
+    /**
+     * Adds an apk to install.
+     *
+     * @param apkFile the apk {@link File}
+     * @param packageName the package name of the apk
+     */
+    public void addApk(File apkFile, String packageName) {
+        mApks.put(apkFile, packageName);
+    }
+
+    /**
+     * Install all the apks added.
+     *
+     * @return a {@link Map} of the apks that failed to install to the reason of the failure.
+     * @throws DeviceNotAvailableException
+     */
+    public Map<File, String> install() throws DeviceNotAvailableException {
+        Map<File, String> failures = new LinkedHashMap<>();
+        long start = System.currentTimeMillis();
+        List<File> toInstall = new ArrayList<>(mApks.keySet());
+        if (mSkipInstalled) {
+            mSkippedApks.addAll(getInstalledApks());
+            toInstall.removeAll(mSkippedApks);
+            mSkippedCount = mApks.size() - toInstall.size();
+        }
+        if (toInstall.isEmpty()) {
+            CLog.i("All %d apks already installed on %s", mApks.size(), mDevice.getSerialNumber());
+            return failures;
+        }
+
+        Map<File, String> remotePaths = pushApks(toInstall, failures);
+        try {
+            List<String> args = new ArrayList<>(mInstallArgs);
+            if (mDevice.isRuntimePermissionSupported()) {
+                // grant all permissions, as ITestDevice#installPackage does
+                args.add("-g");
+            }
+            String argString = String.join(" ", args);
+            for (Map.Entry<File, String> apk : remotePaths.entrySet()) {
+                String output = mDevice.executeShellCommand(
+                        String.format("pm install -r %s %s", argString, apk.getValue()));
+                String result = output == null ? "" : output.trim();
+                if (result.contains(INSTALL_SUCCESS) && !result.contains("Failure")) {
+                    mInstalledCount++;
+                    mInstalledBytes += apk.getKey().length();
+                } else {
+                    failures.put(apk.getKey(), parseFailure(result));
+                }
+            }
+        } finally {
+            if (!remotePaths.isEmpty()) {
+                mDevice.executeShellCommand(
+                        String.format("rm -f %s", String.join(" ", remotePaths.values())));
+            }
+        }
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        CLog.i("Installed %d apks (%d bytes) on %s in %d ms (%.2f MB/s), %d skipped, %d failed",
+                mInstalledCount, mInstalledBytes, mDevice.getSerialNumber(),
+                elapsed, mInstalledBytes * 1000.0 / elapsed / (1024 * 1024), mSkippedCount,
+                failures.size());
+        return failures;
+    }
+
+    /** Returns the package name of an apk added to the batch. */
+    public String getPackageName(File apkFile) {
+        return mApks.get(apkFile);
+    }
+
+    /**
+     * Returns true if the apk was not installed because its content was already installed, in
+     * which case it is not reported as failed either.
+     */
+    public boolean isSkipped(File apkFile) {
+        return mSkippedApks.contains(apkFile);
+    }
+
+    /** Returns the number of apks installed. */
+    public int getInstalledCount() {
+        return mInstalledCount;
+    }
+
+    /** Returns the number of apks skipped because they were already installed. */
+    public int getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    /** Returns the total size of the apks installed. */
+    public long getInstalledBytes() {
+        return mInstalledBytes;
+    }
+
+    /**
+     * Push the apks to the device concurrently.
+     *
+     * @return a {@link Map} of the apks pushed successfully to their device path
+     */
+    private Map<File, String> pushApks(List<File> apks, Map<File, String> failures)
+            throws DeviceNotAvailableException {
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(mPushThreads, apks.size()), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "apk-push-" + mDevice.getSerialNumber());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        Map<File, String> remotePaths = new LinkedHashMap<>();
+        Map<File, Future<Boolean>> pushes = new LinkedHashMap<>();
+        try {
+            int index = 0;
+            for (final File apk : apks) {
+                // prefix with an index, apks from different directories can share a name, and
+                // the name is sanitized since the path is used in shell commands
+                final String remotePath = String.format("%stf_install_%d_%s", REMOTE_TMP_DIR,
+                        index++, apk.getName().replaceAll(UNSAFE_FILE_NAME_CHARS, "_"));
+                remotePaths.put(apk, remotePath);
+                pushes.put(apk, executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        return mDevice.pushFile(apk, remotePath);
+                    }
+                }));
+            }
+            for (Map.Entry<File, Future<Boolean>> push : pushes.entrySet()) {
+                Boolean pushed = null;
+                try {
+                    pushed = DeviceConcurrentUtil.joinFuture(
+                            "pushing " + push.getKey().getName(), push.getValue(),
+                            PUSH_TIMEOUT_MS);
+                } catch (TimeoutException e) {
+                    push.getValue().cancel(true);
+                }
+                if (!Boolean.TRUE.equals(pushed)) {
+                    failures.put(push.getKey(), "Failed to push apk to device");
+                    remotePaths.remove(push.getKey());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return remotePaths;
+    }
+
+    /**
+     * Returns the apks whose exact content is already installed on the device.
+     */
+    List<File> getInstalledApks() throws DeviceNotAvailableException {
+        List<File> installed = new ArrayList<>();
+        Set<String> packages = new HashSet<>(mApks.values());
+        // a single package manager call, printing "package:<path>=<package>" for each package
+        String output = mDevice.executeShellCommand("pm list packages -f");
+        // path -> package, for the packages of the batch
+        Map<String, String> installedPaths = new LinkedHashMap<>();
+        if (output != null) {
+            for (String line : output.split("\r?\n")) {
+                line = line.trim();
+                int separator = line.lastIndexOf('=');
+                if (!line.startsWith(PACKAGE_PREFIX) || separator < 0) {
+                    continue;
+                }
+                String packageName = line.substring(separator + 1);
+                if (packages.contains(packageName)) {
+                    installedPaths.put(line.substring(PACKAGE_PREFIX.length(), separator),
+                            packageName);
+                }
+            }
+        }
+        if (installedPaths.isEmpty()) {
+            return installed;
+        }
+        // printing "<md5> <path>" for each apk
+        output = mDevice.executeShellCommand(
+                String.format("md5sum %s", String.join(" ", installedPaths.keySet())));
+        Map<String, String> installedDigests = new HashMap<>();
+        if (output != null) {
+            for (String line : output.split("\r?\n")) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length >= 2 && fields[0].matches("[0-9a-fA-F]{32}")
+                        && installedPaths.containsKey(fields[1])) {
+                    installedDigests.put(installedPaths.get(fields[1]), fields[0].toLowerCase());
+                }
+            }
+        }
+        for (Map.Entry<File, String> apk : mApks.entrySet()) {
+            String installedDigest = installedDigests.get(apk.getValue());
+            if (installedDigest == null) {
+                continue;
+            }
+            try {
+                if (installedDigest.equals(FileUtil.calculateMd5(apk.getKey()))) {
+                    CLog.d("%s is already installed on %s, skipping", apk.getValue(),
+                            mDevice.getSerialNumber());
+                    installed.add(apk.getKey());
+                }
+            } catch (IOException e) {
+                CLog.w("Failed to compute digest of %s: %s", apk.getKey(), e.getMessage());
+            }
+        }
+        return installed;
+    }
+
+    /** Extract the failure reason from the package manager output. */
+    private static String parseFailure(String output) {
+        int start = output.indexOf('[');
+        int end = output.lastIndexOf(']');
+        if (output.startsWith("Failure") && start >= 0 && end > start) {
+            return output.substring(start + 1, end);
+        }
+        return output;
+    }
+}
@@ -30,6 +30,7 @@ import com.android.tradefed.targetprep.IDeviceFlasher.UserDataFlashOption;
 import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.RunUtil;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.concurrent.Semaphore;
@@ -47,6 +48,9 @@ public abstract class DeviceFlashPreparer implements ITargetCleaner {
 
     private static final int BOOT_POLL_TIME_MS = 5 * 1000;
 
+    /** Build attribute reporting how long the flasher waited before it was allowed to flash */
+    public static final String FLASH_QUEUE_WAIT_ATTRIBUTE = "flash_queue_wait_ms";
+
     @Option(name = "device-boot-time", description = "max time in ms to wait for device to boot.")
     private long mDeviceBootTime = 5 * 60 * 1000;
 
@@ -62,6 +66,11 @@ public abstract class DeviceFlashPreparer implements ITargetCleaner {
         "specify if system should always be flashed even if already running desired build.")
     private boolean mForceSystemFlash = false;
 
+    @Option(name = "skip-unchanged-partitions", description = "specify if partitions should not "
+            + "be flashed again when the device already contains the exact images last flashed "
+            + "onto it by this host.")
+    private boolean mSkipUnchangedPartitions = false;
+
     /*
      * A temporary workaround for special builds. Should be removed after changes from build team.
      * Bug: 18078421
@@ -106,6 +115,16 @@ public abstract class DeviceFlashPreparer implements ITargetCleaner {
      */
     private static Boolean sShouldCheckFlashLock = true;
 
+    private static final Object sFlashAdmissionLock = new Object();
+
+    private static FlashAdmissionController sFlashAdmissionController = null;
+
+    /**
+     * Like {@code sShouldCheckFlashLock}, but for {@code sFlashAdmissionController} which is only
+     * used if a flashing size or USB bus limit is set in the host options.
+     */
+    private static boolean sShouldCheckFlashAdmission = true;
+
     /**
      * Sets the device boot time
      * <p/>
@@ -229,6 +248,92 @@ public abstract class DeviceFlashPreparer implements ITargetCleaner {
         }
     }
 
+    /**
+     * Set the state of the flash admission control.
+     *
+     * Exposed for unit testing
+     */
+    void setFlashAdmissionSettings(FlashAdmissionController controller, boolean shouldCheck) {
+        synchronized (sFlashAdmissionLock) {
+            sFlashAdmissionController = controller;
+            sShouldCheckFlashAdmission = shouldCheck;
+        }
+    }
+
+    /**
+     * Returns the host-wide {@link FlashAdmissionController}, or <code>null</code> if no flashing
+     * size or USB bus limit is set in the host options.
+     */
+    private FlashAdmissionController getFlashAdmissionController() {
+        synchronized (sFlashAdmissionLock) {
+            if (sShouldCheckFlashAdmission && sFlashAdmissionController == null) {
+                IHostOptions hostOptions = getHostOptions();
+                Integer sizeLimit = hostOptions.getConcurrentFlashSizeLimit();
+                Integer busLimit = hostOptions.getConcurrentFlasherPerBusLimit();
+                if (sizeLimit == null && busLimit == null) {
+                    sShouldCheckFlashAdmission = false;
+                } else {
+                    CLog.i("using host-wide flashing size limit %s MB and usb bus limit %s",
+                            sizeLimit, busLimit);
+                    long maxBytes = sizeLimit == null ? Long.MAX_VALUE : sizeLimit * 1024L * 1024L;
+                    sFlashAdmissionController = new FlashAdmissionController(maxBytes, busLimit);
+                }
+            }
+            return sFlashAdmissionController;
+        }
+    }
+
+    /**
+     * Wait until the host-wide flashing size and USB bus limits allow flashing the build onto the
+     * device, if any such limit is set.
+     *
+     * Exposed for unit testing.
+     *
+     * @return the {@link FlashAdmissionController.Ticket} to release once flashing is done, or
+     *         <code>null</code> if there are no limits.
+     */
+    FlashAdmissionController.Ticket admitFlash(ITestDevice device,
+            IDeviceBuildInfo deviceBuild) {
+        FlashAdmissionController controller = getFlashAdmissionController();
+        if (controller == null) {
+            return null;
+        }
+        long bytes = getFlashSize(deviceBuild);
+        String usbBus = FlashAdmissionController.getUsbBus(device.getSerialNumber());
+        FlashAdmissionController.Ticket ticket =
+                controller.admit(device.getSerialNumber(), usbBus, bytes);
+        CLog.v("Flashing of %d bytes on usb bus %s admitted after %ds (%d flashers waiting)",
+                bytes, usbBus, TimeUnit.MILLISECONDS.toSeconds(ticket.getWaitTime()),
+                controller.getQueueLength());
+        return ticket;
+    }
+
+    /**
+     * Give back the budget acquired by {@link #admitFlash(ITestDevice, IDeviceBuildInfo)}.
+     *
+     * Exposed for unit testing.
+     */
+    void releaseFlash(FlashAdmissionController.Ticket ticket) {
+        if (ticket != null) {
+            getFlashAdmissionController().release(ticket);
+        }
+    }
+
+    /**
+     * Returns the number of bytes that flashing the build may write to the device.
+     */
+    private long getFlashSize(IDeviceBuildInfo deviceBuild) {
+        long bytes = 0;
+        for (File image : new File[] {deviceBuild.getDeviceImageFile(),
+                deviceBuild.getUserDataImageFile(), deviceBuild.getBootloaderImageFile(),
+                deviceBuild.getBasebandImageFile()}) {
+            if (image != null) {
+                bytes += image.length();
+            }
+        }
+        return bytes;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -251,19 +356,25 @@ public abstract class DeviceFlashPreparer implements ITargetCleaner {
             IDeviceFlasher flasher = createFlasher(device);
             flasher.setWipeTimeout(mWipeTimeout);
             // only surround fastboot related operations with flashing permit restriction
+            FlashAdmissionController.Ticket ticket = null;
             try {
                 long start = System.currentTimeMillis();
                 takeFlashingPermit();
                 CLog.v("Flashing permit obtained after %ds",
                         TimeUnit.MILLISECONDS.toSeconds((System.currentTimeMillis() - start)));
+                ticket = admitFlash(device, deviceBuild);
+                deviceBuild.addBuildAttribute(FLASH_QUEUE_WAIT_ATTRIBUTE,
+                        Long.toString(System.currentTimeMillis() - start));
 
                 flasher.overrideDeviceOptions(device);
                 flasher.setUserDataFlashOption(mUserDataFlashOption);
                 flasher.setForceSystemFlash(mForceSystemFlash);
+                flasher.setSkipUnchangedPartitions(mSkipUnchangedPartitions);
                 flasher.setDataWipeSkipList(mDataWipeSkipList);
                 preEncryptDevice(device, flasher);
                 flasher.flash(device, deviceBuild);
             } finally {
+                releaseFlash(ticket);
                 returnFlashingPermit();
             }
             // only want logcat captured for current build, delete any accumulated log data
@@ -296,6 +407,13 @@ public abstract class DeviceFlashPreparer implements ITargetCleaner {
                         device.getDeviceDescriptor());
             }
             device.postBootSetup();
+        } catch (TargetSetupError | BuildError | DeviceNotAvailableException
+                | RuntimeException e) {
+            if (mSkipUnchangedPartitions) {
+                // the device may not be running what the flasher recorded
+                FlashedImageCache.getInstance().invalidate(device.getSerialNumber());
+            }
+            throw e;
         } finally {
             // Allow interruption at the end no matter what.
             getRunUtil().allowInterrupt(true);
@@ -29,12 +29,16 @@ import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.RunUtil;
 import com.android.tradefed.util.ZipUtil2;
 
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipFile;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Random;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -63,6 +67,14 @@ public class FastbootDeviceFlasher implements IDeviceFlasher  {
 
     private boolean mForceSystemFlash;
 
+    private boolean mSkipUnchangedPartitions = false;
+
+    /**
+     * partition -> digest of the images written during the current flash, a <code>null</code>
+     * digest means the partition content is unknown.
+     */
+    private Map<String, String> mFlashedImages = new HashMap<>();
+
     /**
      * {@inheritDoc}
      */
@@ -125,15 +137,31 @@ public class FastbootDeviceFlasher implements IDeviceFlasher  {
         String systemBuildId = device.getBuildId();
         String systemBuildFlavor = device.getBuildFlavor();
 
-        device.rebootIntoBootloader();
-
-        downloadFlashingResources(device, deviceBuild);
-        preFlashSetup(device, deviceBuild);
-        handleUserDataFlashing(device, deviceBuild);
-        checkAndFlashBootloader(device, deviceBuild);
-        checkAndFlashBaseband(device, deviceBuild);
-        flashExtraImages(device, deviceBuild);
-        checkAndFlashSystem(device, systemBuildId, systemBuildFlavor, deviceBuild);
+        FlashedImageCache imageCache = getFlashedImageCache();
+        imageCache.validateBuild(device.getSerialNumber(), systemBuildId, systemBuildFlavor);
+        mFlashedImages.clear();
+        try {
+            device.rebootIntoBootloader();
+
+            downloadFlashingResources(device, deviceBuild);
+            preFlashSetup(device, deviceBuild);
+            handleUserDataFlashing(device, deviceBuild);
+            checkAndFlashBootloader(device, deviceBuild);
+            checkAndFlashBaseband(device, deviceBuild);
+            flashExtraImages(device, deviceBuild);
+            checkAndFlashSystem(device, systemBuildId, systemBuildFlavor, deviceBuild);
+        } catch (TargetSetupError | DeviceNotAvailableException | RuntimeException e) {
+            // partitions may have been partially written
+            imageCache.invalidate(device.getSerialNumber());
+            throw e;
+        }
+        if (mSkipUnchangedPartitions) {
+            imageCache.recordFlash(device.getSerialNumber(), mFlashedImages,
+                    deviceBuild.getDeviceBuildId(), deviceBuild.getBuildFlavor());
+        } else {
+            // images were written without being recorded
+            imageCache.invalidate(device.getSerialNumber());
+        }
     }
 
     /**
@@ -176,8 +204,58 @@ public class FastbootDeviceFlasher implements IDeviceFlasher  {
      */
     protected void flashPartition(ITestDevice device, File imgFile, String partition)
             throws DeviceNotAvailableException, TargetSetupError {
+        String digest = getImageDigest(imgFile, partition);
+        if (isImageFlashed(device, partition, digest)) {
+            return;
+        }
         CLog.d("fastboot flash %s %s", partition, imgFile.getAbsolutePath());
         executeLongFastbootCmd(device, "flash", partition, imgFile.getAbsolutePath());
+        mFlashedImages.put(partition, digest);
+    }
+
+    /**
+     * Compute the digest of an image to be flashed, if unchanged partitions should be skipped.
+     *
+     * @param imgFile the image {@link File}
+     * @param partition the name of the partition the image will be flashed to
+     * @return the digest of the image, or <code>null</code> if it should be flashed regardless
+     */
+    String getImageDigest(File imgFile, String partition) {
+        // userdata is flashed to reset its content, never skip it
+        if (!mSkipUnchangedPartitions || "userdata".equals(partition)) {
+            return null;
+        }
+        try {
+            return getFlashedImageCache().getDigest(imgFile);
+        } catch (IOException e) {
+            CLog.w("Failed to compute digest of %s: %s", imgFile.getAbsolutePath(),
+                    e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Check if the device partition already contains the image with the given digest, in which
+     * case it does not need to be flashed again.
+     */
+    private boolean isImageFlashed(ITestDevice device, String partition, String digest) {
+        if (digest != null && getFlashedImageCache().isFlashed(
+                device.getSerialNumber(), partition, digest)) {
+            CLog.i("Partition %s on %s already contains image %s, skipping flashing", partition,
+                    device.getSerialNumber(), digest);
+            mFlashedImages.put(partition, digest);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gets the {@link FlashedImageCache} instance to use.
+     * <p/>
+     * Exposed for unit testing
+     */
+    FlashedImageCache getFlashedImageCache() {
+        return FlashedImageCache.getInstance();
     }
 
     /**
@@ -346,9 +424,14 @@ public class FastbootDeviceFlasher implements IDeviceFlasher  {
      */
     protected void flashBootloader(ITestDevice device, File bootloaderImageFile)
             throws DeviceNotAvailableException, TargetSetupError {
+        String digest = getImageDigest(bootloaderImageFile, getBootPartitionName());
+        if (isImageFlashed(device, getBootPartitionName(), digest)) {
+            return;
+        }
         // bootloader images are small, and flash quickly. so use the 'normal' timeout
         executeFastbootCmd(device, "flash", getBootPartitionName(),
                 bootloaderImageFile.getAbsolutePath());
+        mFlashedImages.put(getBootPartitionName(), digest);
         device.rebootIntoBootloader();
     }
 
@@ -551,6 +634,13 @@ public class FastbootDeviceFlasher implements IDeviceFlasher  {
             throws DeviceNotAvailableException, TargetSetupError {
        if (shouldFlashSystem(systemBuildId, systemBuildFlavor, deviceBuild)) {
             CLog.i("Flashing system %s", deviceBuild.getDeviceBuildId());
+            // the update rewrites the partitions contained in the device image, so stop
+            // trusting what was recorded for them. The images flashed separately before, like
+            // the bootloader and baseband, are kept.
+            getFlashedImageCache().invalidate(device.getSerialNumber());
+            for (String partition : getUpdatedPartitions(deviceBuild)) {
+                mFlashedImages.remove(partition);
+            }
             flashSystem(device, deviceBuild);
             return true;
        }
@@ -561,6 +651,31 @@ public class FastbootDeviceFlasher implements IDeviceFlasher  {
        return false;
     }
 
+    /**
+     * Returns the partitions written by the update of the device image: the system partition, and
+     * the other images the device image contains.
+     */
+    private Collection<String> getUpdatedPartitions(IDeviceBuildInfo deviceBuild) {
+        Collection<String> partitions = new ArrayList<>();
+        partitions.add("system");
+        File deviceImage = deviceBuild.getDeviceImageFile();
+        if (deviceImage == null) {
+            return partitions;
+        }
+        try (ZipFile zip = new ZipFile(deviceImage)) {
+            Enumeration<ZipArchiveEntry> entries = zip.getEntries();
+            while (entries.hasMoreElements()) {
+                String name = entries.nextElement().getName();
+                if (name.endsWith(".img") && !name.contains("/")) {
+                    partitions.add(name.substring(0, name.length() - ".img".length()));
+                }
+            }
+        } catch (IOException e) {
+            CLog.w("Failed to list the images of %s: %s", deviceImage, e.getMessage());
+        }
+        return partitions;
+    }
+
     /**
      * Helper method used to determine if we need to flash the system image.
      *
@@ -755,6 +870,23 @@ public class FastbootDeviceFlasher implements IDeviceFlasher  {
         mForceSystemFlash = forceSystemFlash;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setSkipUnchangedPartitions(boolean skipUnchangedPartitions) {
+        mSkipUnchangedPartitions = skipUnchangedPartitions;
+    }
+
+    /**
+     * Returns the partitions written during the current flash, and the digests of their images.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    Map<String, String> getFlashedImages() {
+        return mFlashedImages;
+    }
+
     /**
      * {@inheritDoc}
      */
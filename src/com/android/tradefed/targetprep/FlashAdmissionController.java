@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.targetprep;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Admission control for concurrent flashing, budgeting flashers by the bytes they write and by
+ * the USB bus the device is attached to rather than by a plain count.
+ * <p/>
+ * Waiting flashers are admitted in arrival order. A flasher that only waits for its USB bus to
+ * free up does not hold back flashers on other buses, but one waiting for the byte budget holds
+ * back every flasher that arrived after it, so large images can not be starved by small ones.
+ * A single flash larger than the whole byte budget is admitted once nothing else is in flight.
+ */
+public class FlashAdmissionController {
+
+    /**
+     * Bus name used for devices whose USB bus could not be determined. Those devices may be on
+     * different buses, so the per-bus limit does not apply to them.
+     */
+    public static final String UNKNOWN_BUS = "unknown";
+
+    private static final String SYSFS_USB_DEVICES = "/sys/bus/usb/devices";
+
+    private final long mMaxBytesInFlight;
+    private final Integer mMaxFlashersPerBus;
+
+    private long mBytesInFlight = 0;
+    private int mFlashersInFlight = 0;
+    private final Map<String, Integer> mFlashersPerBus = new HashMap<>();
+    private final LinkedList<Ticket> mWaiting = new LinkedList<>();
+
+    private long mAdmittedCount = 0;
+    private long mTotalWaitMs = 0;
+    private long mMaxWaitMs = 0;
+
+    /**
+     * A flasher's claim on the flashing budget, returned by
+     * {@link FlashAdmissionController#admit(String, String, long)}.
+     */
+    public static class Ticket {
+        private final String mSerial;
+        private final String mUsbBus;
+        private final long mBytes;
+        private final long mRequestTime;
+        private long mAdmitTime = 0;
+
+        Ticket(String serial, String usbBus, long bytes, long requestTime) {
+            mSerial = serial;
+            mUsbBus = usbBus;
+            mBytes = bytes;
+            mRequestTime = requestTime;
+        }
+
+        /** Returns the serial of the device being flashed. */
+        public String getSerial() {
+            return mSerial;
+        }
+
+        /** Returns the USB bus the device is attached to. */
+        public String getUsbBus() {
+            return mUsbBus;
+        }
+
+        /** Returns the number of bytes the flasher is expected to write. */
+        public long getBytes() {
+            return mBytes;
+        }
+
+        /** Returns the time in ms the flasher spent waiting to be admitted. */
+        public long getWaitTime() {
+            return mAdmitTime - mRequestTime;
+        }
+    }
+
+    /**
+     * Creates a {@link FlashAdmissionController}.
+     *
+     * @param maxBytesInFlight the maximum number of bytes being flashed concurrently, or
+     *            {@link Long#MAX_VALUE} for no limit
+     * @param maxFlashersPerBus the maximum number of concurrent flashers per USB bus, or
+     *            <code>null</code> for no limit. Devices on {@link #UNKNOWN_BUS} are not limited.
+     */
+    public FlashAdmissionController(long maxBytesInFlight, Integer maxFlashersPerBus) {
+        mMaxBytesInFlight = maxBytesInFlight;
+        mMaxFlashersPerBus = maxFlashersPerBus;
+    }
+
+    /**
+     * Wait until flashing the given number of bytes onto the device is allowed.
+     * <p/>
+     * Waiting is uninterruptible, as is the case for the flashing permit of
+     * {@link DeviceFlashPreparer}. {@link #release(Ticket)} must be called once flashing is done.
+     *
+     * @param serial the serial of the device to flash
+     * @param usbBus the USB bus the device is attached to, see {@link #getUsbBus(String)}
+     * @param bytes the number of bytes that will be written to the device
+     * @return the {@link Ticket} to release once flashing is done
+     */
+    public synchronized Ticket admit(String serial, String usbBus, long bytes) {
+        Ticket ticket = new Ticket(serial, usbBus, bytes, getCurrentTime());
+        mWaiting.add(ticket);
+        admitWaiting();
+        boolean interrupted = false;
+        while (mWaiting.contains(ticket)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return ticket;
+    }
+
+    /**
+     * Give back the budget held by a flasher.
+     *
+     * @param ticket the {@link Ticket} returned by {@link #admit(String, String, long)}
+     */
+    public synchronized void release(Ticket ticket) {
+        mBytesInFlight -= ticket.mBytes;
+        mFlashersInFlight--;
+        mFlashersPerBus.put(ticket.mUsbBus, mFlashersPerBus.get(ticket.mUsbBus) - 1);
+        admitWaiting();
+    }
+
+    /**
+     * Admit as many waiting flashers as the budget allows. Must be called with the lock held.
+     */
+    private void admitWaiting() {
+        boolean admitted = false;
+        Iterator<Ticket> it = mWaiting.iterator();
+        while (it.hasNext()) {
+            Ticket ticket = it.next();
+            Integer busCount = mFlashersPerBus.get(ticket.mUsbBus);
+            if (busCount == null) {
+                busCount = 0;
+            }
+            if (mMaxFlashersPerBus != null && !UNKNOWN_BUS.equals(ticket.mUsbBus)
+                    && busCount >= mMaxFlashersPerBus) {
+                // only this bus is saturated, flashers on other buses can go ahead
+                continue;
+            }
+            if (mFlashersInFlight > 0 && mBytesInFlight + ticket.mBytes > mMaxBytesInFlight) {
+                // keep arrival order for the byte budget
+                break;
+            }
+            it.remove();
+            ticket.mAdmitTime = getCurrentTime();
+            mBytesInFlight += ticket.mBytes;
+            mFlashersInFlight++;
+            mFlashersPerBus.put(ticket.mUsbBus, busCount + 1);
+            long waitTime = ticket.getWaitTime();
+            mAdmittedCount++;
+            mTotalWaitMs += waitTime;
+            mMaxWaitMs = Math.max(mMaxWaitMs, waitTime);
+            admitted = true;
+        }
+        if (admitted) {
+            notifyAll();
+        }
+    }
+
+    /** Returns the number of flashers waiting to be admitted. */
+    public synchronized int getQueueLength() {
+        return mWaiting.size();
+    }
+
+    /** Returns the number of bytes currently being flashed. */
+    public synchronized long getBytesInFlight() {
+        return mBytesInFlight;
+    }
+
+    /** Returns the average time in ms flashers waited to be admitted. */
+    public synchronized long getAverageWaitTime() {
+        return mAdmittedCount == 0 ? 0 : mTotalWaitMs / mAdmittedCount;
+    }
+
+    /** Returns the longest time in ms a flasher waited to be admitted. */
+    public synchronized long getMaxWaitTime() {
+        return mMaxWaitMs;
+    }
+
+    /**
+     * Find the USB bus a device is attached to, by looking up its serial in sysfs.
+     *
+     * @param serial the device serial
+     * @return the bus number, or {@link #UNKNOWN_BUS} if it could not be determined
+     */
+    public static String getUsbBus(String serial) {
+        return getUsbBus(new File(SYSFS_USB_DEVICES), serial);
+    }
+
+    /**
+     * Exposed for unit testing.
+     */
+    static String getUsbBus(File usbDevicesDir, String serial) {
+        File[] usbDevices = usbDevicesDir.listFiles();
+        if (usbDevices == null) {
+            return UNKNOWN_BUS;
+        }
+        for (File usbDevice : usbDevices) {
+            File serialFile = new File(usbDevice, "serial");
+            // sysfs entries are named <bus>-<port>[.<port>...]
+            int busEnd = usbDevice.getName().indexOf('-');
+            if (busEnd <= 0 || !serialFile.isFile()) {
+                continue;
+            }
+            try {
+                if (serial.equals(FileUtil.readStringFromFile(serialFile).trim())) {
+                    return usbDevice.getName().substring(0, busEnd);
+                }
+            } catch (IOException e) {
+                CLog.d("Failed to read %s: %s", serialFile.getAbsolutePath(), e.getMessage());
+            }
+        }
+        return UNKNOWN_BUS;
+    }
+
+    /**
+     * Exposed for unit testing.
+     */
+    long getCurrentTime() {
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.targetprep;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A host-wide record of the partition images last flashed successfully onto each device.
+ * <p/>
+ * Entries are keyed by device serial, and map a partition name to the md5 digest of the image
+ * that was written to it. A device's entries are only trusted while the device still runs the
+ * build that was recorded with them; any mismatch (e.g. the device was flashed outside of this
+ * process) or any flashing failure drops all entries for that device.
+ */
+public class FlashedImageCache {
+
+    // use the "singleton inner class" pattern
+    // http://en.wikipedia.org/wiki/Singleton_pattern#The_solution_of_Bill_Pugh
+    private static class SingletonHolder {
+        public static final FlashedImageCache INSTANCE = new FlashedImageCache();
+    }
+
+    /** serial -> (partition -> image digest) */
+    private final Map<String, Map<String, String>> mFlashedImages = new HashMap<>();
+
+    /** serial -> build id and flavor the device was running after its last recorded flash */
+    private final Map<String, String> mFlashedBuilds = new HashMap<>();
+
+    /** image path -> digest of the image, valid as long as the file size and mtime match */
+    private final Map<String, FileDigest> mDigests = new HashMap<>();
+
+    private static class FileDigest {
+        final long mLength;
+        final long mLastModified;
+        final String mDigest;
+
+        FileDigest(long length, long lastModified, String digest) {
+            mLength = length;
+            mLastModified = lastModified;
+            mDigest = digest;
+        }
+    }
+
+    /**
+     * Get the singleton instance of {@link FlashedImageCache}
+     */
+    public static FlashedImageCache getInstance() {
+        return SingletonHolder.INSTANCE;
+    }
+
+    /**
+     * Exposed for unit testing; use {@link #getInstance()} otherwise.
+     */
+    FlashedImageCache() {
+    }
+
+    /**
+     * Compute the digest of an image file.
+     * <p/>
+     * Digests are remembered per path, so an image re-used by several invocations (e.g. from the
+     * {@link com.android.tradefed.build.FileDownloadCache}) is only hashed once unless it changes.
+     *
+     * @param image the image {@link File}
+     * @return the md5 digest of the file
+     * @throws IOException if the file could not be read
+     */
+    public String getDigest(File image) throws IOException {
+        String path = image.getAbsolutePath();
+        long length = image.length();
+        long lastModified = image.lastModified();
+        synchronized (mDigests) {
+            FileDigest cached = mDigests.get(path);
+            if (cached != null && cached.mLength == length
+                    && cached.mLastModified == lastModified) {
+                return cached.mDigest;
+            }
+        }
+        // hash outside of the lock, images can be several GB
+        String digest = FileUtil.calculateMd5(image);
+        synchronized (mDigests) {
+            mDigests.put(path, new FileDigest(length, lastModified, digest));
+        }
+        return digest;
+    }
+
+    /**
+     * Drop all entries for the device if it is not running the build recorded with them.
+     *
+     * @param serial the device serial
+     * @param buildId the build id currently reported by the device, may be <code>null</code>
+     * @param buildFlavor the build flavor currently reported by the device, may be
+     *            <code>null</code>
+     */
+    public synchronized void validateBuild(String serial, String buildId, String buildFlavor) {
+        String recorded = mFlashedBuilds.get(serial);
+        if (recorded == null) {
+            return;
+        }
+        if (buildId == null || buildFlavor == null
+                || !recorded.equals(getBuildKey(buildId, buildFlavor))) {
+            CLog.i("Device %s is not running the last build flashed (%s), dropping cached "
+                    + "partition state.", serial, recorded);
+            invalidate(serial);
+        }
+    }
+
+    /**
+     * Check if the given image is the one last flashed onto the device's partition.
+     *
+     * @param serial the device serial
+     * @param partition the partition name
+     * @param digest the digest of the image about to be flashed
+     * @return <code>true</code> if the partition already contains the image
+     */
+    public synchronized boolean isFlashed(String serial, String partition, String digest) {
+        Map<String, String> images = mFlashedImages.get(serial);
+        return images != null && digest != null && digest.equals(images.get(partition));
+    }
+
+    /**
+     * Record a successful flash of the device.
+     *
+     * @param serial the device serial
+     * @param images the digest of each partition written during the flash, a <code>null</code>
+     *            digest marks a partition whose content is unknown
+     * @param buildId the build id the device is expected to run after the flash
+     * @param buildFlavor the build flavor the device is expected to run after the flash
+     */
+    public synchronized void recordFlash(String serial, Map<String, String> images,
+            String buildId, String buildFlavor) {
+        if (buildId == null || buildFlavor == null) {
+            // we would have no way of detecting an external flash
+            invalidate(serial);
+            return;
+        }
+        Map<String, String> flashed = mFlashedImages.get(serial);
+        if (flashed == null) {
+            flashed = new HashMap<>();
+            mFlashedImages.put(serial, flashed);
+        }
+        for (Map.Entry<String, String> image : images.entrySet()) {
+            if (image.getValue() == null) {
+                flashed.remove(image.getKey());
+            } else {
+                flashed.put(image.getKey(), image.getValue());
+            }
+        }
+        mFlashedBuilds.put(serial, getBuildKey(buildId, buildFlavor));
+    }
+
+    /**
+     * Drop all entries for the device. Must be called whenever the device partition content can
+     * no longer be trusted, such as after a failed flash.
+     *
+     * @param serial the device serial
+     */
+    public synchronized void invalidate(String serial) {
+        mFlashedImages.remove(serial);
+        mFlashedBuilds.remove(serial);
+    }
+
+    private static String getBuildKey(String buildId, String buildFlavor) {
+        return String.format("%s:%s", buildId, buildFlavor.toLowerCase());
+    }
+}
@@ -95,6 +95,13 @@ public interface IDeviceFlasher {
      */
     public void setForceSystemFlash(boolean forceSystemFlash);
 
+    /**
+     * Sets if partitions should be skipped when the device already contains the exact images
+     * that were last flashed onto it by this host.
+     * @param skipUnchangedPartitions
+     */
+    public void setSkipUnchangedPartitions(boolean skipUnchangedPartitions);
+
     /**
      * Flashes build on device.
      * <p/>
@@ -159,6 +159,14 @@ public class SystemUpdaterDeviceFlasher implements IDeviceFlasher {
         mForceSystemFlash = forceSystemFlash;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setSkipUnchangedPartitions(boolean skipUnchangedPartitions) {
+        // ignore
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -35,7 +35,9 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A {@link ITargetPreparer} that installs one or more apps from a
@@ -92,6 +94,18 @@ public class TestAppInstallSetup implements ITargetCleaner, IAbiReceiver {
             + "when searching for apks to install")
     private AltDirBehavior mAltDirBehavior = AltDirBehavior.FALLBACK;
 
+    @Option(name = "parallel-install", description = "Push all the apks to the device "
+            + "concurrently before installing them, instead of installing them one by one.")
+    private boolean mParallelInstall = false;
+
+    @Option(name = "parallel-push-threads", description = "The maximum number of apks pushed "
+            + "concurrently when using --parallel-install.")
+    private int mParallelPushThreads = 4;
+
+    @Option(name = "skip-installed-apks", description = "When using --parallel-install, skip the "
+            + "apks whose exact content is already installed on the device.")
+    private boolean mSkipInstalledApks = false;
+
     private IAbi mAbi = null;
 
     private List<String> mPackagesInstalled = null;
@@ -160,6 +174,9 @@ public class TestAppInstallSetup implements ITargetCleaner, IAbiReceiver {
             setAltDir(testCasesDir);
         }
 
+        BatchApkInstaller batchInstaller = null;
+        // apk -> test file name, for the apks installed by batchInstaller
+        Map<File, String> batchApks = new LinkedHashMap<>();
         for (String testAppName : mTestFileNames) {
             if (testAppName == null || testAppName.trim().isEmpty()) {
                 continue;
@@ -198,25 +215,69 @@ public class TestAppInstallSetup implements ITargetCleaner, IAbiReceiver {
             if (abiName != null) {
                 mInstallArgs.add(String.format("--abi %s", abiName));
             }
+            if (mParallelInstall && batchInstaller == null) {
+                // created once the install args are complete
+                batchInstaller = createBatchApkInstaller(device);
+            }
             String packageName = parsePackageName(testAppFile, device.getDeviceDescriptor());
+            if (batchInstaller != null) {
+                batchInstaller.addApk(testAppFile, packageName);
+                batchApks.put(testAppFile, testAppName);
+                continue;
+            }
             CLog.d("Installing apk from %s ...", testAppFile.getAbsolutePath());
             String result = installPackage(device, testAppFile);
-            if (result != null) {
-                if (result.startsWith(INSTALL_FAILED_UPDATE_INCOMPATIBLE)) {
-                    // Try to uninstall package and reinstall.
-                    uninstallPackage(device, packageName);
-                    result = installPackage(device, testAppFile);
+            checkInstallResult(device, testAppName, testAppFile, packageName, result);
+        }
+        if (batchInstaller != null && !batchApks.isEmpty()) {
+            CLog.d("Installing %d apks in parallel ...", batchApks.size());
+            Map<File, String> failures = batchInstaller.install();
+            for (Map.Entry<File, String> apk : batchApks.entrySet()) {
+                File testAppFile = apk.getKey();
+                if (batchInstaller.isSkipped(testAppFile)) {
+                    // installed before, not by this preparer: leave it installed on cleanup
+                    continue;
                 }
+                checkInstallResult(device, apk.getValue(), testAppFile,
+                        batchInstaller.getPackageName(testAppFile), failures.get(testAppFile));
             }
-            if (result != null) {
-                throw new TargetSetupError(
-                        String.format("Failed to install %s on %s. Reason: '%s'", testAppName,
-                                device.getSerialNumber(), result), device.getDeviceDescriptor());
-            }
-            if (mCleanup) {
-                mPackagesInstalled.add(packageName);
+        }
+    }
+
+    /**
+     * Handle the result of an apk installation, retrying it if the package needs to be
+     * uninstalled first.
+     *
+     * @throws TargetSetupError if the apk could not be installed
+     */
+    private void checkInstallResult(ITestDevice device, String testAppName, File testAppFile,
+            String packageName, String result)
+            throws TargetSetupError, DeviceNotAvailableException {
+        if (result != null) {
+            if (result.startsWith(INSTALL_FAILED_UPDATE_INCOMPATIBLE)) {
+                // Try to uninstall package and reinstall.
+                uninstallPackage(device, packageName);
+                result = installPackage(device, testAppFile);
             }
         }
+        if (result != null) {
+            throw new TargetSetupError(
+                    String.format("Failed to install %s on %s. Reason: '%s'", testAppName,
+                            device.getSerialNumber(), result), device.getDeviceDescriptor());
+        }
+        if (mCleanup) {
+            mPackagesInstalled.add(packageName);
+        }
+    }
+
+    /**
+     * Create the {@link BatchApkInstaller} used with --parallel-install.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    BatchApkInstaller createBatchApkInstaller(ITestDevice device) {
+        return new BatchApkInstaller(device, new ArrayList<>(mInstallArgs),
+                mParallelPushThreads, mSkipInstalledApks);
     }
 
     @Override
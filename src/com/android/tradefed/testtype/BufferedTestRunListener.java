@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * A {@link ITestRunListener} that records the test run events it receives, so they can be
+ * forwarded later to another listener with {@link #replay(ITestRunListener)}.
+ * <p/>
+ * Used to run several test runs concurrently while still reporting each of them as a whole,
+ * since listeners expect test runs to be reported one after the other.
+ */
+public class BufferedTestRunListener implements ITestRunListener {
+
+    private final List<Consumer<ITestRunListener>> mEvents = new ArrayList<>();
+
+    /**
+     * Forward all the events recorded so far to the given listener, in the order they were
+     * received, and clear them.
+     *
+     * @param listener the {@link ITestRunListener} to forward events to
+     */
+    public synchronized void replay(ITestRunListener listener) {
+        for (Consumer<ITestRunListener> event : mEvents) {
+            event.accept(listener);
+        }
+        mEvents.clear();
+    }
+
+    /** Returns the number of events recorded and not replayed yet. */
+    public synchronized int size() {
+        return mEvents.size();
+    }
+
+    private synchronized void record(Consumer<ITestRunListener> event) {
+        mEvents.add(event);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testRunStarted(String runName, int testCount) {
+        record(l -> l.testRunStarted(runName, testCount));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testStarted(TestIdentifier test) {
+        record(l -> l.testStarted(test));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testStarted(TestIdentifier test, long startTime) {
+        record(l -> l.testStarted(test, startTime));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testFailed(TestIdentifier test, String trace) {
+        record(l -> l.testFailed(test, trace));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testAssumptionFailure(TestIdentifier test, String trace) {
+        record(l -> l.testAssumptionFailure(test, trace));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testIgnored(TestIdentifier test) {
+        record(l -> l.testIgnored(test));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+        Map<String, String> metrics = copy(testMetrics);
+        record(l -> l.testEnded(test, metrics));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testEnded(TestIdentifier test, long endTime, Map<String, String> testMetrics) {
+        Map<String, String> metrics = copy(testMetrics);
+        record(l -> l.testEnded(test, endTime, metrics));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testRunFailed(String errorMessage) {
+        record(l -> l.testRunFailed(errorMessage));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testRunStopped(long elapsedTime) {
+        record(l -> l.testRunStopped(elapsedTime));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+        Map<String, String> metrics = copy(runMetrics);
+        record(l -> l.testRunEnded(elapsedTime, metrics));
+    }
+
+    /** Copy metrics, the sender may keep modifying its map after the event was received. */
+    private static Map<String, String> copy(Map<String, String> metrics) {
+        return metrics == null ? null : new HashMap<>(metrics);
+    }
+}
@@ -29,6 +29,7 @@ import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.util.ArrayUtil;
 import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.RunInterruptedException;
 
 import com.google.common.annotations.VisibleForTesting;
 
@@ -39,9 +40,18 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
@@ -143,6 +153,18 @@ public class GTest
                     + "the same name as the binary with the .json extension.")
     private String mTestFilterKey = null;
 
+    @Option(name = "parallel-execution",
+            description = "Run the test binaries concurrently on the device. Each binary is still "
+                    + "reported as its own test run, once it completes. The before and after test "
+                    + "commands run once before and after all the binaries, rather than around "
+                    + "each of them.")
+    private boolean mParallelExecution = false;
+
+    @Option(name = "parallel-execution-limit",
+            description = "The maximum number of test binaries to run concurrently with "
+                    + "--parallel-execution. 0 to use the number of device cores.")
+    private int mParallelExecutionLimit = 0;
+
     private int mShardCount = 0;
     private int mShardIndex = 0;
     private boolean mIsSharded = false;
@@ -160,6 +182,8 @@ public class GTest
     private static final int GTEST_CMD_CHAR_LIMIT = 1000;
     // Expected extension for the filter file associated with the binary (json formatted file)
     protected static final String FILTER_EXTENSION = ".filter";
+    // Printed once all executables have been listed, to tell an empty listing from a failure
+    private static final String LIST_DONE_MARKER = "GTEST_LIST_DONE";
     /**
      * {@inheritDoc}
      */
@@ -222,6 +246,19 @@ public class GTest
         mMaxTestTimeMs = timeout;
     }
 
+    /**
+     * Set whether test binaries should run concurrently, and how many at most.
+     *
+     * @param parallel <code>true</code> to run test binaries concurrently
+     * @param limit the maximum number of binaries running at the same time, or 0 to use the
+     *            number of device cores
+     */
+    @VisibleForTesting
+    void setParallelExecution(boolean parallel, int limit) {
+        mParallelExecution = parallel;
+        mParallelExecutionLimit = limit;
+    }
+
     /**
      * Adds an exclusion file filter regex.
      *
@@ -453,6 +490,167 @@ public class GTest
         }
     }
 
+    /**
+     * Executes all native tests in a folder as well as in all subfolders recursively, running
+     * several test binaries concurrently.
+     * <p/>
+     * Each binary runs in its own shell with its own result parser, and its results are reported
+     * as a whole once it completes, in the order the binaries were listed. The before and after
+     * test commands run once around the whole batch, since running them around each binary would
+     * run them while other binaries are running.
+     *
+     * @param root The root folder to begin searching for native tests
+     * @param testDevice The device to run tests on
+     * @param listener the {@link ITestRunListener}
+     * @throws DeviceNotAvailableException
+     */
+    @VisibleForTesting
+    void doRunAllTestsInParallel(String root, final ITestDevice testDevice,
+            ITestRunListener listener) throws DeviceNotAvailableException {
+        List<String> binaries = listTestBinaries(root, testDevice);
+        if (binaries == null) {
+            CLog.w("Failed to list the test binaries in %s on %s, running them one at a time.",
+                    root, testDevice.getSerialNumber());
+            doRunAllTestsInSubdirectory(root, testDevice, listener);
+            return;
+        }
+        if (binaries.isEmpty()) {
+            return;
+        }
+        int threads = Math.min(binaries.size(), getParallelExecutionLimit(testDevice));
+        CLog.i("Running %d gtest binaries from %s on %s, %d at a time", binaries.size(), root,
+                testDevice.getSerialNumber(), threads);
+        // flags may need to be loaded from the device, get them before starting
+        Map<String, String> binaryFlags = new LinkedHashMap<>();
+        for (String binary : binaries) {
+            binaryFlags.put(binary, getAllGTestFlags(binary));
+        }
+        for (String cmd : mBeforeTestCmd) {
+            testDevice.executeShellCommand(cmd);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "gtest-" + testDevice.getSerialNumber());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        Map<String, BufferedTestRunListener> results = new LinkedHashMap<>();
+        Map<String, Future<?>> runs = new LinkedHashMap<>();
+        try {
+            for (final Map.Entry<String, String> binary : binaryFlags.entrySet()) {
+                final BufferedTestRunListener result = new BufferedTestRunListener();
+                results.put(binary.getKey(), result);
+                runs.put(binary.getKey(), executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        runTestBinary(testDevice, binary.getKey(), binary.getValue(), result);
+                        return null;
+                    }
+                }));
+            }
+            for (Map.Entry<String, Future<?>> run : runs.entrySet()) {
+                BufferedTestRunListener result = results.get(run.getKey());
+                try {
+                    run.getValue().get();
+                } catch (InterruptedException e) {
+                    throw new RunInterruptedException(String.format(
+                            "Interrupted while running %s", run.getKey()));
+                } catch (ExecutionException e) {
+                    // report what the binary managed to output before failing, as done when
+                    // running binaries one at a time
+                    result.replay(listener);
+                    Throwable cause = e.getCause();
+                    if (cause instanceof DeviceNotAvailableException) {
+                        throw (DeviceNotAvailableException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new RuntimeException(cause);
+                }
+                result.replay(listener);
+            }
+        } finally {
+            executor.shutdownNow();
+            for (String cmd : mAfterTestCmd) {
+                testDevice.executeShellCommand(cmd);
+            }
+        }
+    }
+
+    /**
+     * Run a single gtest binary of a parallel batch, without the before and after test commands.
+     *
+     * @param testDevice the {@link ITestDevice}
+     * @param fullPath absolute file system path to gtest binary on device
+     * @param flags gtest execution flags
+     * @param listener the {@link ITestRunListener} for the binary results
+     * @throws DeviceNotAvailableException
+     */
+    private void runTestBinary(ITestDevice testDevice, String fullPath, String flags,
+            ITestRunListener listener) throws DeviceNotAvailableException {
+        CLog.i("Running gtest %s %s on %s", fullPath, flags, testDevice.getSerialNumber());
+        if (mEnableXmlOutput) {
+            runTestXml(testDevice, fullPath, flags, listener, false);
+        } else {
+            runTest(testDevice, createResultParser(getFileName(fullPath), listener), fullPath,
+                    flags, false);
+        }
+    }
+
+    /**
+     * List all the test binaries under the given folder with a single shell command.
+     *
+     * @param root The root folder to begin searching for native tests
+     * @param testDevice The device to list tests on
+     * @return the sorted list of the full paths of the binaries not skipped, or
+     *         <code>null</code> if they could not be listed.
+     * @throws DeviceNotAvailableException
+     */
+    @VisibleForTesting
+    List<String> listTestBinaries(String root, ITestDevice testDevice)
+            throws DeviceNotAvailableException {
+        // files, or symlinks to files, readable and executable by their owner. The candidates are
+        // still checked with shouldSkipFile, as when running binaries one at a time.
+        String output = testDevice.executeShellCommand(String.format(
+                "find %s -xtype f -perm -500 && echo %s", root, LIST_DONE_MARKER));
+        if (output == null || !output.contains(LIST_DONE_MARKER)) {
+            return null;
+        }
+        List<String> binaries = new ArrayList<>();
+        for (String line : output.split("\r?\n")) {
+            String path = line.trim();
+            if (path.startsWith(root) && !shouldSkipFile(path)) {
+                binaries.add(path);
+            }
+        }
+        Collections.sort(binaries);
+        return binaries;
+    }
+
+    /**
+     * Get the number of binaries to run concurrently: the value of
+     * --parallel-execution-limit, or the number of device cores if not set.
+     */
+    private int getParallelExecutionLimit(ITestDevice testDevice)
+            throws DeviceNotAvailableException {
+        if (mParallelExecutionLimit > 0) {
+            return mParallelExecutionLimit;
+        }
+        String output = testDevice.executeShellCommand("grep -c ^processor /proc/cpuinfo");
+        try {
+            if (output != null) {
+                return Math.max(1, Integer.parseInt(output.trim()));
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        CLog.w("Failed to get the number of cores of %s: %s", testDevice.getSerialNumber(),
+                output);
+        return 1;
+    }
+
     String getFileName(String fullPath) {
         int pos = fullPath.lastIndexOf('/');
         if (pos == -1) {
@@ -487,6 +685,16 @@ public class GTest
         if (!isDeviceFileExecutable(fullPath)) {
             return true;
         }
+        return isFileExcluded(fullPath);
+    }
+
+    /**
+     * Helper method to determine if a file matches one of the exclusion filters.
+     *
+     * @param fullPath the full path of the file in question
+     * @return true if the file is excluded.
+     */
+    private boolean isFileExcluded(String fullPath) {
         if (mFileExclusionFilterRegex == null || mFileExclusionFilterRegex.isEmpty()) {
             return false;
         }
@@ -508,7 +716,12 @@ public class GTest
      */
     protected void executeCommandByScript(final ITestDevice testDevice, final String cmd,
             final IShellOutputReceiver resultParser) throws DeviceNotAvailableException {
-        String tmpFileDevice = "/data/local/tmp/gtest_script.sh";
+        executeCommandByScript(testDevice, cmd, resultParser, "/data/local/tmp/gtest_script.sh");
+    }
+
+    private void executeCommandByScript(final ITestDevice testDevice, final String cmd,
+            final IShellOutputReceiver resultParser, final String tmpFileDevice)
+            throws DeviceNotAvailableException {
         testDevice.pushString(String.format("#!/bin/bash\n%s", cmd), tmpFileDevice);
         // force file to be executable
         testDevice.executeShellCommand(String.format("chmod 755 %s", tmpFileDevice));
@@ -529,10 +742,28 @@ public class GTest
      */
     private void runTest(final ITestDevice testDevice, final IShellOutputReceiver resultParser,
             final String fullPath, final String flags) throws DeviceNotAvailableException {
+        runTest(testDevice, resultParser, fullPath, flags, true);
+    }
+
+    /**
+     * Run the given gtest binary
+     *
+     * @param testDevice the {@link ITestDevice}
+     * @param resultParser the test run output parser
+     * @param fullPath absolute file system path to gtest binary on device
+     * @param flags gtest execution flags
+     * @param runTestCmds whether to run the before and after test commands around the binary
+     * @throws DeviceNotAvailableException
+     */
+    private void runTest(final ITestDevice testDevice, final IShellOutputReceiver resultParser,
+            final String fullPath, final String flags, boolean runTestCmds)
+            throws DeviceNotAvailableException {
         // TODO: add individual test timeout support, and rerun support
         try {
-            for (String cmd : mBeforeTestCmd) {
-                testDevice.executeShellCommand(cmd);
+            if (runTestCmds) {
+                for (String cmd : mBeforeTestCmd) {
+                    testDevice.executeShellCommand(cmd);
+                }
             }
             String cmd = getGTestCmdLine(fullPath, flags);
             // ensure that command is not too long for adb
@@ -543,7 +774,13 @@ public class GTest
                         0 /* retryAttempts */);
             } else {
                 // wrap adb shell command in script if command is too long for direct execution
-                executeCommandByScript(testDevice, cmd, resultParser);
+                if (mParallelExecution) {
+                    // binaries running concurrently each need their own script
+                    executeCommandByScript(testDevice, cmd, resultParser, String.format(
+                            "/data/local/tmp/gtest_script%s.sh", fullPath.replace('/', '_')));
+                } else {
+                    executeCommandByScript(testDevice, cmd, resultParser);
+                }
             }
         } catch (DeviceNotAvailableException e) {
             throw e;
@@ -553,8 +790,10 @@ public class GTest
             // TODO: consider moving the flush of parser data on exceptions to TestDevice or
             // AdbHelper
             resultParser.flush();
-            for (String cmd : mAfterTestCmd) {
-                testDevice.executeShellCommand(cmd);
+            if (runTestCmds) {
+                for (String cmd : mAfterTestCmd) {
+                    testDevice.executeShellCommand(cmd);
+                }
             }
         }
     }
@@ -572,6 +811,22 @@ public class GTest
      */
     private void runTestXml(final ITestDevice testDevice, final String fullPath,
             final String flags, ITestRunListener listener) throws DeviceNotAvailableException {
+        runTestXml(testDevice, fullPath, flags, listener, true);
+    }
+
+    /**
+     * Run the given gtest binary and parse XML results
+     *
+     * @param testDevice the {@link ITestDevice}
+     * @param fullPath absolute file system path to gtest binary on device
+     * @param flags gtest execution flags
+     * @param listener the {@link ITestRunListener}
+     * @param runTestCmds whether to run the before and after test commands around the binary
+     * @throws DeviceNotAvailableException
+     */
+    private void runTestXml(final ITestDevice testDevice, final String fullPath,
+            final String flags, ITestRunListener listener, boolean runTestCmds)
+            throws DeviceNotAvailableException {
         CollectingOutputReceiver outputCollector = new CollectingOutputReceiver();
         File tmpOutput = null;
         try {
@@ -582,7 +837,7 @@ public class GTest
             String fullFlagCmd =  String.format("%s %s", flags, extraFlag);
 
             // Run the tests with modified flags
-            runTest(testDevice, outputCollector, fullPath, fullFlagCmd);
+            runTest(testDevice, outputCollector, fullPath, fullFlagCmd, runTestCmds);
             // Pull the result file, may not exist if issue with the test.
             testDevice.pullFile(tmpResName, tmpOutput);
             // Clean the file on the device
@@ -598,8 +853,10 @@ public class GTest
             throw new RuntimeException(e);
         } finally {
             outputCollector.flush();
-            for (String cmd : mAfterTestCmd) {
-                testDevice.executeShellCommand(cmd);
+            if (runTestCmds) {
+                for (String cmd : mAfterTestCmd) {
+                    testDevice.executeShellCommand(cmd);
+                }
             }
             FileUtil.deleteFile(tmpOutput);
         }
@@ -716,7 +973,11 @@ public class GTest
         }
         Throwable throwable = null;
         try {
-            doRunAllTestsInSubdirectory(testPath, mDevice, listener);
+            if (mParallelExecution) {
+                doRunAllTestsInParallel(testPath, mDevice, listener);
+            } else {
+                doRunAllTestsInSubdirectory(testPath, mDevice, listener);
+            }
         } catch (Throwable t) {
             throwable = t;
             throw t;
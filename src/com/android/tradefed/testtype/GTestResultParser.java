@@ -16,11 +16,13 @@
 package com.android.tradefed.testtype;
 
 import com.android.ddmlib.IShellOutputReceiver;
-import com.android.ddmlib.MultiLineReceiver;
+import com.android.ddmlib.Log.LogLevel;
 import com.android.ddmlib.testrunner.ITestRunListener;
 import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.log.LogRegistry;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.testtype.testdefs.XmlDefsTest;
+import com.android.tradefed.util.StreamingLineReceiver;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -86,7 +88,14 @@ import java.util.regex.Pattern;
  *
  * All other lines are ignored.
  */
-public class GTestResultParser extends MultiLineReceiver {
+public class GTestResultParser extends StreamingLineReceiver {
+    private static final Pattern TEST_TIME_PATTERN =
+            Pattern.compile(".*(\\((\\d+) ms\\))"); // eg: (XX ms)
+    private static final Pattern NUM_TESTS_PATTERN =
+            Pattern.compile("Running (\\d+) test[s]? from .*");
+    private static final Pattern RUN_TIME_PATTERN =
+            Pattern.compile(".*\\((\\d+) ms total\\)"); // eg: (XX ms total)
+
     // Variables to keep track of state
     private TestResult mCurrentTestResult = null;
     private int mNumTestsRun = 0;
@@ -108,6 +117,11 @@ public class GTestResultParser extends MultiLineReceiver {
     /** Whether or not to prepend filename to classname. */
     private boolean mPrependFileName = false;
 
+    /** Whether the output is echoed to the verbose log, checked on the first line. */
+    private Boolean mLogOutput = null;
+
+    /** Output received since it was last logged. */
+    private final StringBuilder mVerboseOutput = new StringBuilder();
 
     public void setPrependFileName(boolean prepend) {
         mPrependFileName = prepend;
@@ -254,11 +268,30 @@ public class GTestResultParser extends MultiLineReceiver {
      * {@inheritDoc}
      */
     @Override
-    public void processNewLines(String[] lines) {
-        for (String line : lines) {
-            parse(line);
-            // in verbose mode, dump all adb output to log
-            CLog.v(line);
+    public void processLine(CharSequence line) {
+        parse(line);
+        if (mLogOutput == null) {
+            mLogOutput = LogRegistry.getLogRegistry().isLoggable(LogLevel.VERBOSE);
+        }
+        // in verbose mode, dump all adb output to log
+        if (mLogOutput) {
+            if (mVerboseOutput.length() > 0) {
+                mVerboseOutput.append('\n');
+            }
+            mVerboseOutput.append(line);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Logs the output processed, once per chunk rather than once per line.
+     */
+    @Override
+    protected void linesProcessed() {
+        if (mVerboseOutput.length() > 0) {
+            CLog.v(mVerboseOutput.toString());
+            mVerboseOutput.setLength(0);
         }
     }
 
@@ -267,20 +300,20 @@ public class GTestResultParser extends MultiLineReceiver {
      *
      * @param line  Text output line
      */
-    private void parse(String line) {
+    private void parse(CharSequence line) {
         String message = null;
 
-        if (mTestRunInProgress || line.startsWith(Prefixes.TEST_RUN_MARKER)) {
-            if (line.startsWith(Prefixes.START_TEST_MARKER)) {
+        if (mTestRunInProgress || startsWith(line, Prefixes.TEST_RUN_MARKER)) {
+            int markerIndex = -1;
+            if (startsWith(line, Prefixes.START_TEST_MARKER)) {
                 // Individual test started
-                message = line.substring(Prefixes.START_TEST_MARKER.length()).trim();
+                message = getMessage(line, 0, Prefixes.START_TEST_MARKER);
                 processTestStartedTag(message);
             }
-            else if (line.contains(Prefixes.OK_TEST_MARKER)) {
+            else if ((markerIndex = indexOf(line, Prefixes.OK_TEST_MARKER)) >= 0) {
                 // Individual test completed successfully
                 // Logs from test could offset the OK marker
-                message = line.substring(line.indexOf(Prefixes.OK_TEST_MARKER) +
-                        Prefixes.OK_TEST_MARKER.length()).trim();
+                message = getMessage(line, markerIndex, Prefixes.OK_TEST_MARKER);
                 if (!testInProgress()) {
                     // If we are missing the RUN tag, skip it wrong format
                     CLog.e("Found %s without %s before, Ensure you are using GTest format",
@@ -290,18 +323,16 @@ public class GTestResultParser extends MultiLineReceiver {
                 processOKTag(message);
                 clearCurrentTestResult();
             }
-            else if (line.contains(Prefixes.ALT_OK_MARKER)) {
-                message = line.substring(line.indexOf(Prefixes.ALT_OK_MARKER) +
-                        Prefixes.ALT_OK_MARKER.length()).trim();
+            else if ((markerIndex = indexOf(line, Prefixes.ALT_OK_MARKER)) >= 0) {
+                message = getMessage(line, markerIndex, Prefixes.ALT_OK_MARKER);
                 // This alternative format does not have a RUN tag, so we fake it.
                 fakeRunMarker(message);
                 processOKTag(message);
                 clearCurrentTestResult();
             }
-            else if (line.contains(Prefixes.FAILED_TEST_MARKER)) {
+            else if ((markerIndex = indexOf(line, Prefixes.FAILED_TEST_MARKER)) >= 0) {
                 // Individual test completed with failure
-                message = line.substring(line.indexOf(Prefixes.FAILED_TEST_MARKER) +
-                        Prefixes.FAILED_TEST_MARKER.length()).trim();
+                message = getMessage(line, markerIndex, Prefixes.FAILED_TEST_MARKER);
                 if (!testInProgress()) {
                     // If we are missing the RUN tag (ALT format)
                     fakeRunMarker(message);
@@ -309,25 +340,24 @@ public class GTestResultParser extends MultiLineReceiver {
                 processFailedTag(message);
                 clearCurrentTestResult();
             }
-            else if (line.contains(Prefixes.TIMEOUT_MARKER)) {
+            else if ((markerIndex = indexOf(line, Prefixes.TIMEOUT_MARKER)) >= 0) {
                 // Individual test timeout is considered a failure
-                message = line.substring(line.indexOf(Prefixes.TIMEOUT_MARKER) +
-                        Prefixes.TIMEOUT_MARKER.length()).trim();
+                message = getMessage(line, markerIndex, Prefixes.TIMEOUT_MARKER);
                 fakeRunMarker(message);
                 processFailedTag(message);
                 clearCurrentTestResult();
             }
-            else if (line.startsWith(Prefixes.START_TEST_RUN_MARKER)) {
+            else if (startsWith(line, Prefixes.START_TEST_RUN_MARKER)) {
                 // Test run started
                 // Make sure to leave the "Running" in the string
-                message = line.substring(Prefixes.TEST_RUN_MARKER.length()).trim();
+                message = getMessage(line, 0, Prefixes.TEST_RUN_MARKER);
                 processRunStartedTag(message);
             }
-            else if (line.startsWith(Prefixes.TEST_RUN_MARKER)) {
+            else if (startsWith(line, Prefixes.TEST_RUN_MARKER)) {
                 // Test run ended
                 // This is for the end of the test suite run, so make sure this else-if is after the
                 // check for START_TEST_SUITE_MARKER
-                message = line.substring(Prefixes.TEST_RUN_MARKER.length()).trim();
+                message = getMessage(line, 0, Prefixes.TEST_RUN_MARKER);
                 processRunCompletedTag(message);
             }
             else if (testInProgress()) {
@@ -337,6 +367,17 @@ public class GTestResultParser extends MultiLineReceiver {
         }
     }
 
+    /**
+     * Returns the trimmed text following a marker found in a line.
+     *
+     * @param line the output line
+     * @param markerIndex the index of the marker in the line
+     * @param marker the marker
+     */
+    private static String getMessage(CharSequence line, int markerIndex, String marker) {
+        return line.subSequence(markerIndex + marker.length(), line.length()).toString().trim();
+    }
+
     /**
      * Returns true if test run canceled.
      *
@@ -443,8 +484,7 @@ public class GTestResultParser extends MultiLineReceiver {
     private ParsedTestInfo parseTestIdentifier(String identifier) {
         ParsedTestInfo returnInfo = new ParsedTestInfo("UNKNOWN_CLASS", "UNKNOWN_TEST", null);
 
-        Pattern timePattern = Pattern.compile(".*(\\((\\d+) ms\\))");  // eg: (XX ms)
-        Matcher time = timePattern.matcher(identifier);
+        Matcher time = TEST_TIME_PATTERN.matcher(identifier);
 
         // Try to find a time
         if (time.find()) {
@@ -472,8 +512,7 @@ public class GTestResultParser extends MultiLineReceiver {
      */
     private void processRunStartedTag(String identifier) {
         // eg: (Running XX tests from 1 test case.)
-        Pattern numTestsPattern = Pattern.compile("Running (\\d+) test[s]? from .*");
-        Matcher numTests = numTestsPattern.matcher(identifier);
+        Matcher numTests = NUM_TESTS_PATTERN.matcher(identifier);
 
         // Try to find number of tests
         if (numTests.find()) {
@@ -501,8 +540,7 @@ public class GTestResultParser extends MultiLineReceiver {
      * @param identifier Raw log output from the suite ended tag
      */
     private void processRunCompletedTag(String identifier) {
-        Pattern timePattern = Pattern.compile(".*\\((\\d+) ms total\\)");  // eg: (XX ms total)
-        Matcher time = timePattern.matcher(identifier);
+        Matcher time = RUN_TIME_PATTERN.matcher(identifier);
 
         // Try to find the total run time
         if (time.find()) {
@@ -659,7 +697,7 @@ public class GTestResultParser extends MultiLineReceiver {
      *
      * @param line Raw test result line of output.
      */
-    private void appendTestOutputLine(String line) {
+    private void appendTestOutputLine(CharSequence line) {
         TestResult testResult = getCurrentTestResult();
         if (testResult.mStackTrace == null) {
             testResult.mStackTrace = new StringBuilder();
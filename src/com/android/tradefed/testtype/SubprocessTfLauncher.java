@@ -71,6 +71,11 @@ public abstract class SubprocessTfLauncher
             + "arrived instead of using a temporary file and parsing at the end.")
     private boolean mEventStreaming = true;
 
+    @Option(name = "use-binary-events", description = "With use-event-streaming, have the "
+            + "subprocess send its events in a binary encoding, cheaper to parse. Requires the "
+            + "subprocess to support the subprocess-binary-events option.")
+    private boolean mBinaryEvents = false;
+
     @Option(name = "sub-global-config", description = "The global config name to pass to the"
             + "sub process, can be local or from jar resources. Be careful of conflicts with "
             + "parent process.")
@@ -242,6 +247,9 @@ public abstract class SubprocessTfLauncher
             if (mEventStreaming) {
                 mCmdArgs.add("--subprocess-report-port");
                 mCmdArgs.add(Integer.toString(eventParser.getSocketServerPort()));
+                if (mBinaryEvents) {
+                    mCmdArgs.add("--subprocess-binary-events");
+                }
             } else {
                 eventFile = FileUtil.createTempFile("event_subprocess_", ".log");
                 mCmdArgs.add("--subprocess-report-file");
@@ -24,6 +24,8 @@ import com.android.tradefed.config.OptionCopier;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.DeviceArtifactCollector;
+import com.android.tradefed.result.DeviceArtifactCollector.ArtifactType;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.LogDataType;
@@ -83,6 +85,18 @@ public abstract class ITestSuite
             description = "Reboot the device after every test failure.")
     private boolean mRebootOnFailure = false;
 
+    @Option(name = "async-failure-artifacts",
+            description = "Capture the bugreports, logcat and screenshots of test failures in the "
+            + "background instead of blocking the tests.")
+    private boolean mAsyncFailureArtifacts = false;
+
+    @Option(name = "bugreport-on-failure-window",
+            description = "When capturing failure artifacts in the background, the time in ms "
+            + "after a bugreport during which failures do not take another one.",
+            isTimeVal = true)
+    private long mBugreportOnFailureWindowMs =
+            DeviceArtifactCollector.DEFAULT_BUGREPORT_COALESCE_WINDOW_MS;
+
     // Options for suite runner behavior
     @Option(name = "reboot-per-module", description = "Reboot the device before every module run.")
     private boolean mRebootPerModule = false;
@@ -188,6 +202,13 @@ public abstract class ITestSuite
                         mScreenshotOnFailure,
                         mRebootOnFailure,
                         mMaxLogcatBytes);
+        DeviceArtifactCollector artifactCollector = null;
+        if (mAsyncFailureArtifacts) {
+            artifactCollector = new DeviceArtifactCollector(getDevice(), failureListener);
+            artifactCollector.setCoalesceWindow(ArtifactType.BUGREPORT,
+                    mBugreportOnFailureWindowMs);
+            failureListener.setArtifactCollector(artifactCollector);
+        }
 
         // Only print the running log if we are going to run something.
         if (runModules.get(0).hasTests()) {
@@ -220,6 +241,10 @@ public abstract class ITestSuite
                 listener.testRunEnded(0, Collections.emptyMap());
             }
             throw e;
+        } finally {
+            if (artifactCollector != null) {
+                artifactCollector.close();
+            }
         }
     }
 
@@ -19,6 +19,8 @@ import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.DeviceArtifactCollector;
+import com.android.tradefed.result.DeviceArtifactCollector.ArtifactType;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.LogDataType;
@@ -49,6 +51,7 @@ public class TestFailureListener implements ITestInvocationListener {
     private boolean mRebootOnFailure;
     private int mMaxLogcatBytes;
     private Map<TestIdentifier, Long> mTrackStartTime = new HashMap<>();
+    private DeviceArtifactCollector mArtifactCollector = null;
 
     public TestFailureListener(ITestInvocationListener listener, ITestDevice device,
             boolean bugReportOnFailure, boolean logcatOnFailure, boolean screenshotOnFailure,
@@ -73,11 +76,23 @@ public class TestFailureListener implements ITestInvocationListener {
         }
     }
 
+    /**
+     * Capture the artifacts in the background with a {@link DeviceArtifactCollector} logging to
+     * this listener, instead of on the test thread when a test fails. The artifacts are logged as
+     * the next tests start and end, and all of them by the end of the test run.
+     */
+    public void setArtifactCollector(DeviceArtifactCollector collector) {
+        mArtifactCollector = collector;
+    }
+
     /**
      * We override testStarted in order to track the start time.
      */
     @Override
     public void testStarted(TestIdentifier test) {
+        if (mArtifactCollector != null) {
+            mArtifactCollector.logCompleted();
+        }
         if (mLogcatOnFailure) {
             try {
                 mTrackStartTime.put(test, mDevice.getDeviceDate());
@@ -97,6 +112,19 @@ public class TestFailureListener implements ITestInvocationListener {
         if (mLogcatOnFailure) {
             mTrackStartTime.remove(test);
         }
+        if (mArtifactCollector != null) {
+            mArtifactCollector.logCompleted();
+        }
+    }
+
+    /**
+     * Make sure the artifacts captured in the background are logged before the run ends.
+     */
+    @Override
+    public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+        if (mArtifactCollector != null) {
+            mArtifactCollector.flush();
+        }
     }
 
     /**
@@ -106,6 +134,37 @@ public class TestFailureListener implements ITestInvocationListener {
     public void testFailed(TestIdentifier test, String trace) {
         CLog.i("FailureListener.testFailed %s %b %b %b", test.toString(), mBugReportOnFailure,
                 mLogcatOnFailure, mScreenshotOnFailure);
+        if (mArtifactCollector != null) {
+            requestArtifacts(test);
+        } else {
+            captureArtifacts(test);
+        }
+        if (mRebootOnFailure) {
+            if (mArtifactCollector != null) {
+                // do not reboot the device while capturing from it
+                mArtifactCollector.flush();
+            }
+            try {
+                // Rebooting on all failures can hide legitimate issues and platform instabilities,
+                // therefore only allowed on "user-debug" and "eng" builds.
+                if ("user".equals(mDevice.getProperty("ro.build.type"))) {
+                    CLog.e("Reboot-on-failure should only be used during development," +
+                            " this is a\" user\" build device");
+                } else {
+                    mDevice.reboot();
+                }
+            } catch (DeviceNotAvailableException e) {
+                CLog.e(e);
+                CLog.e("Device %s became unavailable while rebooting",
+                        mDevice.getSerialNumber());
+            }
+        }
+    }
+
+    /**
+     * Capture the artifacts of a failed test on the calling thread.
+     */
+    private void captureArtifacts(TestIdentifier test) {
         if (mScreenshotOnFailure) {
             try {
                 InputStreamSource screenSource = mDevice.getScreenshot();
@@ -129,34 +188,40 @@ public class TestFailureListener implements ITestInvocationListener {
            bugSource.cancel();
         }
         if (mLogcatOnFailure) {
-            InputStreamSource logSource = null;
-            Long startTime = mTrackStartTime.remove(test);
-            if (startTime != null) {
-                logSource = mDevice.getLogcatSince(startTime);
-            } else {
-                // sleep 2s to ensure test failure stack trace makes it into logcat capture
-                getRunUtil().sleep(2 * 1000);
-                logSource = mDevice.getLogcat(mMaxLogcatBytes);
-            }
+            InputStreamSource logSource = getLogcat(mTrackStartTime.remove(test));
             testLog(String.format("%s-logcat", test.toString()), LogDataType.LOGCAT, logSource);
             logSource.cancel();
         }
-        if (mRebootOnFailure) {
-            try {
-                // Rebooting on all failures can hide legitimate issues and platform instabilities,
-                // therefore only allowed on "user-debug" and "eng" builds.
-                if ("user".equals(mDevice.getProperty("ro.build.type"))) {
-                    CLog.e("Reboot-on-failure should only be used during development," +
-                            " this is a\" user\" build device");
-                } else {
-                    mDevice.reboot();
-                }
-            } catch (DeviceNotAvailableException e) {
-                CLog.e(e);
-                CLog.e("Device %s became unavailable while rebooting",
-                        mDevice.getSerialNumber());
-            }
+    }
+
+    /**
+     * Request the artifacts of a failed test from the {@link DeviceArtifactCollector}.
+     */
+    private void requestArtifacts(TestIdentifier test) {
+        if (mScreenshotOnFailure) {
+            mArtifactCollector.requestScreenshot(String.format("%s-screenshot", test.toString()));
+        }
+        if (mBugReportOnFailure) {
+            mArtifactCollector.requestBugreport(String.format("%s-bugreport", test.toString()));
+        }
+        if (mLogcatOnFailure) {
+            Long startTime = mTrackStartTime.remove(test);
+            mArtifactCollector.request(ArtifactType.LOGCAT,
+                    String.format("%s-logcat", test.toString()), LogDataType.LOGCAT,
+                    () -> getLogcat(startTime));
+        }
+    }
+
+    /**
+     * Returns the logcat since <var>startTime</var>, or the last bytes of the logcat if unknown.
+     */
+    private InputStreamSource getLogcat(Long startTime) {
+        if (startTime != null) {
+            return mDevice.getLogcatSince(startTime);
         }
+        // sleep 2s to ensure test failure stack trace makes it into logcat capture
+        getRunUtil().sleep(2 * 1000);
+        return mDevice.getLogcat(mMaxLogcatBytes);
     }
 
     @Override
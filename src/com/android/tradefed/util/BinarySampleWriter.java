@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes samples of a fixed set of columns to a compact binary file, for measurements collected
+ * over a long time that are too large to keep in memory or to log as text.
+ * <p/>
+ * The file starts with a header: a magic number, a version, the start time in ms since epoch and
+ * the names of the columns. It is followed by records, each starting with a type byte:
+ * <ul>
+ * <li>a series record declares the name of a series of samples, with a short id;</li>
+ * <li>a sample record holds the id of its series, the time of the sample as an int offset in ms
+ * from the start time, and a float per column.</li>
+ * </ul>
+ * Samples can be read back with {@link #read(File)}.
+ */
+public class BinarySampleWriter implements Closeable {
+
+    static final int MAGIC = 0x54465350;
+    static final byte VERSION = 1;
+    private static final byte SERIES_RECORD = 0;
+    private static final byte SAMPLE_RECORD = 1;
+
+    private final DataOutputStream mOutput;
+    private final int mColumnCount;
+    private final long mStartTime;
+    private final Map<String, Short> mSeriesIds = new HashMap<>();
+
+    /**
+     * A sample read back from a file.
+     */
+    public static class Sample {
+        public final String mSeries;
+        public final long mTimestamp;
+        public final float[] mValues;
+
+        Sample(String series, long timestamp, float[] values) {
+            mSeries = series;
+            mTimestamp = timestamp;
+            mValues = values;
+        }
+    }
+
+    /**
+     * Creates a {@link BinarySampleWriter}, overwriting the file.
+     *
+     * @param file the {@link File} to write to
+     * @param columns the names of the columns of each sample
+     * @throws IOException if the file cannot be written
+     */
+    public BinarySampleWriter(File file, String... columns) throws IOException {
+        this(file, System.currentTimeMillis(), columns);
+    }
+
+    /**
+     * Exposed for unit testing.
+     */
+    BinarySampleWriter(File file, long startTime, String... columns) throws IOException {
+        mOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        mColumnCount = columns.length;
+        mStartTime = startTime;
+        try {
+            mOutput.writeInt(MAGIC);
+            mOutput.writeByte(VERSION);
+            mOutput.writeLong(startTime);
+            mOutput.writeShort(columns.length);
+            for (String column : columns) {
+                mOutput.writeUTF(column);
+            }
+        } catch (IOException e) {
+            StreamUtil.close(mOutput);
+            throw e;
+        }
+    }
+
+    /**
+     * Write a sample.
+     *
+     * @param series the name of the series the sample belongs to
+     * @param timestamp the time of the sample in ms since epoch
+     * @param values the value of each column, stored as floats
+     * @throws IOException if the sample cannot be written
+     */
+    public void write(String series, long timestamp, double... values) throws IOException {
+        if (values.length != mColumnCount) {
+            throw new IllegalArgumentException(String.format("Expected %d values, got %d",
+                    mColumnCount, values.length));
+        }
+        Short id = mSeriesIds.get(series);
+        if (id == null) {
+            if (mSeriesIds.size() > Short.MAX_VALUE) {
+                throw new IllegalStateException("Too many series");
+            }
+            id = (short) mSeriesIds.size();
+            mSeriesIds.put(series, id);
+            mOutput.writeByte(SERIES_RECORD);
+            mOutput.writeShort(id);
+            mOutput.writeUTF(series);
+        }
+        mOutput.writeByte(SAMPLE_RECORD);
+        mOutput.writeShort(id);
+        mOutput.writeInt((int) (timestamp - mStartTime));
+        for (double value : values) {
+            mOutput.writeFloat((float) value);
+        }
+    }
+
+    /**
+     * Flush the samples written so far to the file.
+     */
+    public void flush() throws IOException {
+        mOutput.flush();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException {
+        mOutput.close();
+    }
+
+    /**
+     * Read back the samples of a file written by a {@link BinarySampleWriter}. A truncated last
+     * record, for example if the writer was not closed, is ignored.
+     *
+     * @param file the {@link File} to read
+     * @return the samples, in the order they were written
+     * @throws IOException if the file cannot be read or is not a sample file
+     */
+    public static List<Sample> read(File file) throws IOException {
+        List<Sample> samples = new ArrayList<>();
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != MAGIC || input.readByte() != VERSION) {
+                throw new IOException(String.format("%s is not a sample file", file));
+            }
+            long startTime = input.readLong();
+            int columnCount = input.readUnsignedShort();
+            for (int i = 0; i < columnCount; i++) {
+                input.readUTF();
+            }
+            Map<Short, String> series = new HashMap<>();
+            while (true) {
+                int type = input.read();
+                if (type < 0) {
+                    break;
+                }
+                try {
+                    short id = input.readShort();
+                    if (type == SERIES_RECORD) {
+                        series.put(id, input.readUTF());
+                    } else if (type == SAMPLE_RECORD) {
+                        long timestamp = startTime + input.readInt();
+                        float[] values = new float[columnCount];
+                        for (int i = 0; i < columnCount; i++) {
+                            values[i] = input.readFloat();
+                        }
+                        samples.add(new Sample(series.get(id), timestamp, values));
+                    } else {
+                        throw new IOException(String.format("Unexpected record type %d in %s",
+                                type, file));
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Read the names of the columns of a file written by a {@link BinarySampleWriter}.
+     *
+     * @throws IOException if the file cannot be read or is not a sample file
+     */
+    public static String[] readColumns(File file) throws IOException {
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != MAGIC || input.readByte() != VERSION) {
+                throw new IOException(String.format("%s is not a sample file", file));
+            }
+            input.readLong();
+            String[] columns = new String[input.readUnsignedShort()];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = input.readUTF();
+            }
+            return columns;
+        }
+    }
+}
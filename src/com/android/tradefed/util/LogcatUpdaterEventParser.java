@@ -16,16 +16,24 @@
 
 package com.android.tradefed.util;
 
-import com.android.loganalysis.item.LogcatItem;
-import com.android.loganalysis.item.MiscLogcatItem;
-import com.android.loganalysis.parser.LogcatParser;
+import com.android.tradefed.device.ILogcatEntryListener;
 import com.android.tradefed.device.ILogcatReceiver;
+import com.android.tradefed.device.LogcatEntry;
+import com.android.tradefed.device.LogcatFilter;
+import com.android.tradefed.device.LogcatSubscription;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.InputStreamSource;
+
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.HashMap;
-import java.util.List;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 /**
@@ -34,14 +42,27 @@ import java.util.regex.Pattern;
  * In any system with A/B updates, the updater will log its progress to logcat. This class
  * interprets updater-related logcat messages and can inform listeners of events in both
  * a blocking and non-blocking fashion.
+ *
+ * The logcat captured before the first wait is parsed first, then new entries are received from a
+ * subscription to the logcat of the device, made when the parser is created. The parser must be
+ * closed with {@link #close()} when done, otherwise the subscription keeps queuing entries.
  */
-public class LogcatUpdaterEventParser {
+public class LogcatUpdaterEventParser implements AutoCloseable {
 
     private static final String ERR_REGEX = "onPayloadApplicationComplete\\(ErrorCode\\.*$";
+    /** Max number of entries of the tags registered to queue while nobody is waiting */
+    private static final int QUEUE_CAPACITY = 1000;
+    /** How long to wait for entries at a time when waiting without timeout */
+    private static final long POLL_INTERVAL_MS = 60 * 1000;
     private Map<UpdaterEventTrigger, UpdaterEventType> mEventTriggerMap;
     private ILogcatReceiver mLogcatReceiver;
-    private LogcatParser mInternalParser;
-    private BufferedReader mStreamReader = null;
+    private Set<String> mTags = ConcurrentHashMap.newKeySet();
+    private LogcatFilter mFilter;
+    private LogcatSubscription mSubscription = null;
+    /** Captured entries not parsed yet, or null until the captured logcat is loaded */
+    private LinkedList<LogcatEntry> mCapturedEntries = null;
+    /** Captured entries that may also be received from the subscription */
+    private Set<String> mCapturedKeys = new HashSet<>();
 
     private class UpdaterEventTrigger {
         public String mTag;
@@ -137,7 +158,13 @@ public class LogcatUpdaterEventParser {
     public LogcatUpdaterEventParser(ILogcatReceiver logcatReceiver) {
         mEventTriggerMap = new HashMap<>();
         mLogcatReceiver = logcatReceiver;
-        mInternalParser = new LogcatParser();
+        // only info entries of the tags registered, including those registered later on
+        mFilter = new LogcatFilter(null, 'I', null) {
+            @Override
+            public boolean matches(LogcatEntry entry) {
+                return entry.getPriority() == 'I' && mTags.contains(entry.getTag());
+            }
+        };
 
         registerEventTrigger("update_verifier", "Leaving update_verifier.",
                 UpdaterEventType.UPDATE_VERIFIER_COMPLETE);
@@ -147,26 +174,21 @@ public class LogcatUpdaterEventParser {
         registerEventTrigger("dex2oat", "dex2oat took ",
                 UpdaterEventType.D2O_COMPLETE);
 
-        mStreamReader = new BufferedReader(new InputStreamReader(
-                mLogcatReceiver.getLogcatData().createInputStream()));
+        mSubscription = mLogcatReceiver.subscribe(mFilter, QUEUE_CAPACITY);
     }
 
     protected void registerEventTrigger(String tag, String msg, UpdaterEventType response) {
         mEventTriggerMap.put(new UpdaterEventTrigger(tag, msg), response);
-        mInternalParser.addPattern(null, "I", tag, "updaterEvents");
+        mTags.add(tag);
     }
 
     /**
      * Block until any event is encountered, then return.
      */
     public void waitForEvent() {
-        try {
-            String lastLine = mStreamReader.readLine();
-            while(!mEventTriggerMap.containsValue(parseEventType(lastLine))) {
-                lastLine = mStreamReader.readLine();
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        UpdaterEventType parsedEvent = null;
+        while (!mEventTriggerMap.containsValue(parsedEvent)) {
+            parsedEvent = parseEventType(pollEntry(POLL_INTERVAL_MS));
         }
     }
 
@@ -180,25 +202,15 @@ public class LogcatUpdaterEventParser {
      * @param timeout the maximum time in milliseconds to wait
      */
     public UpdaterEventType waitForEvent(UpdaterEventType expectedEvent, long timeout) {
-        // Parse only a single line at a time, otherwise the LogcatParser won't return until
-        // the logcat stream is over
-        try {
-            long startTime = System.currentTimeMillis();
-            while (timeout == 0 || System.currentTimeMillis() - startTime <= timeout) {
-                String lastLine;
-                while ((lastLine = mStreamReader.readLine()) != null) {
-                    UpdaterEventType parsedEvent = parseEventType(lastLine);
-                    if (parsedEvent == UpdaterEventType.ERROR ||
-                            expectedEvent.equals(parsedEvent)) {
-                        return parsedEvent;
-                    }
-                }
-                // if the stream returns null, we lost our logcat. Wait for a small amount
-                // of time, then try to reobtain it.
-                refreshLogcatStream();
+        long startTime = System.currentTimeMillis();
+        long remaining = timeout;
+        while (timeout == 0 || remaining > 0) {
+            LogcatEntry entry = pollEntry(timeout == 0 ? POLL_INTERVAL_MS : remaining);
+            UpdaterEventType parsedEvent = parseEventType(entry);
+            if (parsedEvent == UpdaterEventType.ERROR || expectedEvent.equals(parsedEvent)) {
+                return parsedEvent;
             }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            remaining = timeout - (System.currentTimeMillis() - startTime);
         }
         return UpdaterEventType.ERROR;
     }
@@ -210,57 +222,136 @@ public class LogcatUpdaterEventParser {
      */
     public AsyncUpdaterEvent waitForEventAsync(final UpdaterEventType expectedEvent) {
         final AsyncUpdaterEvent event = new AsyncUpdaterEvent();
-        final Thread callingThread = Thread.currentThread();
-
-        Thread waitThread = new Thread(new Runnable() {
+        // entries are delivered from the logcat parsing thread, no need for a thread of our own
+        final LogcatSubscription[] subscription = new LogcatSubscription[1];
+        ILogcatEntryListener listener = new ILogcatEntryListener() {
             @Override
-            public void run() {
-                try {
-                    String lastLine = mStreamReader.readLine();
-                    while (!expectedEvent.equals(parseEventType(lastLine))) {
-                        lastLine = mStreamReader.readLine();
+            public void entryReceived(LogcatEntry entry) {
+                if (!expectedEvent.equals(parseEventType(entry))) {
+                    return;
+                }
+                synchronized(event) {
+                    if (event.isCompleted()) {
+                        return;
                     }
-                } catch (IOException e) {
-                    // Unblock calling thread
-                    callingThread.interrupt();
-                    throw new RuntimeException(e);
-                } finally {
-                    // ensure that the waiting thread drops out of the wait loop
-                    synchronized(event) {
-                        event.setCompleted(true);
-                        event.notifyAll();
+                    event.setCompleted(true);
+                    event.notifyAll();
+                }
+                synchronized(subscription) {
+                    if (subscription[0] != null) {
+                        subscription[0].close();
                     }
                 }
             }
-        });
-        waitThread.setName(getClass().getCanonicalName());
-        waitThread.start();
+        };
+        synchronized(this) {
+            loadCapturedEntries();
+            LogcatEntry entry;
+            while ((entry = mCapturedEntries.poll()) != null) {
+                if (expectedEvent.equals(parseEventType(entry))) {
+                    event.setCompleted(true);
+                    return event;
+                }
+            }
+        }
+        synchronized(subscription) {
+            subscription[0] = mLogcatReceiver.subscribe(mFilter, listener);
+            if (event.isCompleted()) {
+                subscription[0].close();
+            }
+        }
         return event;
     }
 
     protected UpdaterEventType parseEventType(String lastLine) {
-        LogcatItem item = mInternalParser.parse(ArrayUtil.list(lastLine));
-        if (item == null) {
-            return null;
-        }
-        List<MiscLogcatItem> miscItems = item.getMiscEvents("updaterEvents");
-        if (miscItems.size() == 0) {
+        return parseEventType(LogcatEntry.parse(lastLine));
+    }
+
+    /**
+     * Returns the event a logcat entry corresponds to, or <code>null</code> if none.
+     */
+    protected UpdaterEventType parseEventType(LogcatEntry entry) {
+        if (entry == null || !mFilter.matches(entry)) {
             return null;
         }
-        MiscLogcatItem mi = miscItems.get(0);
-        UpdaterEventTrigger trigger = new UpdaterEventTrigger(mi.getTag(), mi.getStack());
+        UpdaterEventTrigger trigger = new UpdaterEventTrigger(entry.getTag(), entry.getMessage());
         if (trigger.isUpdateEngineFailure()) {
             return UpdaterEventType.ERROR;
         }
-        mInternalParser.clear();
         return mEventTriggerMap.get(trigger);
     }
 
-    private void refreshLogcatStream() throws IOException {
-        mStreamReader.close();
+    /**
+     * Stop receiving logcat entries.
+     */
+    @Override
+    public void close() {
+        mSubscription.close();
+    }
+
+    /**
+     * Returns the next entry of the captured logcat, or of the subscription once they were all
+     * parsed. Returns <code>null</code> if no entry was received within the timeout, or if the
+     * entry received was already parsed from the captured logcat.
+     */
+    private LogcatEntry pollEntry(long timeoutMs) {
+        synchronized (this) {
+            loadCapturedEntries();
+            if (!mCapturedEntries.isEmpty()) {
+                return mCapturedEntries.poll();
+            }
+        }
+        LogcatEntry entry;
+        try {
+            entry = mSubscription.poll(timeoutMs);
+        } catch (InterruptedException e) {
+            throw new RunInterruptedException(e);
+        }
+        synchronized (this) {
+            if (entry == null || mCapturedKeys.isEmpty()) {
+                return entry;
+            }
+            if (mCapturedKeys.remove(entry.toString())) {
+                // logged between the subscription and the capture
+                return null;
+            }
+            // past the entries captured
+            mCapturedKeys.clear();
+            return entry;
+        }
+    }
 
-        mStreamReader = new BufferedReader(new InputStreamReader(
-                mLogcatReceiver.getLogcatData().createInputStream()));
+    /**
+     * Load the entries of the registered tags from the logcat captured so far, once. Must be
+     * called with the lock held.
+     */
+    private void loadCapturedEntries() {
+        if (mCapturedEntries != null) {
+            return;
+        }
+        mCapturedEntries = new LinkedList<>();
+        InputStreamSource data = mLogcatReceiver.getLogcatData();
+        if (data == null) {
+            return;
+        }
+        InputStream stream = data.createInputStream();
+        if (stream == null) {
+            data.cancel();
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                LogcatEntry entry = LogcatEntry.parse(line);
+                if (entry != null && mFilter.matches(entry)) {
+                    mCapturedEntries.add(entry);
+                    mCapturedKeys.add(entry.toString());
+                }
+            }
+        } catch (IOException e) {
+            CLog.w("Failed to read the captured logcat: %s", e.getMessage());
+        } finally {
+            data.cancel();
+        }
     }
 }
-
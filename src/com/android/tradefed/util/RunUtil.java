@@ -36,6 +36,7 @@ import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A collection of helper methods for executing operations.
@@ -50,6 +51,8 @@ public class RunUtil implements IRunUtil {
     private static final long IO_THREAD_JOIN_INTERVAL = 5 * 1000;
     private static final long PROCESS_DESTROY_TIMEOUT_SEC = 2;
     private static IRunUtil sDefaultInstance = null;
+    /** number of processes started by timed commands and not finished yet, in all instances */
+    private static final AtomicInteger sRunningProcesses = new AtomicInteger();
     private File mWorkingDir = null;
     private Map<String, String> mEnvVariables = new HashMap<String, String>();
     private Set<String> mUnsetEnvVariables = new HashSet<String>();
@@ -85,6 +88,16 @@ public class RunUtil implements IRunUtil {
         return sDefaultInstance;
     }
 
+    /**
+     * Returns the number of child processes started by timed commands that are still running.
+     * <p/>
+     * Processes started with {@link #runCmdInBackground(String...)} are owned by the caller and are
+     * not counted.
+     */
+    public static int getRunningProcessCount() {
+        return sRunningProcesses.get();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -650,6 +663,7 @@ public class RunUtil implements IRunUtil {
             }
             // Wait for process to complete.
             int rc = Integer.MIN_VALUE;
+            sRunningProcesses.incrementAndGet();
             try {
                 try {
                     rc = mProcess.waitFor();
@@ -684,6 +698,7 @@ public class RunUtil implements IRunUtil {
                     }
                 }
             } finally {
+                sRunningProcesses.decrementAndGet();
                 mCountDown.countDown();
             }
 
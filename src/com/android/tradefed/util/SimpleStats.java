@@ -15,20 +15,35 @@
  */
 package com.android.tradefed.util;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
  * A small utility class that calculates a few statistical measures given a numerical dataset.  The
- * values are stored internally as {@link Double}s.
+ * values are stored internally as primitive {@code double}s.
+ * <p />
+ * Mean and standard deviation are maintained as measurements are added, with Welford's algorithm,
+ * so they are computed in constant time. The dataset is only sorted when an order statistic
+ * (median, percentiles) is requested, and stays sorted until new measurements are added.
+ * Datasets collected separately, for example by different shards, can be combined with
+ * {@link #merge(SimpleStats)}.
  */
 public class SimpleStats {
-    private List<Double> mData = new LinkedList<Double>();
+    private static final int INITIAL_CAPACITY = 16;
+
+    private double[] mData = new double[INITIAL_CAPACITY];
+    private int mSize = 0;
+    private boolean mSorted = true;
 
     // cached values
-    private double mSum = 0;
+    private double mMean = 0;
+    /** Sum of the squared differences from the mean */
+    private double mM2 = 0;
+    private double mMin = Double.POSITIVE_INFINITY;
+    private double mMax = Double.NEGATIVE_INFINITY;
 
     /**
      * Add a number of measurements to the dataset.
@@ -48,29 +63,82 @@ public class SimpleStats {
      * Add a measurement to the dataset.
      */
     public void add(double meas) {
-        mData.add(meas);
-        mSum += meas;
+        ensureCapacity(mSize + 1);
+        if (mSize > 0 && meas < mData[mSize - 1]) {
+            mSorted = false;
+        }
+        mData[mSize++] = meas;
+        double delta = meas - mMean;
+        mMean += delta / mSize;
+        mM2 += delta * (meas - mMean);
+        mMin = Math.min(mMin, meas);
+        mMax = Math.max(mMax, meas);
     }
 
     /**
-     * Retrieve the dataset.
+     * Add all the measurements of another dataset to this dataset. The other dataset is not
+     * modified.
+     */
+    public void merge(SimpleStats other) {
+        if (other.isEmpty()) {
+            return;
+        }
+        if (isEmpty()) {
+            mMean = other.mMean;
+            mM2 = other.mM2;
+        } else {
+            // combine the means and squared differences of both datasets (Chan et al.)
+            int count = mSize + other.mSize;
+            double delta = other.mMean - mMean;
+            mM2 += other.mM2 + delta * delta * mSize * other.mSize / count;
+            mMean += delta * other.mSize / count;
+        }
+        ensureCapacity(mSize + other.mSize);
+        System.arraycopy(other.mData, 0, mData, mSize, other.mSize);
+        mSize += other.mSize;
+        mSorted = false;
+        mMin = Math.min(mMin, other.mMin);
+        mMax = Math.max(mMax, other.mMax);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mData.length) {
+            mData = Arrays.copyOf(mData, Math.max(mData.length * 2, capacity));
+        }
+    }
+
+    /**
+     * Retrieve a copy of the dataset.
+     * <p />
+     * Prefer {@link #toArray()}, which does not box the measurements.
      */
     public List<Double> getData() {
-        return mData;
+        List<Double> data = new ArrayList<Double>(mSize);
+        for (int i = 0; i < mSize; i++) {
+            data.add(mData[i]);
+        }
+        return Collections.unmodifiableList(data);
+    }
+
+    /**
+     * Retrieve a copy of the dataset.
+     */
+    public double[] toArray() {
+        return Arrays.copyOf(mData, mSize);
     }
 
     /**
      * Check if the dataset is empty.
      */
     public boolean isEmpty() {
-        return mData.isEmpty();
+        return mSize == 0;
     }
 
     /**
      * Check how many elements are in the dataset.
      */
     public int size() {
-        return mData.size();
+        return mSize;
     }
 
     /**
@@ -81,27 +149,70 @@ public class SimpleStats {
             return null;
         }
 
-        return mSum / size();
+        return mMean;
     }
 
     /**
      * Calculate and return the median of the dataset, or {@code null} if the dataset is empty.
      */
     public Double median() {
+        return percentile(50);
+    }
+
+    /**
+     * Calculate and return a percentile of the dataset, or {@code null} if the dataset is empty.
+     * <p />
+     * The percentile is interpolated linearly between the two closest measurements, so that the
+     * 50th percentile is the median.
+     *
+     * @param percent the percentile, between 0 and 100.
+     */
+    public Double percentile(double percent) {
+        if (percent < 0 || percent > 100) {
+            throw new IllegalArgumentException(String.format("Invalid percentile %f", percent));
+        }
         if (isEmpty()) {
             return null;
         }
 
-        Collections.sort(mData);
-        if ((mData.size() & 0x1) == 1) {
-            // odd count of items, pick the middle element.  Note that we don't +1 since indices
-            // are zero-based rather than one-based
-            int idx = size() / 2;
-            return mData.get(idx);
-        } else {
-            // even count of items, average the two middle elements
-            int idx = size() / 2;
-            return (mData.get(idx - 1) + mData.get(idx)) / 2;
+        sort();
+        double rank = (mSize - 1) * percent / 100;
+        int idx = (int) Math.floor(rank);
+        if (idx + 1 >= mSize) {
+            return mData[mSize - 1];
+        }
+        double fraction = rank - idx;
+        if (fraction == 0) {
+            return mData[idx];
+        }
+        return mData[idx] + (mData[idx + 1] - mData[idx]) * fraction;
+    }
+
+    /**
+     * Return the 50th percentile of the dataset, or {@code null} if the dataset is empty.
+     */
+    public Double p50() {
+        return percentile(50);
+    }
+
+    /**
+     * Return the 90th percentile of the dataset, or {@code null} if the dataset is empty.
+     */
+    public Double p90() {
+        return percentile(90);
+    }
+
+    /**
+     * Return the 99th percentile of the dataset, or {@code null} if the dataset is empty.
+     */
+    public Double p99() {
+        return percentile(99);
+    }
+
+    private void sort() {
+        if (!mSorted) {
+            Arrays.sort(mData, 0, mSize);
+            mSorted = true;
         }
     }
 
@@ -113,8 +224,7 @@ public class SimpleStats {
             return null;
         }
 
-        Collections.sort(mData);
-        return mData.get(0);
+        return mMin;
     }
 
     /**
@@ -125,8 +235,7 @@ public class SimpleStats {
             return null;
         }
 
-        Collections.sort(mData);
-        return mData.get(size() - 1);
+        return mMax;
     }
 
     /**
@@ -141,14 +250,7 @@ public class SimpleStats {
             return null;
         }
 
-        Double avg = mean();
-        Double ssd = 0.0;  // sum of squared differences
-        for (Double meas : mData) {
-            Double diff = meas - avg;
-            ssd += diff * diff;
-        }
-
-        return Math.sqrt(ssd / size());
+        return Math.sqrt(mM2 / mSize);
     }
 
     /**
@@ -163,13 +265,14 @@ public class SimpleStats {
             return null;
         }
 
-        Double avg = mean();
-        Double std = stdev();
-        Double upper = avg + std;
-        Double lower = avg - std;
-        Double sum = 0.0;
+        double avg = mean();
+        double std = stdev();
+        double upper = avg + std;
+        double lower = avg - std;
+        double sum = 0.0;
         int count = 0;
-        for (Double meas : mData) {
+        for (int i = 0; i < mSize; i++) {
+            double meas = mData[i];
             if (meas > lower && meas < upper) {
                 sum += meas;
                 count++;
@@ -178,4 +281,3 @@ public class SimpleStats {
         return sum / count;
     }
 }
-
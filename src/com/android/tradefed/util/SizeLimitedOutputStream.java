@@ -17,6 +17,7 @@
 
 package com.android.tradefed.util;
 
+import com.google.common.io.ByteStreams;
 import com.google.common.io.CountingOutputStream;
 
 import java.io.BufferedOutputStream;
@@ -47,6 +48,9 @@ public class SizeLimitedOutputStream extends OutputStream {
 
     // circular array of backing files
     private final File[] mFiles;
+    // offset in the data written of the start of each backing file
+    private final long[] mFileOffsets;
+    private long mBytesWritten = 0;
     private final long mMaxFileSize;
     private CountingOutputStream mCurrentOutputStream;
     private int mCurrentFilePos = 0;
@@ -67,6 +71,7 @@ public class SizeLimitedOutputStream extends OutputStream {
             String tempFileSuffix) {
         mMaxFileSize = maxDataSize / numFiles;
         mFiles = new File[numFiles];
+        mFileOffsets = new long[numFiles];
         mCurrentFilePos = numFiles;
         mTempFilePrefix = tempFilePrefix;
         mTempFileSuffix = tempFileSuffix;
@@ -113,6 +118,71 @@ public class SizeLimitedOutputStream extends OutputStream {
 
     }
 
+    /**
+     * Gets part of the collected output as a {@link InputStream}, without copying it.
+     * <p/>
+     * Offsets are counted from the start of all the data written, including data that has been
+     * discarded since. Data that is discarded after this call may be missing from the returned
+     * stream.
+     *
+     * @param startOffset the offset of the first byte to return. If data was discarded from that
+     *            offset, the stream starts with the oldest data available.
+     * @param endOffset the offset of the end of the data to return
+     * @return The collected output as a {@link InputStream}.
+     */
+    public synchronized InputStream getData(long startOffset, long endOffset) throws IOException {
+        flush();
+        InputStream combinedStream = null;
+        for (int i = 0; i < mFiles.length; i++) {
+            int currentPos = (mCurrentFilePos + i + 1) % mFiles.length;
+            File file = mFiles[currentPos];
+            if (file == null) {
+                continue;
+            }
+            long fileStart = mFileOffsets[currentPos];
+            long fileEnd = fileStart + file.length();
+            if (fileEnd <= startOffset || fileStart >= endOffset) {
+                continue;
+            }
+            @SuppressWarnings("resource")
+            FileInputStream fStream = new FileInputStream(file);
+            long skip = Math.max(0, startOffset - fileStart);
+            fStream.getChannel().position(skip);
+            InputStream region = ByteStreams.limit(fStream,
+                    Math.min(fileEnd, endOffset) - fileStart - skip);
+            if (combinedStream == null) {
+                combinedStream = region;
+            } else {
+                combinedStream = new SequenceInputStream(combinedStream, region);
+            }
+        }
+        if (combinedStream == null) {
+            combinedStream = new ByteArrayInputStream(new byte[0]);
+        }
+        return combinedStream;
+    }
+
+    /**
+     * Returns the offset of the oldest data still available, counted from the start of all the
+     * data written.
+     */
+    public synchronized long getStartOffset() {
+        for (int i = 0; i < mFiles.length; i++) {
+            int currentPos = (mCurrentFilePos + i + 1) % mFiles.length;
+            if (mFiles[currentPos] != null) {
+                return mFileOffsets[currentPos];
+            }
+        }
+        return mBytesWritten;
+    }
+
+    /**
+     * Returns the total amount of data written, including data that has been discarded since.
+     */
+    public synchronized long getEndOffset() {
+        return mBytesWritten;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -165,6 +235,7 @@ public class SizeLimitedOutputStream extends OutputStream {
         mCurrentFilePos = getNextIndex(mCurrentFilePos);
         FileUtil.deleteFile(mFiles[mCurrentFilePos]);
         mFiles[mCurrentFilePos] = FileUtil.createTempFile(mTempFilePrefix, mTempFileSuffix);
+        mFileOffsets[mCurrentFilePos] = mBytesWritten;
         mCurrentOutputStream = new CountingOutputStream(new BufferedOutputStream(
                 new FileOutputStream(mFiles[mCurrentFilePos]), BUFF_SIZE));
     }
@@ -182,6 +253,7 @@ public class SizeLimitedOutputStream extends OutputStream {
             generateNextFile();
         }
         mCurrentOutputStream.write(data);
+        mBytesWritten++;
         if (mCurrentOutputStream.getCount() >= mMaxFileSize) {
             generateNextFile();
         }
@@ -201,6 +273,7 @@ public class SizeLimitedOutputStream extends OutputStream {
             // decide how much we should write: either fill up free space, or write entire content
             long sizeToWrite = freeSpace > len ? len : freeSpace;
             mCurrentOutputStream.write(b, off, (int)sizeToWrite);
+            mBytesWritten += sizeToWrite;
             // accounting of space left, where to write next
             freeSpace -= sizeToWrite;
             off += sizeToWrite;
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import com.android.ddmlib.IShellOutputReceiver;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Base implementation of {@link IShellOutputReceiver} that splits the output into lines, like
+ * {@link com.android.ddmlib.MultiLineReceiver}, without creating a {@link String} per line.
+ * <p/>
+ * Output is scanned for new lines in place, and lines are handed to
+ * {@link #processLine(CharSequence)} as a view directly over the output bytes, or over a re-used
+ * buffer for lines spanning several chunks of output or holding non-ASCII characters. The view is
+ * only valid for the duration of the call: implementations must copy what they need to keep, for
+ * example with {@link CharSequence#toString()}.
+ * <p/>
+ * Lines are split the same way as {@link com.android.ddmlib.MultiLineReceiver} does: on "\n" or
+ * "\r\n", trimmed unless {@link #setTrimLine(boolean)} is set to false, and output is decoded as
+ * UTF-8.
+ */
+public abstract class StreamingLineReceiver implements IShellOutputReceiver {
+
+    private static final int INITIAL_BUFFER_SIZE = 256;
+
+    private boolean mTrimLines = true;
+
+    /** bytes of the last line received, not terminated yet */
+    private byte[] mPending = new byte[INITIAL_BUFFER_SIZE];
+    private int mPendingLength = 0;
+    private boolean mHasPending = false;
+
+    private final LineView mLine = new LineView();
+    private char[] mChars = new char[INITIAL_BUFFER_SIZE];
+    private CharsetDecoder mDecoder = null;
+
+    /**
+     * A {@link CharSequence} over the current line: directly over the output bytes when the line
+     * is ASCII, or over the characters it was decoded into otherwise.
+     */
+    private static class LineView implements CharSequence {
+        private byte[] mBytes = null;
+        private char[] mChars = null;
+        private int mStart = 0;
+        private int mLength = 0;
+
+        void setBytes(byte[] bytes, int start, int length) {
+            mBytes = bytes;
+            mChars = null;
+            mStart = start;
+            mLength = length;
+        }
+
+        void setChars(char[] chars, int start, int length) {
+            mBytes = null;
+            mChars = chars;
+            mStart = start;
+            mLength = length;
+        }
+
+        /** Same as {@link String#trim()}. */
+        void trim() {
+            int start = mStart;
+            int end = start + mLength;
+            while (start < end && charAtIndex(start) <= ' ') {
+                start++;
+            }
+            while (end > start && charAtIndex(end - 1) <= ' ') {
+                end--;
+            }
+            mStart = start;
+            mLength = end - start;
+        }
+
+        private char charAtIndex(int index) {
+            return mBytes != null ? (char) mBytes[index] : mChars[index];
+        }
+
+        @Override
+        public int length() {
+            return mLength;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= mLength) {
+                throw new IndexOutOfBoundsException(Integer.toString(index));
+            }
+            return charAtIndex(mStart + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || end > mLength || start > end) {
+                throw new IndexOutOfBoundsException(String.format("%d, %d", start, end));
+            }
+            if (mBytes != null) {
+                return new String(mBytes, mStart + start, end - start,
+                        StandardCharsets.ISO_8859_1);
+            }
+            return new String(mChars, mStart + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, mLength).toString();
+        }
+    }
+
+    /**
+     * Set whether lines should be trimmed of leading and trailing whitespaces. Defaults to true.
+     */
+    public void setTrimLine(boolean trim) {
+        mTrimLines = trim;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final void addOutput(byte[] data, int offset, int length) {
+        if (isCancelled()) {
+            return;
+        }
+        int end = offset + length;
+        int lineStart = offset;
+        // or of all the bytes of the line, negative if any is not ASCII
+        int bits = 0;
+        for (int i = offset; i < end; i++) {
+            byte b = data[i];
+            bits |= b;
+            if (b != '\n') {
+                continue;
+            }
+            if (mPendingLength > 0) {
+                // the line started in a previous chunk
+                appendPending(data, lineStart, i - lineStart);
+                emitLine(mPending, 0, mPendingLength, isAscii(mPending, 0, mPendingLength), true);
+                mPendingLength = 0;
+            } else {
+                emitLine(data, lineStart, i - lineStart, bits >= 0, true);
+            }
+            lineStart = i + 1;
+            bits = 0;
+        }
+        appendPending(data, lineStart, end - lineStart);
+        mHasPending = true;
+        linesProcessed();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final void flush() {
+        if (mHasPending) {
+            // as MultiLineReceiver, the last unterminated line is passed as is
+            emitLine(mPending, 0, mPendingLength, isAscii(mPending, 0, mPendingLength), false);
+            mPendingLength = 0;
+            mHasPending = false;
+            linesProcessed();
+        }
+        done();
+    }
+
+    /**
+     * Called when all the output was received.
+     */
+    public void done() {
+        // Do nothing by default
+    }
+
+    /**
+     * Called for each line of output.
+     *
+     * @param line the line, only valid until this method returns.
+     */
+    public abstract void processLine(CharSequence line);
+
+    /**
+     * Called after the lines of a chunk of output were processed, for example to log them in
+     * batch rather than one by one.
+     */
+    protected void linesProcessed() {
+        // Do nothing by default
+    }
+
+    /**
+     * Feed full lines to this receiver, for callers that already split the output.
+     *
+     * @param lines the lines to process, not trimmed.
+     */
+    public void processNewLines(String[] lines) {
+        for (String line : lines) {
+            processLine(line);
+        }
+        linesProcessed();
+    }
+
+    private void appendPending(byte[] data, int offset, int length) {
+        if (length == 0) {
+            return;
+        }
+        if (mPendingLength + length > mPending.length) {
+            mPending = Arrays.copyOf(mPending,
+                    Math.max(mPending.length * 2, mPendingLength + length));
+        }
+        System.arraycopy(data, offset, mPending, mPendingLength, length);
+        mPendingLength += length;
+    }
+
+    private static boolean isAscii(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (data[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void emitLine(byte[] data, int offset, int length, boolean ascii,
+            boolean terminated) {
+        if (terminated && length > 0 && data[offset + length - 1] == '\r') {
+            length--;
+        }
+        if (ascii) {
+            // no need to decode, view the bytes as they are
+            mLine.setBytes(data, offset, length);
+        } else {
+            decodeUtf8(data, offset, length);
+        }
+        if (terminated && mTrimLines) {
+            mLine.trim();
+        }
+        processLine(mLine);
+    }
+
+    private void decodeUtf8(byte[] data, int offset, int length) {
+        if (mDecoder == null) {
+            mDecoder = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        if (mChars.length < length) {
+            // a UTF-8 line never decodes to more chars than it has bytes
+            mChars = new char[Math.max(mChars.length * 2, length)];
+        }
+        CharBuffer out = CharBuffer.wrap(mChars);
+        mDecoder.reset();
+        mDecoder.decode(ByteBuffer.wrap(data, offset, length), out, true);
+        mDecoder.flush(out);
+        mLine.setChars(mChars, 0, out.position());
+    }
+
+    /**
+     * Returns true if the {@link CharSequence} starts with the given prefix.
+     */
+    public static boolean startsWith(CharSequence sequence, String prefix) {
+        return regionMatches(sequence, 0, prefix);
+    }
+
+    /**
+     * Returns the index of the first occurrence of the string in the {@link CharSequence}, or -1 if
+     * it does not occur.
+     */
+    public static int indexOf(CharSequence sequence, String str) {
+        int last = sequence.length() - str.length();
+        for (int i = 0; i <= last; i++) {
+            if (regionMatches(sequence, i, str)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns true if the {@link CharSequence} contains the given string at the given index.
+     */
+    public static boolean regionMatches(CharSequence sequence, int index, String str) {
+        if (index < 0 || index + str.length() > sequence.length()) {
+            return false;
+        }
+        for (int i = 0; i < str.length(); i++) {
+            if (sequence.charAt(index + i) != str.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import java.util.Arrays;
+
+/**
+ * Calculates statistical measures of a numerical dataset in constant memory, for datasets that
+ * are too large to keep around, such as samples collected during long running tests.
+ * <p />
+ * Mean and variance are computed online, with Welford's algorithm. Quantiles are estimated with
+ * the P-square algorithm (Jain and Chlamtac), for a set of quantiles chosen upfront. Optionally,
+ * the most recent samples are kept in a fixed size window.
+ * <p />
+ * Not thread safe.
+ */
+public class StreamingStats {
+
+    /** Quantiles estimated by default: median, 90th and 99th percentiles. */
+    public static final double[] DEFAULT_QUANTILES = {0.5, 0.9, 0.99};
+
+    private long mCount = 0;
+    private double mMean = 0;
+    /** Sum of the squared differences from the mean */
+    private double mM2 = 0;
+    private double mMin = Double.POSITIVE_INFINITY;
+    private double mMax = Double.NEGATIVE_INFINITY;
+
+    private final double[] mQuantiles;
+    private final QuantileEstimator[] mEstimators;
+
+    /** Ring buffer of the most recent samples */
+    private final double[] mWindow;
+    private int mWindowStart = 0;
+    private int mWindowSize = 0;
+
+    /**
+     * Creates a {@link StreamingStats} estimating the {@link #DEFAULT_QUANTILES}, without keeping
+     * recent samples.
+     */
+    public StreamingStats() {
+        this(DEFAULT_QUANTILES, 0);
+    }
+
+    /**
+     * Creates a {@link StreamingStats}.
+     *
+     * @param quantiles the quantiles to estimate, between 0 and 1.
+     * @param windowSize the number of most recent samples to keep, 0 to keep none.
+     */
+    public StreamingStats(double[] quantiles, int windowSize) {
+        mQuantiles = quantiles.clone();
+        mEstimators = new QuantileEstimator[quantiles.length];
+        for (int i = 0; i < quantiles.length; i++) {
+            if (quantiles[i] < 0 || quantiles[i] > 1) {
+                throw new IllegalArgumentException(
+                        String.format("Invalid quantile %f", quantiles[i]));
+            }
+            mEstimators[i] = new QuantileEstimator(quantiles[i]);
+        }
+        mWindow = new double[Math.max(0, windowSize)];
+    }
+
+    /**
+     * Creates a copy of another {@link StreamingStats}.
+     */
+    public StreamingStats(StreamingStats other) {
+        mCount = other.mCount;
+        mMean = other.mMean;
+        mM2 = other.mM2;
+        mMin = other.mMin;
+        mMax = other.mMax;
+        mQuantiles = other.mQuantiles;
+        mEstimators = new QuantileEstimator[other.mEstimators.length];
+        for (int i = 0; i < mEstimators.length; i++) {
+            mEstimators[i] = new QuantileEstimator(other.mEstimators[i]);
+        }
+        mWindow = other.mWindow.clone();
+        mWindowStart = other.mWindowStart;
+        mWindowSize = other.mWindowSize;
+    }
+
+    /**
+     * Add a measurement to the dataset.
+     */
+    public void add(double meas) {
+        mCount++;
+        double delta = meas - mMean;
+        mMean += delta / mCount;
+        mM2 += delta * (meas - mMean);
+        mMin = Math.min(mMin, meas);
+        mMax = Math.max(mMax, meas);
+        for (QuantileEstimator estimator : mEstimators) {
+            estimator.add(meas);
+        }
+        if (mWindow.length > 0) {
+            int index = (mWindowStart + mWindowSize) % mWindow.length;
+            mWindow[index] = meas;
+            if (mWindowSize < mWindow.length) {
+                mWindowSize++;
+            } else {
+                mWindowStart = (mWindowStart + 1) % mWindow.length;
+            }
+        }
+    }
+
+    /**
+     * Check if the dataset is empty.
+     */
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /**
+     * Check how many measurements were added.
+     */
+    public long size() {
+        return mCount;
+    }
+
+    /**
+     * Return the mean of the dataset, or {@code null} if the dataset is empty.
+     */
+    public Double mean() {
+        return isEmpty() ? null : mMean;
+    }
+
+    /**
+     * Return the sum of the dataset.
+     */
+    public double sum() {
+        return mMean * mCount;
+    }
+
+    /**
+     * Return the population variance of the dataset, or {@code null} if the dataset is empty.
+     */
+    public Double variance() {
+        return isEmpty() ? null : mM2 / mCount;
+    }
+
+    /**
+     * Return the population standard deviation of the dataset, or {@code null} if the dataset is
+     * empty, same as {@link SimpleStats#stdev()}.
+     */
+    public Double stdev() {
+        return isEmpty() ? null : Math.sqrt(mM2 / mCount);
+    }
+
+    /**
+     * Return the minimum value in the dataset, or {@code null} if the dataset is empty.
+     */
+    public Double min() {
+        return isEmpty() ? null : mMin;
+    }
+
+    /**
+     * Return the maximum value in the dataset, or {@code null} if the dataset is empty.
+     */
+    public Double max() {
+        return isEmpty() ? null : mMax;
+    }
+
+    /**
+     * Return the estimated median of the dataset, or {@code null} if the dataset is empty.
+     *
+     * @throws IllegalArgumentException if the median is not one of the estimated quantiles.
+     */
+    public Double median() {
+        return quantile(0.5);
+    }
+
+    /**
+     * Return the estimate of a quantile of the dataset, or {@code null} if the dataset is empty.
+     * Estimates are exact for up to 5 measurements.
+     *
+     * @param quantile the quantile, one of those passed to the constructor.
+     * @throws IllegalArgumentException if the quantile is not estimated.
+     */
+    public Double quantile(double quantile) {
+        for (int i = 0; i < mQuantiles.length; i++) {
+            if (mQuantiles[i] == quantile) {
+                return isEmpty() ? null : mEstimators[i].get();
+            }
+        }
+        throw new IllegalArgumentException(String.format("Quantile %f is not estimated",
+                quantile));
+    }
+
+    /**
+     * Return the most recent measurements, from oldest to newest, at most as many as the window
+     * size passed to the constructor.
+     */
+    public double[] getRecent() {
+        double[] recent = new double[mWindowSize];
+        for (int i = 0; i < mWindowSize; i++) {
+            recent[i] = mWindow[(mWindowStart + i) % mWindow.length];
+        }
+        return recent;
+    }
+
+    /**
+     * P-square estimator of a single quantile, tracking 5 markers: the minimum, the maximum, the
+     * quantile, and the quantiles half way between.
+     */
+    private static class QuantileEstimator {
+        private static final int MARKERS = 5;
+
+        private final double mQuantile;
+        /** Heights of the markers, or the first measurements until there are enough */
+        private final double[] mHeights = new double[MARKERS];
+        /** Actual positions of the markers */
+        private final double[] mPositions = new double[MARKERS];
+        /** Desired positions of the markers */
+        private final double[] mDesired = new double[MARKERS];
+        /** Increments of the desired positions */
+        private final double[] mIncrements;
+        private int mCount = 0;
+
+        QuantileEstimator(double quantile) {
+            mQuantile = quantile;
+            mIncrements = new double[] {0, quantile / 2, quantile, (1 + quantile) / 2, 1};
+        }
+
+        QuantileEstimator(QuantileEstimator other) {
+            mQuantile = other.mQuantile;
+            System.arraycopy(other.mHeights, 0, mHeights, 0, MARKERS);
+            System.arraycopy(other.mPositions, 0, mPositions, 0, MARKERS);
+            System.arraycopy(other.mDesired, 0, mDesired, 0, MARKERS);
+            mIncrements = other.mIncrements;
+            mCount = other.mCount;
+        }
+
+        void add(double meas) {
+            if (mCount < MARKERS) {
+                mHeights[mCount++] = meas;
+                if (mCount == MARKERS) {
+                    Arrays.sort(mHeights);
+                    for (int i = 0; i < MARKERS; i++) {
+                        mPositions[i] = i + 1;
+                    }
+                    mDesired[0] = 1;
+                    mDesired[1] = 1 + 2 * mQuantile;
+                    mDesired[2] = 1 + 4 * mQuantile;
+                    mDesired[3] = 3 + 2 * mQuantile;
+                    mDesired[4] = 5;
+                }
+                return;
+            }
+            mCount++;
+            // find the cell the measurement falls in, extending the extremes if needed
+            int cell;
+            if (meas < mHeights[0]) {
+                mHeights[0] = meas;
+                cell = 0;
+            } else if (meas >= mHeights[MARKERS - 1]) {
+                mHeights[MARKERS - 1] = meas;
+                cell = MARKERS - 2;
+            } else {
+                cell = 0;
+                while (meas >= mHeights[cell + 1]) {
+                    cell++;
+                }
+            }
+            for (int i = cell + 1; i < MARKERS; i++) {
+                mPositions[i]++;
+            }
+            for (int i = 0; i < MARKERS; i++) {
+                mDesired[i] += mIncrements[i];
+            }
+            // move the middle markers towards their desired positions
+            for (int i = 1; i < MARKERS - 1; i++) {
+                double d = mDesired[i] - mPositions[i];
+                if ((d >= 1 && mPositions[i + 1] - mPositions[i] > 1)
+                        || (d <= -1 && mPositions[i - 1] - mPositions[i] < -1)) {
+                    int sign = d > 0 ? 1 : -1;
+                    double height = parabolic(i, sign);
+                    if (mHeights[i - 1] < height && height < mHeights[i + 1]) {
+                        mHeights[i] = height;
+                    } else {
+                        mHeights[i] = linear(i, sign);
+                    }
+                    mPositions[i] += sign;
+                }
+            }
+        }
+
+        private double parabolic(int i, int d) {
+            double n = mPositions[i];
+            double nPrev = mPositions[i - 1];
+            double nNext = mPositions[i + 1];
+            return mHeights[i] + d / (nNext - nPrev)
+                    * ((n - nPrev + d) * (mHeights[i + 1] - mHeights[i]) / (nNext - n)
+                    + (nNext - n - d) * (mHeights[i] - mHeights[i - 1]) / (n - nPrev));
+        }
+
+        private double linear(int i, int d) {
+            return mHeights[i] + d * (mHeights[i + d] - mHeights[i])
+                    / (mPositions[i + d] - mPositions[i]);
+        }
+
+        double get() {
+            if (mCount <= MARKERS) {
+                // exact quantile of the few measurements, by nearest rank
+                double[] sorted = Arrays.copyOf(mHeights, mCount);
+                Arrays.sort(sorted);
+                int rank = (int) Math.ceil(mQuantile * mCount);
+                return sorted[Math.max(0, rank - 1)];
+            }
+            return mHeights[2];
+        }
+    }
+}
@@ -0,0 +1,582 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.LogDataType;
+import com.android.tradefed.util.SubprocessEventHelper.BaseTestEventInfo;
+import com.android.tradefed.util.SubprocessEventHelper.FailedTestEventInfo;
+import com.android.tradefed.util.SubprocessEventHelper.InvocationFailedEventInfo;
+import com.android.tradefed.util.SubprocessEventHelper.InvocationStartedEventInfo;
+import com.android.tradefed.util.SubprocessEventHelper.TestEndedEventInfo;
+import com.android.tradefed.util.SubprocessEventHelper.TestLogEventInfo;
+import com.android.tradefed.util.SubprocessEventHelper.TestRunEndedEventInfo;
+import com.android.tradefed.util.SubprocessEventHelper.TestRunFailedEventInfo;
+import com.android.tradefed.util.SubprocessEventHelper.TestRunStartedEventInfo;
+import com.android.tradefed.util.SubprocessEventHelper.TestStartedEventInfo;
+import com.android.tradefed.util.SubprocessTestResultsParser.StatusKeys;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Binary encoding of the events sent by a subprocess TF to its parent, as a cheaper alternative to
+ * the "KEY {json}" lines of {@link SubprocessEventHelper}.
+ * <p/>
+ * A stream starts with {@link #MAGIC} and the schema version byte, which lets the parent detect
+ * the encoding. It is followed by frames of: the payload length (int), the event type (byte), and
+ * the payload, written with {@link DataOutputStream}. Strings are a length (int, -1 for null)
+ * followed by UTF-8 bytes, and optional times a presence boolean followed by a long. Frames of an
+ * unknown type are skipped, so new event types can be added without changing the version; the
+ * version changes when the payload of an existing type changes.
+ * <p/>
+ * Tests that pass are sent in batches: a testStarted immediately followed by its testEnded is
+ * held back and sent with the following ones in a single {@link #PASSED_TESTS} frame, with the
+ * class name omitted when it is the same as the previous test of the batch. Events are never held
+ * back for more than {@link #MAX_BATCH_DELAY_MS}.
+ * <p/>
+ * The frames are written by hand rather than defined in a .proto of tradefed-protos: each event
+ * only has a few fixed fields, already modeled by the {@link SubprocessEventHelper} classes, and
+ * the batch encoding relies on state shared between the tests of a frame (the omitted class
+ * names), which a message per event would not express without the same hand-written logic.
+ */
+public class SubprocessBinaryEventHelper {
+
+    /** First bytes of a binary event stream */
+    static final byte[] MAGIC = {'T', 'F', 'E', 'V'};
+    /** Version of the frame schema */
+    public static final int SCHEMA_VERSION = 1;
+
+    /** Default maximum number of passed tests sent in a single frame */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+    /** Maximum time to hold back passed tests before sending them */
+    static final long MAX_BATCH_DELAY_MS = 1000;
+
+    // frame types, never re-use a value
+    static final byte INVOCATION_STARTED = 1;
+    static final byte INVOCATION_FAILED = 2;
+    static final byte TEST_RUN_STARTED = 3;
+    static final byte TEST_RUN_FAILED = 4;
+    static final byte TEST_RUN_ENDED = 5;
+    static final byte TEST_STARTED = 6;
+    static final byte TEST_FAILED = 7;
+    static final byte TEST_ASSUMPTION_FAILURE = 8;
+    static final byte TEST_IGNORED = 9;
+    static final byte TEST_ENDED = 10;
+    static final byte TEST_LOG = 11;
+    static final byte PASSED_TESTS = 12;
+
+    private static final Map<String, Byte> KEY_TO_TYPE = new HashMap<>();
+    private static final Map<Byte, String> TYPE_TO_KEY = new HashMap<>();
+
+    static {
+        addType(StatusKeys.INVOCATION_STARTED, INVOCATION_STARTED);
+        addType(StatusKeys.INVOCATION_FAILED, INVOCATION_FAILED);
+        addType(StatusKeys.TEST_RUN_STARTED, TEST_RUN_STARTED);
+        addType(StatusKeys.TEST_RUN_FAILED, TEST_RUN_FAILED);
+        addType(StatusKeys.TEST_RUN_ENDED, TEST_RUN_ENDED);
+        addType(StatusKeys.TEST_STARTED, TEST_STARTED);
+        addType(StatusKeys.TEST_FAILED, TEST_FAILED);
+        addType(StatusKeys.TEST_ASSUMPTION_FAILURE, TEST_ASSUMPTION_FAILURE);
+        addType(StatusKeys.TEST_IGNORED, TEST_IGNORED);
+        addType(StatusKeys.TEST_ENDED, TEST_ENDED);
+        addType(StatusKeys.TEST_LOG, TEST_LOG);
+    }
+
+    private static void addType(String key, byte type) {
+        KEY_TO_TYPE.put(key, type);
+        TYPE_TO_KEY.put(type, key);
+    }
+
+    /**
+     * Receiver of the events decoded from a binary stream.
+     */
+    public interface IEventReceiver {
+        /**
+         * Called for each event, in order.
+         *
+         * @param key the event key, one of {@link StatusKeys}
+         * @param info the event information, the {@link SubprocessEventHelper} class matching
+         *        the key.
+         */
+        public void onEvent(String key, Object info);
+    }
+
+    /**
+     * Writes events to a binary stream.
+     * <p/>
+     * A timer thread sends the events held back for more than {@link #MAX_BATCH_DELAY_MS}, so the
+     * methods of the writer are synchronized.
+     */
+    public static class EventWriter implements Closeable {
+        private final DataOutputStream mOut;
+        private final int mMaxBatchSize;
+
+        private final ByteArrayOutputStream mFrameBytes = new ByteArrayOutputStream();
+        private final DataOutputStream mFrame = new DataOutputStream(mFrameBytes);
+
+        /** test started and not ended yet, held back in case it passes */
+        private TestStartedEventInfo mPendingStart = null;
+        private final ByteArrayOutputStream mBatchBytes = new ByteArrayOutputStream();
+        private final DataOutputStream mBatch = new DataOutputStream(mBatchBytes);
+        private int mBatchSize = 0;
+        private String mBatchLastClass = null;
+        /** when the oldest event held back was written, 0 if none is held back */
+        private long mHeldSince = 0;
+        private final Timer mFlushTimer = new Timer("subprocess-event-flush", true);
+
+        /**
+         * Creates a {@link EventWriter} and writes the stream header.
+         *
+         * @param out the {@link OutputStream} to write to
+         * @param maxBatchSize the maximum number of passed tests sent in a single frame, 1 to not
+         *        batch them.
+         */
+        public EventWriter(OutputStream out, int maxBatchSize) throws IOException {
+            mOut = new DataOutputStream(new BufferedOutputStream(out));
+            mMaxBatchSize = Math.max(1, maxBatchSize);
+            mOut.write(MAGIC);
+            mOut.writeByte(SCHEMA_VERSION);
+            mOut.flush();
+            mFlushTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    flushExpired();
+                }
+            }, MAX_BATCH_DELAY_MS, MAX_BATCH_DELAY_MS / 2);
+        }
+
+        /**
+         * Write an event.
+         *
+         * @param key the event key, one of {@link StatusKeys}
+         * @param info the event information, the {@link SubprocessEventHelper} class matching
+         *        the key.
+         */
+        public synchronized void writeEvent(String key, Object info) throws IOException {
+            if (StatusKeys.TEST_STARTED.equals(key)) {
+                if (mPendingStart != null) {
+                    // the previous test did not end, keep the events in order
+                    flushPendingStart();
+                }
+                if (mHeldSince == 0) {
+                    mHeldSince = System.currentTimeMillis();
+                }
+                mPendingStart = (TestStartedEventInfo) info;
+                if (isHeldTooLong()) {
+                    flushPendingStart();
+                    mOut.flush();
+                }
+                return;
+            }
+            if (StatusKeys.TEST_ENDED.equals(key) && mPendingStart != null
+                    && isSameTest(mPendingStart, (BaseTestEventInfo) info)) {
+                addToBatch(mPendingStart, (TestEndedEventInfo) info);
+                mPendingStart = null;
+                if (mBatchSize >= mMaxBatchSize || isHeldTooLong()) {
+                    flushBatch();
+                    mOut.flush();
+                }
+                return;
+            }
+            flushPendingStart();
+            Byte type = KEY_TO_TYPE.get(key);
+            if (type == null) {
+                CLog.w("Cannot encode unknown event %s", key);
+                return;
+            }
+            mFrameBytes.reset();
+            writePayload(mFrame, key, info);
+            writeFrame(type, mFrameBytes);
+            mOut.flush();
+        }
+
+        /**
+         * Write the events held back, and flush the stream.
+         */
+        public synchronized void flush() throws IOException {
+            flushPendingStart();
+            mOut.flush();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            mFlushTimer.cancel();
+            try {
+                flush();
+            } finally {
+                mOut.close();
+            }
+        }
+
+        private boolean isHeldTooLong() {
+            return mHeldSince != 0
+                    && System.currentTimeMillis() - mHeldSince >= MAX_BATCH_DELAY_MS;
+        }
+
+        /**
+         * Send the events held back for too long, called from the timer thread.
+         */
+        private synchronized void flushExpired() {
+            if (!isHeldTooLong()) {
+                return;
+            }
+            try {
+                flushPendingStart();
+                mOut.flush();
+            } catch (IOException e) {
+                CLog.e("Failed to send subprocess events");
+                CLog.e(e);
+                mFlushTimer.cancel();
+            }
+        }
+
+        private void flushPendingStart() throws IOException {
+            flushBatch();
+            if (mPendingStart != null) {
+                mFrameBytes.reset();
+                writePayload(mFrame, StatusKeys.TEST_STARTED, mPendingStart);
+                writeFrame(TEST_STARTED, mFrameBytes);
+                mPendingStart = null;
+            }
+            mHeldSince = 0;
+        }
+
+        private void addToBatch(TestStartedEventInfo start, TestEndedEventInfo end)
+                throws IOException {
+            if (mBatchSize == 0) {
+                mBatchLastClass = null;
+            }
+            if (start.mClassName != null && start.mClassName.equals(mBatchLastClass)) {
+                mBatch.writeBoolean(false);
+            } else {
+                mBatch.writeBoolean(true);
+                writeString(mBatch, start.mClassName);
+                mBatchLastClass = start.mClassName;
+            }
+            writeString(mBatch, start.mTestName);
+            writeTime(mBatch, start.mStartTime);
+            writeTime(mBatch, end.mEndTime);
+            writeMap(mBatch, end.mRunMetrics);
+            mBatchSize++;
+        }
+
+        private void flushBatch() throws IOException {
+            if (mBatchSize == 0) {
+                return;
+            }
+            mFrameBytes.reset();
+            mFrame.writeInt(mBatchSize);
+            mBatchBytes.writeTo(mFrame);
+            writeFrame(PASSED_TESTS, mFrameBytes);
+            mBatchBytes.reset();
+            mBatchSize = 0;
+            if (mPendingStart == null) {
+                mHeldSince = 0;
+            }
+        }
+
+        private void writeFrame(byte type, ByteArrayOutputStream payload) throws IOException {
+            mOut.writeInt(payload.size());
+            mOut.writeByte(type);
+            payload.writeTo(mOut);
+        }
+    }
+
+    private static boolean isSameTest(BaseTestEventInfo first, BaseTestEventInfo second) {
+        return first.mClassName != null && first.mClassName.equals(second.mClassName)
+                && first.mTestName != null && first.mTestName.equals(second.mTestName);
+    }
+
+    /**
+     * Returns true if the stream is a binary event stream. The stream is left at its current
+     * position.
+     */
+    public static boolean isBinaryStream(InputStream in) throws IOException {
+        if (!in.markSupported()) {
+            throw new IllegalArgumentException("stream must support mark");
+        }
+        byte[] header = new byte[MAGIC.length];
+        in.mark(header.length);
+        try {
+            int length = 0;
+            while (length < header.length) {
+                int read = in.read(header, length, header.length - length);
+                if (read < 0) {
+                    return false;
+                }
+                length += read;
+            }
+            return Arrays.equals(MAGIC, header);
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Read the events of a binary stream, until its end.
+     *
+     * @param in the {@link InputStream}, positioned at the start of the stream header
+     * @param receiver the {@link IEventReceiver} to pass the events to
+     * @throws IOException if the stream could not be read or is not a supported binary stream.
+     */
+    public static void readEvents(InputStream in, IEventReceiver receiver) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        byte[] header = new byte[MAGIC.length];
+        data.readFully(header);
+        if (!Arrays.equals(MAGIC, header)) {
+            throw new IOException("not a binary event stream");
+        }
+        int version = data.readUnsignedByte();
+        if (version != SCHEMA_VERSION) {
+            throw new IOException(String.format(
+                    "unsupported event schema version %d, expected %d", version,
+                    SCHEMA_VERSION));
+        }
+        byte[] payload = new byte[1024];
+        while (true) {
+            int length;
+            try {
+                length = data.readInt();
+            } catch (EOFException e) {
+                // end of the stream between two frames
+                return;
+            }
+            byte type = data.readByte();
+            if (length < 0) {
+                throw new IOException("invalid frame length " + length);
+            }
+            if (payload.length < length) {
+                payload = new byte[Math.max(payload.length * 2, length)];
+            }
+            data.readFully(payload, 0, length);
+            DataInputStream frame =
+                    new DataInputStream(new ByteArrayInputStream(payload, 0, length));
+            if (type == PASSED_TESTS) {
+                readPassedTests(frame, receiver);
+                continue;
+            }
+            String key = TYPE_TO_KEY.get(type);
+            if (key == null) {
+                CLog.w("Skipping unknown event type %d", type);
+                continue;
+            }
+            receiver.onEvent(key, readPayload(frame, key));
+        }
+    }
+
+    private static void readPassedTests(DataInputStream frame, IEventReceiver receiver)
+            throws IOException {
+        int count = frame.readInt();
+        String className = null;
+        for (int i = 0; i < count; i++) {
+            if (frame.readBoolean()) {
+                className = readString(frame);
+            }
+            String testName = readString(frame);
+            Long startTime = readTime(frame);
+            Long endTime = readTime(frame);
+            Map<String, String> metrics = readMap(frame);
+            receiver.onEvent(StatusKeys.TEST_STARTED,
+                    new TestStartedEventInfo(className, testName, startTime));
+            receiver.onEvent(StatusKeys.TEST_ENDED,
+                    new TestEndedEventInfo(className, testName, endTime, metrics));
+        }
+    }
+
+    private static void writePayload(DataOutputStream out, String key, Object info)
+            throws IOException {
+        switch (key) {
+            case StatusKeys.INVOCATION_STARTED:
+                InvocationStartedEventInfo started = (InvocationStartedEventInfo) info;
+                writeString(out, started.mTestTag);
+                writeTime(out, started.mStartTime);
+                break;
+            case StatusKeys.INVOCATION_FAILED:
+                Throwable cause = ((InvocationFailedEventInfo) info).mCause;
+                String stack = null;
+                if (cause != null) {
+                    StringWriter sw = new StringWriter();
+                    cause.printStackTrace(new PrintWriter(sw));
+                    stack = sw.toString();
+                }
+                writeString(out, stack);
+                break;
+            case StatusKeys.TEST_RUN_STARTED:
+                TestRunStartedEventInfo runStarted = (TestRunStartedEventInfo) info;
+                writeString(out, runStarted.mRunName);
+                out.writeInt(runStarted.mTestCount);
+                break;
+            case StatusKeys.TEST_RUN_FAILED:
+                writeString(out, ((TestRunFailedEventInfo) info).mReason);
+                break;
+            case StatusKeys.TEST_RUN_ENDED:
+                TestRunEndedEventInfo runEnded = (TestRunEndedEventInfo) info;
+                writeTime(out, runEnded.mTime);
+                writeMap(out, runEnded.mRunMetrics);
+                break;
+            case StatusKeys.TEST_STARTED:
+                TestStartedEventInfo testStarted = (TestStartedEventInfo) info;
+                writeTest(out, testStarted);
+                writeTime(out, testStarted.mStartTime);
+                break;
+            case StatusKeys.TEST_FAILED:
+            case StatusKeys.TEST_ASSUMPTION_FAILURE:
+                FailedTestEventInfo failed = (FailedTestEventInfo) info;
+                writeTest(out, failed);
+                writeString(out, failed.mTrace);
+                break;
+            case StatusKeys.TEST_IGNORED:
+                writeTest(out, (BaseTestEventInfo) info);
+                break;
+            case StatusKeys.TEST_ENDED:
+                TestEndedEventInfo testEnded = (TestEndedEventInfo) info;
+                writeTest(out, testEnded);
+                writeTime(out, testEnded.mEndTime);
+                writeMap(out, testEnded.mRunMetrics);
+                break;
+            case StatusKeys.TEST_LOG:
+                TestLogEventInfo log = (TestLogEventInfo) info;
+                writeString(out, log.mDataName);
+                writeString(out, log.mLogType == null ? null : log.mLogType.name());
+                writeString(out, log.mDataFile == null ? null : log.mDataFile.getAbsolutePath());
+                break;
+            default:
+                throw new IllegalArgumentException("unknown event " + key);
+        }
+    }
+
+    private static Object readPayload(DataInputStream in, String key) throws IOException {
+        switch (key) {
+            case StatusKeys.INVOCATION_STARTED:
+                return new InvocationStartedEventInfo(readString(in), readTime(in));
+            case StatusKeys.INVOCATION_FAILED:
+                // as with the json events, only the stack trace is sent
+                return new InvocationFailedEventInfo(new Throwable(readString(in)));
+            case StatusKeys.TEST_RUN_STARTED:
+                return new TestRunStartedEventInfo(readString(in), in.readInt());
+            case StatusKeys.TEST_RUN_FAILED:
+                return new TestRunFailedEventInfo(readString(in));
+            case StatusKeys.TEST_RUN_ENDED:
+                return new TestRunEndedEventInfo(readTime(in), readMap(in));
+            case StatusKeys.TEST_STARTED:
+                return new TestStartedEventInfo(readString(in), readString(in), readTime(in));
+            case StatusKeys.TEST_FAILED:
+            case StatusKeys.TEST_ASSUMPTION_FAILURE:
+                return new FailedTestEventInfo(readString(in), readString(in), readString(in));
+            case StatusKeys.TEST_IGNORED:
+                return new BaseTestEventInfo(readString(in), readString(in));
+            case StatusKeys.TEST_ENDED:
+                return new TestEndedEventInfo(readString(in), readString(in), readTime(in),
+                        readMap(in));
+            case StatusKeys.TEST_LOG:
+                String dataName = readString(in);
+                String dataType = readString(in);
+                String dataFile = readString(in);
+                try {
+                    return new TestLogEventInfo(dataName,
+                            dataType == null ? null : LogDataType.valueOf(dataType),
+                            dataFile == null ? null : new File(dataFile));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("unknown log data type " + dataType, e);
+                }
+            default:
+                throw new IllegalArgumentException("unknown event " + key);
+        }
+    }
+
+    private static void writeTest(DataOutputStream out, BaseTestEventInfo test)
+            throws IOException {
+        writeString(out, test.mClassName);
+        writeString(out, test.mTestName);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeTime(DataOutputStream out, Long time) throws IOException {
+        out.writeBoolean(time != null);
+        if (time != null) {
+            out.writeLong(time);
+        }
+    }
+
+    private static Long readTime(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readLong() : null;
+    }
+
+    private static void writeMap(DataOutputStream out, Map<String, String> map)
+            throws IOException {
+        if (map == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(map.size());
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+    }
+
+    private static Map<String, String> readMap(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            map.put(readString(in), readString(in));
+        }
+        return map;
+    }
+}
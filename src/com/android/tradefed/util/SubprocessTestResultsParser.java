@@ -35,23 +35,19 @@ import com.android.tradefed.util.SubprocessEventHelper.TestStartedEventInfo;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Extends {@link FileOutputStream} to parse the output before writing to the file so we can
@@ -61,7 +57,7 @@ public class SubprocessTestResultsParser implements Closeable {
 
     private ITestInvocationListener mListener;
     private TestIdentifier currentTest = null;
-    private Pattern mPattern = null;
+    private String[] mEventKeys = null;
     private Map<String, EventHandler> mHandlerMap = null;
     private EventReceiverThread mEventReceiver = null;
     private IInvocationContext mContext = null;
@@ -112,18 +108,14 @@ public class SubprocessTestResultsParser implements Closeable {
         @Override
         public void run() {
             Socket client = null;
-            BufferedReader in = null;
+            InputStream in = null;
             try {
                 client = mSocket.accept();
-                in = new BufferedReader(new InputStreamReader(client.getInputStream()));
-                String event = null;
-                while ((event = in.readLine()) != null) {
-                    try {
-                        CLog.i("received event: '%s'", event);
-                        parse(event);
-                    } catch (JSONException e) {
-                        CLog.e(e);
-                    }
+                in = new BufferedInputStream(client.getInputStream());
+                if (SubprocessBinaryEventHelper.isBinaryStream(in)) {
+                    SubprocessBinaryEventHelper.readEvents(in, new BinaryEventReceiver());
+                } else {
+                    readEvents(in, new EventLineReceiver(false));
                 }
             } catch (IOException e) {
                 CLog.e(e);
@@ -135,6 +127,65 @@ public class SubprocessTestResultsParser implements Closeable {
         }
     }
 
+    /**
+     * Receiver parsing each line of output for events, without creating a {@link String} for the
+     * lines that are not events.
+     */
+    private class EventLineReceiver extends StreamingLineReceiver {
+        private final boolean mThrowOnError;
+
+        /**
+         * @param throwOnError if True, a line failing to be parsed throws a
+         *            {@link RuntimeException}, otherwise it is only logged.
+         */
+        EventLineReceiver(boolean throwOnError) {
+            mThrowOnError = throwOnError;
+            setTrimLine(false);
+        }
+
+        @Override
+        public void processLine(CharSequence line) {
+            try {
+                parse(line);
+            } catch (JSONException e) {
+                CLog.e("Exception while parsing");
+                CLog.e(e);
+                if (mThrowOnError) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    }
+
+    /**
+     * Receiver of the events sent with {@link SubprocessBinaryEventHelper}, passing them to the
+     * same handlers as the text events.
+     */
+    private class BinaryEventReceiver implements SubprocessBinaryEventHelper.IEventReceiver {
+        @Override
+        public void onEvent(String key, Object info) {
+            mHandlerMap.get(key).handleEventInfo(info);
+        }
+    }
+
+    /**
+     * Feed the content of a stream to a receiver, until the end of the stream.
+     */
+    private static void readEvents(InputStream in, EventLineReceiver receiver)
+            throws IOException {
+        byte[] buffer = new byte[8 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            receiver.addOutput(buffer, 0, read);
+        }
+        receiver.flush();
+    }
+
     /**
      * If the event receiver is being used, ensure that we wait for it to terminate.
      * @param millis timeout in milliseconds.
@@ -200,21 +251,6 @@ public class SubprocessTestResultsParser implements Closeable {
             ITestInvocationListener listener, IInvocationContext context) {
         mListener = listener;
         mContext = context;
-        StringBuilder sb = new StringBuilder();
-        sb.append(StatusKeys.INVOCATION_FAILED).append("|");
-        sb.append(StatusKeys.TEST_ASSUMPTION_FAILURE).append("|");
-        sb.append(StatusKeys.TEST_ENDED).append("|");
-        sb.append(StatusKeys.TEST_FAILED).append("|");
-        sb.append(StatusKeys.TEST_IGNORED).append("|");
-        sb.append(StatusKeys.TEST_STARTED).append("|");
-        sb.append(StatusKeys.TEST_RUN_ENDED).append("|");
-        sb.append(StatusKeys.TEST_RUN_FAILED).append("|");
-        sb.append(StatusKeys.TEST_RUN_STARTED).append("|");
-        sb.append(StatusKeys.TEST_LOG).append("|");
-        sb.append(StatusKeys.INVOCATION_STARTED);
-        String patt = String.format("(.*)(%s)( )(.*)", sb.toString());
-        mPattern = Pattern.compile(patt);
-
         // Create Handler map for each event
         mHandlerMap = new HashMap<String, EventHandler>();
         mHandlerMap.put(StatusKeys.INVOCATION_FAILED, new InvocationFailedEventHandler());
@@ -229,28 +265,23 @@ public class SubprocessTestResultsParser implements Closeable {
         mHandlerMap.put(StatusKeys.TEST_RUN_STARTED, new TestRunStartedEventHandler());
         mHandlerMap.put(StatusKeys.TEST_LOG, new TestLogEventHandler());
         mHandlerMap.put(StatusKeys.INVOCATION_STARTED, new InvocationStartedEventHandler());
+        mEventKeys = mHandlerMap.keySet().toArray(new String[mHandlerMap.size()]);
     }
 
+    /**
+     * Parse the events from a file, streaming its content rather than loading it in memory.
+     */
     public void parseFile(File file) {
-        BufferedReader reader = null;
-        try {
-            reader = new BufferedReader(new FileReader(file));
-        } catch (FileNotFoundException e) {
-            CLog.e(e);
-            throw new RuntimeException(e);
-        }
-        ArrayList<String> listString = new ArrayList<String>();
-        String line = null;
+        InputStream in = null;
         try {
-            while ((line = reader.readLine()) != null) {
-                listString.add(line);
-            }
-            reader.close();
+            in = new BufferedInputStream(new FileInputStream(file));
+            readEvents(in, new EventLineReceiver(true));
         } catch (IOException e) {
             CLog.e(e);
             throw new RuntimeException(e);
+        } finally {
+            StreamUtil.close(in);
         }
-        processNewLines(listString.toArray(new String[listString.size()]));
     }
 
     /**
@@ -270,15 +301,23 @@ public class SubprocessTestResultsParser implements Closeable {
 
     /**
      * Parse a line, if it matches one of the events, handle it.
+     * <p/>
+     * An event is an event key followed by a space and the event data. Anything before the key,
+     * such as a log prefix, is ignored. If several keys occur in the line, the last one is used.
      */
-    private void parse(String line) throws JSONException {
-        Matcher matcher = mPattern.matcher(line);
-        if (matcher.find()) {
-            EventHandler handler = mHandlerMap.get(matcher.group(2));
-            if (handler != null) {
-                handler.handleEvent(matcher.group(4));
-            } else {
-                CLog.w("No handler found matching: %s", matcher.group(2));
+    private void parse(CharSequence line) throws JSONException {
+        // look for the last "<key> ", from the end of the line
+        for (int i = line.length() - 1; i > 0; i--) {
+            if (line.charAt(i) != ' ') {
+                continue;
+            }
+            for (String key : mEventKeys) {
+                if (StreamingLineReceiver.regionMatches(line, i - key.length(), key)) {
+                    CLog.d("received event: '%s'", line);
+                    mHandlerMap.get(key).handleEvent(
+                            line.subSequence(i + 1, line.length()).toString());
+                    return;
+                }
             }
         }
     }
@@ -295,12 +334,23 @@ public class SubprocessTestResultsParser implements Closeable {
      */
     interface EventHandler {
         public void handleEvent(String eventJson) throws JSONException;
+
+        /**
+         * Handle an event already decoded, as the {@link SubprocessEventHelper} class matching
+         * the event key.
+         */
+        public void handleEventInfo(Object info);
     }
 
     private class TestRunStartedEventHandler implements EventHandler {
         @Override
         public void handleEvent(String eventJson) throws JSONException {
-            TestRunStartedEventInfo rsi = new TestRunStartedEventInfo(new JSONObject(eventJson));
+            handleEventInfo(new TestRunStartedEventInfo(new JSONObject(eventJson)));
+        }
+
+        @Override
+        public void handleEventInfo(Object info) {
+            TestRunStartedEventInfo rsi = (TestRunStartedEventInfo) info;
             mListener.testRunStarted(rsi.mRunName, rsi.mTestCount);
         }
     }
@@ -308,7 +358,12 @@ public class SubprocessTestResultsParser implements Closeable {
     private class TestRunFailedEventHandler implements EventHandler {
         @Override
         public void handleEvent(String eventJson) throws JSONException {
-            TestRunFailedEventInfo rfi = new TestRunFailedEventInfo(new JSONObject(eventJson));
+            handleEventInfo(new TestRunFailedEventInfo(new JSONObject(eventJson)));
+        }
+
+        @Override
+        public void handleEventInfo(Object info) {
+            TestRunFailedEventInfo rfi = (TestRunFailedEventInfo) info;
             mListener.testRunFailed(rfi.mReason);
         }
     }
@@ -317,7 +372,16 @@ public class SubprocessTestResultsParser implements Closeable {
         @Override
         public void handleEvent(String eventJson) throws JSONException {
             try {
-                TestRunEndedEventInfo rei = new TestRunEndedEventInfo(new JSONObject(eventJson));
+                handleEventInfo(new TestRunEndedEventInfo(new JSONObject(eventJson)));
+            } finally {
+                currentTest = null;
+            }
+        }
+
+        @Override
+        public void handleEventInfo(Object info) {
+            try {
+                TestRunEndedEventInfo rei = (TestRunEndedEventInfo) info;
                 mListener.testRunEnded(rei.mTime, rei.mRunMetrics);
             } finally {
                 currentTest = null;
@@ -328,8 +392,12 @@ public class SubprocessTestResultsParser implements Closeable {
     private class InvocationFailedEventHandler implements EventHandler {
         @Override
         public void handleEvent(String eventJson) throws JSONException {
-            InvocationFailedEventInfo ifi =
-                    new InvocationFailedEventInfo(new JSONObject(eventJson));
+            handleEventInfo(new InvocationFailedEventInfo(new JSONObject(eventJson)));
+        }
+
+        @Override
+        public void handleEventInfo(Object info) {
+            InvocationFailedEventInfo ifi = (InvocationFailedEventInfo) info;
             mListener.invocationFailed(ifi.mCause);
         }
     }
@@ -337,7 +405,12 @@ public class SubprocessTestResultsParser implements Closeable {
     private class TestStartedEventHandler implements EventHandler {
         @Override
         public void handleEvent(String eventJson) throws JSONException {
-            TestStartedEventInfo bti = new TestStartedEventInfo(new JSONObject(eventJson));
+            handleEventInfo(new TestStartedEventInfo(new JSONObject(eventJson)));
+        }
+
+        @Override
+        public void handleEventInfo(Object info) {
+            TestStartedEventInfo bti = (TestStartedEventInfo) info;
             currentTest = new TestIdentifier(bti.mClassName, bti.mTestName);
             if (bti.mStartTime != null) {
                 mListener.testStarted(currentTest, bti.mStartTime);
@@ -350,7 +423,12 @@ public class SubprocessTestResultsParser implements Closeable {
     private class TestFailedEventHandler implements EventHandler {
         @Override
         public void handleEvent(String eventJson) throws JSONException {
-            FailedTestEventInfo fti = new FailedTestEventInfo(new JSONObject(eventJson));
+            handleEventInfo(new FailedTestEventInfo(new JSONObject(eventJson)));
+        }
+
+        @Override
+        public void handleEventInfo(Object info) {
+            FailedTestEventInfo fti = (FailedTestEventInfo) info;
             checkCurrentTestId(fti.mClassName, fti.mTestName);
             mListener.testFailed(currentTest, fti.mTrace);
         }
@@ -360,7 +438,16 @@ public class SubprocessTestResultsParser implements Closeable {
         @Override
         public void handleEvent(String eventJson) throws JSONException {
             try {
-                TestEndedEventInfo tei = new TestEndedEventInfo(new JSONObject(eventJson));
+                handleEventInfo(new TestEndedEventInfo(new JSONObject(eventJson)));
+            } finally {
+                currentTest = null;
+            }
+        }
+
+        @Override
+        public void handleEventInfo(Object info) {
+            try {
+                TestEndedEventInfo tei = (TestEndedEventInfo) info;
                 checkCurrentTestId(tei.mClassName, tei.mTestName);
                 if (tei.mEndTime != null) {
                     mListener.testEnded(currentTest, tei.mEndTime, tei.mRunMetrics);
@@ -376,7 +463,12 @@ public class SubprocessTestResultsParser implements Closeable {
     private class TestIgnoredEventHandler implements EventHandler {
         @Override
         public void handleEvent(String eventJson) throws JSONException {
-            BaseTestEventInfo baseTestIgnored = new BaseTestEventInfo(new JSONObject(eventJson));
+            handleEventInfo(new BaseTestEventInfo(new JSONObject(eventJson)));
+        }
+
+        @Override
+        public void handleEventInfo(Object info) {
+            BaseTestEventInfo baseTestIgnored = (BaseTestEventInfo) info;
             checkCurrentTestId(baseTestIgnored.mClassName, baseTestIgnored.mTestName);
             mListener.testIgnored(currentTest);
         }
@@ -385,8 +477,12 @@ public class SubprocessTestResultsParser implements Closeable {
     private class TestAssumptionFailureEventHandler implements EventHandler {
         @Override
         public void handleEvent(String eventJson) throws JSONException {
-            FailedTestEventInfo FailedAssumption =
-                    new FailedTestEventInfo(new JSONObject(eventJson));
+            handleEventInfo(new FailedTestEventInfo(new JSONObject(eventJson)));
+        }
+
+        @Override
+        public void handleEventInfo(Object info) {
+            FailedTestEventInfo FailedAssumption = (FailedTestEventInfo) info;
             checkCurrentTestId(FailedAssumption.mClassName, FailedAssumption.mTestName);
             mListener.testAssumptionFailure(currentTest, FailedAssumption.mTrace);
         }
@@ -395,7 +491,12 @@ public class SubprocessTestResultsParser implements Closeable {
     private class TestLogEventHandler implements EventHandler {
         @Override
         public void handleEvent(String eventJson) throws JSONException {
-            TestLogEventInfo logInfo = new TestLogEventInfo(new JSONObject(eventJson));
+            handleEventInfo(new TestLogEventInfo(new JSONObject(eventJson)));
+        }
+
+        @Override
+        public void handleEventInfo(Object info) {
+            TestLogEventInfo logInfo = (TestLogEventInfo) info;
             String name = String.format("subprocess-%s", logInfo.mDataName);
             try {
                 InputStreamSource data = new FileInputStreamSource(logInfo.mDataFile);
@@ -409,8 +510,12 @@ public class SubprocessTestResultsParser implements Closeable {
     private class InvocationStartedEventHandler implements EventHandler {
         @Override
         public void handleEvent(String eventJson) throws JSONException {
-            InvocationStartedEventInfo eventStart =
-                    new InvocationStartedEventInfo(new JSONObject(eventJson));
+            handleEventInfo(new InvocationStartedEventInfo(new JSONObject(eventJson)));
+        }
+
+        @Override
+        public void handleEventInfo(Object info) {
+            InvocationStartedEventInfo eventStart = (InvocationStartedEventInfo) info;
             if (mContext.getTestTag() == null || "stub".equals(mContext.getTestTag())) {
                 mContext.setTestTag(eventStart.mTestTag);
             }
@@ -45,8 +45,18 @@ public abstract class AbstractHostMonitor extends Thread implements IHostMonitor
     @Option(name = "event-tag", description = "Event Tag that will be accepted by the Monitor.")
     private HostMetricType mTag = HostMetricType.NONE;
 
+    @Option(
+        name = "max-queued-events",
+        description =
+                "the maximum number of events waiting to be dispatched. The oldest events are "
+                        + "dropped when it is reached."
+    )
+    private int mMaxQueuedEvents = 1000;
+
     protected Queue<HostDataPoint> mHostEvents = new LinkedBlockingQueue<HostDataPoint>();
 
+    private long mDroppedEvents = 0;
+
     protected Map<String, String> mHostData = new HashMap<>();
 
     private boolean mIsCanceled = false;
@@ -72,9 +82,17 @@ public abstract class AbstractHostMonitor extends Thread implements IHostMonitor
             mHostData.put("hostname", InetAddress.getLocalHost().getHostName());
             mHostData.put("tradefed_version", VersionParser.fetchVersion());
 
+            long nextDispatch = System.currentTimeMillis();
             while (!mIsCanceled) {
                 dispatch();
-                getRunUtil().sleep(mDispatchInterval);
+                // dispatch at a fixed rate, regardless of how long dispatching takes
+                nextDispatch += mDispatchInterval;
+                long now = System.currentTimeMillis();
+                if (nextDispatch < now) {
+                    // too slow to keep up, skip the missed dispatches
+                    nextDispatch = now;
+                }
+                getRunUtil().sleep(nextDispatch - now);
             }
         } catch (Exception e) {
             CLog.e(e);
@@ -85,10 +103,27 @@ public abstract class AbstractHostMonitor extends Thread implements IHostMonitor
     @Override
     public synchronized void addHostEvent(HostMetricType tag, HostDataPoint event) {
         if (getTag().equals(tag)) {
-            mHostEvents.add(event);
+            queueHostEvent(event);
         }
     }
 
+    /**
+     * Queue an event to be sent on the next dispatch. If too many events are already waiting, the
+     * oldest one is dropped.
+     */
+    protected synchronized void queueHostEvent(HostDataPoint event) {
+        while (mHostEvents.size() >= Math.max(1, mMaxQueuedEvents)) {
+            mHostEvents.poll();
+            mDroppedEvents++;
+        }
+        mHostEvents.add(event);
+    }
+
+    /** Returns the number of events dropped because too many were waiting to be dispatched. */
+    public synchronized long getDroppedEventCount() {
+        return mDroppedEvents;
+    }
+
     /** {@inheritDoc} */
     @Override
     public void terminate() {
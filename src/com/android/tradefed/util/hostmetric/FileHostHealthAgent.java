@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util.hostmetric;
+
+import com.android.tradefed.config.Option;
+import com.android.tradefed.config.Option.Importance;
+import com.android.tradefed.config.OptionClass;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import org.json.JSONException;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link IHostHealthAgent} implementation that appends host metrics to a local file, one JSON
+ * object per line, so they can be correlated with invocation logs after the fact.
+ * <p/>
+ * When the file grows over the maximum size, it is renamed with a ".1" suffix, replacing the
+ * previous one, and a new file is started.
+ */
+@OptionClass(alias = "host_metric_agent_file", global_namespace = false)
+public class FileHostHealthAgent implements IHostHealthAgent {
+
+    @Option(
+        name = "file",
+        description = "The file to append the host metrics to.",
+        importance = Importance.IF_UNSET
+    )
+    private File mFile = null;
+
+    @Option(
+        name = "max-file-size",
+        description = "The size in bytes over which the file is rotated. 0 to never rotate."
+    )
+    private long mMaxFileSize = 50 * 1024 * 1024;
+
+    private List<HostMetric> mMetrics = new ArrayList<>();
+
+    public FileHostHealthAgent() {
+    }
+
+    /**
+     * Exposed for unit testing.
+     */
+    FileHostHealthAgent(File file, long maxFileSize) {
+        mFile = file;
+        mMaxFileSize = maxFileSize;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void emitValue(String name, long value, Map<String, String> data) {
+        mMetrics.add(new HostMetric(name, System.currentTimeMillis(), value, data));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void flush() {
+        if (mMetrics.isEmpty()) {
+            return;
+        }
+        if (mFile == null) {
+            CLog.w("No host metric file set, dropping %d metrics.", mMetrics.size());
+            mMetrics.clear();
+            return;
+        }
+        rotateIfNeeded();
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(mFile, true), StandardCharsets.UTF_8))) {
+            for (HostMetric metric : mMetrics) {
+                writer.write(metric.toJson().toString());
+                writer.write('\n');
+            }
+        } catch (IOException | JSONException e) {
+            CLog.e("Failed to write host metrics to %s", mFile);
+            CLog.e(e);
+        } finally {
+            mMetrics.clear();
+        }
+    }
+
+    private void rotateIfNeeded() {
+        if (mMaxFileSize <= 0 || mFile.length() < mMaxFileSize) {
+            return;
+        }
+        File previous = new File(mFile.getPath() + ".1");
+        previous.delete();
+        if (!mFile.renameTo(previous)) {
+            CLog.w("Failed to rotate host metric file %s", mFile);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util.hostmetric;
+
+import java.util.Arrays;
+
+/**
+ * A fixed-size time series of host metric samples.
+ * <p/>
+ * Samples are kept in a ring: once {@link #getCapacity()} samples were added, each new sample
+ * replaces the oldest one, so memory usage does not grow with the uptime of the host. Samples
+ * are expected to be added in time order.
+ * <p/>
+ * Thread safe.
+ */
+public class HostTimeSeries {
+
+    private final String mName;
+    private final long[] mTimestamps;
+    private final long[] mValues;
+    /** index of the next sample to write */
+    private int mNext = 0;
+    private int mSize = 0;
+
+    /**
+     * Creates a {@link HostTimeSeries}.
+     *
+     * @param name the name of the metric
+     * @param capacity the maximum number of samples kept
+     */
+    public HostTimeSeries(String name, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        mName = name;
+        mTimestamps = new long[capacity];
+        mValues = new long[capacity];
+    }
+
+    /** Returns the name of the metric. */
+    public String getName() {
+        return mName;
+    }
+
+    /** Returns the maximum number of samples kept. */
+    public int getCapacity() {
+        return mValues.length;
+    }
+
+    /** Returns the number of samples currently kept. */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Adds a sample, dropping the oldest one if the series is full.
+     *
+     * @param timestamp the time of the sample, in ms
+     * @param value the value of the sample
+     */
+    public synchronized void add(long timestamp, long value) {
+        mTimestamps[mNext] = timestamp;
+        mValues[mNext] = value;
+        mNext = (mNext + 1) % mValues.length;
+        if (mSize < mValues.length) {
+            mSize++;
+        }
+    }
+
+    /**
+     * Returns the value of the latest sample.
+     *
+     * @throws IllegalStateException if the series is empty
+     */
+    public synchronized long getLatest() {
+        return mValues[lastIndex()];
+    }
+
+    /**
+     * Returns the time of the latest sample.
+     *
+     * @throws IllegalStateException if the series is empty
+     */
+    public synchronized long getLatestTimestamp() {
+        return mTimestamps[lastIndex()];
+    }
+
+    /** Returns the time of the samples kept, oldest first. */
+    public synchronized long[] getTimestamps() {
+        return copy(mTimestamps);
+    }
+
+    /** Returns the values of the samples kept, oldest first. */
+    public synchronized long[] getValues() {
+        return copy(mValues);
+    }
+
+    /**
+     * Returns the values of the samples taken in the given time range, oldest first.
+     *
+     * @param start the start of the range, inclusive
+     * @param end the end of the range, inclusive
+     */
+    public synchronized long[] getValues(long start, long end) {
+        long[] values = new long[mSize];
+        int count = 0;
+        for (int i = 0; i < mSize; i++) {
+            int index = index(i);
+            if (mTimestamps[index] >= start && mTimestamps[index] <= end) {
+                values[count++] = mValues[index];
+            }
+        }
+        return Arrays.copyOf(values, count);
+    }
+
+    /**
+     * Returns the highest value sampled in the given time range, or null if there is no sample in
+     * the range.
+     *
+     * @param start the start of the range, inclusive
+     * @param end the end of the range, inclusive
+     */
+    public synchronized Long getMax(long start, long end) {
+        Long max = null;
+        for (int i = 0; i < mSize; i++) {
+            int index = index(i);
+            if (mTimestamps[index] >= start && mTimestamps[index] <= end
+                    && (max == null || mValues[index] > max)) {
+                max = mValues[index];
+            }
+        }
+        return max;
+    }
+
+    /** Returns the index in the ring of the i-th oldest sample. */
+    private int index(int i) {
+        return (mNext - mSize + i + mValues.length) % mValues.length;
+    }
+
+    private int lastIndex() {
+        if (mSize == 0) {
+            throw new IllegalStateException(String.format("No sample for %s", mName));
+        }
+        return index(mSize - 1);
+    }
+
+    private long[] copy(long[] ring) {
+        long[] values = new long[mSize];
+        for (int i = 0; i < mSize; i++) {
+            values[i] = ring[index(i)];
+        }
+        return values;
+    }
+}
@@ -23,6 +23,8 @@ public interface IHostMonitor {
     public enum HostMetricType {
         NONE,
         INVOCATION_STRAY_THREAD,
+        /** Resources used by an invocation, reported when it ends. */
+        INVOCATION_RESOURCES,
     }
 
     /**
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util.hostmetric;
+
+import com.android.tradefed.config.Option;
+import com.android.tradefed.util.RunUtil;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link AbstractHostMonitor} implementation that samples the resource usage of the host on each
+ * dispatch: JVM heap, garbage collection, threads and allocation rate, as well as open file
+ * descriptors and child processes.
+ * <p/>
+ * Each metric is kept in a fixed-size {@link HostTimeSeries}, and the latest samples are emitted to
+ * the configured {@link IHostHealthAgent}, for example a {@link FileHostHealthAgent}.
+ * <p/>
+ * The monitor also accepts {@link HostMetricType#INVOCATION_RESOURCES} events, reported when an
+ * invocation ends. For those, the peak value of each host metric during the invocation is
+ * emitted along with the event, to correlate slow invocations with the saturation of the host.
+ */
+public class TelemetryHostMonitor extends AbstractHostMonitor {
+
+    public static final String HEAP_USED_KEY = "heap_used_mb";
+    /** time spent in garbage collection since the previous sample */
+    public static final String GC_TIME_KEY = "gc_time_ms";
+    /** number of garbage collections since the previous sample */
+    public static final String GC_COUNT_KEY = "gc_count";
+    public static final String THREAD_COUNT_KEY = "thread_count";
+    public static final String ALLOCATION_RATE_KEY = "allocation_rate_kb_per_sec";
+    public static final String OPEN_FDS_KEY = "open_fds";
+    public static final String CHILD_PROCESSES_KEY = "child_processes";
+
+    public static final String INVOCATION_ELAPSED_KEY = "invocation_elapsed_ms";
+    public static final String INVOCATION_CPU_KEY = "invocation_cpu_ms";
+    public static final String INVOCATION_ALLOCATED_KEY = "invocation_allocated_kb";
+    public static final String INVOCATION_PEAK_PREFIX = "invocation_peak_";
+
+    static final String INFO_KEY = "info";
+
+    /** The host metrics sampled, in the order they are emitted. */
+    static final List<String> HOST_METRICS = Collections.unmodifiableList(Arrays.asList(
+            HEAP_USED_KEY, GC_TIME_KEY, GC_COUNT_KEY, THREAD_COUNT_KEY, ALLOCATION_RATE_KEY,
+            OPEN_FDS_KEY, CHILD_PROCESSES_KEY));
+
+    @Option(name = "series-size", description = "the number of samples kept for each metric.")
+    private int mSeriesSize = 240;
+
+    private final Map<String, HostTimeSeries> mSeries = new ConcurrentHashMap<>();
+
+    private long mLastSampleTime = -1;
+    private long mLastGcTime = -1;
+    private long mLastGcCount = -1;
+    private long mLastAllocatedBytes = -1;
+
+    public TelemetryHostMonitor() {
+        super();
+        setName("TelemetryHostMonitor");
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void dispatch() {
+        Map<String, Long> samples = sample(System.currentTimeMillis());
+        List<HostDataPoint> events = new ArrayList<>();
+        HostDataPoint event;
+        while ((event = mHostEvents.poll()) != null) {
+            events.add(event);
+        }
+        IHostHealthAgent agent = getMetricAgent();
+        if (agent == null) {
+            // samples are still kept in the time series
+            return;
+        }
+        for (Map.Entry<String, Long> sample : samples.entrySet()) {
+            agent.emitValue(sample.getKey(), sample.getValue(), mHostData);
+        }
+        for (HostDataPoint point : events) {
+            Map<String, String> data = new HashMap<>(mHostData);
+            if (point.additionalInfo != null) {
+                data.put(INFO_KEY, point.additionalInfo);
+            }
+            agent.emitValue(point.name, point.value, data);
+        }
+        agent.flush();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * {@link HostMetricType#INVOCATION_RESOURCES} events are always accepted.
+     */
+    @Override
+    public void addHostEvent(HostMetricType tag, HostDataPoint event) {
+        if (!HostMetricType.INVOCATION_RESOURCES.equals(tag)) {
+            super.addHostEvent(tag, event);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        getSeries(event.name).add(now, event.value);
+        queueHostEvent(event);
+        if (INVOCATION_ELAPSED_KEY.equals(event.name)) {
+            for (String name : HOST_METRICS) {
+                HostTimeSeries series = mSeries.get(name);
+                Long peak = series == null ? null : series.getMax(now - event.value, now);
+                if (peak != null) {
+                    queueHostEvent(new HostDataPoint(INVOCATION_PEAK_PREFIX + name,
+                            (int) Math.min(Integer.MAX_VALUE, peak), event.additionalInfo));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the {@link HostTimeSeries} of a metric, or null if it was never sampled.
+     *
+     * @param name the name of the metric, e.g. {@link #HEAP_USED_KEY}
+     */
+    public HostTimeSeries getTimeSeries(String name) {
+        return mSeries.get(name);
+    }
+
+    /** Returns the names of the metrics sampled so far. */
+    public Set<String> getTimeSeriesNames() {
+        return new TreeSet<>(mSeries.keySet());
+    }
+
+    /**
+     * Sample the host metrics and add them to their time series.
+     * <p/>
+     * Exposed for unit testing.
+     *
+     * @param now the time of the samples
+     * @return the samples, by metric name. Metrics not supported by the JVM are omitted.
+     */
+    synchronized Map<String, Long> sample(long now) {
+        Map<String, Long> samples = new LinkedHashMap<>();
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        samples.put(HEAP_USED_KEY, heap.getUsed() / (1024L * 1024L));
+
+        long gcTime = 0;
+        long gcCount = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            // -1 if not supported by the collector
+            gcTime += Math.max(0, gc.getCollectionTime());
+            gcCount += Math.max(0, gc.getCollectionCount());
+        }
+        if (mLastSampleTime >= 0) {
+            samples.put(GC_TIME_KEY, Math.max(0, gcTime - mLastGcTime));
+            samples.put(GC_COUNT_KEY, Math.max(0, gcCount - mLastGcCount));
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        samples.put(THREAD_COUNT_KEY, (long) threads.getThreadCount());
+        long allocated = getAllocatedBytes(threads);
+        if (allocated >= 0 && mLastAllocatedBytes >= 0 && now > mLastSampleTime) {
+            // allocations of the threads that died since the last sample are lost, so this is
+            // a lower bound.
+            long rate = Math.max(0, allocated - mLastAllocatedBytes) * 1000
+                    / (now - mLastSampleTime) / 1024;
+            samples.put(ALLOCATION_RATE_KEY, rate);
+        }
+
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+            samples.put(OPEN_FDS_KEY,
+                    ((com.sun.management.UnixOperatingSystemMXBean) os)
+                            .getOpenFileDescriptorCount());
+        }
+        samples.put(CHILD_PROCESSES_KEY, (long) RunUtil.getRunningProcessCount());
+
+        for (Map.Entry<String, Long> sample : samples.entrySet()) {
+            getSeries(sample.getKey()).add(now, sample.getValue());
+        }
+        mLastSampleTime = now;
+        mLastGcTime = gcTime;
+        mLastGcCount = gcCount;
+        mLastAllocatedBytes = allocated;
+        return samples;
+    }
+
+    private HostTimeSeries getSeries(String name) {
+        return mSeries.computeIfAbsent(name, n -> new HostTimeSeries(n, Math.max(1, mSeriesSize)));
+    }
+
+    /**
+     * Returns the CPU time used by the current thread in ms, or -1 if the JVM does not support it.
+     */
+    public static long getCurrentThreadCpuTime() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!threads.isCurrentThreadCpuTimeSupported()) {
+            return -1;
+        }
+        long cpuTime = threads.getCurrentThreadCpuTime();
+        return cpuTime < 0 ? -1 : cpuTime / 1000000;
+    }
+
+    /**
+     * Returns the number of bytes allocated by the current thread, or -1 if the JVM does not
+     * support it.
+     */
+    public static long getCurrentThreadAllocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!isAllocatedMemorySupported(threads)) {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean) threads)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /** Returns the bytes allocated by all the live threads, or -1 if not supported. */
+    private static long getAllocatedBytes(ThreadMXBean threads) {
+        if (!isAllocatedMemorySupported(threads)) {
+            return -1;
+        }
+        long total = 0;
+        for (long allocated : ((com.sun.management.ThreadMXBean) threads)
+                .getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            // -1 for threads that died in the meantime
+            total += Math.max(0, allocated);
+        }
+        return total;
+    }
+
+    private static boolean isAllocatedMemorySupported(ThreadMXBean threads) {
+        return threads instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemoryEnabled();
+    }
+}
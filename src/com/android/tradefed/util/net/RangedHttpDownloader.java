@@ -0,0 +1,458 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util.net;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Downloads a remote file over several HTTP connections, resuming interrupted downloads.
+ * <p/>
+ * The file is split into chunks fetched in parallel with range requests, and written in place
+ * into a preallocated partial file next to the destination. The chunks completed are recorded in
+ * a state file, so that a download interrupted (or failed after its retries) restarts where it
+ * stopped on the next attempt for the same destination, as long as the remote file did not
+ * change. The partial file is moved to the destination once complete and verified.
+ * <p/>
+ * Servers that do not support range requests fall back to a single streamed download. Since the
+ * partial files are not named after the destination itself, {@link
+ * com.android.tradefed.build.IFileDownloader} implementations can use this under {@link
+ * com.android.tradefed.build.FileDownloadCache}, which deletes the destination of a failed
+ * download.
+ */
+public class RangedHttpDownloader {
+
+    /** Suffix of the partial file, next to the destination. */
+    static final String PARTIAL_SUFFIX = ".partial";
+    /** Suffix of the state file, next to the partial file. */
+    static final String STATE_SUFFIX = ".state";
+
+    private static final int DEFAULT_CONNECTIONS = 4;
+    private static final long DEFAULT_CHUNK_SIZE = 32 * 1024 * 1024;
+    private static final int DEFAULT_MAX_CHUNK_ATTEMPTS = 3;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes\\s+\\d+-\\d+/(\\d+)");
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private static final String STATE_URL = "url";
+    private static final String STATE_LENGTH = "length";
+    private static final String STATE_VALIDATOR = "validator";
+    private static final String STATE_CHUNK_SIZE = "chunk-size";
+    private static final String STATE_DONE = "done";
+
+    private final IHttpHelper mHttpHelper;
+    private int mConnections = DEFAULT_CONNECTIONS;
+    private long mChunkSize = DEFAULT_CHUNK_SIZE;
+    private int mMaxChunkAttempts = DEFAULT_MAX_CHUNK_ATTEMPTS;
+
+    /** What a probe request found out about a remote file. */
+    static class RemoteFileInfo {
+        /** Length of the file, or -1 if ranges are not supported */
+        long mLength = -1;
+        /**
+         * Strong ETag or Last-Modified date of the file, or null if the server provides neither.
+         * Weak ETags are not used since servers never match them in If-Range.
+         */
+        String mValidator = null;
+    }
+
+    public RangedHttpDownloader(IHttpHelper httpHelper) {
+        mHttpHelper = httpHelper;
+    }
+
+    /**
+     * Set the maximum number of connections to open concurrently. Defaults to 4.
+     */
+    public void setConnections(int connections) {
+        mConnections = Math.max(1, connections);
+    }
+
+    /**
+     * Set the size of the chunks fetched by each range request, which is also the amount of data
+     * an interrupted download may have to fetch again. Defaults to 32 MB.
+     */
+    public void setChunkSize(long chunkSize) {
+        mChunkSize = Math.max(1, chunkSize);
+    }
+
+    /**
+     * Set the number of times a chunk is requested before giving up. Defaults to 3.
+     */
+    public void setMaxChunkAttempts(int attempts) {
+        mMaxChunkAttempts = Math.max(1, attempts);
+    }
+
+    /**
+     * Download a remote file.
+     *
+     * @param url the URL of the file
+     * @param destFile the {@link File} to put the content in. Replaced if it exists.
+     * @param expectedMd5 the md5 the content should have, or null to only check its length
+     * @throws IOException if the file could not be downloaded. The data fetched so far is kept
+     *         for the next download to the same destination, unless it was found to be corrupt.
+     */
+    public void download(String url, File destFile, String expectedMd5) throws IOException {
+        File partialFile = getPartialFile(destFile);
+        File stateFile = getStateFile(destFile);
+        long start = System.currentTimeMillis();
+
+        HttpURLConnection probe = mHttpHelper.createConnection(new URL(url), "GET", null);
+        probe.setRequestProperty("Range", "bytes=0-0");
+        RemoteFileInfo info = parseProbeResponse(probe);
+        long length;
+        if (info.mLength < 0) {
+            CLog.d("%s does not support range requests, downloading with a single connection",
+                    url);
+            FileUtil.deleteFile(stateFile);
+            length = downloadFromProbe(probe, partialFile);
+        } else if (info.mLength == 0) {
+            // the first byte of an empty file is not satisfiable, there is nothing to fetch
+            StreamUtil.close(probe.getErrorStream());
+            FileUtil.deleteFile(stateFile);
+            length = 0;
+            try (RandomAccessFile file = new RandomAccessFile(partialFile, "rw")) {
+                file.setLength(0);
+            }
+        } else {
+            StreamUtil.close(probe.getInputStream());
+            length = info.mLength;
+            downloadChunks(url, info, partialFile, stateFile);
+        }
+
+        if (partialFile.length() != length) {
+            deletePartialDownload(destFile);
+            throw new IOException(String.format("Downloaded %d bytes from %s, expected %d",
+                    partialFile.length(), url, length));
+        }
+        if (expectedMd5 != null) {
+            String md5 = FileUtil.calculateMd5(partialFile);
+            if (!expectedMd5.equalsIgnoreCase(md5)) {
+                deletePartialDownload(destFile);
+                throw new IOException(String.format("Content of %s has md5 %s, expected %s",
+                        url, md5, expectedMd5));
+            }
+        }
+        Files.move(partialFile.toPath(), destFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        FileUtil.deleteFile(stateFile);
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        CLog.i("Downloaded %s (%d bytes) in %d ms (%.2f MB/s)", url, length, elapsed,
+                length * 1000.0 / elapsed / (1024 * 1024));
+    }
+
+    /**
+     * Delete the data an interrupted download to the given destination left.
+     */
+    public static void deletePartialDownload(File destFile) {
+        FileUtil.deleteFile(getPartialFile(destFile));
+        FileUtil.deleteFile(getStateFile(destFile));
+    }
+
+    static File getPartialFile(File destFile) {
+        return new File(destFile.getPath() + PARTIAL_SUFFIX);
+    }
+
+    static File getStateFile(File destFile) {
+        return new File(destFile.getPath() + PARTIAL_SUFFIX + STATE_SUFFIX);
+    }
+
+    /**
+     * Parse the response to a request of the first byte of a file.
+     */
+    static RemoteFileInfo parseProbeResponse(HttpURLConnection probe) throws IOException {
+        RemoteFileInfo info = new RemoteFileInfo();
+        int status = probe.getResponseCode();
+        if (status == HttpURLConnection.HTTP_PARTIAL) {
+            String contentRange = probe.getHeaderField("Content-Range");
+            Matcher m = contentRange == null ? null : CONTENT_RANGE.matcher(contentRange.trim());
+            if (m == null || !m.matches()) {
+                throw new IOException(String.format("Invalid Content-Range '%s' from %s",
+                        contentRange, probe.getURL()));
+            }
+            info.mLength = Long.parseLong(m.group(1));
+        } else if (status == HTTP_RANGE_NOT_SATISFIABLE) {
+            // only the first byte was requested, so the file is empty
+            info.mLength = 0;
+        } else if (status != HttpURLConnection.HTTP_OK) {
+            throw new IOException(String.format("Request for %s failed: %d %s", probe.getURL(),
+                    status, probe.getResponseMessage()));
+        }
+        info.mValidator = probe.getHeaderField("ETag");
+        if (info.mValidator == null || info.mValidator.startsWith("W/")) {
+            info.mValidator = probe.getHeaderField("Last-Modified");
+        }
+        return info;
+    }
+
+    /**
+     * Stream the whole file from a probe the server answered with its full content.
+     *
+     * @return the expected length of the file, or the length downloaded if unknown
+     */
+    private long downloadFromProbe(HttpURLConnection probe, File partialFile) throws IOException {
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = probe.getInputStream();
+            out = new FileOutputStream(partialFile);
+            StreamUtil.copyStreams(in, out);
+        } finally {
+            StreamUtil.close(in);
+            StreamUtil.close(out);
+        }
+        long contentLength = probe.getContentLengthLong();
+        return contentLength >= 0 ? contentLength : partialFile.length();
+    }
+
+    /**
+     * Fetch the chunks of the file not downloaded yet.
+     */
+    private void downloadChunks(final String url, final RemoteFileInfo info, File partialFile,
+            File stateFile) throws IOException {
+        final long chunkSize = mChunkSize;
+        int chunkCount = (int) ((info.mLength + chunkSize - 1) / chunkSize);
+        final TreeSet<Integer> done = loadState(url, info, partialFile, stateFile);
+        if (done.isEmpty()) {
+            try (RandomAccessFile file = new RandomAccessFile(partialFile, "rw")) {
+                file.setLength(info.mLength);
+            }
+        } else {
+            CLog.i("Resuming download of %s, %d of %d chunks already downloaded", url,
+                    done.size(), chunkCount);
+        }
+        List<Integer> remaining = new ArrayList<>();
+        for (int i = 0; i < chunkCount; i++) {
+            if (!done.contains(i)) {
+                remaining.add(i);
+            }
+        }
+        if (remaining.isEmpty()) {
+            return;
+        }
+
+        final Properties state = createState(url, info);
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(mConnections, remaining.size()), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "http-download-" + mCount.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        try (final FileChannel channel =
+                FileChannel.open(partialFile.toPath(), StandardOpenOption.WRITE)) {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (final int chunk : remaining) {
+                futures.add(executor.submit(() -> {
+                    long start = chunk * chunkSize;
+                    long end = Math.min(info.mLength, start + chunkSize) - 1;
+                    downloadChunk(url, info.mValidator, channel, start, end);
+                    // the chunk must be on disk before the state file says it is
+                    channel.force(false);
+                    synchronized (done) {
+                        done.add(chunk);
+                        saveState(state, done, stateFile);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException(e.getCause());
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while downloading " + url, e);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Fetch a range of the file into the partial file, retrying from where the previous attempt
+     * stopped.
+     */
+    private void downloadChunk(String url, String validator, FileChannel channel, long start,
+            long end) throws IOException {
+        long[] position = new long[] {start};
+        for (int attempt = 1; ; attempt++) {
+            try {
+                fetchRange(url, validator, channel, position, end);
+                return;
+            } catch (IOException e) {
+                if (attempt >= mMaxChunkAttempts) {
+                    throw e;
+                }
+                CLog.w("Failed to download bytes %d-%d of %s: %s, retrying", position[0], end,
+                        url, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Fetch a range of the file into the partial file.
+     *
+     * @param position the first byte to fetch, updated as data is written
+     * @param end the last byte to fetch
+     */
+    private void fetchRange(String url, String validator, FileChannel channel, long[] position,
+            long end) throws IOException {
+        long start = position[0];
+        HttpURLConnection conn = mHttpHelper.createConnection(new URL(url), "GET", null);
+        conn.setRequestProperty("Range", String.format("bytes=%d-%d", start, end));
+        if (validator != null) {
+            // the server sends the whole file rather than the range if it changed
+            conn.setRequestProperty("If-Range", validator);
+        }
+        int status = conn.getResponseCode();
+        if (status != HttpURLConnection.HTTP_PARTIAL) {
+            StreamUtil.close(conn.getErrorStream());
+            conn.disconnect();
+            throw new IOException(String.format("Range request for %s returned %d %s, the "
+                    + "remote file may have changed", url, status, conn.getResponseMessage()));
+        }
+        InputStream in = conn.getInputStream();
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+            while (position[0] <= end) {
+                int read = in.read(buffer, 0,
+                        (int) Math.min(buffer.length, end + 1 - position[0]));
+                if (read < 0) {
+                    throw new IOException(String.format(
+                            "Connection closed after %d of %d bytes of range",
+                            position[0] - start, end + 1 - start));
+                }
+                byteBuffer.clear().limit(read);
+                while (byteBuffer.hasRemaining()) {
+                    position[0] += channel.write(byteBuffer, position[0]);
+                }
+            }
+        } finally {
+            StreamUtil.close(in);
+        }
+    }
+
+    private static Properties createState(String url, RemoteFileInfo info) {
+        Properties state = new Properties();
+        state.setProperty(STATE_URL, url);
+        state.setProperty(STATE_LENGTH, Long.toString(info.mLength));
+        if (info.mValidator != null) {
+            state.setProperty(STATE_VALIDATOR, info.mValidator);
+        }
+        return state;
+    }
+
+    /**
+     * Returns the chunks an interrupted download of the same file completed, or an empty set if
+     * there is nothing to resume.
+     */
+    private TreeSet<Integer> loadState(String url, RemoteFileInfo info, File partialFile,
+            File stateFile) {
+        TreeSet<Integer> done = new TreeSet<>();
+        if (!stateFile.exists() || !partialFile.exists()) {
+            return done;
+        }
+        Properties state = new Properties();
+        try (InputStream in = new FileInputStream(stateFile)) {
+            state.load(in);
+        } catch (IOException e) {
+            CLog.w("Failed to read download state %s: %s", stateFile, e.getMessage());
+            return done;
+        }
+        // the validator cannot be compared if the server does not provide one
+        if (!url.equals(state.getProperty(STATE_URL))
+                || !Long.toString(info.mLength).equals(state.getProperty(STATE_LENGTH))
+                || info.mValidator == null
+                || !info.mValidator.equals(state.getProperty(STATE_VALIDATOR))
+                || !Long.toString(mChunkSize).equals(state.getProperty(STATE_CHUNK_SIZE))
+                || partialFile.length() != info.mLength) {
+            CLog.d("Discarding partial download %s", partialFile);
+            return done;
+        }
+        String chunks = state.getProperty(STATE_DONE, "");
+        try {
+            for (String chunk : chunks.split(",")) {
+                if (!chunk.isEmpty()) {
+                    done.add(Integer.parseInt(chunk));
+                }
+            }
+        } catch (NumberFormatException e) {
+            CLog.w("Invalid download state %s", stateFile);
+            done.clear();
+        }
+        return done;
+    }
+
+    /**
+     * Record the chunks completed, replacing the state file atomically so an interruption never
+     * leaves it half written.
+     */
+    private void saveState(Properties state, TreeSet<Integer> done, File stateFile)
+            throws IOException {
+        state.setProperty(STATE_CHUNK_SIZE, Long.toString(mChunkSize));
+        StringBuilder chunks = new StringBuilder();
+        for (int chunk : done) {
+            if (chunks.length() > 0) {
+                chunks.append(',');
+            }
+            chunks.append(chunk);
+        }
+        state.setProperty(STATE_DONE, chunks.toString());
+        File tmpFile = new File(stateFile.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmpFile)) {
+            state.store(out, null);
+        }
+        Files.move(tmpFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util.net;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads gzip compressed payloads to an HTTP endpoint from a durable spool directory.
+ * <p/>
+ * Payloads are first written to the spool, then POSTed in the order they were added by a
+ * background thread, each one streamed from its file with chunked transfer encoding. Failed
+ * uploads are retried with an exponential back-off, and payloads still in the spool when the
+ * process exits are sent by the next uploader for the same directory and endpoint.
+ * <p/>
+ * There is a single uploader per spool directory and endpoint in a process, see
+ * {@link #getInstance(File, String)}. The spool is locked while being drained, so a spool
+ * directory may be shared by several processes.
+ */
+public class SpooledHttpUploader {
+
+    /** Suffix of the payloads queued in the spool. */
+    static final String PAYLOAD_SUFFIX = ".json.gz";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String LOCK_FILE = ".lock";
+
+    private static final long DEFAULT_INITIAL_RETRY_DELAY_MS = 1000;
+    private static final long DEFAULT_MAX_RETRY_DELAY_MS = 5 * 60 * 1000;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int CONNECTION_TIMEOUT_MS = 60 * 1000;
+
+    private static final Map<File, SpooledHttpUploader> sInstances = new HashMap<>();
+
+    private final IHttpHelper mHttpHelper;
+    private final String mEndpoint;
+    private final File mSpoolDir;
+    private final AtomicLong mSequence = new AtomicLong();
+    private final Object mLock = new Object();
+    private long mInitialRetryDelayMs = DEFAULT_INITIAL_RETRY_DELAY_MS;
+    private long mMaxRetryDelayMs = DEFAULT_MAX_RETRY_DELAY_MS;
+    private Thread mSender = null;
+    private boolean mStopped = false;
+
+    /**
+     * Exposed for unit testing, use {@link #getInstance(File, String)}.
+     *
+     * @param spoolDir the directory holding the payloads of this endpoint only
+     */
+    SpooledHttpUploader(IHttpHelper httpHelper, String endpoint, File spoolDir) {
+        mHttpHelper = httpHelper;
+        mEndpoint = endpoint;
+        mSpoolDir = spoolDir;
+    }
+
+    /**
+     * Returns the uploader to an endpoint, started.
+     *
+     * @param spoolRoot the directory to spool payloads in. Each endpoint gets a sub-directory.
+     * @param endpoint the URL to POST payloads to
+     */
+    public static SpooledHttpUploader getInstance(File spoolRoot, String endpoint)
+            throws IOException {
+        File spoolDir = new File(spoolRoot, hash(endpoint)).getAbsoluteFile();
+        synchronized (sInstances) {
+            SpooledHttpUploader uploader = sInstances.get(spoolDir);
+            if (uploader == null) {
+                if (!FileUtil.mkdirsRWX(spoolDir)) {
+                    throw new IOException("Failed to create spool directory " + spoolDir);
+                }
+                uploader = new SpooledHttpUploader(new HttpHelper(), endpoint, spoolDir);
+                uploader.start();
+                sInstances.put(spoolDir, uploader);
+            }
+            return uploader;
+        }
+    }
+
+    private static String hash(String endpoint) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1")
+                    .digest(endpoint.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Set the delays to wait between attempts to send a payload. The delay doubles after each
+     * failure, from the initial delay up to the maximum delay.
+     */
+    public void setRetryDelays(long initialDelayMs, long maxDelayMs) {
+        mInitialRetryDelayMs = initialDelayMs;
+        mMaxRetryDelayMs = Math.max(initialDelayMs, maxDelayMs);
+    }
+
+    /**
+     * Returns a new file to write a gzip compressed payload into, before queuing it with
+     * {@link #enqueue(File)}.
+     */
+    public File createPayloadFile() throws IOException {
+        return File.createTempFile("payload", TMP_SUFFIX, mSpoolDir);
+    }
+
+    /**
+     * Queue a payload for upload.
+     *
+     * @param payloadFile the file returned by {@link #createPayloadFile()}, once fully written
+     * @return the queued file, deleted once it is sent
+     */
+    public File enqueue(File payloadFile) throws IOException {
+        // payloads are sent in name order
+        File queued = new File(mSpoolDir, String.format("%013d-%06d%s",
+                System.currentTimeMillis(), mSequence.incrementAndGet() % 1000000,
+                PAYLOAD_SUFFIX));
+        Files.move(payloadFile.toPath(), queued.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        synchronized (mLock) {
+            mLock.notifyAll();
+        }
+        return queued;
+    }
+
+    /**
+     * Wait for payloads to be sent.
+     *
+     * @param payloads the files returned by {@link #enqueue(File)}
+     * @param timeoutMs the maximum time to wait
+     * @return true if all the payloads were sent
+     */
+    public boolean awaitSent(Collection<File> payloads, long timeoutMs)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (mLock) {
+            while (true) {
+                boolean pending = false;
+                for (File payload : payloads) {
+                    pending |= payload.exists();
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (!pending) {
+                    return true;
+                } else if (remaining <= 0) {
+                    return false;
+                }
+                mLock.wait(remaining);
+            }
+        }
+    }
+
+    /** Start sending the payloads spooled. */
+    synchronized void start() {
+        mSender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainSpool();
+            }
+        }, "SpooledHttpUploader-" + mSpoolDir.getName());
+        mSender.setDaemon(true);
+        mSender.start();
+    }
+
+    /** Stop sending payloads. The payloads not sent stay in the spool. */
+    void stop() throws InterruptedException {
+        synchronized (mLock) {
+            mStopped = true;
+            mLock.notifyAll();
+        }
+        if (mSender != null) {
+            mSender.join();
+        }
+    }
+
+    private void drainSpool() {
+        long retryDelay = mInitialRetryDelayMs;
+        try (RandomAccessFile lockFile = new RandomAccessFile(new File(mSpoolDir, LOCK_FILE),
+                "rw")) {
+            FileLock lock = null;
+            while (!isStopped()) {
+                if (lock == null) {
+                    lock = tryLock(lockFile);
+                    if (lock == null) {
+                        // another process drains the spool
+                        waitFor(mMaxRetryDelayMs);
+                        continue;
+                    }
+                }
+                File payload = getNextPayload();
+                if (payload == null) {
+                    waitFor(0);
+                    continue;
+                }
+                if (send(payload)) {
+                    FileUtil.deleteFile(payload);
+                    retryDelay = mInitialRetryDelayMs;
+                    synchronized (mLock) {
+                        mLock.notifyAll();
+                    }
+                } else {
+                    CLog.i("Retrying %s in %d ms", payload.getName(), retryDelay);
+                    waitFor(retryDelay);
+                    retryDelay = Math.min(mMaxRetryDelayMs, retryDelay * 2);
+                }
+            }
+        } catch (IOException e) {
+            CLog.e("Failed to open spool %s", mSpoolDir);
+            CLog.e(e);
+        } catch (InterruptedException e) {
+            CLog.d("Interrupted while sending spooled payloads");
+        }
+    }
+
+    private static FileLock tryLock(RandomAccessFile lockFile) throws IOException {
+        try {
+            return lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+    private boolean isStopped() {
+        synchronized (mLock) {
+            return mStopped;
+        }
+    }
+
+    /** Wait for a payload to be queued, the uploader to be stopped or the timeout to expire. */
+    private void waitFor(long timeoutMs) throws InterruptedException {
+        synchronized (mLock) {
+            if (!mStopped) {
+                mLock.wait(timeoutMs);
+            }
+        }
+    }
+
+    private File getNextPayload() {
+        File[] payloads = mSpoolDir.listFiles((dir, name) -> name.endsWith(PAYLOAD_SUFFIX));
+        if (payloads == null || payloads.length == 0) {
+            return null;
+        }
+        Arrays.sort(payloads);
+        return payloads[0];
+    }
+
+    /**
+     * POST a payload.
+     *
+     * @return true if the payload should be removed from the spool, either because it was sent
+     *         or because the endpoint rejected it.
+     */
+    boolean send(File payload) {
+        OutputStream out = null;
+        InputStream in = null;
+        try {
+            HttpURLConnection conn = mHttpHelper.createJsonConnection(new URL(mEndpoint), "POST");
+            conn.setConnectTimeout(CONNECTION_TIMEOUT_MS);
+            conn.setReadTimeout(CONNECTION_TIMEOUT_MS);
+            conn.setRequestProperty("Content-Encoding", "gzip");
+            conn.setChunkedStreamingMode(CHUNK_SIZE);
+            out = conn.getOutputStream();
+            in = new FileInputStream(payload);
+            StreamUtil.copyStreams(in, out);
+            out.close();
+            int responseCode = conn.getResponseCode();
+            if (responseCode >= 200 && responseCode < 300) {
+                CLog.d("Sent %s (%d bytes) to %s", payload.getName(), payload.length(),
+                        mEndpoint);
+                return true;
+            }
+            InputStream error = conn.getErrorStream();
+            String response = error == null ? "" : StreamUtil.getStringFromStream(error).trim();
+            StreamUtil.close(error);
+            if (responseCode >= 400 && responseCode < 500 && responseCode != 408
+                    && responseCode != 429) {
+                // the request itself is wrong, sending it again will not help
+                CLog.e("Dropping %s rejected by %s. code: %d, response: %s", payload.getName(),
+                        mEndpoint, responseCode, response);
+                return true;
+            }
+            CLog.w("Posting failure. code: %d, response: %s", responseCode, response);
+        } catch (IOException e) {
+            CLog.w("IOException occurred while posting to %s: %s", mEndpoint, e.getMessage());
+        } finally {
+            StreamUtil.close(in);
+            StreamUtil.close(out);
+        }
+        return false;
+    }
+}
@@ -20,6 +20,7 @@ import com.android.tradefed.build.DeviceBuildDescriptorTest;
 import com.android.tradefed.build.DeviceBuildInfoTest;
 import com.android.tradefed.build.DeviceFolderBuildInfoTest;
 import com.android.tradefed.build.FileDownloadCacheTest;
+import com.android.tradefed.build.HttpFileDownloaderTest;
 import com.android.tradefed.build.KernelBuildInfoTest;
 import com.android.tradefed.build.KernelDeviceBuildInfoTest;
 import com.android.tradefed.build.LocalDeviceBuildProviderTest;
@@ -32,6 +33,7 @@ import com.android.tradefed.command.CommandRunnerTest;
 import com.android.tradefed.command.CommandSchedulerTest;
 import com.android.tradefed.command.ConsoleTest;
 import com.android.tradefed.command.VerifyTest;
+import com.android.tradefed.command.remote.RemoteEventPublisherTest;
 import com.android.tradefed.command.remote.RemoteManagerTest;
 import com.android.tradefed.command.remote.RemoteOperationTest;
 import com.android.tradefed.config.ArgsOptionParserTest;
@@ -52,6 +54,9 @@ import com.android.tradefed.device.DeviceStateMonitorTest;
 import com.android.tradefed.device.DeviceUtilStatsMonitorTest;
 import com.android.tradefed.device.DumpsysPackageReceiverTest;
 import com.android.tradefed.device.FastbootHelperTest;
+import com.android.tradefed.device.LogcatBusTest;
+import com.android.tradefed.device.LogcatReceiverTest;
+import com.android.tradefed.device.LogcatTimeIndexTest;
 import com.android.tradefed.device.ManagedDeviceListTest;
 import com.android.tradefed.device.ManagedTestDeviceFactoryTest;
 import com.android.tradefed.device.NativeDeviceTest;
@@ -62,6 +67,7 @@ import com.android.tradefed.device.TopHelperTest;
 import com.android.tradefed.device.WaitDeviceRecoveryTest;
 import com.android.tradefed.device.WifiHelperTest;
 import com.android.tradefed.invoker.InvocationContextTest;
+import com.android.tradefed.invoker.InvocationPhaseTimerTest;
 import com.android.tradefed.invoker.TestInvocationTest;
 import com.android.tradefed.invoker.shard.ShardHelperTest;
 import com.android.tradefed.invoker.shard.StrictShardHelperTest;
@@ -72,13 +78,17 @@ import com.android.tradefed.log.LogRegistryTest;
 import com.android.tradefed.log.TerribleFailureEmailHandlerTest;
 import com.android.tradefed.profiler.AggregatingProfilerTest;
 import com.android.tradefed.profiler.MetricOutputDataTest;
+import com.android.tradefed.profiler.SamplingProfilerTest;
+import com.android.tradefed.profiler.recorder.MetricAccumulatorTest;
 import com.android.tradefed.profiler.recorder.TraceMetricTest;
+import com.android.tradefed.profiler.recorder.TraceMetricsProcessorTest;
 import com.android.tradefed.profiler.recorder.TraceMetricsRecorderTest;
 import com.android.tradefed.profiler.recorder.TraceParserTest;
 import com.android.tradefed.result.AggregatingProfilerListenerTest;
 import com.android.tradefed.result.BugreportCollectorTest;
 import com.android.tradefed.result.CollectingTestListenerTest;
 import com.android.tradefed.result.ConsoleResultReporterTest;
+import com.android.tradefed.result.DeviceArtifactCollectorTest;
 import com.android.tradefed.result.DeviceFileReporterTest;
 import com.android.tradefed.result.DeviceUnavailEmailResultReporterTest;
 import com.android.tradefed.result.EmailResultReporterTest;
@@ -88,7 +98,9 @@ import com.android.tradefed.result.FileSystemLogSaverTest;
 import com.android.tradefed.result.InvocationFailureEmailResultReporterTest;
 import com.android.tradefed.result.InvocationToJUnitResultForwarderTest;
 import com.android.tradefed.result.JUnitToInvocationResultForwarderTest;
+import com.android.tradefed.result.JsonHttpTestResultReporterTest;
 import com.android.tradefed.result.LogFileSaverTest;
+import com.android.tradefed.result.ResultForwarderTest;
 import com.android.tradefed.result.SnapshotInputStreamSourceTest;
 import com.android.tradefed.result.SubprocessResultsReporterTest;
 import com.android.tradefed.result.TestFailureEmailResultReporterTest;
@@ -99,11 +111,14 @@ import com.android.tradefed.suite.checker.SystemServerFileDescriptorCheckerTest;
 import com.android.tradefed.suite.checker.SystemServerStatusCheckerTest;
 import com.android.tradefed.targetprep.AllTestAppsInstallSetupTest;
 import com.android.tradefed.targetprep.AppSetupTest;
+import com.android.tradefed.targetprep.BatchApkInstallerTest;
 import com.android.tradefed.targetprep.BuildInfoAttributePreparerTest;
 import com.android.tradefed.targetprep.DefaultTestsZipInstallerTest;
 import com.android.tradefed.targetprep.DeviceFlashPreparerTest;
 import com.android.tradefed.targetprep.DeviceSetupTest;
 import com.android.tradefed.targetprep.FastbootDeviceFlasherTest;
+import com.android.tradefed.targetprep.FlashAdmissionControllerTest;
+import com.android.tradefed.targetprep.FlashedImageCacheTest;
 import com.android.tradefed.targetprep.FlashingResourcesParserTest;
 import com.android.tradefed.targetprep.InstallApkSetupTest;
 import com.android.tradefed.targetprep.InstrumentationPreparerTest;
@@ -120,6 +135,7 @@ import com.android.tradefed.targetprep.TestAppInstallSetupTest;
 import com.android.tradefed.targetprep.TestFilePushSetupTest;
 import com.android.tradefed.targetprep.suite.SuiteApkInstallerTest;
 import com.android.tradefed.testtype.AndroidJUnitTestTest;
+import com.android.tradefed.testtype.BufferedTestRunListenerTest;
 import com.android.tradefed.testtype.CodeCoverageTestBaseTest;
 import com.android.tradefed.testtype.DeviceBatteryLevelCheckerTest;
 import com.android.tradefed.testtype.DeviceSuiteTest;
@@ -162,6 +178,7 @@ import com.android.tradefed.util.AaptParserTest;
 import com.android.tradefed.util.AbiFormatterTest;
 import com.android.tradefed.util.AbiUtilsTest;
 import com.android.tradefed.util.ArrayUtilTest;
+import com.android.tradefed.util.BinarySampleWriterTest;
 import com.android.tradefed.util.BluetoothUtilsTest;
 import com.android.tradefed.util.BugreportTest;
 import com.android.tradefed.util.ByteArrayListTest;
@@ -193,7 +210,10 @@ import com.android.tradefed.util.SimplePerfUtilTest;
 import com.android.tradefed.util.SimpleStatsTest;
 import com.android.tradefed.util.SizeLimitedOutputStreamTest;
 import com.android.tradefed.util.StreamUtilTest;
+import com.android.tradefed.util.StreamingLineReceiverTest;
+import com.android.tradefed.util.StreamingStatsTest;
 import com.android.tradefed.util.StringEscapeUtilsTest;
+import com.android.tradefed.util.SubprocessBinaryEventHelperTest;
 import com.android.tradefed.util.SubprocessTestResultsParserTest;
 import com.android.tradefed.util.TableFormatterTest;
 import com.android.tradefed.util.TarUtilTest;
@@ -203,11 +223,16 @@ import com.android.tradefed.util.TimeValTest;
 import com.android.tradefed.util.ZipUtil2Test;
 import com.android.tradefed.util.ZipUtilTest;
 import com.android.tradefed.util.hostmetric.AbstractHostMonitorTest;
+import com.android.tradefed.util.hostmetric.FileHostHealthAgentTest;
 import com.android.tradefed.util.hostmetric.HeapHostMonitorTest;
+import com.android.tradefed.util.hostmetric.HostTimeSeriesTest;
+import com.android.tradefed.util.hostmetric.TelemetryHostMonitorTest;
 import com.android.tradefed.util.keystore.JSONFileKeyStoreClientTest;
 import com.android.tradefed.util.keystore.JSONFileKeyStoreFactoryTest;
 import com.android.tradefed.util.net.HttpHelperTest;
 import com.android.tradefed.util.net.HttpMultipartPostTest;
+import com.android.tradefed.util.net.RangedHttpDownloaderTest;
+import com.android.tradefed.util.net.SpooledHttpUploaderTest;
 import com.android.tradefed.util.net.XmlRpcHelperTest;
 import com.android.tradefed.util.sl4a.Sl4aClientTest;
 import com.android.tradefed.util.sl4a.Sl4aEventDispatcherTest;
@@ -232,6 +257,7 @@ import org.junit.runners.Suite.SuiteClasses;
     DeviceBuildDescriptorTest.class,
     DeviceFolderBuildInfoTest.class,
     FileDownloadCacheTest.class,
+    HttpFileDownloaderTest.class,
     KernelBuildInfoTest.class,
     KernelDeviceBuildInfoTest.class,
     LocalDeviceBuildProviderTest.class,
@@ -248,6 +274,7 @@ import org.junit.runners.Suite.SuiteClasses;
     VerifyTest.class,
 
     // command.remote
+    RemoteEventPublisherTest.class,
     RemoteManagerTest.class,
     RemoteOperationTest.class,
 
@@ -272,6 +299,9 @@ import org.junit.runners.Suite.SuiteClasses;
     DeviceUtilStatsMonitorTest.class,
     DumpsysPackageReceiverTest.class,
     FastbootHelperTest.class,
+    LogcatBusTest.class,
+    LogcatReceiverTest.class,
+    LogcatTimeIndexTest.class,
     ManagedDeviceListTest.class,
     ManagedTestDeviceFactoryTest.class,
     NativeDeviceTest.class,
@@ -285,6 +315,7 @@ import org.junit.runners.Suite.SuiteClasses;
 
     // invoker
     InvocationContextTest.class,
+    InvocationPhaseTimerTest.class,
     TestInvocationTest.class,
 
     // invoker.shard
@@ -301,8 +332,11 @@ import org.junit.runners.Suite.SuiteClasses;
     // profiler subdirs
     AggregatingProfilerTest.class,
     MetricOutputDataTest.class,
+    SamplingProfilerTest.class,
     TraceMetricsRecorderTest.class,
+    MetricAccumulatorTest.class,
     TraceMetricTest.class,
+    TraceMetricsProcessorTest.class,
     TraceParserTest.class,
 
     // result
@@ -310,6 +344,7 @@ import org.junit.runners.Suite.SuiteClasses;
     BugreportCollectorTest.class,
     ConsoleResultReporterTest.class,
     CollectingTestListenerTest.class,
+    DeviceArtifactCollectorTest.class,
     DeviceFileReporterTest.class,
     DeviceUnavailEmailResultReporterTest.class,
     EmailResultReporterTest.class,
@@ -319,8 +354,10 @@ import org.junit.runners.Suite.SuiteClasses;
     FileSystemLogSaverTest.class,
     InvocationFailureEmailResultReporterTest.class,
     InvocationToJUnitResultForwarderTest.class,
+    JsonHttpTestResultReporterTest.class,
     JUnitToInvocationResultForwarderTest.class,
     LogFileSaverTest.class,
+    ResultForwarderTest.class,
     SnapshotInputStreamSourceTest.class,
     SubprocessResultsReporterTest.class,
     TestSummaryTest.class,
@@ -330,11 +367,14 @@ import org.junit.runners.Suite.SuiteClasses;
     // targetprep
     AllTestAppsInstallSetupTest.class,
     AppSetupTest.class,
+    BatchApkInstallerTest.class,
     BuildInfoAttributePreparerTest.class,
     DefaultTestsZipInstallerTest.class,
     DeviceFlashPreparerTest.class,
     DeviceSetupTest.class,
     FastbootDeviceFlasherTest.class,
+    FlashAdmissionControllerTest.class,
+    FlashedImageCacheTest.class,
     FlashingResourcesParserTest.class,
     InstallApkSetupTest.class,
     InstrumentationPreparerTest.class,
@@ -360,6 +400,7 @@ import org.junit.runners.Suite.SuiteClasses;
 
     // testtype
     AndroidJUnitTestTest.class,
+    BufferedTestRunListenerTest.class,
     CodeCoverageTestBaseTest.class,
     DeviceBatteryLevelCheckerTest.class,
     DeviceSuiteTest.class,
@@ -408,6 +449,7 @@ import org.junit.runners.Suite.SuiteClasses;
     AbiFormatterTest.class,
     AbiUtilsTest.class,
     ArrayUtilTest.class,
+    BinarySampleWriterTest.class,
     BluetoothUtilsTest.class,
     BugreportTest.class,
     ByteArrayListTest.class,
@@ -431,6 +473,7 @@ import org.junit.runners.Suite.SuiteClasses;
     PairTest.class,
     PsParserTest.class,
     QuotationAwareTokenizerTest.class,
+    RangedHttpDownloaderTest.class,
     RegexTrieTest.class,
     RunUtilTest.class,
     SerializationUtilTest.class,
@@ -438,8 +481,12 @@ import org.junit.runners.Suite.SuiteClasses;
     SimplePerfUtilTest.class,
     SimpleStatsTest.class,
     SizeLimitedOutputStreamTest.class,
+    SpooledHttpUploaderTest.class,
     StreamUtilTest.class,
+    StreamingLineReceiverTest.class,
+    StreamingStatsTest.class,
     StringEscapeUtilsTest.class,
+    SubprocessBinaryEventHelperTest.class,
     SubprocessTestResultsParserTest.class,
     TableFormatterTest.class,
     TarUtilTest.class,
@@ -452,7 +499,10 @@ import org.junit.runners.Suite.SuiteClasses;
 
     //util/hostmetric
     AbstractHostMonitorTest.class,
+    FileHostHealthAgentTest.class,
     HeapHostMonitorTest.class,
+    HostTimeSeriesTest.class,
+    TelemetryHostMonitorTest.class,
 
     // util subdirs
     AndroidManifestWriterTest.class,
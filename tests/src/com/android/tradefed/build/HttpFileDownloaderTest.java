@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.build;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.tradefed.config.OptionSetter;
+import com.android.tradefed.util.FileUtil;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/** Unit tests for {@link HttpFileDownloader}, against a local HTTP server. */
+@RunWith(JUnit4.class)
+public class HttpFileDownloaderTest {
+
+    private static final String CONTENT = "file content";
+
+    private HttpServer mServer;
+    private String mRootUrl;
+    private HttpFileDownloader mDownloader;
+    private File mDestFile = null;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/dir/file.txt", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] content = CONTENT.getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, content.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(content);
+                }
+            }
+        });
+        mServer.start();
+        mRootUrl = String.format("http://localhost:%d/dir", mServer.getAddress().getPort());
+        mDownloader = new HttpFileDownloader();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+        FileUtil.deleteFile(mDestFile);
+    }
+
+    /** Test downloading a file from its URL with a single request. */
+    @Test
+    public void testDownloadFile() throws Exception {
+        mDestFile = mDownloader.downloadFile(mRootUrl + "/file.txt");
+        assertEquals(CONTENT, FileUtil.readStringFromFile(mDestFile));
+        assertTrue(mDestFile.getName().endsWith(".txt"));
+    }
+
+    /** Test downloading a file relative to the root URL with range requests. */
+    @Test
+    public void testDownloadFile_ranged() throws Exception {
+        OptionSetter setter = new OptionSetter(mDownloader);
+        setter.setOptionValue("root-url", mRootUrl);
+        setter.setOptionValue("ranged-download", "true");
+        mDestFile = mDownloader.downloadFile("file.txt");
+        assertEquals(CONTENT, FileUtil.readStringFromFile(mDestFile));
+    }
+
+    /** Test that a failed download throws a {@link BuildRetrievalError}. */
+    @Test
+    public void testDownloadFile_notFound() throws Exception {
+        try {
+            mDestFile = mDownloader.downloadFile(mRootUrl + "/missing.txt");
+            fail("BuildRetrievalError not thrown");
+        } catch (BuildRetrievalError e) {
+            // expected
+        }
+    }
+
+    /** Test the URLs of remote paths. */
+    @Test
+    public void testGetUrl() throws Exception {
+        assertEquals("file.txt", mDownloader.getUrl("file.txt"));
+        new OptionSetter(mDownloader).setOptionValue("root-url", "http://host/root");
+        assertEquals("http://host/root/dir/file.txt", mDownloader.getUrl("dir/file.txt"));
+        assertEquals("http://host/root/file.txt", mDownloader.getUrl("/file.txt"));
+        assertEquals("https://other/file.txt", mDownloader.getUrl("https://other/file.txt"));
+    }
+}
@@ -27,7 +27,9 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -62,6 +64,7 @@ public class CommandFileParserTest extends TestCase {
     @Override
     protected void setUp() throws Exception {
         super.setUp();
+        CommandFileParser.clearCache();
         mCommandFile = new CommandFileParser() {
             @Override
             BufferedReader createCommandFileReader(File file) {
@@ -609,4 +612,65 @@ public class CommandFileParserTest extends TestCase {
 
         assertParsedData(expectedArgs1, expectedArgs2);
     }
+
+    /**
+     * Test that a command file whose content did not change is not tokenized again, and that the
+     * cached commands are not affected by changes to the returned commands.
+     */
+    public void testParse_cached() throws Exception {
+        final List<File> tokenized = new ArrayList<>();
+        CommandFileParser parser = new CommandFileParser() {
+            @Override
+            BufferedReader createCommandFileReader(File file) {
+                return new BufferedReader(new StringReader(mMockFileData));
+            }
+
+            @Override
+            ScannedFile tokenizeFile(File file, String digest, List<String> inputLines)
+                    throws ConfigurationException {
+                tokenized.add(file);
+                return super.tokenizeFile(file, digest, inputLines);
+            }
+        };
+        mMockFileData = "MACRO alpha = one two\nalpha() config\n";
+        List<String> expectedArgs = Arrays.asList("one", "two", "config");
+        List<CommandLine> commands = parser.parseFile(mMockFile);
+        assertEquals(1, commands.size());
+        assertEquals(expectedArgs, commands.get(0));
+        commands.get(0).add("--extra");
+
+        assertParsedData(parser, expectedArgs);
+        assertEquals(1, tokenized.size());
+
+        mMockFileData = "MACRO alpha = three\nalpha() config\n";
+        assertParsedData(parser, Arrays.asList("three", "config"));
+        assertEquals(2, tokenized.size());
+    }
+
+    /**
+     * Test that a command file is expanded again when one of its includes changed, without
+     * tokenizing the unchanged files again.
+     */
+    public void testParse_includeChanged() throws Exception {
+        final File includeFile = new File(MOCK_FILE_PATH, "include.txt");
+        final Map<File, String> data = new HashMap<>();
+        data.put(mMockFile, "INCLUDE include.txt\nalpha() config\n");
+        data.put(includeFile, "MACRO alpha = one\n");
+        final List<File> tokenized = new ArrayList<>();
+        CommandFileParser parser = new MockCommandFileParser(data) {
+            @Override
+            ScannedFile tokenizeFile(File file, String digest, List<String> inputLines)
+                    throws ConfigurationException {
+                tokenized.add(file);
+                return super.tokenizeFile(file, digest, inputLines);
+            }
+        };
+        assertParsedData(parser, Arrays.asList("one", "config"));
+        assertEquals(Arrays.asList(mMockFile, includeFile), tokenized);
+
+        data.put(includeFile, "MACRO alpha = two\n");
+        assertParsedData(parser, Arrays.asList("two", "config"));
+        assertEquals(Arrays.asList(mMockFile, includeFile, includeFile), tokenized);
+        assertEquals(ImmutableSet.of(includeFile.getAbsolutePath()), parser.getIncludedFiles());
+    }
 }
@@ -17,12 +17,15 @@
 package com.android.tradefed.command;
 
 import com.android.tradefed.command.CommandFileWatcher.ICommandFileListener;
+import com.android.tradefed.util.FileUtil;
 
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
 
 import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -143,6 +146,92 @@ public class CommandFileWatcherTest extends TestCase {
         EasyMock.verify(mMockListener);
     }
 
+    /**
+     * Test that changes to the files watched are notified once settled, and only for the command
+     * files depending on them.
+     */
+    public void testWatchService() throws Exception {
+        File tmpDir = FileUtil.createTempDir("cmdfile-watcher");
+        final List<File> notified = Collections.synchronizedList(new ArrayList<File>());
+        CommandFileWatcher watcher = new CommandFileWatcher(new ICommandFileListener() {
+            @Override
+            public void notifyFileChanged(File cmdFile, List<String> extraArgs) {
+                notified.add(cmdFile);
+            }
+        });
+        try {
+            File cmdFile = new File(tmpDir, "cmdfile.txt");
+            File otherCmdFile = new File(tmpDir, "other.txt");
+            File includeDir = new File(tmpDir, "include");
+            includeDir.mkdir();
+            File dep = new File(includeDir, "dep.txt");
+            File unrelated = new File(includeDir, "unrelated.txt");
+            FileUtil.writeToFile("run foo", cmdFile);
+            FileUtil.writeToFile("run bar", otherCmdFile);
+            FileUtil.writeToFile("--foo", dep);
+            long modTime = dep.lastModified();
+            watcher.addCmdFile(cmdFile, EMPTY_ARGS, Arrays.asList(dep.getPath()));
+            watcher.addCmdFile(otherCmdFile, EMPTY_ARGS, EMPTY_DEPENDENCIES);
+            watcher.start();
+
+            FileUtil.writeToFile("foo", unrelated);
+            // several changes in a row are checked at once
+            FileUtil.writeToFile("--foo --bar", dep);
+            FileUtil.writeToFile("--foo --bar --baz", dep);
+            dep.setLastModified(modTime + 10 * 1000);
+            long deadline = System.currentTimeMillis() + 20 * 1000;
+            while (notified.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            // leave time for unexpected notifications
+            Thread.sleep(1500);
+            assertEquals(Arrays.asList(cmdFile), notified);
+        } finally {
+            watcher.cancel();
+            watcher.join(5000);
+            FileUtil.recursiveDelete(tmpDir);
+        }
+    }
+
+    /**
+     * Test that changes to the target of a command file that is a symbolic link are notified.
+     */
+    public void testWatchService_symlink() throws Exception {
+        File tmpDir = FileUtil.createTempDir("cmdfile-watcher");
+        final List<File> notified = Collections.synchronizedList(new ArrayList<File>());
+        CommandFileWatcher watcher = new CommandFileWatcher(new ICommandFileListener() {
+            @Override
+            public void notifyFileChanged(File cmdFile, List<String> extraArgs) {
+                notified.add(cmdFile);
+            }
+        });
+        try {
+            File linkDir = new File(tmpDir, "links");
+            File targetDir = new File(tmpDir, "targets");
+            linkDir.mkdir();
+            targetDir.mkdir();
+            File target = new File(targetDir, "cmdfile.txt");
+            FileUtil.writeToFile("run foo", target);
+            long modTime = target.lastModified();
+            File cmdFile = new File(linkDir, "cmdfile.txt");
+            Files.createSymbolicLink(cmdFile.toPath(), target.toPath());
+            watcher.addCmdFile(cmdFile, EMPTY_ARGS, EMPTY_DEPENDENCIES);
+            watcher.start();
+
+            FileUtil.writeToFile("run bar", target);
+            target.setLastModified(modTime + 10 * 1000);
+            long deadline = System.currentTimeMillis() + 15 * 1000;
+            while (notified.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals(Arrays.asList(cmdFile), notified);
+        } finally {
+            watcher.cancel();
+            watcher.join(5000);
+            FileUtil.recursiveDelete(tmpDir);
+        }
+    }
+
     /**
      * A File extension that allows a list of modtimes to be set.
      */
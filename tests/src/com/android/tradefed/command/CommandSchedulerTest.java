@@ -41,12 +41,15 @@ import com.android.tradefed.device.TestDeviceState;
 import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.invoker.IRescheduler;
 import com.android.tradefed.invoker.ITestInvocation;
+import com.android.tradefed.invoker.InvocationContext;
 import com.android.tradefed.log.ILogRegistry.EventType;
 import com.android.tradefed.log.ITerribleFailureHandler;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.RunUtil;
+import com.android.tradefed.util.StreamingStats;
+import com.android.tradefed.util.hostmetric.IHostMonitor;
 import com.android.tradefed.util.keystore.IKeyStoreClient;
 
 import junit.framework.TestCase;
@@ -136,6 +139,11 @@ public class CommandSchedulerTest extends TestCase {
                         // ignore
                     }
 
+                    @Override
+                    List<IHostMonitor> getHostMonitor() {
+                        return null;
+                    }
+
                     @Override
                     void checkInvocations() {
                         // ignore
@@ -666,6 +674,136 @@ public class CommandSchedulerTest extends TestCase {
         Assert.assertArrayEquals(cmdFile1Args, cmds.get(0).getArgs());
     }
 
+    /**
+     * Test that reloading a command file re-uses the configuration of the commands that did not
+     * change, and creates the configuration of the new ones.
+     */
+    public void testAddCommandFile_reloadReuseConfig() throws ConfigurationException {
+        // set number of devices to 0 so commands are not executed
+        mMockManager.setNumDevices(0);
+        String[] unchangedArgs = new String[] {"unchanged", "--bar"};
+        setCreateConfigExpectations(unchangedArgs, 1);
+        String[] cmdFile1Args = new String[] {"fromFile1", "--bar"};
+        setCreateConfigExpectations(cmdFile1Args, 1);
+        String[] cmdFile2Args = new String[] {"fromFile2", "--bar"};
+        setCreateConfigExpectations(cmdFile2Args, 1);
+        mMockConfiguration.validateOptions();
+        EasyMock.expectLastCall().times(4);
+
+        final List<CommandLine> cmdFileContent1 = Arrays.asList(
+                new CommandLine(Arrays.asList("unchanged"), null, 0),
+                new CommandLine(Arrays.asList("fromFile1"), null, 1));
+        final List<CommandLine> cmdFileContent2 = Arrays.asList(
+                new CommandLine(Arrays.asList("unchanged"), null, 0),
+                new CommandLine(Arrays.asList("fromFile2"), null, 1));
+        mMockCmdFileParser = new CommandFileParser() {
+            boolean firstCall = true;
+            @Override
+            public List<CommandLine> parseFile(File cmdFile) {
+                List<CommandLine> content = firstCall ? cmdFileContent1 : cmdFileContent2;
+                firstCall = false;
+                List<CommandLine> copy = new ArrayList<>();
+                for (CommandLine line : content) {
+                    copy.add(new CommandLine(line, null, line.getLineNumber()));
+                }
+                return copy;
+            }
+        };
+        List<String> extraArgs = Arrays.asList("--bar");
+        replayMocks();
+        mScheduler.start();
+        mScheduler.setCommandFileReload(true);
+        mScheduler.addCommandFile("mycmd.txt", extraArgs);
+        mScheduler.notifyFileChanged(new File("mycmd.txt"), extraArgs);
+
+        List<CommandTracker> cmds = mScheduler.getCommandTrackers();
+        assertEquals(2, cmds.size());
+        Collections.sort(cmds, new CommandTrackerIdComparator());
+        Assert.assertArrayEquals(unchangedArgs, cmds.get(0).getArgs());
+        Assert.assertArrayEquals(cmdFile2Args, cmds.get(1).getArgs());
+        verifyMocks();
+    }
+
+    /**
+     * Test that reloading a command file does not re-use the configuration of a rescheduled
+     * command, such as a shard, for the command it came from.
+     */
+    public void testAddCommandFile_reloadRescheduled() throws Throwable {
+        mMockManager.setNumDevices(1);
+        String[] args = new String[] {"foo", "--bar"};
+        // the command is created once when added, and once more when reloaded
+        setCreateConfigExpectations(args, 2);
+        mMockConfiguration.validateOptions();
+        EasyMock.expectLastCall().times(2);
+
+        // a shard that will never get a device
+        final IConfiguration shardConfig = EasyMock.createMock(IConfiguration.class);
+        DeviceSelectionOptions shardDeviceOptions = new DeviceSelectionOptions();
+        shardDeviceOptions.addSerial("not-connected");
+        IDeviceConfiguration shardDeviceConfig = new DeviceConfigurationHolder("device");
+        shardDeviceConfig.addSpecificConfig(shardDeviceOptions);
+        EasyMock.expect(shardConfig.getCommandOptions()).andStubReturn(new CommandOptions());
+        EasyMock.expect(shardConfig.getDeviceRequirements()).andStubReturn(shardDeviceOptions);
+        EasyMock.expect(shardConfig.getDeviceConfig())
+                .andStubReturn(Arrays.asList(shardDeviceConfig));
+        EasyMock.expect(shardConfig.getCommandLine()).andStubReturn("");
+        EasyMock.expect(shardConfig.getConfigurationDescription())
+                .andStubReturn(mMockConfigDescriptor);
+
+        final Object invoked = new Object();
+        IAnswer<Object> shardAnswer = new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                IRescheduler rescheduler = (IRescheduler) EasyMock.getCurrentArguments()[2];
+                rescheduler.scheduleConfig(shardConfig);
+                synchronized (invoked) {
+                    invoked.notifyAll();
+                }
+                return null;
+            }
+        };
+        mMockInvocation.invoke(EasyMock.<IInvocationContext>anyObject(),
+                EasyMock.same(mMockConfiguration), EasyMock.<IRescheduler>anyObject(),
+                EasyMock.<ITestInvocationListener>anyObject());
+        EasyMock.expectLastCall().andAnswer(shardAnswer);
+        // the reloaded command runs with a configuration of its own, not the shard's
+        mMockInvocation.invoke(EasyMock.<IInvocationContext>anyObject(),
+                EasyMock.same(mMockConfiguration), EasyMock.<IRescheduler>anyObject(),
+                EasyMock.<ITestInvocationListener>anyObject());
+
+        final List<CommandLine> cmdFileContent = Arrays.asList(
+                new CommandLine(Arrays.asList("foo"), null, 0));
+        mMockCmdFileParser = new CommandFileParser() {
+            @Override
+            public List<CommandLine> parseFile(File cmdFile) {
+                List<CommandLine> copy = new ArrayList<>();
+                for (CommandLine line : cmdFileContent) {
+                    copy.add(new CommandLine(line, null, line.getLineNumber()));
+                }
+                return copy;
+            }
+        };
+        List<String> extraArgs = Arrays.asList("--bar");
+        replayMocks(shardConfig);
+        mScheduler.start();
+        mScheduler.setCommandFileReload(true);
+        synchronized (invoked) {
+            mScheduler.addCommandFile("mycmd.txt", extraArgs);
+            invoked.wait(5 * 1000);
+        }
+        // wait for the command to finish, leaving only the shard waiting for its device
+        long deadline = System.currentTimeMillis() + 5 * 1000;
+        while (mScheduler.getAllCommandsSize() != 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, mScheduler.getAllCommandsSize());
+
+        mScheduler.notifyFileChanged(new File("mycmd.txt"), extraArgs);
+        mScheduler.shutdownOnEmpty();
+        mScheduler.join(5 * 1000);
+        verifyMocks(shardConfig);
+    }
+
     /**
      * Test {@link CommandScheduler#shutdown()} when no devices are available.
      */
@@ -1067,4 +1205,23 @@ public class CommandSchedulerTest extends TestCase {
         mScheduler.join(2 * 1000);
         verifyMocks(mockListener);
     }
+
+    /**
+     * Test that the phase times reported by invocations are aggregated across invocations.
+     */
+    public void testAddInvocationPhaseTimes() {
+        mScheduler.start();
+        for (int i = 1; i <= 3; i++) {
+            IInvocationContext context = new InvocationContext();
+            context.addInvocationAttribute("phase_setup_ns", Long.toString(i * 1000000L));
+            mScheduler.addInvocationPhaseTimes(context);
+        }
+        mScheduler.addInvocationPhaseTimes(new InvocationContext());
+        Map<String, StreamingStats> stats = mScheduler.getInvocationPhaseStats();
+        assertEquals(1, stats.size());
+        StreamingStats setup = stats.get("setup");
+        assertEquals(3, setup.size());
+        assertEquals(2.0, setup.median(), 0.001);
+        assertEquals(3.0, setup.max(), 0.001);
+    }
 }
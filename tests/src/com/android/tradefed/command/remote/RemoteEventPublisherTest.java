@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.command.remote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.device.DeviceAllocationState;
+import com.android.tradefed.device.FreeDeviceState;
+
+import org.easymock.EasyMock;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Unit tests for {@link RemoteEventPublisher}. */
+@RunWith(JUnit4.class)
+public class RemoteEventPublisherTest {
+
+    private RemoteEventPublisher mPublisher;
+    private List<JSONObject> mEvents;
+    private RemoteEventPublisher.ISubscriber mSubscriber;
+    private IRemoteEventHandler mMockHandler;
+
+    @Before
+    public void setUp() {
+        mPublisher = new RemoteEventPublisher();
+        mEvents = new ArrayList<>();
+        mSubscriber = new RemoteEventPublisher.ISubscriber() {
+            @Override
+            public boolean sendEvent(JSONObject event) {
+                mEvents.add(event);
+                return true;
+            }
+        };
+        mMockHandler = EasyMock.createStrictMock(IRemoteEventHandler.class);
+    }
+
+    /** Test that device state changes are sent to the subscribers. */
+    @Test
+    public void testNotifyDeviceStateChange() throws Exception {
+        mMockHandler.deviceStateChanged("serial", DeviceAllocationState.Available,
+                DeviceAllocationState.Allocated);
+        EasyMock.replay(mMockHandler);
+        mPublisher.addSubscriber(mSubscriber);
+        mPublisher.notifyDeviceStateChange("serial", DeviceAllocationState.Available,
+                DeviceAllocationState.Allocated);
+        assertEquals(1, mEvents.size());
+        assertTrue(SubscribeOp.isEvent(mEvents.get(0)));
+        SubscribeOp.dispatchEvent(mEvents.get(0), mMockHandler);
+        EasyMock.verify(mMockHandler);
+    }
+
+    /** Test that command state changes are sent to the subscribers. */
+    @Test
+    public void testNotifyCommandStateChange() throws Exception {
+        Map<String, String> metrics = new HashMap<>();
+        metrics.put("key", "value");
+        mMockHandler.commandStarted("serial");
+        mMockHandler.commandCompleted("serial", false, "error", FreeDeviceState.UNAVAILABLE,
+                metrics);
+        EasyMock.replay(mMockHandler);
+        mPublisher.addSubscriber(mSubscriber);
+        mPublisher.notifyCommandStateChange("serial",
+                new CommandResult(CommandResult.Status.EXECUTING));
+        mPublisher.notifyCommandStateChange("serial", new CommandResult(
+                CommandResult.Status.INVOCATION_ERROR, "error", FreeDeviceState.UNAVAILABLE,
+                metrics));
+        assertEquals(2, mEvents.size());
+        for (JSONObject event : mEvents) {
+            SubscribeOp.dispatchEvent(event, mMockHandler);
+        }
+        EasyMock.verify(mMockHandler);
+    }
+
+    /** Test that subscribers that are gone stop receiving events. */
+    @Test
+    public void testNotify_subscriberGone() {
+        mPublisher.addSubscriber(new RemoteEventPublisher.ISubscriber() {
+            @Override
+            public boolean sendEvent(JSONObject event) {
+                return false;
+            }
+        });
+        mPublisher.addSubscriber(mSubscriber);
+        assertEquals(2, mPublisher.getSubscriberCount());
+        mPublisher.notifyDeviceStateChange("serial", DeviceAllocationState.Available,
+                DeviceAllocationState.Allocated);
+        assertEquals(1, mPublisher.getSubscriberCount());
+        assertEquals(1, mEvents.size());
+        mPublisher.removeSubscriber(mSubscriber);
+        mPublisher.notifyDeviceStateChange("serial", DeviceAllocationState.Allocated,
+                DeviceAllocationState.Available);
+        assertEquals(0, mPublisher.getSubscriberCount());
+        assertEquals(1, mEvents.size());
+    }
+}
@@ -21,6 +21,7 @@ import com.android.tradefed.command.ICommandScheduler.IScheduledInvocationListen
 import com.android.tradefed.device.DeviceAllocationState;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.FreeDeviceState;
+import com.android.tradefed.device.IDeviceMonitor;
 import com.android.tradefed.device.IDeviceManager;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.invoker.IInvocationContext;
@@ -28,15 +29,23 @@ import com.android.tradefed.invoker.InvocationContext;
 
 import junit.framework.TestCase;
 
+import org.easymock.Capture;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import org.easymock.EasyMock;
-import org.easymock.IAnswer;
-
 /**
  * Unit tests for {@link RemoteManager}.
  */
@@ -64,6 +73,8 @@ public class RemoteManagerFuncTest extends TestCase {
         }
         if (mRemoteMgr != null) {
             mRemoteMgr.cancelAndWait();
+            mRemoteMgr.setUseSelector(false);
+            mRemoteMgr.setMaxQueuedBytes(4 * 1024 * 1024);
         }
         super.tearDown();
     }
@@ -503,4 +514,295 @@ public class RemoteManagerFuncTest extends TestCase {
         mRemoteClient.sendFreeDevice("serial");
         EasyMock.verify(mMockDeviceManager, mockHandler, mMockScheduler);
     }
+
+    /**
+     * Test that in non-blocking mode, several clients can be connected at the same time.
+     */
+    public void testSelector_concurrentClients() throws Exception {
+        EasyMock.expect(mMockDeviceManager.listAllDevices())
+                .andReturn(new ArrayList<DeviceDescriptor>()).times(2);
+        EasyMock.expect(mMockScheduler.addCommand(EasyMock.aryEq(new String[] {"arg1"}),
+                EasyMock.anyLong())).andReturn(true);
+        EasyMock.replay(mMockDeviceManager, mMockScheduler);
+        mRemoteMgr.setUseSelector(true);
+        assertTrue(mRemoteMgr.connectAnyPort());
+        mRemoteMgr.start();
+        int port = mRemoteMgr.getPort();
+        assertTrue(port != -1);
+        mRemoteClient = RemoteClient.connect(port);
+        IRemoteClient secondClient = RemoteClient.connect(port);
+        try {
+            assertTrue(mRemoteClient.sendListDevices().isEmpty());
+            assertTrue(secondClient.sendListDevices().isEmpty());
+            secondClient.sendAddCommand(3, "arg1");
+        } finally {
+            secondClient.close();
+        }
+        EasyMock.verify(mMockDeviceManager, mMockScheduler);
+    }
+
+    /**
+     * Test that in non-blocking mode, a client can send several operations without waiting for
+     * their responses, and get the responses in order with their ids.
+     */
+    public void testSelector_pipelined() throws Exception {
+        EasyMock.expect(mMockDeviceManager.forceAllocateDevice("serial")).andReturn(null);
+        EasyMock.expect(mMockDeviceManager.listAllDevices())
+                .andReturn(new ArrayList<DeviceDescriptor>());
+        EasyMock.replay(mMockDeviceManager);
+        mRemoteMgr.setUseSelector(true);
+        assertTrue(mRemoteMgr.connectAnyPort());
+        mRemoteMgr.start();
+        int port = mRemoteMgr.getPort();
+        assertTrue(port != -1);
+        AllocateDeviceOp allocate = new AllocateDeviceOp("serial");
+        allocate.setId("1");
+        ListDevicesOp list = new ListDevicesOp();
+        list.setId("2");
+        try (Socket socket = new Socket("localhost", port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write((allocate.pack() + "\n" + list.pack() + "\n").getBytes());
+            out.flush();
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream()));
+            JSONObject first = new JSONObject(in.readLine());
+            assertEquals("1", first.getString(RemoteOperation.ID));
+            assertTrue(first.has(RemoteOperation.ERROR));
+            JSONObject second = new JSONObject(in.readLine());
+            assertEquals("2", second.getString(RemoteOperation.ID));
+            assertFalse(second.has(RemoteOperation.ERROR));
+        }
+        EasyMock.verify(mMockDeviceManager);
+    }
+
+    /**
+     * Test that in non-blocking mode, only one of two commands sent at the same time by different
+     * clients to the same device is executed.
+     */
+    public void testSelector_concurrentExecCommand() throws Exception {
+        ITestDevice device = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(device.getSerialNumber()).andStubReturn("serial");
+        EasyMock.expect(mMockDeviceManager.forceAllocateDevice("serial")).andReturn(device);
+        mMockDeviceManager.freeDevice(EasyMock.eq(device), EasyMock.eq(FreeDeviceState.AVAILABLE));
+        final String[] args = new String[] {"instrument"};
+        mMockScheduler.execCommand((IScheduledInvocationListener)EasyMock.anyObject(),
+                EasyMock.eq(device), EasyMock.aryEq(args));
+        // leave time for the other command to be checked while this one is being scheduled
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                Thread.sleep(200);
+                return null;
+            }
+        }).once();
+        EasyMock.replay(mMockDeviceManager, device, mMockScheduler);
+        mRemoteMgr.setUseSelector(true);
+        assertTrue(mRemoteMgr.connectAnyPort());
+        mRemoteMgr.start();
+        int port = mRemoteMgr.getPort();
+        assertTrue(port != -1);
+        mRemoteClient = RemoteClient.connect(port);
+        final IRemoteClient secondClient = RemoteClient.connect(port);
+        try {
+            mRemoteClient.sendAllocateDevice("serial");
+            final List<RemoteException> errors = new ArrayList<>();
+            Thread secondExec = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        secondClient.sendExecCommand("serial", args);
+                    } catch (RemoteException e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            secondExec.start();
+            try {
+                mRemoteClient.sendExecCommand("serial", args);
+            } catch (RemoteException e) {
+                synchronized (errors) {
+                    errors.add(e);
+                }
+            }
+            secondExec.join();
+            assertEquals(1, errors.size());
+            mRemoteClient.sendFreeDevice("serial");
+        } finally {
+            secondClient.close();
+        }
+        EasyMock.verify(mMockDeviceManager, mMockScheduler);
+    }
+
+    /**
+     * Test that in non-blocking mode, closing the remote manager still sends the response to the
+     * close operation and frees the devices.
+     */
+    public void testSelector_allocateClose() throws Exception {
+        ITestDevice device = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(device.getSerialNumber()).andStubReturn("serial");
+        EasyMock.expect(mMockDeviceManager.forceAllocateDevice("serial")).andReturn(device);
+        mMockDeviceManager.freeDevice(EasyMock.eq(device),
+                EasyMock.eq(FreeDeviceState.AVAILABLE));
+        EasyMock.replay(mMockDeviceManager, device);
+        mRemoteMgr.setUseSelector(true);
+        assertTrue(mRemoteMgr.connectAnyPort());
+        mRemoteMgr.start();
+        int port = mRemoteMgr.getPort();
+        assertTrue(port != -1);
+        mRemoteClient = RemoteClient.connect(port);
+        mRemoteClient.sendAllocateDevice("serial");
+        mRemoteClient.sendClose();
+        mRemoteMgr.join();
+        EasyMock.verify(mMockDeviceManager);
+    }
+
+    /**
+     * Test that in non-blocking mode, a subscribed client receives the device and command state
+     * changes.
+     */
+    public void testSelector_subscribe() throws Exception {
+        final ITestDevice device = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(device.getSerialNumber()).andStubReturn("serial");
+        Capture<IDeviceMonitor> monitor = new Capture<>();
+        mMockDeviceManager.addDeviceMonitor(EasyMock.capture(monitor));
+        List<DeviceDescriptor> devices = new ArrayList<>();
+        devices.add(new DeviceDescriptor("serial", false, DeviceAllocationState.Available,
+                "tuna", "toro", "18", "JWR67C", "4"));
+        EasyMock.expect(mMockDeviceManager.listAllDevices()).andReturn(devices);
+        EasyMock.expect(mMockDeviceManager.forceAllocateDevice("serial")).andReturn(device);
+        mMockDeviceManager.freeDevice(device, FreeDeviceState.AVAILABLE);
+        EasyMock.expectLastCall().anyTimes();
+        mMockDeviceManager.removeDeviceMonitor(EasyMock.anyObject());
+        String[] args = new String[] {"instrument"};
+        mMockScheduler.execCommand((IScheduledInvocationListener)EasyMock.anyObject(),
+                EasyMock.eq(device), EasyMock.aryEq(args));
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() {
+                ExecCommandTracker tracker =
+                        (ExecCommandTracker) EasyMock.getCurrentArguments()[0];
+                IInvocationContext context = new InvocationContext();
+                context.addAllocatedDevice("device", device);
+                Map<ITestDevice, FreeDeviceState> state = new HashMap<>();
+                state.put(device, FreeDeviceState.AVAILABLE);
+                tracker.invocationComplete(context, state);
+                return null;
+            }
+        });
+        IRemoteEventHandler handler = EasyMock.createStrictMock(IRemoteEventHandler.class);
+        handler.deviceStateChanged("serial", DeviceAllocationState.Available,
+                DeviceAllocationState.Allocated);
+        handler.commandStarted("serial");
+        handler.commandCompleted(EasyMock.eq("serial"), EasyMock.eq(true),
+                EasyMock.<String>isNull(), EasyMock.eq(FreeDeviceState.AVAILABLE),
+                EasyMock.<Map<String, String>>anyObject());
+        EasyMock.replay(mMockDeviceManager, mMockScheduler, device, handler);
+        mRemoteMgr.setUseSelector(true);
+        assertTrue(mRemoteMgr.connectAnyPort());
+        mRemoteMgr.start();
+        int port = mRemoteMgr.getPort();
+        assertTrue(port != -1);
+        mRemoteClient = RemoteClient.connect(port);
+        List<DeviceDescriptor> subscribed = mRemoteClient.sendSubscribe();
+        assertEquals(1, subscribed.size());
+        assertEquals(DeviceAllocationState.Available, subscribed.get(0).getState());
+
+        monitor.getValue().notifyDeviceStateChange("serial", DeviceAllocationState.Available,
+                DeviceAllocationState.Allocated);
+        IRemoteClient secondClient = RemoteClient.connect(port);
+        try {
+            secondClient.sendAllocateDevice("serial");
+            secondClient.sendExecCommand("serial", args);
+        } finally {
+            secondClient.close();
+        }
+        assertTrue(mRemoteClient.readEvent(handler));
+        assertTrue(mRemoteClient.readEvent(handler));
+        assertTrue(mRemoteClient.readEvent(handler));
+        mRemoteMgr.cancelAndWait();
+        EasyMock.verify(mMockDeviceManager, mMockScheduler, handler);
+    }
+
+    /**
+     * Test that in non-blocking mode, a subscribed client that does not read its events is
+     * disconnected once too many bytes are waiting to be sent to it.
+     */
+    public void testSelector_subscriberNotReading() throws Exception {
+        Capture<IDeviceMonitor> monitor = new Capture<>();
+        mMockDeviceManager.addDeviceMonitor(EasyMock.capture(monitor));
+        EasyMock.expect(mMockDeviceManager.listAllDevices())
+                .andReturn(new ArrayList<DeviceDescriptor>());
+        mMockDeviceManager.removeDeviceMonitor(EasyMock.anyObject());
+        EasyMock.expectLastCall().anyTimes();
+        EasyMock.replay(mMockDeviceManager);
+        mRemoteMgr.setUseSelector(true);
+        mRemoteMgr.setMaxQueuedBytes(16 * 1024);
+        assertTrue(mRemoteMgr.connectAnyPort());
+        mRemoteMgr.start();
+        int port = mRemoteMgr.getPort();
+        assertTrue(port != -1);
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(10 * 1000);
+            OutputStream out = socket.getOutputStream();
+            out.write((new SubscribeOp().pack() + "\n").getBytes());
+            out.flush();
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream()));
+            // the subscription response
+            assertNotNull(in.readLine());
+            // more events than the socket buffers and the queue can hold
+            for (int i = 0; i < 100000; i++) {
+                monitor.getValue().notifyDeviceStateChange("serial",
+                        DeviceAllocationState.Available, DeviceAllocationState.Allocated);
+            }
+            try {
+                while (in.readLine() != null) {
+                    // drain the events sent before the connection was closed
+                }
+            } catch (SocketTimeoutException e) {
+                fail("client was not disconnected");
+            } catch (IOException e) {
+                // connection reset, also closed
+            }
+        }
+        mRemoteMgr.cancelAndWait();
+        EasyMock.verify(mMockDeviceManager);
+    }
+
+    /**
+     * Test that in non-blocking mode, a client sending a line longer than allowed is
+     * disconnected.
+     */
+    public void testSelector_lineTooLong() throws Exception {
+        EasyMock.replay(mMockDeviceManager);
+        mRemoteMgr.setUseSelector(true);
+        mRemoteMgr.setMaxLineBytes(1024);
+        try {
+            assertTrue(mRemoteMgr.connectAnyPort());
+            mRemoteMgr.start();
+            int port = mRemoteMgr.getPort();
+            assertTrue(port != -1);
+            try (Socket socket = new Socket("localhost", port)) {
+                socket.setSoTimeout(10 * 1000);
+                OutputStream out = socket.getOutputStream();
+                byte[] data = new byte[4 * 1024];
+                Arrays.fill(data, (byte) 'a');
+                try {
+                    out.write(data);
+                    out.flush();
+                    assertEquals(-1, socket.getInputStream().read());
+                } catch (SocketTimeoutException e) {
+                    fail("client was not disconnected");
+                } catch (IOException e) {
+                    // connection reset, also closed
+                }
+            }
+            mRemoteMgr.cancelAndWait();
+        } finally {
+            mRemoteMgr.setMaxLineBytes(1024 * 1024);
+        }
+        EasyMock.verify(mMockDeviceManager);
+    }
 }
@@ -27,6 +27,7 @@ import com.android.tradefed.device.IDeviceManager;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.util.RunUtil;
 
+import org.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
@@ -251,4 +252,35 @@ public class RemoteManagerTest {
         verify(mMockDeviceManager, Mockito.times(2))
                 .freeDevice(Mockito.any(), Mockito.eq(FreeDeviceState.AVAILABLE));
     }
+
+    /** Test that the id of an operation is echoed in its response, even when it failed. */
+    @Test
+    public void testProcessClientOperations_id() throws Exception {
+        String buf = "{\"version\":8, \"type\":\"ALLOCATE_DEVICE\", \"serial\":\"testserial\", "
+                + "\"id\":\"7\"}";
+        InputStream data = new ByteArrayInputStream(buf.getBytes());
+        BufferedReader in = new BufferedReader(new InputStreamReader(data));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintWriter pw = new PrintWriter(out);
+        mRemoteManager.processClientOperations(in, pw);
+        pw.flush();
+        JSONObject result = new JSONObject(out.toString());
+        assertEquals("7", result.getString("id"));
+        assertEquals("Failed to allocate device testserial", result.getString("error"));
+    }
+
+    /** Test that subscribing to events is rejected when clients are served one at a time. */
+    @Test
+    public void testProcessClientOperations_subscribe_blocking() throws Exception {
+        String buf = "{\"version\":8, \"type\":\"SUBSCRIBE\"}";
+        InputStream data = new ByteArrayInputStream(buf.getBytes());
+        BufferedReader in = new BufferedReader(new InputStreamReader(data));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintWriter pw = new PrintWriter(out);
+        mRemoteManager.processClientOperations(in, pw);
+        pw.flush();
+        assertEquals("{\"error\":\"Subscribing requires the remote-mgr-nio option\"}\n",
+                out.toString());
+        verify(mMockDeviceManager, Mockito.never()).addDeviceMonitor(Mockito.any());
+    }
 }
@@ -15,6 +15,9 @@
  */
 package com.android.tradefed.command.remote;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
 import org.junit.Test;
 
 /**
@@ -32,4 +35,13 @@ public class RemoteOperationTest {
         String data = o.pack(0);
         RemoteOperation.createRemoteOpFromString(data);
     }
+
+    /** Test that the id of an operation is sent over the wire. */
+    @Test
+    public void testId() throws RemoteException {
+        CloseOp o = new CloseOp();
+        assertNull(RemoteOperation.createRemoteOpFromString(o.pack()).getId());
+        o.setId("42");
+        assertEquals("42", RemoteOperation.createRemoteOpFromString(o.pack()).getId());
+    }
 }
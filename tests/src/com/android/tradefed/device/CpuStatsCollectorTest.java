@@ -17,9 +17,13 @@
 package com.android.tradefed.device;
 
 import com.android.tradefed.device.CpuStatsCollector.CpuStats;
+import com.android.tradefed.device.CpuStatsCollector.CpuStatsAggregate;
 import com.android.tradefed.device.CpuStatsCollector.TimeCategory;
 import com.android.tradefed.testtype.DeviceTestCase;
+import com.android.tradefed.util.BinarySampleWriter;
+import com.android.tradefed.util.FileUtil;
 
+import java.io.File;
 import java.util.List;
 import java.util.Map;
 
@@ -331,4 +335,69 @@ public class CpuStatsCollectorTest extends DeviceTestCase {
         assertNull(CpuStatsCollector.getEstimatedMhzMean(stats.get("Total")));
         assertNull(CpuStatsCollector.getUsedMhzPercentageMean(stats.get("Total")));
     }
+
+    /**
+     * Tests that the aggregates give the same means as the full list of {@link CpuStats}, and that
+     * no {@link CpuStats} is kept in streaming mode.
+     */
+    public void testCpuStatsParser_streaming() {
+        mCollector.setStreamingMode(true);
+        mCollector.getReceiver().processNewLines(MULTI_OUTPUT);
+
+        assertTrue(mCollector.getCpuStats().isEmpty());
+        Map<String, CpuStatsAggregate> aggregates = mCollector.getCpuStatsAggregates();
+        assertEquals(3, aggregates.size());
+
+        CpuStatsAggregate total = aggregates.get("Total");
+        assertEquals(10, total.getTotalPercentage().size());
+        assertEquals(53.67, total.getTotalPercentage().mean(), 0.01);
+        assertEquals(41.18, total.getUserPercentage().mean(), 0.01);
+        assertEquals(12.49, total.getSystemPercentage().mean(), 0.01);
+        assertEquals(0.0, total.getIowPercentage().mean(), 0.01);
+        assertEquals(0.0, total.getIrqPercentage().mean(), 0.01);
+        assertEquals(480.46, total.getEstimatedMhz().mean(), 0.01);
+        assertEquals(74.91, total.getUsedMhzPercentage().mean(), 0.01);
+        assertEquals(10, total.getTotalPercentage().getRecent().length);
+
+        CpuStatsAggregate cpu1 = aggregates.get("cpu1");
+        assertEquals(76.99, cpu1.getTotalPercentage().mean(), 0.01);
+        assertEquals(714.29, cpu1.getEstimatedMhz().mean(), 0.01);
+    }
+
+    /**
+     * Tests that the aggregates skip the frequency statistics when frequencies are not reported.
+     */
+    public void testCpuStatsParser_aggregate_non_aggregate() {
+        mCollector.setWindowSize(4);
+        mCollector.getReceiver().processNewLines(MULTI_NON_AGGREGATE_OUTPUT);
+
+        assertEquals(10, mCollector.getCpuStats().get("Total").size());
+        CpuStatsAggregate total = mCollector.getCpuStatsAggregates().get("Total");
+        assertEquals(53.67, total.getTotalPercentage().mean(), 0.01);
+        assertTrue(total.getEstimatedMhz().isEmpty());
+        assertNull(total.getUsedMhzPercentage().mean());
+        assertEquals(4, total.getTotalPercentage().getRecent().length);
+    }
+
+    /**
+     * Tests that parsed samples are spilled to a binary file.
+     */
+    public void testCpuStatsParser_spill() throws Exception {
+        File spillFile = FileUtil.createTempFile("cpustats", ".bin");
+        try {
+            mCollector.spillToFile(spillFile);
+            mCollector.getReceiver().processNewLines(SINGLE_OUTPUT);
+            mCollector.cancel();
+
+            List<BinarySampleWriter.Sample> samples = BinarySampleWriter.read(spillFile);
+            assertEquals(3, samples.size());
+            assertEquals("Total", samples.get(0).mSeries);
+            assertEquals(100.0 * 2 / 58, samples.get(0).mValues[0], 0.01);
+            assertEquals(100.0 * 17 / 58, samples.get(0).mValues[6], 0.01);
+            assertEquals((51 / 58.0) * (86630.0 / 102), samples.get(0).mValues[7], 0.01);
+            assertEquals("cpu1", samples.get(2).mSeries);
+        } finally {
+            FileUtil.deleteFile(spillFile);
+        }
+    }
 }
@@ -20,12 +20,16 @@ import com.google.common.util.concurrent.SettableFuture;
 import com.android.ddmlib.CollectingOutputReceiver;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.IDevice.DeviceState;
+import com.android.ddmlib.IShellOutputReceiver;
 import com.android.tradefed.util.RunUtil;
 
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
@@ -790,4 +794,119 @@ public class DeviceStateMonitorTest extends TestCase {
         };
         assertNull(mMonitor.waitForDeviceAvailable(WAIT_TIMEOUT_REACHED_MS));
     }
+
+    /**
+     * Test {@link DeviceStateMonitor#waitForDeviceAvailable(long)} with the readiness watcher,
+     * when all the checks pass.
+     */
+    public void testWaitForDeviceAvailable_watcher() throws Exception {
+        mMonitor = createWatcherMonitor("TF_READY shell\nTF_READY boot\nTF_READY pm\n"
+                + "TF_READY store\n", false);
+        assertEquals(mMockDevice, mMonitor.waitForDeviceAvailable(WAIT_TIMEOUT_NOT_REACHED_MS));
+    }
+
+    /**
+     * Test {@link DeviceStateMonitor#waitForDeviceAvailable(long)} with the readiness watcher,
+     * when a check fails.
+     */
+    public void testWaitForDeviceAvailable_watcherFailed() throws Exception {
+        mMonitor = createWatcherMonitor("TF_READY shell\nTF_READY boot\nTF_READY pm\n"
+                + "TF_FAIL store\n", false);
+        assertNull(mMonitor.waitForDeviceAvailable(WAIT_TIMEOUT_NOT_REACHED_MS));
+    }
+
+    /**
+     * Test {@link DeviceStateMonitor#waitForDeviceAvailable(long)} with the readiness watcher,
+     * when a check does not pass in time.
+     */
+    public void testWaitForDeviceAvailable_watcherTimeout() throws Exception {
+        mMonitor = createWatcherMonitor("TF_READY shell\nTF_READY boot\n", false);
+        assertNull(mMonitor.waitForDeviceAvailable(WAIT_TIMEOUT_REACHED_MS));
+    }
+
+    /**
+     * Test {@link DeviceStateMonitor#waitForDeviceAvailable(long)} falls back to polling when the
+     * readiness watcher can not run.
+     */
+    public void testWaitForDeviceAvailable_watcherUnavailable() throws Exception {
+        mMonitor = createWatcherMonitor(null, true);
+        assertEquals(mMockDevice, mMonitor.waitForDeviceAvailable(WAIT_TIMEOUT_NOT_REACHED_MS));
+    }
+
+    /**
+     * Test the order of the readiness checks.
+     */
+    public void testGetReadinessChecks() {
+        mMockDevice = EasyMock.createMock(IDevice.class);
+        EasyMock.expect(mMockDevice.getState()).andReturn(DeviceState.ONLINE);
+        EasyMock.replay(mMockDevice);
+        mMonitor = new DeviceStateMonitor(mMockMgr, mMockDevice, true) {
+            @Override
+            public String getMountPoint(String mountName) {
+                return "/sdcard";
+            }
+        };
+        assertEquals(Arrays.asList("boot", "pm", "store"),
+                new ArrayList<>(mMonitor.getReadinessChecks().keySet()));
+        assertTrue(mMonitor.getReadinessChecks().get("store").contains("/sdcard/tf_ready_$$"));
+    }
+
+    /**
+     * Create a {@link DeviceStateMonitor} using the readiness watcher.
+     *
+     * @param output the output of the watcher command
+     * @param pollingExpected whether readiness is expected to be polled instead
+     */
+    private DeviceStateMonitor createWatcherMonitor(final String output,
+            final boolean pollingExpected) throws Exception {
+        mMockDevice = EasyMock.createMock(IDevice.class);
+        // the watcher command runs while the device is used from the test thread
+        EasyMock.makeThreadSafe(mMockDevice, false);
+        EasyMock.expect(mMockDevice.getState()).andReturn(DeviceState.ONLINE).anyTimes();
+        EasyMock.expect(mMockDevice.getSerialNumber()).andReturn(SERIAL_NUMBER).anyTimes();
+        mMockDevice.executeShellCommand(EasyMock.startsWith("echo TF_READY shell;"),
+                EasyMock.<IShellOutputReceiver>anyObject(), EasyMock.anyLong(),
+                EasyMock.eq(TimeUnit.MILLISECONDS));
+        if (output == null) {
+            EasyMock.expectLastCall().andThrow(new IOException("device offline"));
+        } else {
+            EasyMock.expectLastCall().andAnswer(() -> {
+                IShellOutputReceiver receiver =
+                        (IShellOutputReceiver) EasyMock.getCurrentArguments()[1];
+                byte[] data = output.getBytes();
+                receiver.addOutput(data, 0, data.length);
+                receiver.flush();
+                // the command keeps running until cancelled
+                while (!receiver.isCancelled()) {
+                    RunUtil.getDefault().sleep(POLL_TIME_MS);
+                }
+                return null;
+            });
+        }
+        EasyMock.replay(mMockDevice);
+        DeviceStateMonitor monitor = new DeviceStateMonitor(mMockMgr, mMockDevice, true) {
+            @Override
+            public IDevice waitForDeviceOnline(long waitTime) {
+                return mMockDevice;
+            }
+            @Override
+            public String getMountPoint(String mountName) {
+                return "/sdcard";
+            }
+            @Override
+            public boolean waitForBootComplete(long waitTime) {
+                return pollingExpected;
+            }
+            @Override
+            protected boolean waitForPmResponsive(long waitTime) {
+                return pollingExpected;
+            }
+            @Override
+            protected boolean waitForStoreMount(long waitTime) {
+                return pollingExpected;
+            }
+        };
+        monitor.setReadinessWatcherEnabled(true);
+        return monitor;
+    }
 }
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/** Unit tests for {@link LogcatBus}. */
+@RunWith(JUnit4.class)
+public class LogcatBusTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    private LogcatBus mBus;
+
+    @Before
+    public void setUp() {
+        mBus = new LogcatBus("SERIAL");
+    }
+
+    @After
+    public void tearDown() {
+        mBus.close();
+    }
+
+    /** Test parsing a 'threadtime' line. */
+    @Test
+    public void testParseEntry() {
+        LogcatEntry entry = LogcatEntry.parse(
+                "01-23 10:11:12.345  1234  1235 W ActivityManager: Slow operation: 62ms");
+        assertEquals("01-23 10:11:12.345", entry.getTimestamp());
+        assertEquals(1234, entry.getPid());
+        assertEquals(1235, entry.getTid());
+        assertEquals('W', entry.getPriority());
+        assertEquals("ActivityManager", entry.getTag());
+        assertEquals("Slow operation: 62ms", entry.getMessage());
+
+        entry = LogcatEntry.parse("01-23 10:11:12.345  1234  1235 I Tag     : padded tag");
+        assertEquals("Tag", entry.getTag());
+        assertEquals("padded tag", entry.getMessage());
+
+        assertNull(LogcatEntry.parse("--------- beginning of main"));
+        assertNull(LogcatEntry.parse("I/Tag     ( 1234): brief format"));
+    }
+
+    /** Test that entries are delivered to the subscriptions whose filter they match. */
+    @Test
+    public void testSubscribe_filters() throws Exception {
+        LogcatSubscription all = mBus.subscribe(new LogcatFilter(null, 'V', null), 10);
+        LogcatSubscription errors = mBus.subscribe(
+                new LogcatFilter(Arrays.asList("Tag1", "Tag2"), 'E', null), 10);
+        LogcatSubscription crashes = mBus.subscribe(
+                new LogcatFilter(null, 'V', "^FATAL EXCEPTION"), 10);
+        // split lines across chunks
+        publish("01-01 00:00:00.000  1  1 D Tag1: debug\n01-01 00:00:00.000  1  1 E Ta");
+        publish("g1: error\n--------- beginning of crash\n");
+        publish("01-01 00:00:00.000  1  1 E AndroidRuntime: FATAL EXCEPTION: main\n");
+        publish("01-01 00:00:00.000  1  1 F Tag2: fatal\n");
+
+        assertEquals("debug", all.poll(TIMEOUT_MS).getMessage());
+        assertEquals("error", all.poll(TIMEOUT_MS).getMessage());
+        assertEquals("FATAL EXCEPTION: main", all.poll(TIMEOUT_MS).getMessage());
+        assertEquals("fatal", all.poll(TIMEOUT_MS).getMessage());
+        assertEquals("error", errors.poll(TIMEOUT_MS).getMessage());
+        assertEquals("fatal", errors.poll(TIMEOUT_MS).getMessage());
+        assertEquals("AndroidRuntime", crashes.poll(TIMEOUT_MS).getTag());
+        assertNull(errors.poll(0));
+        assertNull(crashes.poll(0));
+    }
+
+    /** Test that the oldest entries are dropped when a subscriber falls behind. */
+    @Test
+    public void testSubscribe_full() throws Exception {
+        LogcatSubscription subscription = mBus.subscribe(new LogcatFilter(null, 'V', null), 2);
+        final CountDownLatch delivered = new CountDownLatch(3);
+        mBus.subscribe(new LogcatFilter(null, 'V', null), new ILogcatEntryListener() {
+            @Override
+            public void entryReceived(LogcatEntry entry) {
+                delivered.countDown();
+            }
+        });
+        publish("01-01 00:00:00.000  1  1 I Tag: 1\n01-01 00:00:00.000  1  1 I Tag: 2\n"
+                + "01-01 00:00:00.000  1  1 I Tag: 3\n");
+        assertTrue(delivered.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(1, subscription.getDroppedCount());
+        assertEquals("2", subscription.poll(TIMEOUT_MS).getMessage());
+        assertEquals("3", subscription.poll(TIMEOUT_MS).getMessage());
+    }
+
+    /** Test that closed subscriptions stop receiving entries. */
+    @Test
+    public void testClose() throws Exception {
+        LogcatSubscription subscription = mBus.subscribe(new LogcatFilter(null, 'V', null), 10);
+        assertEquals(1, mBus.getSubscriptionCount());
+        subscription.close();
+        assertEquals(0, mBus.getSubscriptionCount());
+        publish("01-01 00:00:00.000  1  1 I Tag: message\n");
+        assertNull(subscription.poll(100));
+        mBus.close();
+        assertTrue(mBus.subscribe(new LogcatFilter(null, 'V', null), 10).isClosed());
+    }
+
+    /**
+     * Test that a partial line is not joined with output received after output was dropped for
+     * lack of subscriptions.
+     */
+    @Test
+    public void testPublish_noSubscription() throws Exception {
+        LogcatSubscription subscription = mBus.subscribe(new LogcatFilter(null, 'V', null), 10);
+        publish("01-01 00:00:00.000  1  1 I Ta");
+        subscription.close();
+        publish("g: dropped\n01-01 00:00:00.000  1  1 I Ta");
+        subscription = mBus.subscribe(new LogcatFilter(null, 'V', null), 10);
+        publish("g: stale\n01-01 00:00:00.000  1  1 I Tag: new\n");
+        assertEquals("new", subscription.poll(TIMEOUT_MS).getMessage());
+        assertNull(subscription.poll(0));
+    }
+
+    private void publish(String output) {
+        byte[] data = output.getBytes(StandardCharsets.UTF_8);
+        mBus.publish(data, 0, data.length);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.device.LogcatReceiver.IndexedOutputReceiver;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.util.StreamUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/** Unit tests for {@link LogcatReceiver}. */
+@RunWith(JUnit4.class)
+public class LogcatReceiverTest {
+
+    private static final String LINE = "01-01 00:%02d:00.000  1234  1234 I Tag     : line %d\n";
+
+    private IndexedOutputReceiver mReceiver;
+
+    @Before
+    public void setUp() {
+        mReceiver = new IndexedOutputReceiver("logcat", "SERIAL", 1024 * 1024,
+                new LogcatTimeIndex(100), null);
+    }
+
+    @After
+    public void tearDown() {
+        mReceiver.delete();
+    }
+
+    /** Test getting the lines logged since a given time. */
+    @Test
+    public void testGetDataSince() throws IOException {
+        StringBuilder expected = new StringBuilder();
+        addLine("--------- beginning of main\n", null);
+        for (int i = 0; i < 50; i++) {
+            addLine(String.format(LINE, i, i), i >= 33 ? expected : null);
+        }
+        InputStreamSource source = mReceiver.getDataSince(time(33));
+        assertEquals(expected.toString(), read(source));
+        assertEquals(expected.length(), source.size());
+    }
+
+    /** Test that nothing is returned when nothing was logged since the given time. */
+    @Test
+    public void testGetDataSince_nothingNew() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            addLine(String.format(LINE, i, i), null);
+        }
+        assertEquals("", read(mReceiver.getDataSince(time(10))));
+    }
+
+    /** Test that the device should be queried when the output does not go back far enough. */
+    @Test
+    public void testGetDataSince_tooOld() {
+        for (int i = 10; i < 20; i++) {
+            addLine(String.format(LINE, i, i), null);
+        }
+        assertNull(mReceiver.getDataSince(time(5)));
+        mReceiver.clear();
+        assertNull(mReceiver.getDataSince(time(15)));
+    }
+
+    /** Test that the device should be queried when lines have no timestamps. */
+    @Test
+    public void testGetDataSince_noTimestamps() {
+        addLine("I/Tag     ( 1234): brief format line\n", null);
+        assertNull(mReceiver.getDataSince(time(0)));
+    }
+
+    /** Test waiting for the capture to receive the lines logged up to a given time. */
+    @Test
+    public void testWaitForTime() {
+        assertFalse(mReceiver.waitForTime(time(0), 0));
+        addLine("--------- beginning of main\n", null);
+        addLine(String.format(LINE, 10, 10), null);
+        assertTrue(mReceiver.waitForTime(time(10), 0));
+        assertFalse(mReceiver.waitForTime(time(11), 10));
+    }
+
+    /** Test that waiting stops when a line logged at or after the given time is received. */
+    @Test
+    public void testWaitForTime_received() throws InterruptedException {
+        Thread logger = new Thread() {
+            @Override
+            public void run() {
+                addLine(String.format(LINE, 5, 5), null);
+                addLine(String.format(LINE, 12, 12), null);
+            }
+        };
+        logger.start();
+        assertTrue(mReceiver.waitForTime(time(12), 10 * 1000));
+        logger.join();
+    }
+
+    private void addLine(String line, StringBuilder expected) {
+        byte[] data = line.getBytes(StandardCharsets.UTF_8);
+        mReceiver.addOutput(data, 0, data.length);
+        if (expected != null) {
+            expected.append(line);
+        }
+    }
+
+    private static long time(int minute) {
+        byte[] timestamp = String.format("01-01 00:%02d:00.000", minute)
+                .getBytes(StandardCharsets.UTF_8);
+        return LogcatTimeIndex.parseTime(timestamp, 0, timestamp.length);
+    }
+
+    private static String read(InputStreamSource source) throws IOException {
+        return StreamUtil.getStringFromSource(source);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/** Unit tests for {@link LogcatTimeIndex}. */
+@RunWith(JUnit4.class)
+public class LogcatTimeIndexTest {
+
+    private static final String LINE =
+            "%s  1234  1234 I Tag     : some message logged at the given time\n";
+
+    private static byte[] getBytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Test parsing the timestamp of a 'threadtime' line. */
+    @Test
+    public void testParseTime() {
+        byte[] line = getBytes(String.format(LINE, "03-14 15:09:26.535"));
+        TimeZone tz = TimeZone.getTimeZone("America/Los_Angeles");
+        Calendar calendar = Calendar.getInstance(tz);
+        calendar.set(2017, Calendar.MARCH, 14, 15, 9, 26);
+        calendar.set(Calendar.MILLISECOND, 535);
+        assertEquals(LogcatTimeIndex.getTime(calendar.getTimeInMillis(), tz),
+                LogcatTimeIndex.parseTime(line, 0, line.length));
+        assertTrue(LogcatTimeIndex.parseTime(line, 0, line.length)
+                < LogcatTimeIndex.parseTime(getBytes("03-14 15:09:26.536"), 0, 18));
+        assertTrue(LogcatTimeIndex.parseTime(getBytes("02-28 23:59:59.999"), 0, 18)
+                < LogcatTimeIndex.parseTime(getBytes("03-01 00:00:00.000"), 0, 18));
+    }
+
+    /** Test that lines without a timestamp are not parsed. */
+    @Test
+    public void testParseTime_invalid() {
+        byte[] line = getBytes("--------- beginning of main\n");
+        assertEquals(-1, LogcatTimeIndex.parseTime(line, 0, line.length));
+        assertEquals(-1, LogcatTimeIndex.parseTime(getBytes("03-14 15:09:26.5"), 0, 16));
+        assertEquals(-1, LogcatTimeIndex.parseTime(getBytes("03-14 15:09:2a.535"), 0, 18));
+    }
+
+    /** Test looking up offsets when nothing was indexed. */
+    @Test
+    public void testGetOffsetBefore_empty() {
+        LogcatTimeIndex index = new LogcatTimeIndex();
+        byte[] data = getBytes("--------- beginning of main\n");
+        index.addOutput(data, 0, data.length, 0);
+        assertEquals(0, index.size());
+        assertEquals(-1, index.getOffsetBefore(0));
+        assertEquals(-1, index.getFirstTime());
+    }
+
+    /** Test indexing output received in chunks, and looking offsets up. */
+    @Test
+    public void testGetOffsetBefore() {
+        LogcatTimeIndex index = new LogcatTimeIndex(1);
+        StringBuilder output = new StringBuilder("--------- beginning of main\n");
+        long[] offsets = new long[10];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = output.length();
+            output.append(String.format(LINE, String.format("01-01 00:00:%02d.000", i * 2)));
+        }
+        byte[] data = getBytes(output.toString());
+        // split the timestamps across chunks
+        for (int i = 0; i < data.length; i += 7) {
+            index.addOutput(data, i, Math.min(7, data.length - i), i);
+        }
+        assertEquals(offsets.length, index.size());
+        assertEquals(offsets[0], index.getOffsetBefore(time("01-01 00:00:00.000")));
+        assertEquals(offsets[2], index.getOffsetBefore(time("01-01 00:00:05.000")));
+        assertEquals(offsets[2], index.getOffsetBefore(time("01-01 00:00:06.000")));
+        assertEquals(offsets[9], index.getOffsetBefore(time("01-02 00:00:00.000")));
+
+        index.trim(offsets[5]);
+        assertEquals(5, index.size());
+        assertEquals(time("01-01 00:00:10.000"), index.getFirstTime());
+        assertEquals(offsets[5], index.getOffsetBefore(time("01-01 00:00:00.000")));
+    }
+
+    /** Test that entries are roughly one interval apart. */
+    @Test
+    public void testAddOutput_interval() {
+        LogcatTimeIndex index = new LogcatTimeIndex(1000);
+        StringBuilder output = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            output.append(String.format(LINE, "01-01 00:00:00.000"));
+        }
+        byte[] data = getBytes(output.toString());
+        index.addOutput(data, 0, data.length, 0);
+        // one entry for the first line at least 1000 bytes after the previous entry
+        int lineLength = data.length / 1000;
+        int linesPerEntry = (1000 + lineLength - 1) / lineLength;
+        assertEquals((1000 + linesPerEntry - 1) / linesPerEntry, index.size());
+    }
+
+    /** Test that timestamps going back in time keep the index ordered. */
+    @Test
+    public void testAddOutput_outOfOrder() {
+        LogcatTimeIndex index = new LogcatTimeIndex(1);
+        String output = String.format(LINE, "01-01 00:00:10.000")
+                + String.format(LINE, "01-01 00:00:05.000")
+                + String.format(LINE, "01-01 00:00:20.000");
+        byte[] data = getBytes(output);
+        index.addOutput(data, 0, data.length, 0);
+        assertEquals(3, index.size());
+        // the second line is clamped to 10s, so looking up 7s starts at the first line
+        assertEquals(0, index.getOffsetBefore(time("01-01 00:00:07.000")));
+    }
+
+    private static long time(String timestamp) {
+        return LogcatTimeIndex.parseTime(getBytes(timestamp), 0, LogcatTimeIndex.TIMESTAMP_LENGTH);
+    }
+}
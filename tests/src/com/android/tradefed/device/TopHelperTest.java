@@ -17,11 +17,15 @@
 package com.android.tradefed.device;
 
 import com.android.tradefed.device.TopHelper.TopStats;
+import com.android.tradefed.device.TopHelper.TopStatsAggregate;
+import com.android.tradefed.util.BinarySampleWriter;
+import com.android.tradefed.util.FileUtil;
 
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
 
+import java.io.File;
 import java.util.List;
 
 /**
@@ -116,4 +120,41 @@ public class TopHelperTest extends TestCase {
         assertNull(TopHelper.getIowAverage(stats.subList(3, 3)));
         assertNull(TopHelper.getIrqAverage(stats.subList(3, 3)));
     }
+
+    /**
+     * Test that the aggregate gives the same averages as the full list of {@link TopStats}, and
+     * that no {@link TopStats} is kept in streaming mode.
+     */
+    public void testTopParser_streaming() throws Exception {
+        final String lines = (
+                "User 15%, System 11%, IOW 7%, IRQ 3%\r\n" +
+                "User 16%, System 12%, IOW 8%, IRQ 4%\r\n" +
+                "User 17%, System 13%, IOW 9%, IRQ 5%\r\n");
+        File spillFile = FileUtil.createTempFile("top", ".bin");
+        try {
+            mTop.setStreamingMode(true);
+            mTop.spillToFile(spillFile);
+            assertTrue(mTop.getTopStatsAggregate().getTotal().isEmpty());
+
+            mTop.getReceiver().processNewLines(lines.split("\r\n"));
+            mTop.cancel();
+
+            assertTrue(mTop.getTopStats().isEmpty());
+            TopStatsAggregate aggregate = mTop.getTopStatsAggregate();
+            assertEquals(3, aggregate.getTotal().size());
+            assertEquals(40.0, aggregate.getTotal().mean(), 0.001);
+            assertEquals(16.0, aggregate.getUser().mean(), 0.001);
+            assertEquals(12.0, aggregate.getSystem().mean(), 0.001);
+            assertEquals(8.0, aggregate.getIow().mean(), 0.001);
+            assertEquals(4.0, aggregate.getIrq().mean(), 0.001);
+            assertEquals(44.0, aggregate.getTotal().max(), 0.001);
+
+            List<BinarySampleWriter.Sample> samples = BinarySampleWriter.read(spillFile);
+            assertEquals(3, samples.size());
+            assertEquals(17.0f, samples.get(2).mValues[0], 0.0f);
+            assertEquals(5.0f, samples.get(2).mValues[3], 0.0f);
+        } finally {
+            FileUtil.deleteFile(spillFile);
+        }
+    }
 }
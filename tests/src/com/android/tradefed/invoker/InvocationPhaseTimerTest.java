@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.invoker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.targetprep.ITargetPreparer;
+import com.android.tradefed.targetprep.StubTargetPreparer;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Map;
+
+/** Unit tests for {@link InvocationPhaseTimer}. */
+@RunWith(JUnit4.class)
+public class InvocationPhaseTimerTest {
+
+    /** Test that spans of the same phase are summed up, in the order phases were recorded. */
+    @Test
+    public void testAdd() {
+        InvocationPhaseTimer timer = new InvocationPhaseTimer();
+        timer.add(InvocationPhaseTimer.SETUP, 10);
+        timer.add(InvocationPhaseTimer.TEST, 20);
+        timer.add(InvocationPhaseTimer.SETUP, 5);
+        Map<String, Long> spans = timer.getSpans();
+        assertEquals(2, spans.size());
+        assertEquals(InvocationPhaseTimer.SETUP, spans.keySet().iterator().next());
+        assertEquals(Long.valueOf(15), spans.get(InvocationPhaseTimer.SETUP));
+        assertEquals(Long.valueOf(20), spans.get(InvocationPhaseTimer.TEST));
+    }
+
+    /** Test that a recorded span is measured from its start. */
+    @Test
+    public void testRecord() throws Exception {
+        InvocationPhaseTimer timer = new InvocationPhaseTimer();
+        long start = InvocationPhaseTimer.start();
+        Thread.sleep(5);
+        timer.record(InvocationPhaseTimer.TEST, start);
+        assertTrue(timer.getSpans().get(InvocationPhaseTimer.TEST) >= 5000000L);
+    }
+
+    /** Test that spans are reported once to the invocation attributes, and can be read back. */
+    @Test
+    public void testReportToContext() {
+        InvocationPhaseTimer timer = new InvocationPhaseTimer();
+        timer.add(InvocationPhaseTimer.FETCH_BUILD, 100);
+        timer.add("setup.DeviceSetup", 200);
+        IInvocationContext context = new InvocationContext();
+        context.addInvocationAttribute("other", "value");
+        context.addInvocationAttribute("phase_invalid_ns", "not a number");
+        timer.reportToContext(context);
+        timer.add(InvocationPhaseTimer.TEST, 300);
+        timer.reportToContext(context);
+        assertEquals("100", context.getAttributes().get("phase_fetch_build_ns").get(0));
+        Map<String, Long> spans = InvocationPhaseTimer.getSpans(context);
+        assertEquals(2, spans.size());
+        assertEquals(Long.valueOf(100), spans.get(InvocationPhaseTimer.FETCH_BUILD));
+        assertEquals(Long.valueOf(200), spans.get("setup.DeviceSetup"));
+    }
+
+    /** Test the phase names of preparers, including anonymous ones. */
+    @Test
+    public void testGetPreparerPhase() {
+        assertEquals("setup.StubTargetPreparer", InvocationPhaseTimer.getPreparerPhase(
+                InvocationPhaseTimer.SETUP, new StubTargetPreparer()));
+        ITargetPreparer anonymous = new StubTargetPreparer() {};
+        assertEquals("teardown.InvocationPhaseTimerTest$1", InvocationPhaseTimer.getPreparerPhase(
+                InvocationPhaseTimer.TEARDOWN, anonymous));
+    }
+}
@@ -47,9 +47,11 @@ import com.android.tradefed.invoker.shard.ShardHelper;
 import com.android.tradefed.invoker.shard.StrictShardHelper;
 import com.android.tradefed.log.ILeveledLogOutput;
 import com.android.tradefed.log.ILogRegistry;
+import com.android.tradefed.log.ITestLogger;
 import com.android.tradefed.profiler.IAggregatingTestProfiler;
 import com.android.tradefed.profiler.ITestProfiler;
 import com.android.tradefed.profiler.MetricOutputData;
+import com.android.tradefed.profiler.ISamplingProfiler;
 import com.android.tradefed.result.ByteArrayInputStreamSource;
 import com.android.tradefed.result.ILogSaver;
 import com.android.tradefed.result.ILogSaverListener;
@@ -114,6 +116,7 @@ public class TestInvocationTest extends TestCase {
     private IConfiguration mStubMultiConfiguration;
 
     private IInvocationContext mStubInvocationMetadata;
+    private ISamplingProfiler mMockSamplingProfiler = null;
 
     // The mock objects.
     private ITestDevice mMockDevice;
@@ -223,6 +226,11 @@ public class TestInvocationTest extends TestCase {
                     protected void setExitCode(ExitCode code, Throwable stack) {
                         // empty on purpose
                     }
+
+                    @Override
+                    protected ISamplingProfiler getSamplingProfiler() {
+                        return mMockSamplingProfiler;
+                    }
                 };
     }
 
@@ -249,6 +257,50 @@ public class TestInvocationTest extends TestCase {
         verifySummaryListener();
     }
 
+    /**
+     * Test that the time spent in each phase of the invocation is reported in the invocation
+     * attributes.
+     */
+    public void testInvoke_phaseTimes() throws Throwable {
+        IRemoteTest test = EasyMock.createMock(IRemoteTest.class);
+        setupMockSuccessListeners();
+
+        test.run((ITestInvocationListener)EasyMock.anyObject());
+        setupNormalInvoke(test);
+        EasyMock.replay(mockRescheduler);
+        mTestInvocation.invoke(mStubInvocationMetadata, mStubConfiguration, mockRescheduler);
+        verifyMocks(test, mockRescheduler);
+        Map<String, Long> spans = InvocationPhaseTimer.getSpans(mStubInvocationMetadata);
+        assertTrue(spans.containsKey(InvocationPhaseTimer.FETCH_BUILD));
+        assertTrue(spans.containsKey(InvocationPhaseTimer.SHARDING));
+        assertTrue(spans.containsKey(InvocationPhaseTimer.SETUP));
+        assertTrue(spans.containsKey(InvocationPhaseTimer.TEST));
+        assertTrue(spans.containsKey(InvocationPhaseTimer.TEARDOWN));
+        assertTrue(spans.containsKey(InvocationPhaseTimer.LOG_SAVING));
+        assertEquals(spans, mTestInvocation.getPhaseTimer().getSpans());
+    }
+
+    /**
+     * Test that the invocation threads are profiled when a {@link ISamplingProfiler} is set, and
+     * that the profile is logged before the host log.
+     */
+    public void testInvoke_samplingProfiler() throws Throwable {
+        IRemoteTest test = EasyMock.createMock(IRemoteTest.class);
+        mMockSamplingProfiler = EasyMock.createMock(ISamplingProfiler.class);
+        setupMockSuccessListeners();
+
+        test.run((ITestInvocationListener)EasyMock.anyObject());
+        setupNormalInvoke(test);
+        ThreadGroup group = Thread.currentThread().getThreadGroup();
+        mMockSamplingProfiler.startProfiling(group);
+        mMockSamplingProfiler.stopProfiling(EasyMock.eq(group),
+                (ITestLogger) EasyMock.notNull());
+        mMockSamplingProfiler.stopProfiling(group, null);
+        EasyMock.replay(mockRescheduler, mMockSamplingProfiler);
+        mTestInvocation.invoke(mStubInvocationMetadata, mStubConfiguration, mockRescheduler);
+        verifyMocks(test, mockRescheduler, mMockSamplingProfiler);
+    }
+
     /**
      * Test the normal case for multi invoke scenario with a {@link IRemoteTest}.
      * <p/>
@@ -821,6 +873,11 @@ public class TestInvocationTest extends TestCase {
                     protected void setExitCode(ExitCode code, Throwable stack) {
                         // empty on purpose
                     }
+
+                    @Override
+                    protected ISamplingProfiler getSamplingProfiler() {
+                        return mMockSamplingProfiler;
+                    }
                 };
         String[] commandLine = {"config", "arg"};
         int shardCount = 10;
@@ -900,6 +957,11 @@ public class TestInvocationTest extends TestCase {
                     protected void setExitCode(ExitCode code, Throwable stack) {
                         // empty on purpose
                     }
+
+                    @Override
+                    protected ISamplingProfiler getSamplingProfiler() {
+                        return mMockSamplingProfiler;
+                    }
                 };
         String[] commandLine = {"config", "arg"};
         int shardCount = 10;
@@ -20,6 +20,8 @@ import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.profiler.recorder.IMetricsRecorder;
+import com.android.tradefed.profiler.recorder.MetricAccumulator;
+import com.android.tradefed.profiler.recorder.MetricType;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.LogDataType;
@@ -122,6 +124,7 @@ public class AggregatingProfilerTest {
         EasyMock.expect(mRecorder2.getMergeFunction((String) EasyMock.anyObject()))
                 .andReturn(sum())
                 .times(12);
+        expectNoMetricType();
         EasyMock.replay(mTestDevice1, mTestDevice2, mRecorder1, mRecorder2);
         mProfiler.setAggregateMetrics(new HashMap<>());
 
@@ -147,6 +150,7 @@ public class AggregatingProfilerTest {
         EasyMock.expect(mRecorder2.getMergeFunction((String) EasyMock.anyObject()))
                 .andReturn(sum())
                 .times(12);
+        expectNoMetricType();
         EasyMock.replay(mRecorder1, mRecorder2);
 
         Map<String, Double> m2 = mProfiler.stopRecordingMetrics(id);
@@ -169,6 +173,94 @@ public class AggregatingProfilerTest {
         EasyMock.verify(mockListener);
     }
 
+    /**
+     * Test that metrics with a {@link MetricType} are accumulated across devices and tests
+     * according to their type.
+     */
+    @Test
+    public void testStopMetrics_accumulated() throws Exception {
+        TestIdentifier id = new TestIdentifier("foo", "bar");
+        Map<String, Double> metric1 = new HashMap<>();
+        metric1.put("count", 3.0);
+        metric1.put("avg", 2.0);
+        Map<String, Double> metric2 = new HashMap<>();
+        metric2.put("avg", 6.0);
+        EasyMock.expect(mRecorder1.stopMetrics((ITestDevice) EasyMock.anyObject()))
+                .andReturn(metric1)
+                .times(4);
+        EasyMock.expect(mRecorder2.stopMetrics((ITestDevice) EasyMock.anyObject()))
+                .andReturn(metric2)
+                .times(4);
+        expectMetricTypes(mRecorder1);
+        expectMetricTypes(mRecorder2);
+        EasyMock.replay(mTestDevice1, mTestDevice2, mRecorder1, mRecorder2);
+        mProfiler.setAggregateMetrics(new HashMap<>());
+
+        Map<String, Double> m = mProfiler.stopRecordingMetrics(id);
+        Assert.assertEquals(6.0d, m.get("count"), 0.001);
+        Assert.assertEquals(4.0d, m.get("avg"), 0.001);
+
+        metric2.put("avg", 10.0);
+        m = mProfiler.stopRecordingMetrics(id);
+        EasyMock.verify(mRecorder1, mRecorder2);
+        Assert.assertEquals(6.0d, m.get("count"), 0.001);
+        Assert.assertEquals(6.0d, m.get("avg"), 0.001);
+        Assert.assertEquals(12.0d, mProfiler.getAggregateMetrics().get("count"), 0.001);
+        Assert.assertEquals(5.0d, mProfiler.getAggregateMetrics().get("avg"), 0.001);
+        Assert.assertEquals(8, mProfiler.getAggregateAccumulators().get("avg").getCount());
+    }
+
+    /**
+     * Test that the aggregate metrics of another profiler are merged as if they were recorded by
+     * a single profiler.
+     */
+    @Test
+    public void testMergeAggregateMetrics() throws Exception {
+        TestIdentifier id = new TestIdentifier("foo", "bar");
+        Map<String, Double> metric1 = new HashMap<>();
+        metric1.put("avg", 2.0);
+        Map<String, Double> metric2 = new HashMap<>();
+        metric2.put("avg", 6.0);
+        EasyMock.expect(mRecorder1.stopMetrics((ITestDevice) EasyMock.anyObject()))
+                .andReturn(metric1)
+                .times(2);
+        EasyMock.expect(mRecorder2.stopMetrics((ITestDevice) EasyMock.anyObject()))
+                .andReturn(metric2)
+                .times(2);
+        expectMetricTypes(mRecorder1);
+        expectMetricTypes(mRecorder2);
+        EasyMock.replay(mTestDevice1, mTestDevice2, mRecorder1, mRecorder2);
+        mProfiler.setAggregateMetrics(new HashMap<>());
+        mProfiler.stopRecordingMetrics(id);
+
+        AggregatingProfiler other = new AggregatingProfiler();
+        MetricAccumulator accumulator = new MetricAccumulator(MetricType.AVG);
+        accumulator.add(2.0);
+        accumulator.add(6.0);
+        accumulator.add(2.0);
+        accumulator.add(6.0);
+        other.getAggregateAccumulators().put("avg", accumulator);
+        mProfiler.mergeAggregateMetrics(other);
+        mProfiler.mergeAggregateMetrics(new AggregatingProfiler());
+
+        Assert.assertEquals(4.0d, mProfiler.getAggregateMetrics().get("avg"), 0.001);
+        Assert.assertEquals(8, mProfiler.getAggregateAccumulators().get("avg").getCount());
+        Assert.assertEquals(6.0d,
+                mProfiler.getAggregateAccumulators().get("avg").getMax(), 0.001);
+    }
+
+    private void expectNoMetricType() {
+        EasyMock.expect(mRecorder1.getMetricType((String) EasyMock.anyObject()))
+                .andStubReturn(null);
+        EasyMock.expect(mRecorder2.getMetricType((String) EasyMock.anyObject()))
+                .andStubReturn(null);
+    }
+
+    private void expectMetricTypes(IMetricsRecorder recorder) {
+        EasyMock.expect(recorder.getMetricType("count")).andStubReturn(MetricType.COUNT);
+        EasyMock.expect(recorder.getMetricType("avg")).andStubReturn(MetricType.AVG);
+    }
+
     private BiFunction<Double, Double, Double> sum() {
         return (x, y) -> x + y;
     }
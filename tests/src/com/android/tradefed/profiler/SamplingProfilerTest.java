@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.profiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.config.OptionSetter;
+import com.android.tradefed.log.ITestLogger;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+import com.android.tradefed.util.StreamUtil;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Unit tests for {@link SamplingProfiler}. */
+@RunWith(JUnit4.class)
+public class SamplingProfilerTest {
+
+    private SamplingProfiler mProfiler;
+    private Map<String, String> mLogs;
+    private ITestLogger mLogger;
+    private volatile boolean mSpinning;
+
+    @Before
+    public void setUp() throws Exception {
+        mProfiler = new SamplingProfiler();
+        // samples are taken by the tests
+        new OptionSetter(mProfiler).setOptionValue("sample-interval", "0");
+        mLogs = new LinkedHashMap<>();
+        mLogger =
+                new ITestLogger() {
+                    @Override
+                    public void testLog(
+                            String dataName, LogDataType dataType, InputStreamSource dataStream) {
+                        try {
+                            mLogs.put(dataName,
+                                    StreamUtil.getStringFromStream(
+                                            dataStream.createInputStream()));
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                };
+    }
+
+    /** Test that the threads of a group are sampled and logged as folded stacks. */
+    @Test
+    public void testSample() throws Exception {
+        ThreadGroup group = new ThreadGroup("invocation");
+        mSpinning = true;
+        Thread thread = new Thread(group, () -> spin(), "spinning");
+        thread.start();
+        try {
+            mProfiler.startProfiling(group);
+            for (int i = 0; i < 5; i++) {
+                mProfiler.sample();
+                Thread.sleep(2);
+            }
+        } finally {
+            mSpinning = false;
+            thread.join();
+        }
+        mProfiler.stopProfiling(group, mLogger);
+        String cpuProfile = mLogs.get(SamplingProfiler.CPU_PROFILE_NAME);
+        assertTrue(cpuProfile.contains(
+                "java.lang.Thread.run;" + SamplingProfilerTest.class.getName()));
+        assertTrue(cpuProfile.contains(SamplingProfilerTest.class.getName() + ".spin"));
+        // threads of the test runner are not part of the group
+        assertFalse(cpuProfile.contains(SamplingProfilerTest.class.getName() + ".testSample"));
+    }
+
+    /** Test that nothing is logged for a group that was not profiled. */
+    @Test
+    public void testStopProfiling_notStarted() {
+        mProfiler.stopProfiling(new ThreadGroup("invocation"), mLogger);
+        assertTrue(mLogs.isEmpty());
+    }
+
+    /** Test that a profile is discarded when no logger is given. */
+    @Test
+    public void testStopProfiling_noLogger() {
+        ThreadGroup group = Thread.currentThread().getThreadGroup();
+        mProfiler.startProfiling(group);
+        mProfiler.sample();
+        mProfiler.stopProfiling(group, null);
+        mProfiler.stopProfiling(group, mLogger);
+        assertTrue(mLogs.isEmpty());
+    }
+
+    /** Test folding a stack, from the root frame. */
+    @Test
+    public void testFoldStack() {
+        StackTraceElement[] frames = {
+            new StackTraceElement("com.Top", "leaf", "Top.java", 1),
+            new StackTraceElement("com.Root", "main", "Root.java", 2),
+        };
+        assertEquals("com.Root.main;com.Top.leaf", SamplingProfiler.foldStack(frames));
+    }
+
+    /** Test that stacks are formatted heaviest first. */
+    @Test
+    public void testFormatProfile() {
+        Map<String, Long> samples = new HashMap<>();
+        samples.put("a;b", 2L);
+        samples.put("a;c", 5L);
+        assertEquals("a;c 5\na;b 2\n", SamplingProfiler.formatProfile(samples));
+    }
+
+    private void spin() {
+        long value = 0;
+        while (mSpinning) {
+            value++;
+        }
+        assertTrue(value >= 0);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.profiler.recorder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Unit tests for {@link MetricAccumulator}. */
+@RunWith(JUnit4.class)
+public class MetricAccumulatorTest {
+
+    /** Test the value of each {@link MetricType}. */
+    @Test
+    public void testGetValue() {
+        double[] values = {0, 1, 5, 0, 6};
+        assertEquals(5.0, accumulate(MetricType.COUNT, values).getValue(), 0.0);
+        assertEquals(3.0, accumulate(MetricType.COUNTPOS, values).getValue(), 0.0);
+        assertEquals(12.0, accumulate(MetricType.SUM, values).getValue(), 0.0);
+        assertEquals(2.4, accumulate(MetricType.AVG, values).getValue(), 0.0001);
+        assertEquals(2.4, accumulate(MetricType.AVGTIME, values).getValue(), 0.0001);
+        assertNull(new MetricAccumulator(MetricType.SUM).getValue());
+    }
+
+    /** Test the statistics and histogram of the values. */
+    @Test
+    public void testStatistics() {
+        MetricAccumulator accumulator = accumulate(MetricType.AVG, 0.5, 1, 3, 1024, -2);
+        assertEquals(5, accumulator.getCount());
+        assertEquals(1026.5, accumulator.getSum(), 0.0);
+        assertEquals(-2.0, accumulator.getMin(), 0.0);
+        assertEquals(1024.0, accumulator.getMax(), 0.0);
+        long[] histogram = accumulator.getHistogram();
+        assertEquals(2, histogram[0]);
+        assertEquals(1, histogram[1]);
+        assertEquals(1, histogram[2]);
+        assertEquals(1, histogram[11]);
+    }
+
+    /** Test that merged accumulators give the same values as a single one. */
+    @Test
+    public void testMerge() {
+        MetricAccumulator first = accumulate(MetricType.AVG, 1, 2, 3);
+        MetricAccumulator second = accumulate(MetricType.AVG, 10, 20);
+        first.merge(second);
+        first.merge(new MetricAccumulator(MetricType.AVG));
+        assertEquals(5, first.getCount());
+        assertEquals(7.2, first.getValue(), 0.0001);
+        assertEquals(1.0, first.getMin(), 0.0);
+        assertEquals(20.0, first.getMax(), 0.0);
+        assertEquals(2, second.getCount());
+    }
+
+    /** Test that values can be added concurrently. */
+    @Test
+    public void testAdd_concurrent() throws Exception {
+        final MetricAccumulator accumulator = new MetricAccumulator(MetricType.SUM);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread(() -> {
+                for (int j = 0; j < 10000; j++) {
+                    accumulator.add(1);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40000, accumulator.getCount());
+        assertEquals(40000.0, accumulator.getValue(), 0.0);
+    }
+
+    private static MetricAccumulator accumulate(MetricType type, double... values) {
+        MetricAccumulator accumulator = new MetricAccumulator(type);
+        for (double value : values) {
+            accumulator.add(value);
+        }
+        return accumulator;
+    }
+}
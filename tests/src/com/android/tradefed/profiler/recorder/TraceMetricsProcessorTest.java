@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.profiler.recorder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.util.FileUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/** Unit tests for {@link TraceMetricsProcessor}. */
+@RunWith(JUnit4.class)
+public class TraceMetricsProcessorTest {
+
+    private static final String TRACE =
+            "# tracer: nop\n"
+            + "#\n"
+            + " msm-core:sampli-287   [000] d.h2 87062.264209: mmc_cmd_rw_end: "
+            + "cmd=0,int_status=0x00000005,response=0x00000000\n"
+            + "          <idle>-0     [000] d.h3 87062.279952: mmc_cmd_rw_end: "
+            + "cmd=1,int_status=0x00000001,response=0x00ff8080\n"
+            + "         mmcqd:0-260   [000] d..2 87062.293003: mmc_cmd_rw_start: "
+            + "cmd=1,arg=0x40000080,flags=0x000000e1\r\n"
+            + "         <idle>-2     [000] d.h3 87062.293286: mmc_cmd_rw_end: "
+            + "cmd=1,int_statrs=0x00000001,response=0xc0ff8080\n"
+            + "         kworker-12    [001] 87062.300000: sched_wakeup: comm=foo pid=12 prio=120\n"
+            + "not a trace line\n"
+            + "         kworker-12    [001] 87062.400000: sched_wakeup: comm=foo pid=30";
+
+    private File mTraceFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mTraceFile = FileUtil.createTempFile("trace", ".txt");
+        FileUtil.writeToFile(TRACE, mTraceFile);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.deleteFile(mTraceFile);
+    }
+
+    private static TraceMetricsProcessor createProcessor(int windowSize, String... descriptors) {
+        TraceMetric[] metrics = new TraceMetric[descriptors.length];
+        for (int i = 0; i < descriptors.length; i++) {
+            metrics[i] = TraceMetric.parse(descriptors[i]);
+        }
+        return new TraceMetricsProcessor(Arrays.asList(metrics), windowSize);
+    }
+
+    /** Test that parameters of matched lines are aggregated, in hex and decimal. */
+    @Test
+    public void testProcess() throws Exception {
+        TraceMetricsProcessor processor = createProcessor(
+                TraceMetricsProcessor.DEFAULT_WINDOW_SIZE,
+                "mmc:mmc_cmd_rw_end:int_status:SUM", "sched:sched_wakeup:pid:AVG",
+                "mmc:mmc_cmd_rw:cmd:COUNT");
+        Map<String, MetricAccumulator> metrics = processor.process(mTraceFile);
+        assertEquals(2, metrics.size());
+        MetricAccumulator status = metrics.get("mmc:mmc_cmd_rw_end:int_status:SUM");
+        assertEquals(2, status.getCount());
+        assertEquals(6.0, status.getValue(), 0.0);
+        assertEquals(21.0, metrics.get("sched:sched_wakeup:pid:AVG").getValue(), 0.0);
+        assertFalse(metrics.containsKey("mmc:mmc_cmd_rw:cmd:COUNT"));
+    }
+
+    /** Test that lines are processed the same when the file is mapped in small windows. */
+    @Test
+    public void testProcess_smallWindows() throws Exception {
+        TraceMetricsProcessor processor = createProcessor(150,
+                "mmc:mmc_cmd_rw_end:int_status:COUNT", "sched:sched_wakeup:pid:SUM");
+        Map<String, MetricAccumulator> metrics = processor.process(mTraceFile);
+        assertEquals(2.0, metrics.get("mmc:mmc_cmd_rw_end:int_status:COUNT").getValue(), 0.0);
+        assertEquals(42.0, metrics.get("sched:sched_wakeup:pid:SUM").getValue(), 0.0);
+
+        // lines longer than the window are skipped
+        processor = createProcessor(40, "sched:sched_wakeup:pid:SUM");
+        assertTrue(processor.process(mTraceFile).isEmpty());
+    }
+
+    /** Test that an AVGTIME line starts a measurement ended by the next matched line. */
+    @Test
+    public void testProcess_avgTime() throws Exception {
+        TraceMetricsProcessor processor = createProcessor(
+                TraceMetricsProcessor.DEFAULT_WINDOW_SIZE,
+                "mmc:mmc_cmd_rw_start:cmd:AVGTIME", "mmc:mmc_cmd_rw_end:int_status:AVG");
+        Map<String, MetricAccumulator> metrics = processor.process(ByteBuffer.wrap(
+                TRACE.getBytes(StandardCharsets.UTF_8)));
+        MetricAccumulator end = metrics.get("mmc:mmc_cmd_rw_end:int_status:AVG");
+        // 5, 1, then the time since the start line
+        assertEquals(3, end.getCount());
+        assertEquals(6.000283, end.getSum(), 0.000001);
+    }
+}
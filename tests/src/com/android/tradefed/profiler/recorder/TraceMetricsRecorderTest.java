@@ -17,6 +17,7 @@
 package com.android.tradefed.profiler.recorder;
 
 import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.util.FileUtil;
 
 import org.easymock.EasyMock;
 import org.junit.Assert;
@@ -25,30 +26,24 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.StringReader;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Map;
 
 @RunWith(JUnit4.class)
 public class TraceMetricsRecorderTest {
 
-    private static class MockTraceMetricsRecorder extends TraceMetricsRecorder {
+    TraceMetricsRecorder mRecorder = new TraceMetricsRecorder();
+    ITestDevice mDevice;
 
-        /**
-         * A shim to return a reader over a string instead of a file. To fit the method signature,
-         * the filename is used as the string.
-         */
-        @Override
-        protected BufferedReader getReaderFromFile(File f) {
-            return new BufferedReader(new StringReader(f.getName()));
-        }
+    /** Write a trace to a file, as if pulled from the device. */
+    private static File createTrace(String content) throws IOException {
+        File trace = FileUtil.createTempFile("trace", ".txt");
+        FileUtil.writeToFile(content, trace);
+        return trace;
     }
 
-    TraceMetricsRecorder mRecorder = new MockTraceMetricsRecorder();
-    ITestDevice mDevice;
-
     @Before
     public void setUp() throws Exception {
         mDevice = EasyMock.createMock(ITestDevice.class);
@@ -61,7 +56,7 @@ public class TraceMetricsRecorderTest {
                 .andReturn("")
                 .anyTimes();
         EasyMock.expect(mDevice.pullFile((String) EasyMock.anyObject()))
-                .andStubReturn(new File(line));
+                .andStubReturn(createTrace(line));
         EasyMock.replay(mDevice);
         mRecorder.setUp(mDevice, Arrays.asList("mmc:mmc_cmd_rw_start:int_status:COUNT"));
         Map<String, Double> metrics = mRecorder.stopMetrics(mDevice);
@@ -77,7 +72,7 @@ public class TraceMetricsRecorderTest {
                 .andReturn("")
                 .anyTimes();
         EasyMock.expect(mDevice.pullFile((String) EasyMock.anyObject()))
-                .andStubReturn(new File(line));
+                .andStubReturn(createTrace(line));
         EasyMock.replay(mDevice);
         mRecorder.setUp(mDevice, Arrays.asList("mmc:mmc_cmd_rw_start:int_status:COUNT"));
         Map<String, Double> metrics = mRecorder.stopMetrics(mDevice);
@@ -93,7 +88,7 @@ public class TraceMetricsRecorderTest {
                 .andReturn("")
                 .anyTimes();
         EasyMock.expect(mDevice.pullFile((String) EasyMock.anyObject()))
-                .andStubReturn(new File(line));
+                .andStubReturn(createTrace(line));
         EasyMock.replay(mDevice);
         mRecorder.setUp(mDevice, Arrays.asList("mmc:mmc_cmd_rw_end:int_status:COUNT"));
         Map<String, Double> metrics = mRecorder.stopMetrics(mDevice);
@@ -113,7 +108,7 @@ public class TraceMetricsRecorderTest {
                 .andReturn("")
                 .anyTimes();
         EasyMock.expect(mDevice.pullFile((String) EasyMock.anyObject()))
-                .andStubReturn(new File(line));
+                .andStubReturn(createTrace(line));
         EasyMock.replay(mDevice);
         mRecorder.setUp(mDevice, Arrays.asList("mmc:mmc_cmd_rw_end:int_status:COUNT"));
         Map<String, Double> metrics = mRecorder.stopMetrics(mDevice);
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.ITestLogger;
+import com.android.tradefed.result.DeviceArtifactCollector.ArtifactType;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/** Unit tests for {@link DeviceArtifactCollector}. */
+@RunWith(JUnit4.class)
+public class DeviceArtifactCollectorTest {
+
+    private ITestDevice mMockDevice;
+    private ITestLogger mMockLogger;
+    private DeviceArtifactCollector mCollector;
+
+    @Before
+    public void setUp() {
+        mMockDevice = EasyMock.createMock(ITestDevice.class);
+        mMockLogger = EasyMock.createStrictMock(ITestLogger.class);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn("SERIAL");
+        mCollector = new DeviceArtifactCollector(mMockDevice, mMockLogger);
+    }
+
+    /**
+     * Test that bugreports requested within the coalescing window are only captured once, and
+     * that artifacts are logged in the order they were requested.
+     */
+    @Test
+    public void testRequest_coalesceBugreports() throws Exception {
+        InputStreamSource bugreport = new ByteArrayInputStreamSource("bugreport".getBytes());
+        InputStreamSource screenshot = new ByteArrayInputStreamSource("screenshot".getBytes());
+        EasyMock.expect(mMockDevice.getBugreport()).andReturn(bugreport).once();
+        EasyMock.expect(mMockDevice.getScreenshot()).andReturn(screenshot);
+        mMockLogger.testLog("first-bugreport", LogDataType.BUGREPORT, bugreport);
+        mMockLogger.testLog("screenshot", LogDataType.PNG, screenshot);
+        EasyMock.replay(mMockDevice, mMockLogger);
+
+        assertTrue(mCollector.requestBugreport("first-bugreport"));
+        assertTrue(mCollector.requestScreenshot("screenshot"));
+        assertFalse(mCollector.requestBugreport("second-bugreport"));
+        mCollector.close();
+        assertEquals(1, mCollector.getCoalescedCount());
+        EasyMock.verify(mMockDevice, mMockLogger);
+    }
+
+    /**
+     * Test that artifacts of different types are captured in parallel, and that only completed
+     * ones are logged by {@link DeviceArtifactCollector#logCompleted()}.
+     */
+    @Test
+    public void testLogCompleted() throws Exception {
+        List<String> logged = new ArrayList<>();
+        mCollector = new DeviceArtifactCollector(mMockDevice, new ITestLogger() {
+            @Override
+            public void testLog(String dataName, LogDataType dataType,
+                    InputStreamSource dataStream) {
+                logged.add(dataName);
+            }
+        });
+        EasyMock.replay(mMockDevice);
+        CountDownLatch release = new CountDownLatch(1);
+        mCollector.request(ArtifactType.BUGREPORT, "bugreport", LogDataType.BUGREPORT, () -> {
+            release.await(10, TimeUnit.SECONDS);
+            return new ByteArrayInputStreamSource("bugreport".getBytes());
+        });
+        mCollector.request(ArtifactType.LOGCAT, "logcat", LogDataType.LOGCAT,
+                () -> new ByteArrayInputStreamSource("logcat".getBytes()));
+        // the logcat is captured while the bugreport is still running
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        while (logged.isEmpty() && System.currentTimeMillis() < deadline) {
+            mCollector.logCompleted();
+            Thread.sleep(10);
+        }
+        assertEquals(Arrays.asList("logcat"), logged);
+        release.countDown();
+        mCollector.close();
+        assertEquals(Arrays.asList("logcat", "bugreport"), logged);
+    }
+
+    /**
+     * Test that a failed capture is not logged.
+     */
+    @Test
+    public void testRequest_failed() throws Exception {
+        EasyMock.expect(mMockDevice.getScreenshot()).andThrow(new DeviceNotAvailableException());
+        EasyMock.replay(mMockDevice, mMockLogger);
+        mCollector.requestScreenshot("screenshot");
+        mCollector.close();
+        EasyMock.verify(mMockDevice, mMockLogger);
+    }
+
+    /**
+     * Test that an interrupt while waiting for captures cancels them, deleting the data of those
+     * completing afterwards.
+     */
+    @Test
+    public void testFlush_interrupted() throws Exception {
+        EasyMock.replay(mMockDevice, mMockLogger);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch cancelled = new CountDownLatch(1);
+        mCollector.request(ArtifactType.BUGREPORT, "bugreport", LogDataType.BUGREPORT, () -> {
+            // ignores the interrupt, to complete after being cancelled
+            while (true) {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                    break;
+                } catch (InterruptedException e) {
+                    // keep waiting
+                }
+            }
+            return new ByteArrayInputStreamSource("bugreport".getBytes()) {
+                @Override
+                public void cancel() {
+                    super.cancel();
+                    cancelled.countDown();
+                }
+            };
+        });
+        Thread.currentThread().interrupt();
+        try {
+            mCollector.flush();
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+        release.countDown();
+        mCollector.close();
+        assertTrue(cancelled.await(10, TimeUnit.SECONDS));
+        EasyMock.verify(mMockDevice, mMockLogger);
+    }
+}
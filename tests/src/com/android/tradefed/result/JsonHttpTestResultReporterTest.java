@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.ddmlib.testrunner.TestRunResult;
+import com.android.tradefed.build.BuildInfo;
+import com.android.tradefed.config.OptionSetter;
+import com.android.tradefed.invoker.InvocationContext;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/** Unit tests for {@link JsonHttpTestResultReporter}. */
+@RunWith(JUnit4.class)
+public class JsonHttpTestResultReporterTest {
+
+    private JsonHttpTestResultReporter mReporter;
+    private InvocationContext mContext;
+    private File mSpoolDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mReporter = new JsonHttpTestResultReporter();
+        mContext = new InvocationContext();
+        BuildInfo buildInfo = new BuildInfo("123", "target");
+        buildInfo.setBuildBranch("branch");
+        buildInfo.setBuildFlavor("flavor");
+        mContext.addDeviceBuildInfo("device", buildInfo);
+        mSpoolDir = FileUtil.createTempDir("json-reporter");
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.recursiveDelete(mSpoolDir);
+    }
+
+    private void runTests(String runName, String metricValue) {
+        Map<String, String> metrics = new HashMap<>();
+        metrics.put("metric", metricValue);
+        TestIdentifier test1 = new TestIdentifier("com.foo.Class", "test1");
+        TestIdentifier test2 = new TestIdentifier("com.foo.Class", "test2");
+        mReporter.testRunStarted(runName, 2);
+        mReporter.testStarted(test1);
+        mReporter.testEnded(test1, metrics);
+        mReporter.testStarted(test2);
+        mReporter.testEnded(test2, Collections.<String, String>emptyMap());
+        mReporter.testRunEnded(10, metrics);
+    }
+
+    /** Test that results written as a stream match the ones converted to json at once. */
+    @Test
+    public void testWriteResultsJson() throws Exception {
+        OptionSetter setter = new OptionSetter(mReporter);
+        setter.setOptionValue("reporting-unit-key-suffix", "_suffix");
+        setter.setOptionValue("include-run-name", "true");
+        mReporter.invocationStarted(mContext);
+        runTests("run", "\"quoted\" é");
+        TestRunResult runResult = mReporter.getCurrentRunResults();
+        StringWriter writer = new StringWriter();
+        mReporter.writeResultsJson(runResult, writer);
+        JSONObject written = new JSONObject(writer.toString());
+        JSONObject expected = mReporter.convertMetricsToJson(Collections.singleton(runResult));
+        assertEquals(expected.get("results_name").toString(), written.getString("results_name"));
+        assertEquals(expected.getString("branch"), written.getString("branch"));
+        assertEquals(expected.getString("build_flavor"), written.getString("build_flavor"));
+        assertEquals(expected.getString("build_id"), written.getString("build_id"));
+        JSONObject expectedMetrics = expected.getJSONObject("metrics");
+        JSONObject writtenMetrics = written.getJSONObject("metrics");
+        assertEquals(2, writtenMetrics.length());
+        assertEquals(expectedMetrics.getJSONObject("run_suffix").toString(),
+                writtenMetrics.getJSONObject("run_suffix").toString());
+        assertEquals(expectedMetrics.getJSONObject("run#com.foo.Class#test1_suffix").toString(),
+                writtenMetrics.getJSONObject("run#com.foo.Class#test1_suffix").toString());
+    }
+
+    /** Test that the results of each test run are posted as the runs end. */
+    @Test
+    public void testStreamResults() throws Exception {
+        final List<JSONObject> received = Collections.synchronizedList(new ArrayList<>());
+        HttpServer server =
+                HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/post", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    received.add(new JSONObject(StreamUtil.getStringFromStream(
+                            new GZIPInputStream(exchange.getRequestBody()))));
+                    exchange.sendResponseHeaders(200, -1);
+                } catch (Exception e) {
+                    exchange.sendResponseHeaders(500, -1);
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        try {
+            OptionSetter setter = new OptionSetter(mReporter);
+            setter.setOptionValue("posting-endpoint", String.format("http://localhost:%d/post",
+                    server.getAddress().getPort()));
+            setter.setOptionValue("stream-results", "true");
+            setter.setOptionValue("spool-dir", mSpoolDir.getAbsolutePath());
+            mReporter.invocationStarted(mContext);
+            runTests("run1", "1");
+            runTests("run2", "2");
+            mReporter.invocationFailed(new RuntimeException());
+            mReporter.invocationEnded(100);
+            assertEquals(2, received.size());
+            assertEquals("1", received.get(0).getJSONObject("metrics")
+                    .getJSONObject("run1").getString("metric"));
+            assertFalse(received.get(0).getJSONObject("metrics").has("run2"));
+            assertEquals("2", received.get(1).getJSONObject("metrics")
+                    .getJSONObject("run2").getString("metric"));
+            assertEquals("123", received.get(1).getString("build_id"));
+        } finally {
+            server.stop(0);
+        }
+    }
+}
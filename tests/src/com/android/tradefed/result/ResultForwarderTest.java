@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.result;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.result.ResultForwarder.OverflowPolicy;
+import com.android.tradefed.util.StreamUtil;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/** Unit tests for {@link ResultForwarder}. */
+@RunWith(JUnit4.class)
+public class ResultForwarderTest {
+
+    /** A listener recording the events it receives, optionally blocked until released. */
+    private static class RecordingListener implements ITestInvocationListener {
+        private final List<String> mEvents = Collections.synchronizedList(new ArrayList<>());
+        private final CountDownLatch mRelease;
+
+        RecordingListener(CountDownLatch release) {
+            mRelease = release;
+        }
+
+        private void await() {
+            try {
+                mRelease.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void testRunStarted(String runName, int testCount) {
+            await();
+            mEvents.add("testRunStarted:" + runName);
+        }
+
+        @Override
+        public void testStarted(TestIdentifier test) {
+            mEvents.add("testStarted:" + test.getTestName());
+        }
+
+        @Override
+        public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+            mEvents.add("testEnded:" + test.getTestName() + testMetrics);
+        }
+
+        @Override
+        public void testLog(String dataName, LogDataType dataType, InputStreamSource dataStream) {
+            try {
+                mEvents.add("testLog:" + StreamUtil.getStringFromStream(
+                        dataStream.createInputStream()));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Test that events are forwarded in order to each listener, without waiting for a slow one.
+     */
+    @Test
+    public void testAsyncForwarding_order() {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingListener slow = new RecordingListener(release);
+        RecordingListener fast = new RecordingListener(new CountDownLatch(0));
+        ResultForwarder forwarder = new ResultForwarder(slow, fast);
+        forwarder.setAsyncForwarding(10, OverflowPolicy.BLOCK);
+        assertNotNull(forwarder.getQueue(slow));
+
+        TestIdentifier test = new TestIdentifier("class", "test");
+        Map<String, String> metrics = new HashMap<>();
+        metrics.put("key", "value");
+        forwarder.testRunStarted("run", 1);
+        forwarder.testStarted(test);
+        forwarder.testEnded(test, metrics);
+        // the metrics forwarded must not see changes made after the event
+        metrics.clear();
+        assertTrue(slow.mEvents.isEmpty());
+
+        release.countDown();
+        forwarder.drainAsyncForwarding();
+        assertNull(forwarder.getQueue(slow));
+        List<String> expected = new ArrayList<>();
+        expected.add("testRunStarted:run");
+        expected.add("testStarted:test");
+        expected.add("testEnded:test{key=value}");
+        assertEquals(expected, slow.mEvents);
+        assertEquals(expected, fast.mEvents);
+    }
+
+    /**
+     * Test that log data stays readable once the caller cancelled it, until it is delivered.
+     */
+    @Test
+    public void testAsyncForwarding_testLog() {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingListener listener = new RecordingListener(release);
+        ResultForwarder forwarder = new ResultForwarder(listener);
+        forwarder.setAsyncForwarding(10, OverflowPolicy.BLOCK);
+
+        forwarder.testRunStarted("run", 0);
+        InputStreamSource source = new ByteArrayInputStreamSource("data".getBytes());
+        forwarder.testLog("log", LogDataType.TEXT, source);
+        source.cancel();
+
+        release.countDown();
+        forwarder.drainAsyncForwarding();
+        assertEquals("testLog:data", listener.mEvents.get(1));
+    }
+
+    /**
+     * Test that log events are dropped for a listener falling behind with
+     * {@link OverflowPolicy#DROP_LOGS}, but other events are kept.
+     */
+    @Test
+    public void testAsyncForwarding_dropLogs() {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingListener listener = new RecordingListener(release);
+        ResultForwarder forwarder = new ResultForwarder(listener);
+        forwarder.setAsyncForwarding(1, OverflowPolicy.DROP_LOGS);
+        ListenerEventQueue queue = forwarder.getQueue(listener);
+
+        // blocks the delivery thread until released
+        forwarder.testRunStarted("run", 1);
+        forwarder.testStarted(new TestIdentifier("class", "test"));
+        forwarder.testLog("log", LogDataType.TEXT,
+                new ByteArrayInputStreamSource("data".getBytes()));
+        assertEquals(1, queue.getDroppedLogCount());
+
+        release.countDown();
+        forwarder.drainAsyncForwarding();
+        assertEquals(2, queue.getDeliveredCount());
+        assertEquals(2, listener.mEvents.size());
+    }
+
+    /**
+     * Test that events past the capacity are spilled to disk with {@link OverflowPolicy#SPILL},
+     * and delivered in order.
+     */
+    @Test
+    public void testAsyncForwarding_spill() {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingListener listener = new RecordingListener(release);
+        ResultForwarder forwarder = new ResultForwarder(listener);
+        forwarder.setAsyncForwarding(1, OverflowPolicy.SPILL);
+        ListenerEventQueue queue = forwarder.getQueue(listener);
+
+        // blocks the delivery thread until released
+        forwarder.testRunStarted("run", 2);
+        TestIdentifier test1 = new TestIdentifier("class", "test1");
+        TestIdentifier test2 = new TestIdentifier("class", "test2");
+        Map<String, String> metrics = new HashMap<>();
+        metrics.put("key", "value");
+        forwarder.testStarted(test1);
+        forwarder.testEnded(test1, metrics);
+        forwarder.testStarted(test2);
+        forwarder.testEnded(test2, Collections.emptyMap());
+        assertTrue(queue.getSpilledCount() > 0);
+        assertTrue(queue.getMaxDepth() <= 2);
+
+        release.countDown();
+        forwarder.drainAsyncForwarding();
+        List<String> expected = new ArrayList<>();
+        expected.add("testRunStarted:run");
+        expected.add("testStarted:test1");
+        expected.add("testEnded:test1{key=value}");
+        expected.add("testStarted:test2");
+        expected.add("testEnded:test2{}");
+        assertEquals(expected, listener.mEvents);
+        assertEquals(5, queue.getDeliveredCount());
+    }
+
+    /**
+     * Test that an interrupt while draining stops waiting for the listener, and keeps the
+     * interrupted status of the thread.
+     */
+    @Test
+    public void testDrainAsyncForwarding_interrupted() {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingListener listener = new RecordingListener(release);
+        ResultForwarder forwarder = new ResultForwarder(listener);
+        forwarder.setAsyncForwarding(10, OverflowPolicy.BLOCK);
+
+        forwarder.testRunStarted("run", 0);
+        Thread.currentThread().interrupt();
+        try {
+            forwarder.drainAsyncForwarding();
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+            release.countDown();
+        }
+    }
+}
@@ -126,4 +126,45 @@ public class SubprocessResultsReporterTest {
             receiver.close();
         }
     }
+
+    /**
+     * Test that events sent through the socket in binary form are received on the other hand,
+     * including the tests that pass sent in batches.
+     */
+    @Test
+    public void testPrintEvent_binaryToSocket() throws Exception {
+        TestIdentifier testId = new TestIdentifier("com.fakeclass", "faketest");
+        TestIdentifier testId2 = new TestIdentifier("com.fakeclass", "faketest2");
+        ITestInvocationListener mockListener =
+                EasyMock.createStrictMock(ITestInvocationListener.class);
+        SubprocessTestResultsParser receiver =
+                new SubprocessTestResultsParser(mockListener, true, new InvocationContext());
+        try {
+            OptionSetter setter = new OptionSetter(mReporter);
+            setter.setOptionValue("subprocess-report-port",
+                    Integer.toString(receiver.getSocketServerPort()));
+            setter.setOptionValue("subprocess-binary-events", "true");
+            mockListener.testRunStarted("run", 2);
+            mockListener.testStarted(testId, 1L);
+            mockListener.testEnded(testId, 2L, Collections.<String, String>emptyMap());
+            mockListener.testStarted(testId2, 3L);
+            mockListener.testFailed(testId2, "fake trace");
+            mockListener.testEnded(testId2, 4L, Collections.<String, String>emptyMap());
+            mockListener.testRunEnded(5L, Collections.<String, String>emptyMap());
+            EasyMock.replay(mockListener);
+            mReporter.testRunStarted("run", 2);
+            mReporter.testStarted(testId, 1L);
+            mReporter.testEnded(testId, 2L, Collections.<String, String>emptyMap());
+            mReporter.testStarted(testId2, 3L);
+            mReporter.testFailed(testId2, "fake trace");
+            mReporter.testEnded(testId2, 4L, Collections.<String, String>emptyMap());
+            mReporter.testRunEnded(5L, Collections.<String, String>emptyMap());
+            mReporter.invocationEnded(6L);
+            mReporter.close();
+            assertTrue(receiver.joinReceiver(500));
+            EasyMock.verify(mockListener);
+        } finally {
+            receiver.close();
+        }
+    }
 }
@@ -17,12 +17,15 @@ package com.android.tradefed.result;
 
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.build.BuildInfo;
+import com.android.tradefed.config.OptionSetter;
 import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.invoker.InvocationContext;
+import com.android.tradefed.util.StreamUtil;
 
 import junit.framework.TestCase;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collections;
 import java.util.Map;
@@ -36,12 +39,15 @@ public class XmlResultReporterTest extends TestCase {
 
     private XmlResultReporter mResultReporter;
     private ByteArrayOutputStream mOutputStream;
-    private ILogSaver mMockLogSaver;
+    private MockLogSaver mMockLogSaver;
 
     class MockLogSaver implements ILogSaver {
+        String mSavedData = null;
+
         @Override
         public LogFile saveLogData(String dataName, LogDataType dataType,
-                InputStream dataStream) {
+                InputStream dataStream) throws IOException {
+            mSavedData = StreamUtil.getStringFromStream(dataStream);
             return new LogFile(PATH, URL, dataType.isCompressed(), dataType.isText());
         }
 
@@ -162,6 +168,83 @@ public class XmlResultReporterTest extends TestCase {
         assertTrue(output.contains(failureTag));
     }
 
+    /**
+     * Runs tests with all kinds of results through a reporter.
+     */
+    private void runTests(XmlResultReporter reporter) {
+        Map<String, String> emptyMap = Collections.emptyMap();
+        IInvocationContext context = new InvocationContext();
+        context.addDeviceBuildInfo("fakeDevice", new BuildInfo());
+        context.setTestTag("stub");
+        reporter.invocationStarted(context);
+        reporter.testRunStarted("run", 4);
+        TestIdentifier passed = new TestIdentifier("FooTest", "testPassed");
+        reporter.testStarted(passed);
+        reporter.testEnded(passed, emptyMap);
+        TestIdentifier failed = new TestIdentifier("FooTest", "testFailed");
+        reporter.testStarted(failed);
+        reporter.testFailed(failed, "trace\0 <&>");
+        reporter.testEnded(failed, emptyMap);
+        TestIdentifier assumption = new TestIdentifier("BarTest", "testAssumption");
+        reporter.testStarted(assumption);
+        reporter.testAssumptionFailure(assumption, "assumption");
+        reporter.testEnded(assumption, emptyMap);
+        reporter.testRunEnded(3, emptyMap);
+        reporter.invocationEnded(1);
+    }
+
+    /**
+     * Test that results streamed to disk produce the same report as results kept in memory.
+     */
+    public void testStreamResults() throws Exception {
+        runTests(mResultReporter);
+        String expected = getOutput().replaceAll(">\\s+<", "><");
+
+        XmlResultReporter streamingReporter = new XmlResultReporter() {
+            @Override
+            ByteArrayOutputStream createOutputStream() {
+                fail("Results should not be generated in memory");
+                return null;
+            }
+
+            @Override
+            String getTimestamp() {
+                return "ignore";
+            }
+        };
+        MockLogSaver logSaver = new MockLogSaver();
+        streamingReporter.setLogSaver(logSaver);
+        new OptionSetter(streamingReporter).setOptionValue("stream-results", "true");
+        runTests(streamingReporter);
+        String output = logSaver.mSavedData.replaceAll("[\\r\\n\\t]", "")
+                .replaceAll(">\\s+<", "><");
+        assertTrue(output.contains("tests=\"3\" failures=\"1\" errors=\"0\""));
+        assertEquals(expected, output);
+        // nothing was kept in memory
+        assertEquals(0, streamingReporter.getNumTotalTests());
+    }
+
+    /**
+     * Test that a test that never ended is reported as an error when streaming results.
+     */
+    public void testStreamResults_incomplete() throws Exception {
+        new OptionSetter(mResultReporter).setOptionValue("stream-results", "true");
+        IInvocationContext context = new InvocationContext();
+        context.addDeviceBuildInfo("fakeDevice", new BuildInfo());
+        context.setTestTag("stub");
+        mResultReporter.invocationStarted(context);
+        mResultReporter.testRunStarted("run", 1);
+        mResultReporter.testStarted(new TestIdentifier("FooTest", "testFoo"));
+        mResultReporter.testRunFailed("crashed");
+        mResultReporter.testRunEnded(3, Collections.<String, String>emptyMap());
+        mResultReporter.invocationEnded(1);
+        String output = mMockLogSaver.mSavedData.replaceAll("[\\r\\n\\t]", "")
+                .replaceAll(">\\s+<", "><");
+        assertTrue(output.contains("tests=\"1\" failures=\"0\" errors=\"0\""));
+        assertTrue(output.contains("<testcase name=\"testFoo\" classname=\"FooTest\" "
+                + "time=\"0\"><error></error></testcase>"));
+    }
+
     /**
      * Gets the output produced, stripping it of extraneous whitespace characters.
      */
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.targetprep;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.util.FileUtil;
+
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+
+/** Unit tests for {@link BatchApkInstaller}. */
+@RunWith(JUnit4.class)
+public class BatchApkInstallerTest {
+
+    private ITestDevice mMockDevice;
+    private File mTmpDir;
+    private File mApk1;
+    private File mApk2;
+
+    @Before
+    public void setUp() throws Exception {
+        mMockDevice = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn("SERIAL");
+        EasyMock.expect(mMockDevice.isRuntimePermissionSupported()).andStubReturn(false);
+        mTmpDir = FileUtil.createTempDir("batch-install");
+        mApk1 = new File(mTmpDir, "first.apk");
+        FileUtil.writeToFile("first", mApk1);
+        mApk2 = new File(mTmpDir, "second.apk");
+        FileUtil.writeToFile("second", mApk2);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.recursiveDelete(mTmpDir);
+    }
+
+    /** Test that apks are pushed, installed from the device, and cleaned up. */
+    @Test
+    public void testInstall() throws Exception {
+        BatchApkInstaller installer =
+                new BatchApkInstaller(mMockDevice, Arrays.asList("-d"), 2, false);
+        installer.addApk(mApk1, "com.first");
+        installer.addApk(mApk2, "com.second");
+        EasyMock.expect(mMockDevice.pushFile(mApk1, "/data/local/tmp/tf_install_0_first.apk"))
+                .andReturn(true);
+        EasyMock.expect(mMockDevice.pushFile(mApk2, "/data/local/tmp/tf_install_1_second.apk"))
+                .andReturn(true);
+        EasyMock.expect(mMockDevice.executeShellCommand(
+                "pm install -r -d /data/local/tmp/tf_install_0_first.apk")).andReturn("Success\n");
+        EasyMock.expect(mMockDevice.executeShellCommand(
+                "pm install -r -d /data/local/tmp/tf_install_1_second.apk"))
+                .andReturn("Failure [INSTALL_FAILED_UPDATE_INCOMPATIBLE: signatures]\n");
+        EasyMock.expect(mMockDevice.executeShellCommand("rm -f "
+                + "/data/local/tmp/tf_install_0_first.apk /data/local/tmp/tf_install_1_second.apk"))
+                .andReturn("");
+        EasyMock.replay(mMockDevice);
+        Map<File, String> failures = installer.install();
+        EasyMock.verify(mMockDevice);
+        assertEquals(1, failures.size());
+        assertEquals("INSTALL_FAILED_UPDATE_INCOMPATIBLE: signatures", failures.get(mApk2));
+        assertEquals(1, installer.getInstalledCount());
+        assertEquals(mApk1.length(), installer.getInstalledBytes());
+    }
+
+    /** Test that an apk failing to be pushed is reported as failed. */
+    @Test
+    public void testInstall_pushFailed() throws Exception {
+        BatchApkInstaller installer =
+                new BatchApkInstaller(mMockDevice, Arrays.<String>asList(), 2, false);
+        installer.addApk(mApk1, "com.first");
+        EasyMock.expect(mMockDevice.pushFile(mApk1, "/data/local/tmp/tf_install_0_first.apk"))
+                .andReturn(false);
+        EasyMock.replay(mMockDevice);
+        Map<File, String> failures = installer.install();
+        EasyMock.verify(mMockDevice);
+        assertTrue(failures.containsKey(mApk1));
+    }
+
+    /** Test that apk names are sanitized in the remote paths used in shell commands. */
+    @Test
+    public void testInstall_unsafeName() throws Exception {
+        File apk = new File(mTmpDir, "my app;reboot.apk");
+        FileUtil.writeToFile("unsafe", apk);
+        BatchApkInstaller installer =
+                new BatchApkInstaller(mMockDevice, Arrays.<String>asList(), 2, false);
+        installer.addApk(apk, "com.unsafe");
+        String remotePath = "/data/local/tmp/tf_install_0_my_app_reboot.apk";
+        EasyMock.expect(mMockDevice.pushFile(apk, remotePath)).andReturn(true);
+        EasyMock.expect(mMockDevice.executeShellCommand("pm install -r  " + remotePath))
+                .andReturn("Success\n");
+        EasyMock.expect(mMockDevice.executeShellCommand("rm -f " + remotePath)).andReturn("");
+        EasyMock.replay(mMockDevice);
+        assertTrue(installer.install().isEmpty());
+        EasyMock.verify(mMockDevice);
+    }
+
+    /** Test that apks already installed with the same content are skipped. */
+    @Test
+    public void testInstall_skipInstalled() throws Exception {
+        BatchApkInstaller installer =
+                new BatchApkInstaller(mMockDevice, Arrays.<String>asList(), 2, true);
+        installer.addApk(mApk1, "com.first");
+        installer.addApk(mApk2, "com.second");
+        EasyMock.expect(mMockDevice.executeShellCommand("pm list packages -f")).andReturn(
+                "package:/system/app/Other/Other.apk=com.other\n"
+                + "package:/data/app/com.first-1/base.apk=com.first\n"
+                + "package:/data/app/com.second-1/base.apk=com.second\n");
+        String digests = String.format("%s  /data/app/com.first-1/base.apk\n"
+                + "0123456789abcdef0123456789abcdef  /data/app/com.second-1/base.apk\n",
+                FileUtil.calculateMd5(mApk1));
+        EasyMock.expect(mMockDevice.executeShellCommand("md5sum /data/app/com.first-1/base.apk "
+                + "/data/app/com.second-1/base.apk")).andReturn(digests);
+        EasyMock.expect(mMockDevice.pushFile(mApk2, "/data/local/tmp/tf_install_0_second.apk"))
+                .andReturn(true);
+        EasyMock.expect(mMockDevice.executeShellCommand(
+                "pm install -r  /data/local/tmp/tf_install_0_second.apk")).andReturn("Success");
+        EasyMock.expect(mMockDevice.executeShellCommand(
+                "rm -f /data/local/tmp/tf_install_0_second.apk")).andReturn("");
+        EasyMock.replay(mMockDevice);
+        Map<File, String> failures = installer.install();
+        EasyMock.verify(mMockDevice);
+        assertTrue(failures.isEmpty());
+        assertEquals(1, installer.getSkippedCount());
+        assertTrue(installer.isSkipped(mApk1));
+        assertFalse(installer.isSkipped(mApk2));
+        assertEquals(1, installer.getInstalledCount());
+    }
+}
@@ -83,6 +83,7 @@ public class DeviceFlashPreparerTest extends TestCase {
         };
         // Reset default settings
         mDeviceFlashPreparer.setConcurrentFlashSettings(null, null, true);
+        mDeviceFlashPreparer.setFlashAdmissionSettings(null, false);
         mDeviceFlashPreparer.setDeviceBootTime(100);
         // expect this call
         mMockFlasher.setUserDataFlashOption(UserDataFlashOption.FLASH);
@@ -115,6 +116,7 @@ public class DeviceFlashPreparerTest extends TestCase {
         mMockDevice.setRecoveryMode(RecoveryMode.ONLINE);
         mMockFlasher.overrideDeviceOptions(mMockDevice);
         mMockFlasher.setForceSystemFlash(false);
+        mMockFlasher.setSkipUnchangedPartitions(false);
         mMockFlasher.setDataWipeSkipList(Arrays.asList(new String[]{}));
         mMockFlasher.flash(mMockDevice, mMockBuildInfo);
         mMockFlasher.setWipeTimeout(EasyMock.anyLong());
@@ -151,6 +153,7 @@ public class DeviceFlashPreparerTest extends TestCase {
         mMockDevice.setRecoveryMode(RecoveryMode.ONLINE);
         mMockFlasher.overrideDeviceOptions(mMockDevice);
         mMockFlasher.setForceSystemFlash(false);
+        mMockFlasher.setSkipUnchangedPartitions(false);
         mMockFlasher.setDataWipeSkipList(Arrays.asList(new String[]{}));
         mMockFlasher.flash(mMockDevice, mMockBuildInfo);
         mMockFlasher.setWipeTimeout(EasyMock.anyLong());
@@ -216,6 +219,46 @@ public class DeviceFlashPreparerTest extends TestCase {
         }
     }
 
+    /**
+     * Ensure that flash admission control is set up from the {@link IHostOptions} size limit.
+     */
+    public void testFlashAdmission_withHostOptions() throws Exception {
+        final DeviceFlashPreparer dfp = mDeviceFlashPreparer;
+        try {
+            dfp.setFlashAdmissionSettings(null, true);
+            EasyMock.expect(mMockHostOptions.getConcurrentFlashSizeLimit()).andReturn(1);
+            EasyMock.expect(mMockHostOptions.getConcurrentFlasherPerBusLimit()).andReturn(null);
+            EasyMock.replay(mMockHostOptions, mMockDevice);
+            FlashAdmissionController.Ticket ticket = dfp.admitFlash(mMockDevice, mMockBuildInfo);
+            assertNotNull(ticket);
+            assertEquals("foo", ticket.getSerial());
+            dfp.releaseFlash(ticket);
+            // host options are only read once
+            assertNotNull(dfp.admitFlash(mMockDevice, mMockBuildInfo));
+            EasyMock.verify(mMockHostOptions);
+        } finally {
+            dfp.setFlashAdmissionSettings(null, false);
+        }
+    }
+
+    /**
+     * Ensure that there is no flash admission control without limits in {@link IHostOptions}.
+     */
+    public void testFlashAdmission_noLimit() throws Exception {
+        final DeviceFlashPreparer dfp = mDeviceFlashPreparer;
+        try {
+            dfp.setFlashAdmissionSettings(null, true);
+            EasyMock.expect(mMockHostOptions.getConcurrentFlashSizeLimit()).andReturn(null);
+            EasyMock.expect(mMockHostOptions.getConcurrentFlasherPerBusLimit()).andReturn(null);
+            EasyMock.replay(mMockHostOptions, mMockDevice);
+            assertNull(dfp.admitFlash(mMockDevice, mMockBuildInfo));
+            assertNull(dfp.admitFlash(mMockDevice, mMockBuildInfo));
+            EasyMock.verify(mMockHostOptions);
+        } finally {
+            dfp.setFlashAdmissionSettings(null, false);
+        }
+    }
+
     /**
      * Ensure that the flasher limiting respects {@link IHostOptions}.
      */
@@ -35,9 +35,14 @@ import org.easymock.EasyMock;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 /**
  * Unit tests for {@link FastbootDeviceFlasher}.
@@ -567,6 +572,88 @@ public class FastbootDeviceFlasherTest extends TestCase {
         }
     }
 
+    /**
+     * Test {@link FastbootDeviceFlasher#flashPartition(ITestDevice, File, String)} skips a
+     * partition that already contains the image, and flashes it otherwise.
+     */
+    public void testFlashPartition_skipUnchanged() throws Exception {
+        final FlashedImageCache cache = new FlashedImageCache();
+        FastbootDeviceFlasher flasher = new FastbootDeviceFlasher() {
+            @Override
+            FlashedImageCache getFlashedImageCache() {
+                return cache;
+            }
+        };
+        flasher.setSkipUnchangedPartitions(true);
+        File image = FileUtil.createTempFile("vendor", ".img");
+        try {
+            FileUtil.writeToFile("vendor", image);
+            Map<String, String> images = new HashMap<>();
+            images.put("vendor", cache.getDigest(image));
+            cache.recordFlash(TEST_STRING, images, "1", "test-debug");
+            // no fastboot command expected
+            EasyMock.replay(mMockDevice);
+            flasher.flashPartition(mMockDevice, image, "vendor");
+            EasyMock.verify(mMockDevice);
+
+            EasyMock.reset(mMockDevice);
+            EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn(TEST_STRING);
+            setFastbootFlashExpectations(mMockDevice, "vendor");
+            EasyMock.replay(mMockDevice);
+            FileUtil.writeToFile("new vendor", image);
+            flasher.flashPartition(mMockDevice, image, "vendor");
+            EasyMock.verify(mMockDevice);
+        } finally {
+            FileUtil.deleteFile(image);
+        }
+    }
+
+    /**
+     * Test that flashing the system only forgets the images of the partitions the update writes.
+     */
+    public void testCheckAndFlashSystem_keepsOtherImages() throws Exception {
+        final FlashedImageCache cache = new FlashedImageCache();
+        FastbootDeviceFlasher flasher = new FastbootDeviceFlasher() {
+            @Override
+            FlashedImageCache getFlashedImageCache() {
+                return cache;
+            }
+        };
+        flasher.setSkipUnchangedPartitions(true);
+        File radio = FileUtil.createTempFile("radio", ".img");
+        File vendor = FileUtil.createTempFile("vendor", ".img");
+        File deviceImage = FileUtil.createTempFile("device-image", ".zip");
+        try {
+            FileUtil.writeToFile("radio", radio);
+            FileUtil.writeToFile("vendor", vendor);
+            try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(deviceImage))) {
+                zip.putNextEntry(new ZipEntry("vendor.img"));
+                zip.write("new vendor".getBytes());
+                zip.closeEntry();
+            }
+            IDeviceBuildInfo mockBuild = EasyMock.createMock(IDeviceBuildInfo.class);
+            EasyMock.expect(mockBuild.getDeviceBuildId()).andStubReturn("2");
+            EasyMock.expect(mockBuild.getDeviceImageFile()).andStubReturn(deviceImage);
+            setFastbootFlashExpectations(mMockDevice, "radio");
+            setFastbootFlashExpectations(mMockDevice, "vendor");
+            CommandResult res = new CommandResult(CommandStatus.SUCCESS);
+            res.setStderr("flashing");
+            EasyMock.expect(mMockDevice.executeLongFastbootCommand(EasyMock.eq("update"),
+                    EasyMock.eq(deviceImage.getAbsolutePath()))).andReturn(res);
+            EasyMock.replay(mMockDevice, mockBuild);
+            flasher.flashPartition(mMockDevice, radio, "radio");
+            flasher.flashPartition(mMockDevice, vendor, "vendor");
+            assertTrue(flasher.checkAndFlashSystem(mMockDevice, "1", null, mockBuild));
+            EasyMock.verify(mMockDevice, mockBuild);
+            assertEquals(cache.getDigest(radio), flasher.getFlashedImages().get("radio"));
+            assertFalse(flasher.getFlashedImages().containsKey("vendor"));
+        } finally {
+            FileUtil.deleteFile(radio);
+            FileUtil.deleteFile(vendor);
+            FileUtil.deleteFile(deviceImage);
+        }
+    }
+
     /**
      * Set EasyMock expectations to simulate the response to some fastboot command
      *
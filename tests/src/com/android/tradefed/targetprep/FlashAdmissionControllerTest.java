@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.targetprep;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.RunUtil;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** Unit tests for {@link FlashAdmissionController}. */
+@RunWith(JUnit4.class)
+public class FlashAdmissionControllerTest {
+
+    /** Thread admitting a flash and recording which flashers were admitted. */
+    private static class Flasher extends Thread {
+        private final FlashAdmissionController mController;
+        private final String mSerial;
+        private final String mBus;
+        private final long mBytes;
+        private final List<String> mAdmitted;
+        private FlashAdmissionController.Ticket mTicket;
+
+        Flasher(FlashAdmissionController controller, String serial, String bus, long bytes,
+                List<String> admitted) {
+            mController = controller;
+            mSerial = serial;
+            mBus = bus;
+            mBytes = bytes;
+            mAdmitted = admitted;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            mTicket = mController.admit(mSerial, mBus, mBytes);
+            mAdmitted.add(mSerial);
+        }
+    }
+
+    /** Test that flashers beyond the byte budget wait until budget is released. */
+    @Test
+    public void testAdmit_byteBudget() throws Exception {
+        FlashAdmissionController controller = new FlashAdmissionController(100, null);
+        List<String> admitted = Collections.synchronizedList(new ArrayList<String>());
+        FlashAdmissionController.Ticket first = controller.admit("first", "1", 60);
+        Flasher second = startFlasher(controller, "second", "2", 60, admitted, 1);
+        assertEquals(60, controller.getBytesInFlight());
+
+        controller.release(first);
+        second.join(1000);
+        assertEquals(1, admitted.size());
+        assertEquals(60, controller.getBytesInFlight());
+        controller.release(second.mTicket);
+        assertEquals(0, controller.getBytesInFlight());
+    }
+
+    /** Test that a flash larger than the byte budget is admitted when nothing else runs. */
+    @Test
+    public void testAdmit_oversized() {
+        FlashAdmissionController controller = new FlashAdmissionController(100, null);
+        FlashAdmissionController.Ticket ticket = controller.admit("serial", "1", 500);
+        assertEquals(500, controller.getBytesInFlight());
+        controller.release(ticket);
+    }
+
+    /**
+     * Test that a flasher waiting for its bus does not block other buses, but that one waiting
+     * for the byte budget keeps arrival order.
+     */
+    @Test
+    public void testAdmit_ordering() throws Exception {
+        FlashAdmissionController controller = new FlashAdmissionController(110, 1);
+        List<String> admitted = Collections.synchronizedList(new ArrayList<String>());
+        FlashAdmissionController.Ticket first = controller.admit("first", "1", 40);
+        // same bus as first, waits for the bus
+        Flasher sameBus = startFlasher(controller, "sameBus", "1", 10, admitted, 1);
+        // other bus, fits in the budget: admitted despite arriving after sameBus
+        Flasher otherBus = startFlasher(controller, "otherBus", "2", 30, admitted, 1);
+        otherBus.join(1000);
+        assertEquals(Collections.singletonList("otherBus"), admitted);
+        // does not fit in the budget, waits
+        Flasher big = startFlasher(controller, "big", "3", 60, admitted, 2);
+        // would fit in the budget, but must not overtake big
+        Flasher small = startFlasher(controller, "small", "4", 10, admitted, 3);
+        assertEquals(1, admitted.size());
+        assertTrue(small.isAlive());
+        assertEquals(3, controller.getQueueLength());
+
+        controller.release(otherBus.mTicket);
+        big.join(1000);
+        small.join(1000);
+        assertFalse(big.isAlive());
+        assertFalse(small.isAlive());
+        assertTrue(sameBus.isAlive());
+
+        controller.release(first);
+        sameBus.join(1000);
+        assertFalse(sameBus.isAlive());
+        assertEquals(0, controller.getQueueLength());
+    }
+
+    /** Test that devices whose USB bus is unknown are not limited as if they shared a bus. */
+    @Test
+    public void testAdmit_unknownBus() {
+        FlashAdmissionController controller = new FlashAdmissionController(100, 1);
+        FlashAdmissionController.Ticket first =
+                controller.admit("first", FlashAdmissionController.UNKNOWN_BUS, 10);
+        FlashAdmissionController.Ticket second =
+                controller.admit("second", FlashAdmissionController.UNKNOWN_BUS, 10);
+        assertEquals(20, controller.getBytesInFlight());
+        controller.release(first);
+        controller.release(second);
+    }
+
+    /** Test that the USB bus of a device is read from sysfs. */
+    @Test
+    public void testGetUsbBus() throws Exception {
+        File sysfs = FileUtil.createTempDir("usb");
+        try {
+            File device = new File(sysfs, "3-1.2");
+            device.mkdir();
+            FileUtil.writeToFile("SERIAL\n", new File(device, "serial"));
+            File hub = new File(sysfs, "usb3");
+            hub.mkdir();
+            FileUtil.writeToFile("0000:00:14.0\n", new File(hub, "serial"));
+            assertEquals("3", FlashAdmissionController.getUsbBus(sysfs, "SERIAL"));
+            assertEquals(FlashAdmissionController.UNKNOWN_BUS,
+                    FlashAdmissionController.getUsbBus(sysfs, "OTHER"));
+        } finally {
+            FileUtil.recursiveDelete(sysfs);
+        }
+    }
+
+    /** Start a flasher, and wait for it to be queued. */
+    private Flasher startFlasher(FlashAdmissionController controller, String serial, String bus,
+            long bytes, List<String> admitted, int expectedQueueLength) {
+        Flasher flasher = new Flasher(controller, serial, bus, bytes, admitted);
+        flasher.start();
+        long deadline = System.currentTimeMillis() + 1000;
+        while (controller.getQueueLength() < expectedQueueLength && flasher.isAlive()
+                && System.currentTimeMillis() < deadline) {
+            RunUtil.getDefault().sleep(10);
+        }
+        return flasher;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.targetprep;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.util.FileUtil;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Unit tests for {@link FlashedImageCache}. */
+@RunWith(JUnit4.class)
+public class FlashedImageCacheTest {
+
+    private static final String SERIAL = "serial";
+    private FlashedImageCache mCache;
+
+    @Before
+    public void setUp() {
+        mCache = new FlashedImageCache();
+    }
+
+    /** Test that a recorded image is reported as flashed while the device runs the same build. */
+    @Test
+    public void testRecordFlash() {
+        recordFlash("vendor", "digest1");
+        mCache.validateBuild(SERIAL, "1234", "BUILD-userdebug");
+        assertTrue(mCache.isFlashed(SERIAL, "vendor", "digest1"));
+        assertFalse(mCache.isFlashed(SERIAL, "vendor", "digest2"));
+        assertFalse(mCache.isFlashed(SERIAL, "radio", "digest1"));
+        assertFalse(mCache.isFlashed("other", "vendor", "digest1"));
+    }
+
+    /** Test that a device running another build drops its recorded images. */
+    @Test
+    public void testValidateBuild_mismatch() {
+        recordFlash("vendor", "digest1");
+        mCache.validateBuild(SERIAL, "5678", "build-userdebug");
+        assertFalse(mCache.isFlashed(SERIAL, "vendor", "digest1"));
+    }
+
+    /** Test that a device with an unknown build drops its recorded images. */
+    @Test
+    public void testValidateBuild_unknown() {
+        recordFlash("vendor", "digest1");
+        mCache.validateBuild(SERIAL, null, null);
+        assertFalse(mCache.isFlashed(SERIAL, "vendor", "digest1"));
+    }
+
+    /** Test that a partition flashed with an unknown digest is no longer reported as flashed. */
+    @Test
+    public void testRecordFlash_unknownDigest() {
+        recordFlash("vendor", "digest1");
+        recordFlash("vendor", null);
+        assertFalse(mCache.isFlashed(SERIAL, "vendor", "digest1"));
+    }
+
+    /** Test that {@link FlashedImageCache#invalidate(String)} drops recorded images. */
+    @Test
+    public void testInvalidate() {
+        recordFlash("vendor", "digest1");
+        mCache.invalidate(SERIAL);
+        assertFalse(mCache.isFlashed(SERIAL, "vendor", "digest1"));
+    }
+
+    /** Test that the digest of a file is recomputed when the file changes. */
+    @Test
+    public void testGetDigest() throws Exception {
+        File image = FileUtil.createTempFile("image", ".img");
+        try {
+            FileUtil.writeToFile("content", image);
+            String digest = mCache.getDigest(image);
+            assertEquals(FileUtil.calculateMd5(image), digest);
+            assertEquals(digest, mCache.getDigest(image));
+            FileUtil.writeToFile("other content", image);
+            assertNotEquals(digest, mCache.getDigest(image));
+        } finally {
+            FileUtil.deleteFile(image);
+        }
+    }
+
+    private void recordFlash(String partition, String digest) {
+        Map<String, String> images = new HashMap<>();
+        images.put(partition, digest);
+        mCache.recordFlash(SERIAL, images, "1234", "build-userdebug");
+    }
+}
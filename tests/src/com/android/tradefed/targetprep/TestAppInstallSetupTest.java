@@ -133,6 +133,49 @@ public class TestAppInstallSetupTest {
         EasyMock.verify(mMockBuildInfo, mMockTestDevice);
     }
 
+    /**
+     * Test {@link TestAppInstallSetup#setUp()} with --parallel-install, where a failed install is
+     * retried after uninstalling the package.
+     */
+    @Test
+    public void testSetup_parallelInstall() throws Exception {
+        setter.setOptionValue("parallel-install", "true");
+        EasyMock.expect(mMockTestDevice.isRuntimePermissionSupported()).andReturn(true);
+        EasyMock.expect(mMockTestDevice.pushFile(EasyMock.eq(fakeApk),
+                (String) EasyMock.anyObject())).andReturn(true);
+        EasyMock.expect(mMockTestDevice.executeShellCommand(EasyMock.startsWith("pm install -r")))
+                .andReturn("Failure [INSTALL_FAILED_UPDATE_INCOMPATIBLE]");
+        EasyMock.expect(mMockTestDevice.executeShellCommand(EasyMock.startsWith("rm -f")))
+                .andReturn("");
+        EasyMock.expect(mMockTestDevice.uninstallPackage(PACKAGE_NAME)).andReturn(null);
+        EasyMock.expect(
+                        mMockTestDevice.installPackage(
+                                (File) EasyMock.anyObject(), EasyMock.eq(true)))
+                .andReturn(null);
+        EasyMock.replay(mMockBuildInfo, mMockTestDevice);
+        mPrep.setUp(mMockTestDevice, mMockBuildInfo);
+        EasyMock.verify(mMockBuildInfo, mMockTestDevice);
+    }
+
+    /**
+     * Test that with --skip-installed-apks, an apk that was already installed is not uninstalled
+     * on cleanup.
+     */
+    @Test
+    public void testSetup_skipInstalled() throws Exception {
+        setter.setOptionValue("parallel-install", "true");
+        setter.setOptionValue("skip-installed-apks", "true");
+        EasyMock.expect(mMockTestDevice.executeShellCommand("pm list packages -f"))
+                .andReturn("package:/data/app/base.apk=" + PACKAGE_NAME);
+        EasyMock.expect(mMockTestDevice.executeShellCommand("md5sum /data/app/base.apk"))
+                .andReturn(FileUtil.calculateMd5(fakeApk) + "  /data/app/base.apk");
+        EasyMock.replay(mMockBuildInfo, mMockTestDevice);
+        mPrep.setUp(mMockTestDevice, mMockBuildInfo);
+        // no uninstall expected
+        mPrep.tearDown(mMockTestDevice, mMockBuildInfo, null);
+        EasyMock.verify(mMockBuildInfo, mMockTestDevice);
+    }
+
     /** Test {@link TestAppInstallSetup#setUp()} with a missing apk. TargetSetupError expected. */
     @Test
     public void testMissingApk() throws Exception {
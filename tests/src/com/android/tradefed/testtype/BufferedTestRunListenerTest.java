@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import static org.junit.Assert.assertEquals;
+
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
+
+import org.easymock.EasyMock;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Unit tests for {@link BufferedTestRunListener}. */
+@RunWith(JUnit4.class)
+public class BufferedTestRunListenerTest {
+
+    /** Test that events are forwarded in order, only when replayed, and only once. */
+    @Test
+    public void testReplay() {
+        TestIdentifier test = new TestIdentifier("Foo", "bar");
+        Map<String, String> metrics = new HashMap<>();
+        metrics.put("key", "value");
+        ITestRunListener mockListener = EasyMock.createStrictMock(ITestRunListener.class);
+        mockListener.testRunStarted("run", 1);
+        mockListener.testStarted(test);
+        mockListener.testFailed(test, "trace");
+        mockListener.testEnded(test, Collections.singletonMap("key", "value"));
+        mockListener.testRunEnded(10, Collections.<String, String>emptyMap());
+        EasyMock.replay(mockListener);
+
+        BufferedTestRunListener buffer = new BufferedTestRunListener();
+        buffer.testRunStarted("run", 1);
+        buffer.testStarted(test);
+        buffer.testFailed(test, "trace");
+        buffer.testEnded(test, metrics);
+        // changes made by the sender after the event must not be forwarded
+        metrics.put("other", "value");
+        buffer.testRunEnded(10, Collections.<String, String>emptyMap());
+        assertEquals(5, buffer.size());
+
+        buffer.replay(mockListener);
+        buffer.replay(mockListener);
+        EasyMock.verify(mockListener);
+        assertEquals(0, buffer.size());
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.MultiLineReceiver;
+import com.android.tradefed.result.CollectingTestListener;
+import com.android.tradefed.util.StreamingLineReceiver;
+
+import junit.framework.TestCase;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Benchmark of {@link GTestResultParser}, comparing the line splitting of
+ * {@link StreamingLineReceiver} against {@link MultiLineReceiver} for chatty test binaries.
+ * <p/>
+ * Lacks automated verification - prints the timings, and is intended to be executed under a
+ * profiler as well.
+ */
+public class GTestResultParserLoadTest extends TestCase {
+
+    private static final int NUM_TESTS = 20000;
+    private static final int LOG_LINES_PER_TEST = 20;
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int ITERATIONS = 10;
+
+    private byte[] mOutput;
+
+    @Override
+    protected void setUp() throws Exception {
+        StringBuilder output = new StringBuilder();
+        output.append(String.format("[==========] Running %d tests from 1 test case.\n",
+                NUM_TESTS));
+        output.append(String.format("[----------] %d tests from LoadTest\n", NUM_TESTS));
+        for (int i = 0; i < NUM_TESTS; i++) {
+            output.append(String.format("[ RUN      ] LoadTest.test%d\n", i));
+            for (int j = 0; j < LOG_LINES_PER_TEST; j++) {
+                output.append(String.format(
+                        "external/test/load_test.cpp:%d: some chatty output line %d\n", j, i));
+            }
+            output.append(String.format("[       OK ] LoadTest.test%d (1 ms)\n", i));
+        }
+        output.append(String.format("[----------] %d tests from LoadTest (100 ms total)\n\n",
+                NUM_TESTS));
+        output.append(String.format("[==========] %d tests from 1 test case ran. "
+                + "(100 ms total)\n", NUM_TESTS));
+        mOutput = output.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Time splitting the output into lines only, without parsing. */
+    public void testSplitLines() {
+        for (int i = 0; i < ITERATIONS; i++) {
+            long legacy = time(new MultiLineReceiver() {
+                @Override
+                public void processNewLines(String[] lines) {
+                    // only split
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return false;
+                }
+            });
+            long streaming = time(new StreamingLineReceiver() {
+                @Override
+                public void processLine(CharSequence line) {
+                    // only split
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return false;
+                }
+            });
+            System.out.printf("split %d bytes: MultiLineReceiver %d ms, "
+                    + "StreamingLineReceiver %d ms\n", mOutput.length, legacy, streaming);
+        }
+    }
+
+    /** Time splitting and parsing the output. */
+    public void testParse() {
+        for (int i = 0; i < ITERATIONS; i++) {
+            CollectingTestListener listener = new CollectingTestListener();
+            final GTestResultParser parser = new GTestResultParser("load", listener);
+            // parse the lines split by a MultiLineReceiver, as before
+            long legacy = time(new MultiLineReceiver() {
+                @Override
+                public void processNewLines(String[] lines) {
+                    parser.processNewLines(lines);
+                }
+
+                @Override
+                public void done() {
+                    parser.done();
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return false;
+                }
+            });
+            assertEquals(NUM_TESTS, listener.getNumTotalTests());
+            listener = new CollectingTestListener();
+            long streaming = time(new GTestResultParser("load", listener));
+            assertEquals(NUM_TESTS, listener.getNumTotalTests());
+            System.out.printf("parse %d tests: MultiLineReceiver %d ms, "
+                    + "StreamingLineReceiver %d ms\n", NUM_TESTS, legacy, streaming);
+        }
+    }
+
+    /**
+     * Feed the output to a receiver in chunks, as adb does, and return the time it took. Also
+     * prints the memory allocated while doing so, if the JVM supports measuring it.
+     */
+    private long time(IShellOutputReceiver receiver) {
+        long allocatedBefore = getAllocatedBytes();
+        long start = System.nanoTime();
+        for (int offset = 0; offset < mOutput.length; offset += CHUNK_SIZE) {
+            receiver.addOutput(mOutput, offset, Math.min(CHUNK_SIZE, mOutput.length - offset));
+        }
+        receiver.flush();
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        if (allocatedBefore >= 0) {
+            System.out.printf("%s allocated %d MB\n",
+                    receiver instanceof StreamingLineReceiver ? "StreamingLineReceiver"
+                            : "MultiLineReceiver",
+                    (getAllocatedBytes() - allocatedBefore) / (1024 * 1024));
+        }
+        return elapsed;
+    }
+
+    /** Returns the number of bytes allocated by the current thread, or -1 if not supported. */
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
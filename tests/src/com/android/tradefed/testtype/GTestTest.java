@@ -18,17 +18,26 @@ package com.android.tradefed.testtype;
 import com.android.ddmlib.FileListingService;
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestRunResult;
+import com.android.tradefed.config.OptionSetter;
 import com.android.tradefed.device.CollectingOutputReceiver;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.device.MockFileUtil;
+import com.android.tradefed.result.CollectingTestListener;
 import com.android.tradefed.result.ITestInvocationListener;
 
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
+import org.easymock.IAnswer;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 
@@ -572,4 +581,160 @@ public class GTestTest extends TestCase {
         assertFalse(mGTest.isDeviceFileExecutable("/system"));
         EasyMock.verify(mockDevice);
     }
+
+    /**
+     * Test that binaries run concurrently with --parallel-execution, while their results are
+     * reported one run after the other in listing order.
+     */
+    public void testRun_parallel() throws Exception {
+        final String nativeTestPath = GTest.DEFAULT_NATIVETEST_PATH;
+        final CountDownLatch test2Started = new CountDownLatch(1);
+        GTest gtest = new GTest();
+        gtest.setDevice(mMockITestDevice);
+        gtest.setParallelExecution(true, 0);
+        gtest.addFileExclusionFilterRegex(".*\\.filter");
+        CollectingTestListener listener = new CollectingTestListener();
+
+        EasyMock.expect(mMockITestDevice.doesFileExist(nativeTestPath)).andReturn(true);
+        EasyMock.expect(mMockITestDevice.executeShellCommand(
+                EasyMock.startsWith("find " + nativeTestPath)))
+                .andReturn(String.format("%1$s/test2/test2\n%1$s/test1/test1\n"
+                        + "%1$s/test1/test1.filter\n%1$s/test1/data\nGTEST_LIST_DONE\n",
+                        nativeTestPath));
+        // the listed files are still checked as when running binaries one at a time
+        for (String binary : new String[] {"test2/test2", "test1/test1", "test1/test1.filter"}) {
+            String path = nativeTestPath + "/" + binary;
+            EasyMock.expect(mMockITestDevice.executeShellCommand("ls -l " + path))
+                    .andReturn("-rwxr-xr-x 1 root shell 1000 2009-01-01 00:00 " + path);
+        }
+        EasyMock.expect(mMockITestDevice.executeShellCommand(
+                "ls -l " + nativeTestPath + "/test1/data"))
+                .andReturn("-rw-r--r-- 1 root shell 1000 2009-01-01 00:00 data");
+        EasyMock.expect(mMockITestDevice.executeShellCommand("grep -c ^processor /proc/cpuinfo"))
+                .andReturn("8\n");
+        mMockITestDevice.executeShellCommand(EasyMock.contains("test1/test1"),
+                (IShellOutputReceiver) EasyMock.anyObject(), EasyMock.anyLong(),
+                (TimeUnit) EasyMock.anyObject(), EasyMock.anyInt());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                // only completes if test2 runs at the same time
+                assertTrue(test2Started.await(5, TimeUnit.SECONDS));
+                sendGTestOutput((IShellOutputReceiver) EasyMock.getCurrentArguments()[1], "Foo");
+                return null;
+            }
+        });
+        mMockITestDevice.executeShellCommand(EasyMock.contains("test2/test2"),
+                (IShellOutputReceiver) EasyMock.anyObject(), EasyMock.anyLong(),
+                (TimeUnit) EasyMock.anyObject(), EasyMock.anyInt());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                test2Started.countDown();
+                sendGTestOutput((IShellOutputReceiver) EasyMock.getCurrentArguments()[1], "Bar");
+                return null;
+            }
+        });
+        // let the binaries run their shell commands concurrently
+        EasyMock.makeThreadSafe(mMockITestDevice, false);
+        replayMocks();
+        gtest.run(listener);
+        verifyMocks();
+
+        List<TestRunResult> runs = new ArrayList<>(listener.getRunResults());
+        assertEquals(2, runs.size());
+        assertEquals("test1", runs.get(0).getName());
+        assertEquals("test2", runs.get(1).getName());
+        assertEquals(1, runs.get(0).getNumCompleteTests());
+        assertEquals(1, runs.get(1).getNumCompleteTests());
+    }
+
+    /**
+     * Test that --parallel-execution falls back to running binaries one at a time if they can not
+     * be listed with a single command.
+     */
+    public void testRun_parallelListingFailed() throws Exception {
+        final String nativeTestPath = GTest.DEFAULT_NATIVETEST_PATH;
+        final String testPath = nativeTestPath + "/test1";
+        mGTest.setParallelExecution(true, 2);
+        EasyMock.expect(mMockITestDevice.doesFileExist(nativeTestPath)).andReturn(true);
+        EasyMock.expect(mMockITestDevice.executeShellCommand(
+                EasyMock.startsWith("find " + nativeTestPath))).andReturn("/system/bin/sh: find: "
+                        + "not found\n");
+        MockFileUtil.setMockDirContents(mMockITestDevice, nativeTestPath, "test1");
+        EasyMock.expect(mMockITestDevice.isDirectory(nativeTestPath)).andReturn(true);
+        EasyMock.expect(mMockITestDevice.isDirectory(testPath)).andReturn(false);
+        EasyMock.expect(mMockITestDevice.getChildren(nativeTestPath))
+                .andReturn(new String[] {"test1"});
+        EasyMock.expect(mMockITestDevice.executeShellCommand("ls -l " + testPath))
+                .andReturn("-rwxr-xr-x 1 root shell 1000 2009-01-01 00:00 " + testPath);
+        mMockITestDevice.executeShellCommand(EasyMock.contains(testPath),
+                EasyMock.same(mMockReceiver), EasyMock.anyLong(),
+                (TimeUnit) EasyMock.anyObject(), EasyMock.anyInt());
+        replayMocks();
+        mGTest.run(mMockInvocationListener);
+        verifyMocks();
+    }
+
+    /**
+     * Test that with --parallel-execution, the before and after test commands run once around all
+     * the binaries rather than around each of them.
+     */
+    public void testRun_parallelTestCmds() throws Exception {
+        final String nativeTestPath = GTest.DEFAULT_NATIVETEST_PATH;
+        final List<String> commands = Collections.synchronizedList(new ArrayList<String>());
+        OptionSetter setter = new OptionSetter(mGTest);
+        setter.setOptionValue("before-test-cmd", "before");
+        setter.setOptionValue("after-test-cmd", "after");
+        mGTest.setParallelExecution(true, 2);
+        EasyMock.expect(mMockITestDevice.doesFileExist(nativeTestPath)).andReturn(true);
+        EasyMock.expect(mMockITestDevice.executeShellCommand(
+                EasyMock.startsWith("find " + nativeTestPath)))
+                .andReturn(String.format("%1$s/test1\n%1$s/test2\nGTEST_LIST_DONE\n",
+                        nativeTestPath));
+        for (String binary : new String[] {"test1", "test2"}) {
+            String path = nativeTestPath + "/" + binary;
+            EasyMock.expect(mMockITestDevice.executeShellCommand("ls -l " + path))
+                    .andReturn("-rwxr-xr-x 1 root shell 1000 2009-01-01 00:00 " + path);
+        }
+        IAnswer<String> record = new IAnswer<String>() {
+            @Override
+            public String answer() throws Throwable {
+                commands.add((String) EasyMock.getCurrentArguments()[0]);
+                return "";
+            }
+        };
+        EasyMock.expect(mMockITestDevice.executeShellCommand("before")).andAnswer(record);
+        EasyMock.expect(mMockITestDevice.executeShellCommand("after")).andAnswer(record);
+        mMockITestDevice.executeShellCommand(EasyMock.contains(nativeTestPath + "/test"),
+                EasyMock.same(mMockReceiver), EasyMock.anyLong(),
+                (TimeUnit) EasyMock.anyObject(), EasyMock.anyInt());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                commands.add("test");
+                return null;
+            }
+        }).times(2);
+        EasyMock.makeThreadSafe(mMockITestDevice, false);
+        replayMocks();
+        mGTest.run(mMockInvocationListener);
+        verifyMocks();
+        assertEquals(Arrays.asList("before", "test", "test", "after"), commands);
+    }
+
+    /** Feed the output of a gtest binary running a single passing test to a receiver. */
+    private void sendGTestOutput(IShellOutputReceiver receiver, String testCase) {
+        String output = String.format("[==========] Running 1 test from 1 test case.\n"
+                + "[----------] 1 test from %1$s\n"
+                + "[ RUN      ] %1$s.test\n"
+                + "[       OK ] %1$s.test (1 ms)\n"
+                + "[----------] 1 test from %1$s (1 ms total)\n"
+                + "\n"
+                + "[==========] 1 test from 1 test case ran. (1 ms total)\n"
+                + "[  PASSED  ] 1 test.\n", testCase);
+        byte[] bytes = output.getBytes();
+        receiver.addOutput(bytes, 0, bytes.length);
+        receiver.flush();
+    }
 }
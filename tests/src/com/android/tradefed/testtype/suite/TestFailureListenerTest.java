@@ -19,6 +19,7 @@ import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.DeviceArtifactCollector;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.LogDataType;
@@ -137,4 +138,41 @@ public class TestFailureListenerTest {
         mFailureListener.testEnded(testId, Collections.emptyMap());
         EasyMock.verify(mMockListener, mMockDevice);
     }
+
+    /**
+     * Test that with a {@link DeviceArtifactCollector}, the artifacts of several failures are
+     * logged by the end of the run, with a single bugreport.
+     */
+    @Test
+    public void testTestFailed_async() throws Exception {
+        mMockDevice = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn("SERIAL");
+        mFailureListener = new TestFailureListener(mMockListener, mMockDevice,
+                true, true, false, false, -1);
+        mFailureListener.setArtifactCollector(
+                new DeviceArtifactCollector(mMockDevice, mFailureListener));
+        TestIdentifier testId1 = new TestIdentifier("com.fake", "method1");
+        TestIdentifier testId2 = new TestIdentifier("com.fake", "method2");
+        final long startDate = 1479917040l; // Wed Nov 23 16:04:00 GMT 2016
+        InputStreamSource fakeSource = new ByteArrayInputStreamSource("fakeData".getBytes());
+        EasyMock.expect(mMockDevice.getDeviceDate()).andReturn(startDate).times(2);
+        EasyMock.expect(mMockDevice.getBugreport()).andReturn(fakeSource).once();
+        EasyMock.expect(mMockDevice.getLogcatSince(EasyMock.eq(startDate)))
+                .andReturn(fakeSource).times(2);
+        mMockListener.testLog(EasyMock.eq(testId1.toString() + "-bugreport"),
+                EasyMock.eq(LogDataType.BUGREPORT), EasyMock.eq(fakeSource));
+        mMockListener.testLog(EasyMock.eq(testId1.toString() + "-logcat"),
+                EasyMock.eq(LogDataType.LOGCAT), EasyMock.eq(fakeSource));
+        mMockListener.testLog(EasyMock.eq(testId2.toString() + "-logcat"),
+                EasyMock.eq(LogDataType.LOGCAT), EasyMock.eq(fakeSource));
+        EasyMock.replay(mMockListener, mMockDevice);
+        mFailureListener.testStarted(testId1);
+        mFailureListener.testFailed(testId1, "oups it failed");
+        mFailureListener.testEnded(testId1, Collections.emptyMap());
+        mFailureListener.testStarted(testId2);
+        mFailureListener.testFailed(testId2, "oups it failed again");
+        mFailureListener.testEnded(testId2, Collections.emptyMap());
+        mFailureListener.testRunEnded(0, Collections.emptyMap());
+        EasyMock.verify(mMockListener, mMockDevice);
+    }
 }
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+/** Unit tests for {@link BinarySampleWriter}. */
+@RunWith(JUnit4.class)
+public class BinarySampleWriterTest {
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = FileUtil.createTempFile("samples", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.deleteFile(mFile);
+    }
+
+    /** Test that samples written can be read back. */
+    @Test
+    public void testWriteRead() throws IOException {
+        try (BinarySampleWriter writer = new BinarySampleWriter(mFile, 1000L, "a", "b")) {
+            writer.write("cpu0", 1000L, 1.5, 2.5);
+            writer.write("cpu1", 2000L, 3, Double.NaN);
+            writer.write("cpu0", 3000L, 4, 5);
+        }
+        assertArrayEquals(new String[] {"a", "b"}, BinarySampleWriter.readColumns(mFile));
+        List<BinarySampleWriter.Sample> samples = BinarySampleWriter.read(mFile);
+        assertEquals(3, samples.size());
+        assertEquals("cpu0", samples.get(0).mSeries);
+        assertEquals(1000L, samples.get(0).mTimestamp);
+        assertArrayEquals(new float[] {1.5f, 2.5f}, samples.get(0).mValues, 0.0f);
+        assertEquals("cpu1", samples.get(1).mSeries);
+        assertEquals(2000L, samples.get(1).mTimestamp);
+        assertTrue(Float.isNaN(samples.get(1).mValues[1]));
+        assertEquals("cpu0", samples.get(2).mSeries);
+        assertArrayEquals(new float[] {4f, 5f}, samples.get(2).mValues, 0.0f);
+    }
+
+    /** Test that a truncated last record is ignored. */
+    @Test
+    public void testRead_truncated() throws IOException {
+        try (BinarySampleWriter writer = new BinarySampleWriter(mFile, 0L, "a")) {
+            writer.write("s", 1L, 1);
+            writer.write("s", 2L, 2);
+        }
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.setLength(file.length() - 2);
+        }
+        List<BinarySampleWriter.Sample> samples = BinarySampleWriter.read(mFile);
+        assertEquals(1, samples.size());
+        assertEquals(1.0f, samples.get(0).mValues[0], 0.0f);
+    }
+
+    /** Test that samples with the wrong number of values are rejected. */
+    @Test
+    public void testWrite_wrongValues() throws IOException {
+        try (BinarySampleWriter writer = new BinarySampleWriter(mFile, "a", "b")) {
+            writer.write("s", 1L, 1);
+            fail("IllegalArgumentException not thrown");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /** Test that files that are not sample files are rejected. */
+    @Test
+    public void testRead_notSampleFile() throws IOException {
+        FileUtil.writeToFile("not a sample file", mFile);
+        try {
+            BinarySampleWriter.read(mFile);
+            fail("IOException not thrown");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -16,18 +16,17 @@
 
 package com.android.tradefed.util;
 
+import com.android.tradefed.device.ILogcatEntryListener;
 import com.android.tradefed.device.ILogcatReceiver;
-import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.device.LogcatBus;
+import com.android.tradefed.device.LogcatFilter;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.util.LogcatUpdaterEventParser.AsyncUpdaterEvent;
 
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
-
 /**
  * Unit tests for {@link LogcatUpdaterEventParser}.
  */
@@ -37,38 +36,35 @@ public class LogcatUpdaterEventParserTest extends TestCase {
 
     private ILogcatReceiver mMockReceiver = null;
     private LogcatUpdaterEventParser mParser = null;
-    private PipedOutputStream mMockPipe = null;
+    private LogcatBus mBus = null;
+    /** the logcat captured before the parser subscribed */
+    private String mCaptured = "";
 
     @Override
     public void setUp() {
         mMockReceiver = EasyMock.createMock(ILogcatReceiver.class);
-        mMockPipe = new PipedOutputStream();
-        final PipedInputStream p = new PipedInputStream();
-        try {
-            mMockPipe.connect(p);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-
-        EasyMock.expect(mMockReceiver.getLogcatData()).andReturn(new InputStreamSource() {
-            @Override
-            public InputStream createInputStream() {
-                return p;
-            }
-            @Override
-            public void cancel() {
-                // ignore
-            }
-            @Override
-            public long size() {
-                return 0;
-            }
-        });
+        mBus = new LogcatBus("SERIAL");
+        EasyMock.expect(mMockReceiver.subscribe(EasyMock.anyObject(LogcatFilter.class),
+                EasyMock.anyInt())).andAnswer(() -> mBus.subscribe(
+                        (LogcatFilter) EasyMock.getCurrentArguments()[0],
+                        (Integer) EasyMock.getCurrentArguments()[1]));
+        EasyMock.expect(mMockReceiver.subscribe(EasyMock.anyObject(LogcatFilter.class),
+                EasyMock.anyObject(ILogcatEntryListener.class))).andStubAnswer(
+                        () -> mBus.subscribe((LogcatFilter) EasyMock.getCurrentArguments()[0],
+                        (ILogcatEntryListener) EasyMock.getCurrentArguments()[1]));
+        EasyMock.expect(mMockReceiver.getLogcatData()).andStubAnswer(
+                () -> new ByteArrayInputStreamSource(mCaptured.getBytes()));
 
         EasyMock.replay(mMockReceiver);
         mParser = new LogcatUpdaterEventParser(mMockReceiver);
     }
 
+    @Override
+    public void tearDown() {
+        mParser.close();
+        mBus.close();
+    }
+
     /**
      * Test that a known event parses to the expected {@link UpdaterEventType} when a portion
      * of the trigger contains the matched line.
@@ -153,14 +149,65 @@ public class LogcatUpdaterEventParserTest extends TestCase {
         waitAndAssertTerminated(waitThread, logLines);
     }
 
+    /**
+     * Test that an asynchronous wait completes when the expected event is logged.
+     */
+    public void testWaitForEventAsync() throws InterruptedException {
+        AsyncUpdaterEvent event = mParser.waitForEventAsync(UpdaterEventType.D2O_COMPLETE);
+        publish("11-11 00:00:00.001  123 321 I update_engine: Update successfully applied\n");
+        RunUtil.getDefault().sleep(SHORT_WAIT_MS);
+        assertFalse(event.isCompleted());
+        publish("11-11 00:00:00.001  123 321 I dex2oat: dex2oat took 12345 seconds\n");
+        synchronized (event) {
+            long start = System.currentTimeMillis();
+            while (!event.isCompleted() && System.currentTimeMillis() - start < SHORT_WAIT_MS) {
+                event.wait(SHORT_WAIT_MS);
+            }
+        }
+        assertTrue(event.isCompleted());
+    }
+
+    /**
+     * Test that waiting for an event times out when it is not logged.
+     */
+    public void testWaitForEvent_timeout() {
+        publish("11-11 00:00:00.001  123 321 I update_engine: foo bar baz\n");
+        assertEquals(UpdaterEventType.ERROR,
+                mParser.waitForEvent(UpdaterEventType.UPDATE_COMPLETE, SHORT_WAIT_MS));
+    }
+
+    /**
+     * Test that events logged before the parser was created are found in the captured logcat,
+     * and that those also received from the subscription are only parsed once.
+     */
+    public void testWaitForEvent_captured() {
+        String line = "11-11 00:00:00.001  123 321 I dex2oat: dex2oat took 12345 seconds\n";
+        mCaptured = "11-11 00:00:00.000  123 321 I update_engine: foo bar baz\n" + line;
+        // logged between the subscription and the capture
+        publish(line);
+        assertEquals(UpdaterEventType.D2O_COMPLETE,
+                mParser.waitForEvent(UpdaterEventType.D2O_COMPLETE, SHORT_WAIT_MS));
+        assertEquals(UpdaterEventType.ERROR,
+                mParser.waitForEvent(UpdaterEventType.D2O_COMPLETE, SHORT_WAIT_MS));
+    }
+
+    /**
+     * Test that an asynchronous wait completes right away if the event was already captured.
+     */
+    public void testWaitForEventAsync_captured() {
+        mCaptured = "11-11 00:00:00.001  123 321 I dex2oat: dex2oat took 12345 seconds\n";
+        assertTrue(mParser.waitForEventAsync(UpdaterEventType.D2O_COMPLETE).isCompleted());
+    }
+
+    private void publish(String line) {
+        byte[] data = line.getBytes();
+        mBus.publish(data, 0, data.length);
+    }
+
     private void waitAndAssertTerminated(Thread waitThread, String[] logLines) {
         waitThread.start();
         for (String line : logLines) {
-            try {
-                mMockPipe.write(line.getBytes());
-            } catch (IOException e) {
-                fail(e.getLocalizedMessage());
-            }
+            publish(line);
         }
         // Allow short time for thread to switch state.
         RunUtil.getDefault().sleep(SHORT_WAIT_MS);
@@ -103,5 +103,72 @@ public class SimpleStatsTest extends TestCase {
         assertEquals(4, mStats.median(), 0.1);
         assertEquals(1.247219, mStats.stdev(), 0.000001);
     }
-}
 
+    /**
+     * Make sure that percentiles are interpolated between the closest measurements
+     */
+    public void testStats_percentiles() {
+        // added in reverse order, [1, 100]
+        for (int i = 100; i >= 1; --i) {
+            mStats.add(i);
+        }
+        assertEquals(50.5, mStats.p50(), 0.000001);
+        assertEquals(90.1, mStats.p90(), 0.000001);
+        assertEquals(99.01, mStats.p99(), 0.000001);
+        assertEquals(1, mStats.percentile(0), 0.000001);
+        assertEquals(100, mStats.percentile(100), 0.000001);
+        assertEquals(mStats.median(), mStats.p50());
+        mStats.add(0);
+        assertEquals(0, mStats.min(), 0.1);
+        assertEquals(50, mStats.median(), 0.000001);
+        try {
+            mStats.percentile(101);
+            fail("IllegalArgumentException not thrown");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Make sure that merging datasets gives the same results as adding all the measurements to a
+     * single dataset
+     */
+    public void testStats_merge() {
+        SimpleStats other = new SimpleStats();
+        SimpleStats all = new SimpleStats();
+        for (int i = 0; i <= 10; ++i) {
+            mStats.add(i * 3);
+            all.add(i * 3);
+            other.add(i * 7 + 1);
+            all.add(i * 7 + 1);
+        }
+        mStats.merge(other);
+        mStats.merge(new SimpleStats());
+        assertEquals(22, mStats.size());
+        assertEquals(11, other.size());
+        assertEquals(all.mean(), mStats.mean(), 0.000001);
+        assertEquals(all.stdev(), mStats.stdev(), 0.000001);
+        assertEquals(all.median(), mStats.median(), 0.000001);
+        assertEquals(all.min(), mStats.min(), 0.000001);
+        assertEquals(all.max(), mStats.max(), 0.000001);
+
+        SimpleStats empty = new SimpleStats();
+        empty.merge(other);
+        assertEquals(other.mean(), empty.mean(), 0.000001);
+        assertEquals(other.stdev(), empty.stdev(), 0.000001);
+    }
+
+    /**
+     * Make sure that the mean of the values within one stdev matches the documented example
+     */
+    public void testStats_meanOverOneStandardDeviationRange() {
+        double[] data = {2.55, 50.3, 50.4, 48.5, 50.1, 29.8, 30, 46, 48, 49};
+        for (double meas : data) {
+            mStats.add(meas);
+        }
+        assertEquals(40.465, mStats.mean(), 0.001);
+        assertEquals(44.67, mStats.meanOverOneStandardDeviationRange(), 0.01);
+        assertEquals(10, mStats.getData().size());
+        assertEquals(2.55, mStats.getData().get(0), 0.0);
+    }
+}
@@ -59,4 +59,36 @@ public class SizeLimitedOutputStreamTest extends TestCase {
             outStream.delete();
         }
     }
+
+    /**
+     * Test reading a range of the data, across backing files and after data was dropped.
+     */
+    public void testGetData_range() throws IOException {
+        final byte[] data = new byte[29];
+        for (byte i = 0; i < data.length; i++) {
+            data[i] = i;
+        }
+        // files of 5 bytes, the first 10 bytes get dropped
+        SizeLimitedOutputStream outStream = new SizeLimitedOutputStream(20, 4, "foo", "bar");
+        try {
+            outStream.write(data);
+            assertEquals(10, outStream.getStartOffset());
+            assertEquals(29, outStream.getEndOffset());
+            byte[] readData = StreamUtil.getByteArrayListFromStream(
+                    outStream.getData(12, 23)).getContents();
+            assertEquals(11, readData.length);
+            for (int i = 0; i < readData.length; i++) {
+                assertEquals(12 + i, readData[i]);
+            }
+            // dropped data is skipped
+            readData = StreamUtil.getByteArrayListFromStream(
+                    outStream.getData(0, 12)).getContents();
+            assertEquals(2, readData.length);
+            assertEquals(10, readData[0]);
+            assertEquals(0, StreamUtil.getByteArrayListFromStream(
+                    outStream.getData(29, 29)).size());
+        } finally {
+            outStream.delete();
+        }
+    }
 }
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Unit tests for {@link StreamingLineReceiver}. */
+@RunWith(JUnit4.class)
+public class StreamingLineReceiverTest {
+
+    /** Receiver collecting the lines it receives. */
+    private static class LineCollector extends StreamingLineReceiver {
+        List<String> mLines = new ArrayList<>();
+        boolean mDone = false;
+
+        @Override
+        public void processLine(CharSequence line) {
+            mLines.add(line.toString());
+        }
+
+        @Override
+        public void done() {
+            mDone = true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    }
+
+    /** Test that output is split on new lines, including lines spanning several chunks. */
+    @Test
+    public void testAddOutput() {
+        LineCollector receiver = new LineCollector();
+        send(receiver, "first\r\nsec");
+        send(receiver, "ond\n");
+        send(receiver, "  third  \n\nfourth");
+        assertEquals(Arrays.asList("first", "second", "third", ""), receiver.mLines);
+        assertFalse(receiver.mDone);
+        receiver.flush();
+        assertEquals(Arrays.asList("first", "second", "third", "", "fourth"), receiver.mLines);
+        assertTrue(receiver.mDone);
+    }
+
+    /** Test that lines are not trimmed if trimming is disabled. */
+    @Test
+    public void testAddOutput_noTrim() {
+        LineCollector receiver = new LineCollector();
+        receiver.setTrimLine(false);
+        send(receiver, "  first  \r\n");
+        assertEquals(Arrays.asList("  first  "), receiver.mLines);
+    }
+
+    /** Test that a multi-byte character split across chunks is decoded. */
+    @Test
+    public void testAddOutput_utf8() {
+        LineCollector receiver = new LineCollector();
+        byte[] bytes = "café ✓\n".getBytes(StandardCharsets.UTF_8);
+        // split in the middle of the 2 bytes of the e acute
+        receiver.addOutput(bytes, 0, 4);
+        receiver.addOutput(bytes, 4, bytes.length - 4);
+        assertEquals(Arrays.asList("café ✓"), receiver.mLines);
+    }
+
+    /** Test the {@link CharSequence} helpers. */
+    @Test
+    public void testHelpers() {
+        assertTrue(StreamingLineReceiver.startsWith("[ RUN ] test", "[ RUN ]"));
+        assertFalse(StreamingLineReceiver.startsWith("[ RUN", "[ RUN ]"));
+        assertEquals(4, StreamingLineReceiver.indexOf("log [ OK ] test", "[ OK ]"));
+        assertEquals(-1, StreamingLineReceiver.indexOf("log [ OK", "[ OK ]"));
+        assertFalse(StreamingLineReceiver.regionMatches("abc", -1, "a"));
+    }
+
+    private void send(StreamingLineReceiver receiver, String output) {
+        byte[] bytes = output.getBytes(StandardCharsets.UTF_8);
+        receiver.addOutput(bytes, 0, bytes.length);
+    }
+}
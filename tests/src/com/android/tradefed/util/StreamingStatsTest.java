@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Random;
+
+/** Unit tests for {@link StreamingStats}. */
+@RunWith(JUnit4.class)
+public class StreamingStatsTest {
+
+    /** Test the statistics of an empty dataset. */
+    @Test
+    public void testEmpty() {
+        StreamingStats stats = new StreamingStats();
+        assertTrue(stats.isEmpty());
+        assertNull(stats.mean());
+        assertNull(stats.stdev());
+        assertNull(stats.min());
+        assertNull(stats.max());
+        assertNull(stats.median());
+        assertEquals(0, stats.getRecent().length);
+    }
+
+    /** Test that the statistics match those of {@link SimpleStats}. */
+    @Test
+    public void testMatchesSimpleStats() {
+        double[] data = {2.55, 50.3, 50.4, 48.5, 50.1, 29.8, 30, 46, 48, 49};
+        StreamingStats stats = new StreamingStats();
+        SimpleStats simple = new SimpleStats();
+        for (double meas : data) {
+            stats.add(meas);
+            simple.add(meas);
+        }
+        assertEquals(10, stats.size());
+        assertEquals(simple.mean(), stats.mean(), 0.0001);
+        assertEquals(simple.stdev(), stats.stdev(), 0.0001);
+        assertEquals(simple.min(), stats.min(), 0.0);
+        assertEquals(simple.max(), stats.max(), 0.0);
+        assertEquals(404.65, stats.sum(), 0.0001);
+    }
+
+    /** Test that quantiles are exact for a few measurements. */
+    @Test
+    public void testQuantile_few() {
+        StreamingStats stats = new StreamingStats();
+        stats.add(3);
+        stats.add(1);
+        stats.add(2);
+        assertEquals(2.0, stats.median(), 0.0);
+        assertEquals(3.0, stats.quantile(0.9), 0.0);
+        stats.add(5);
+        stats.add(4);
+        assertEquals(3.0, stats.median(), 0.0);
+        assertEquals(5.0, stats.quantile(0.99), 0.0);
+    }
+
+    /** Test that quantiles of a large dataset are estimated closely. */
+    @Test
+    public void testQuantile_estimate() {
+        StreamingStats stats = new StreamingStats();
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            stats.add(random.nextDouble() * 100);
+        }
+        assertEquals(50.0, stats.median(), 1.0);
+        assertEquals(90.0, stats.quantile(0.9), 1.0);
+        assertEquals(99.0, stats.quantile(0.99), 1.0);
+        assertEquals(50.0, stats.mean(), 1.0);
+    }
+
+    /** Test that quantiles that are not estimated are rejected. */
+    @Test
+    public void testQuantile_notEstimated() {
+        StreamingStats stats = new StreamingStats(new double[] {0.9}, 0);
+        stats.add(1);
+        try {
+            stats.median();
+            fail("IllegalArgumentException not thrown");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /** Test that only the most recent measurements are kept. */
+    @Test
+    public void testGetRecent() {
+        StreamingStats stats = new StreamingStats(StreamingStats.DEFAULT_QUANTILES, 3);
+        stats.add(1);
+        stats.add(2);
+        assertArrayEquals(new double[] {1, 2}, stats.getRecent(), 0.0);
+        stats.add(3);
+        stats.add(4);
+        stats.add(5);
+        assertArrayEquals(new double[] {3, 4, 5}, stats.getRecent(), 0.0);
+        assertEquals(3.0, stats.mean(), 0.0);
+    }
+
+    /** Test that a copy is not affected by further measurements. */
+    @Test
+    public void testCopy() {
+        StreamingStats stats = new StreamingStats(StreamingStats.DEFAULT_QUANTILES, 2);
+        for (int i = 1; i <= 10; i++) {
+            stats.add(i);
+        }
+        StreamingStats copy = new StreamingStats(stats);
+        Double median = stats.median();
+        stats.add(100);
+        assertEquals(10, copy.size());
+        assertEquals(5.5, copy.mean(), 0.0);
+        assertEquals(median, copy.median());
+        assertArrayEquals(new double[] {9, 10}, copy.getRecent(), 0.0);
+    }
+}
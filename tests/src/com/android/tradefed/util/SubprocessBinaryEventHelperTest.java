@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.tradefed.result.LogDataType;
+import com.android.tradefed.util.SubprocessEventHelper.BaseTestEventInfo;
+import com.android.tradefed.util.SubprocessEventHelper.FailedTestEventInfo;
+import com.android.tradefed.util.SubprocessEventHelper.InvocationFailedEventInfo;
+import com.android.tradefed.util.SubprocessEventHelper.InvocationStartedEventInfo;
+import com.android.tradefed.util.SubprocessEventHelper.TestEndedEventInfo;
+import com.android.tradefed.util.SubprocessEventHelper.TestLogEventInfo;
+import com.android.tradefed.util.SubprocessEventHelper.TestRunEndedEventInfo;
+import com.android.tradefed.util.SubprocessEventHelper.TestRunFailedEventInfo;
+import com.android.tradefed.util.SubprocessEventHelper.TestRunStartedEventInfo;
+import com.android.tradefed.util.SubprocessEventHelper.TestStartedEventInfo;
+import com.android.tradefed.util.SubprocessTestResultsParser.StatusKeys;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Unit tests for {@link SubprocessBinaryEventHelper}. */
+@RunWith(JUnit4.class)
+public class SubprocessBinaryEventHelperTest {
+
+    private ByteArrayOutputStream mOutput;
+    private List<String> mKeys;
+    private List<Object> mInfos;
+
+    @Before
+    public void setUp() {
+        mOutput = new ByteArrayOutputStream();
+        mKeys = new ArrayList<>();
+        mInfos = new ArrayList<>();
+    }
+
+    private void readEvents() throws IOException {
+        SubprocessBinaryEventHelper.readEvents(new ByteArrayInputStream(mOutput.toByteArray()),
+                new SubprocessBinaryEventHelper.IEventReceiver() {
+                    @Override
+                    public void onEvent(String key, Object info) {
+                        mKeys.add(key);
+                        mInfos.add(info);
+                    }
+                });
+    }
+
+    /** Returns the types of the frames written. */
+    private List<Byte> getFrameTypes() throws IOException {
+        List<Byte> types = new ArrayList<>();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(mOutput.toByteArray()));
+        in.skipBytes(SubprocessBinaryEventHelper.MAGIC.length + 1);
+        while (in.available() > 0) {
+            int length = in.readInt();
+            types.add(in.readByte());
+            in.skipBytes(length);
+        }
+        return types;
+    }
+
+    /** Test that all the events are decoded as they were encoded. */
+    @Test
+    public void testRoundTrip() throws Exception {
+        Map<String, String> metrics = new HashMap<>();
+        metrics.put("key", "välue");
+        File logFile = new File("/tmp/subprocess-log.txt");
+        try (SubprocessBinaryEventHelper.EventWriter writer =
+                new SubprocessBinaryEventHelper.EventWriter(mOutput, 10)) {
+            writer.writeEvent(StatusKeys.INVOCATION_STARTED,
+                    new InvocationStartedEventInfo("tag", 5L));
+            writer.writeEvent(StatusKeys.TEST_RUN_STARTED, new TestRunStartedEventInfo("run", 2));
+            writer.writeEvent(StatusKeys.TEST_STARTED, new TestStartedEventInfo("c", "t1", 10L));
+            writer.writeEvent(StatusKeys.TEST_FAILED, new FailedTestEventInfo("c", "t1", "trace"));
+            writer.writeEvent(StatusKeys.TEST_ENDED, new TestEndedEventInfo("c", "t1", 20L,
+                    metrics));
+            writer.writeEvent(StatusKeys.TEST_STARTED, new TestStartedEventInfo("c", "t2", null));
+            writer.writeEvent(StatusKeys.TEST_ASSUMPTION_FAILURE,
+                    new FailedTestEventInfo("c", "t2", null));
+            writer.writeEvent(StatusKeys.TEST_IGNORED, new BaseTestEventInfo("c", "t2"));
+            writer.writeEvent(StatusKeys.TEST_ENDED, new TestEndedEventInfo("c", "t2", null,
+                    Collections.<String, String>emptyMap()));
+            writer.writeEvent(StatusKeys.TEST_LOG,
+                    new TestLogEventInfo("log", LogDataType.TEXT, logFile));
+            writer.writeEvent(StatusKeys.TEST_RUN_FAILED, new TestRunFailedEventInfo("reason"));
+            writer.writeEvent(StatusKeys.TEST_RUN_ENDED, new TestRunEndedEventInfo(30L, metrics));
+            writer.writeEvent(StatusKeys.INVOCATION_FAILED,
+                    new InvocationFailedEventInfo(new RuntimeException("failed")));
+        }
+        readEvents();
+        assertEquals(13, mKeys.size());
+        InvocationStartedEventInfo invocationStarted = (InvocationStartedEventInfo) mInfos.get(0);
+        assertEquals("tag", invocationStarted.mTestTag);
+        assertEquals(Long.valueOf(5), invocationStarted.mStartTime);
+        TestRunStartedEventInfo runStarted = (TestRunStartedEventInfo) mInfos.get(1);
+        assertEquals("run", runStarted.mRunName);
+        assertEquals(Integer.valueOf(2), runStarted.mTestCount);
+        TestStartedEventInfo started = (TestStartedEventInfo) mInfos.get(2);
+        assertEquals("c", started.mClassName);
+        assertEquals("t1", started.mTestName);
+        assertEquals(Long.valueOf(10), started.mStartTime);
+        assertEquals(StatusKeys.TEST_FAILED, mKeys.get(3));
+        assertEquals("trace", ((FailedTestEventInfo) mInfos.get(3)).mTrace);
+        TestEndedEventInfo ended = (TestEndedEventInfo) mInfos.get(4);
+        assertEquals(Long.valueOf(20), ended.mEndTime);
+        assertEquals(metrics, ended.mRunMetrics);
+        assertNull(((TestStartedEventInfo) mInfos.get(5)).mStartTime);
+        assertEquals(StatusKeys.TEST_ASSUMPTION_FAILURE, mKeys.get(6));
+        assertNull(((FailedTestEventInfo) mInfos.get(6)).mTrace);
+        assertEquals(StatusKeys.TEST_IGNORED, mKeys.get(7));
+        assertEquals("t2", ((BaseTestEventInfo) mInfos.get(7)).mTestName);
+        assertNull(((TestEndedEventInfo) mInfos.get(8)).mEndTime);
+        TestLogEventInfo log = (TestLogEventInfo) mInfos.get(9);
+        assertEquals("log", log.mDataName);
+        assertEquals(LogDataType.TEXT, log.mLogType);
+        assertEquals(logFile.getAbsolutePath(), log.mDataFile.getAbsolutePath());
+        assertEquals("reason", ((TestRunFailedEventInfo) mInfos.get(10)).mReason);
+        TestRunEndedEventInfo runEnded = (TestRunEndedEventInfo) mInfos.get(11);
+        assertEquals(Long.valueOf(30), runEnded.mTime);
+        assertEquals(metrics, runEnded.mRunMetrics);
+        assertTrue(((InvocationFailedEventInfo) mInfos.get(12)).mCause.getMessage()
+                .contains("failed"));
+    }
+
+    /** Test that tests passing one after the other are sent in a single frame. */
+    @Test
+    public void testPassedTestsBatch() throws Exception {
+        try (SubprocessBinaryEventHelper.EventWriter writer =
+                new SubprocessBinaryEventHelper.EventWriter(mOutput, 2)) {
+            writer.writeEvent(StatusKeys.TEST_RUN_STARTED, new TestRunStartedEventInfo("run", 4));
+            for (int i = 0; i < 3; i++) {
+                String className = i < 2 ? "class1" : "class2";
+                writer.writeEvent(StatusKeys.TEST_STARTED,
+                        new TestStartedEventInfo(className, "test" + i, 10L * i));
+                writer.writeEvent(StatusKeys.TEST_ENDED, new TestEndedEventInfo(className,
+                        "test" + i, 10L * i + 5, Collections.<String, String>emptyMap()));
+            }
+            writer.writeEvent(StatusKeys.TEST_STARTED, new TestStartedEventInfo("c", "t", 50L));
+            writer.writeEvent(StatusKeys.TEST_FAILED, new FailedTestEventInfo("c", "t", "trace"));
+            writer.writeEvent(StatusKeys.TEST_ENDED, new TestEndedEventInfo("c", "t", 60L,
+                    Collections.<String, String>emptyMap()));
+        }
+        List<Byte> expectedTypes = new ArrayList<>();
+        expectedTypes.add(SubprocessBinaryEventHelper.TEST_RUN_STARTED);
+        // a full batch, then the rest of the passed tests before the next test
+        expectedTypes.add(SubprocessBinaryEventHelper.PASSED_TESTS);
+        expectedTypes.add(SubprocessBinaryEventHelper.PASSED_TESTS);
+        expectedTypes.add(SubprocessBinaryEventHelper.TEST_STARTED);
+        expectedTypes.add(SubprocessBinaryEventHelper.TEST_FAILED);
+        expectedTypes.add(SubprocessBinaryEventHelper.TEST_ENDED);
+        assertEquals(expectedTypes, getFrameTypes());
+
+        readEvents();
+        assertEquals(10, mKeys.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(StatusKeys.TEST_STARTED, mKeys.get(1 + 2 * i));
+            TestStartedEventInfo started = (TestStartedEventInfo) mInfos.get(1 + 2 * i);
+            assertEquals(i < 2 ? "class1" : "class2", started.mClassName);
+            assertEquals("test" + i, started.mTestName);
+            assertEquals(Long.valueOf(10L * i), started.mStartTime);
+            assertEquals(StatusKeys.TEST_ENDED, mKeys.get(2 + 2 * i));
+            TestEndedEventInfo ended = (TestEndedEventInfo) mInfos.get(2 + 2 * i);
+            assertEquals("test" + i, ended.mTestName);
+            assertEquals(Long.valueOf(10L * i + 5), ended.mEndTime);
+        }
+        assertEquals(StatusKeys.TEST_STARTED, mKeys.get(7));
+        assertEquals(StatusKeys.TEST_FAILED, mKeys.get(8));
+        assertEquals(StatusKeys.TEST_ENDED, mKeys.get(9));
+    }
+
+    /**
+     * Test that passed tests and a test started are not held back for more than
+     * {@link SubprocessBinaryEventHelper#MAX_BATCH_DELAY_MS} while a test is running.
+     */
+    @Test
+    public void testPassedTestsBatch_delay() throws Exception {
+        SubprocessBinaryEventHelper.EventWriter writer =
+                new SubprocessBinaryEventHelper.EventWriter(mOutput, 10);
+        try {
+            writer.writeEvent(StatusKeys.TEST_STARTED, new TestStartedEventInfo("c", "t1", 1L));
+            writer.writeEvent(StatusKeys.TEST_ENDED, new TestEndedEventInfo("c", "t1", 2L,
+                    Collections.<String, String>emptyMap()));
+            // a long running test
+            writer.writeEvent(StatusKeys.TEST_STARTED, new TestStartedEventInfo("c", "t2", 3L));
+            List<Byte> expectedTypes = new ArrayList<>();
+            expectedTypes.add(SubprocessBinaryEventHelper.PASSED_TESTS);
+            expectedTypes.add(SubprocessBinaryEventHelper.TEST_STARTED);
+            long deadline = System.currentTimeMillis()
+                    + SubprocessBinaryEventHelper.MAX_BATCH_DELAY_MS * 5;
+            List<Byte> types;
+            synchronized (writer) {
+                types = getFrameTypes();
+            }
+            while (!expectedTypes.equals(types) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+                synchronized (writer) {
+                    types = getFrameTypes();
+                }
+            }
+            assertEquals(expectedTypes, types);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /** Test that a test started and not ended is sent when flushing. */
+    @Test
+    public void testFlush_pendingTest() throws Exception {
+        SubprocessBinaryEventHelper.EventWriter writer =
+                new SubprocessBinaryEventHelper.EventWriter(mOutput, 10);
+        writer.writeEvent(StatusKeys.TEST_STARTED, new TestStartedEventInfo("c", "t", 1L));
+        assertTrue(getFrameTypes().isEmpty());
+        writer.flush();
+        readEvents();
+        assertEquals(1, mKeys.size());
+        assertEquals(StatusKeys.TEST_STARTED, mKeys.get(0));
+    }
+
+    /** Test that frames of an unknown type are skipped. */
+    @Test
+    public void testReadEvents_unknownFrame() throws Exception {
+        SubprocessBinaryEventHelper.EventWriter writer =
+                new SubprocessBinaryEventHelper.EventWriter(mOutput, 10);
+        DataOutputStream out = new DataOutputStream(mOutput);
+        out.writeInt(3);
+        out.writeByte(100);
+        out.write(new byte[] {1, 2, 3});
+        writer.writeEvent(StatusKeys.TEST_RUN_FAILED, new TestRunFailedEventInfo("reason"));
+        writer.close();
+        readEvents();
+        assertEquals(1, mKeys.size());
+        assertEquals(StatusKeys.TEST_RUN_FAILED, mKeys.get(0));
+    }
+
+    /** Test that a stream with another schema version is rejected. */
+    @Test
+    public void testReadEvents_unsupportedVersion() throws Exception {
+        mOutput.write(SubprocessBinaryEventHelper.MAGIC);
+        mOutput.write(SubprocessBinaryEventHelper.SCHEMA_VERSION + 1);
+        try {
+            readEvents();
+            fail("Should have thrown an exception.");
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+
+    /** Test detecting binary streams, without consuming them. */
+    @Test
+    public void testIsBinaryStream() throws Exception {
+        new SubprocessBinaryEventHelper.EventWriter(mOutput, 10).close();
+        BufferedInputStream in =
+                new BufferedInputStream(new ByteArrayInputStream(mOutput.toByteArray()));
+        assertTrue(SubprocessBinaryEventHelper.isBinaryStream(in));
+        assertEquals(SubprocessBinaryEventHelper.MAGIC[0], in.read());
+        in = new BufferedInputStream(new ByteArrayInputStream("TEST_RUN_STARTED {}".getBytes()));
+        assertFalse(SubprocessBinaryEventHelper.isBinaryStream(in));
+        assertEquals('T', in.read());
+        in = new BufferedInputStream(new ByteArrayInputStream("TF".getBytes()));
+        assertFalse(SubprocessBinaryEventHelper.isBinaryStream(in));
+    }
+}
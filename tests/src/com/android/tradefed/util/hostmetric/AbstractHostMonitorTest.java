@@ -15,6 +15,7 @@
  */
 package com.android.tradefed.util.hostmetric;
 
+import com.android.tradefed.config.OptionSetter;
 import com.android.tradefed.util.hostmetric.IHostMonitor.HostDataPoint;
 import com.android.tradefed.util.hostmetric.IHostMonitor.HostMetricType;
 
@@ -64,4 +65,19 @@ public class AbstractHostMonitorTest extends TestCase {
         mHostMonitor.addHostEvent(null, fakeDataPoint);
         assertTrue(mHostMonitor.getQueueSize() == 0);
     }
+
+    /**
+     * Test {@link AbstractHostMonitor#addHostEvent(HostMetricType, HostDataPoint)} when the queue
+     * is full, the oldest events should be dropped.
+     */
+    public void testaddHostEvent_queueFull() throws Exception {
+        OptionSetter setter = new OptionSetter(mHostMonitor);
+        setter.setOptionValue("max-queued-events", "2");
+        mHostMonitor.addHostEvent(mHostMonitor.getTag(), new HostDataPoint("first", 1));
+        mHostMonitor.addHostEvent(mHostMonitor.getTag(), new HostDataPoint("second", 2));
+        mHostMonitor.addHostEvent(mHostMonitor.getTag(), new HostDataPoint("third", 3));
+        assertEquals(2, mHostMonitor.getQueueSize());
+        assertEquals(1, mHostMonitor.getDroppedEventCount());
+        assertEquals("second", mHostMonitor.mHostEvents.peek().name);
+    }
 }
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util.hostmetric;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.util.FileUtil;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Unit tests for {@link FileHostHealthAgent}. */
+@RunWith(JUnit4.class)
+public class FileHostHealthAgentTest {
+
+    private File mTmpDir;
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mTmpDir = FileUtil.createTempDir("host-metrics");
+        mFile = new File(mTmpDir, "metrics.json");
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.recursiveDelete(mTmpDir);
+    }
+
+    /** Test that metrics are appended to the file, one per line, on flush. */
+    @Test
+    public void testFlush() throws Exception {
+        FileHostHealthAgent agent = new FileHostHealthAgent(mFile, 0);
+        Map<String, String> data = new HashMap<>();
+        data.put("hostname", "host");
+        agent.emitValue("heap_used_mb", 12, data);
+        assertFalse(mFile.exists());
+        agent.flush();
+        agent.emitValue("thread_count", 34, data);
+        agent.flush();
+        String[] lines = FileUtil.readStringFromFile(mFile).split("\n");
+        assertEquals(2, lines.length);
+        JSONObject first = new JSONObject(lines[0]);
+        assertEquals("heap_used_mb", first.getString("name"));
+        assertEquals(12, first.getLong("value"));
+        assertEquals("host", first.getJSONObject("fields").getString("hostname"));
+        assertEquals("thread_count", new JSONObject(lines[1]).getString("name"));
+    }
+
+    /** Test that the file is rotated once it reaches its maximum size. */
+    @Test
+    public void testFlush_rotate() throws Exception {
+        FileHostHealthAgent agent = new FileHostHealthAgent(mFile, 10);
+        agent.emitValue("first", 1, new HashMap<String, String>());
+        agent.flush();
+        agent.emitValue("second", 2, new HashMap<String, String>());
+        agent.flush();
+        File previous = new File(mTmpDir, "metrics.json.1");
+        assertTrue(previous.exists());
+        assertTrue(FileUtil.readStringFromFile(previous).contains("first"));
+        String current = FileUtil.readStringFromFile(mFile);
+        assertTrue(current.contains("second"));
+        assertFalse(current.contains("first"));
+    }
+}
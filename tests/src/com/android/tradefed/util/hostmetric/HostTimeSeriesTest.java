@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util.hostmetric;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link HostTimeSeries}. */
+@RunWith(JUnit4.class)
+public class HostTimeSeriesTest {
+
+    /** Test that samples are returned oldest first. */
+    @Test
+    public void testAdd() {
+        HostTimeSeries series = new HostTimeSeries("heap", 3);
+        series.add(10, 1);
+        series.add(20, 2);
+        assertEquals(2, series.size());
+        assertArrayEquals(new long[] {10, 20}, series.getTimestamps());
+        assertArrayEquals(new long[] {1, 2}, series.getValues());
+        assertEquals(2, series.getLatest());
+        assertEquals(20, series.getLatestTimestamp());
+    }
+
+    /** Test that the oldest samples are replaced once the series is full. */
+    @Test
+    public void testAdd_full() {
+        HostTimeSeries series = new HostTimeSeries("heap", 3);
+        for (int i = 1; i <= 5; i++) {
+            series.add(i * 10, i);
+        }
+        assertEquals(3, series.size());
+        assertEquals(3, series.getCapacity());
+        assertArrayEquals(new long[] {30, 40, 50}, series.getTimestamps());
+        assertArrayEquals(new long[] {3, 4, 5}, series.getValues());
+        assertEquals(5, series.getLatest());
+    }
+
+    /** Test querying the samples of a time range. */
+    @Test
+    public void testGetValuesInRange() {
+        HostTimeSeries series = new HostTimeSeries("heap", 4);
+        series.add(10, 5);
+        series.add(20, 7);
+        series.add(30, 3);
+        series.add(40, 1);
+        series.add(50, 2);
+        assertArrayEquals(new long[] {7, 3}, series.getValues(15, 30));
+        assertEquals(Long.valueOf(7), series.getMax(0, 35));
+        assertEquals(Long.valueOf(2), series.getMax(40, 60));
+        assertNull(series.getMax(60, 70));
+    }
+
+    /** Test that querying the latest sample of an empty series throws. */
+    @Test
+    public void testGetLatest_empty() {
+        HostTimeSeries series = new HostTimeSeries("heap", 4);
+        try {
+            series.getLatest();
+            fail("IllegalStateException not thrown");
+        } catch (IllegalStateException expected) {
+            // expected
+        }
+    }
+}
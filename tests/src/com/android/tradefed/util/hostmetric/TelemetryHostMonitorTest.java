@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util.hostmetric;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.util.hostmetric.IHostMonitor.HostDataPoint;
+import com.android.tradefed.util.hostmetric.IHostMonitor.HostMetricType;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Map;
+
+/** Unit tests for {@link TelemetryHostMonitor}. */
+@RunWith(JUnit4.class)
+public class TelemetryHostMonitorTest {
+
+    private TelemetryHostMonitor mMonitor;
+    private IHostHealthAgent mMockAgent;
+
+    @Before
+    public void setUp() {
+        mMockAgent = EasyMock.createMock(IHostHealthAgent.class);
+        mMonitor =
+                new TelemetryHostMonitor() {
+                    @Override
+                    IHostHealthAgent getMetricAgent() {
+                        return mMockAgent;
+                    }
+                };
+    }
+
+    /** Test that host metrics are sampled into their time series. */
+    @Test
+    public void testSample() {
+        Map<String, Long> first = mMonitor.sample(1000);
+        assertTrue(first.get(TelemetryHostMonitor.THREAD_COUNT_KEY) > 0);
+        assertTrue(first.containsKey(TelemetryHostMonitor.HEAP_USED_KEY));
+        assertTrue(first.containsKey(TelemetryHostMonitor.CHILD_PROCESSES_KEY));
+        // deltas need a previous sample
+        assertFalse(first.containsKey(TelemetryHostMonitor.GC_TIME_KEY));
+        Map<String, Long> second = mMonitor.sample(2000);
+        assertTrue(second.containsKey(TelemetryHostMonitor.GC_TIME_KEY));
+        assertTrue(second.containsKey(TelemetryHostMonitor.GC_COUNT_KEY));
+        HostTimeSeries threads = mMonitor.getTimeSeries(TelemetryHostMonitor.THREAD_COUNT_KEY);
+        assertEquals(2, threads.size());
+        assertEquals(2000, threads.getLatestTimestamp());
+    }
+
+    /** Test that samples and queued events are emitted to the agent on dispatch. */
+    @Test
+    public void testDispatch() {
+        mMonitor.addHostEvent(
+                HostMetricType.INVOCATION_RESOURCES,
+                new HostDataPoint(TelemetryHostMonitor.INVOCATION_CPU_KEY, 42, "[cmd]"));
+        mMockAgent.emitValue(
+                EasyMock.eq(TelemetryHostMonitor.INVOCATION_CPU_KEY),
+                EasyMock.eq(42L),
+                EasyMock.<Map<String, String>>anyObject());
+        mMockAgent.emitValue(
+                EasyMock.anyObject(), EasyMock.anyLong(), EasyMock.<Map<String, String>>anyObject());
+        EasyMock.expectLastCall().anyTimes();
+        mMockAgent.flush();
+        EasyMock.replay(mMockAgent);
+        mMonitor.dispatch();
+        EasyMock.verify(mMockAgent);
+        assertEquals(0, mMonitor.getQueueSize());
+        assertNotNull(mMonitor.getTimeSeries(TelemetryHostMonitor.HEAP_USED_KEY));
+    }
+
+    /** Test that the peak host metrics during an invocation are reported when it ends. */
+    @Test
+    public void testAddHostEvent_invocationPeaks() {
+        long now = System.currentTimeMillis();
+        mMonitor.sample(now - 60 * 1000);
+        mMonitor.sample(now - 1000);
+        mMonitor.addHostEvent(
+                HostMetricType.INVOCATION_RESOURCES,
+                new HostDataPoint(TelemetryHostMonitor.INVOCATION_ELAPSED_KEY, 30 * 1000, "[cmd]"));
+        HostDataPoint elapsed = mMonitor.mHostEvents.poll();
+        assertEquals(TelemetryHostMonitor.INVOCATION_ELAPSED_KEY, elapsed.name);
+        HostDataPoint peak = null;
+        for (HostDataPoint point : mMonitor.mHostEvents) {
+            assertTrue(point.name.startsWith(TelemetryHostMonitor.INVOCATION_PEAK_PREFIX));
+            assertEquals("[cmd]", point.additionalInfo);
+            if (point.name.endsWith(TelemetryHostMonitor.THREAD_COUNT_KEY)) {
+                peak = point;
+            }
+        }
+        // only the sample taken during the invocation is considered
+        assertNotNull(peak);
+        assertEquals(
+                mMonitor.getTimeSeries(TelemetryHostMonitor.THREAD_COUNT_KEY).getLatest(),
+                peak.value);
+        assertEquals(1, mMonitor.getTimeSeries(TelemetryHostMonitor.INVOCATION_ELAPSED_KEY).size());
+    }
+
+    /** Test that events with another tag are ignored. */
+    @Test
+    public void testAddHostEvent_otherTag() {
+        mMonitor.addHostEvent(
+                HostMetricType.INVOCATION_STRAY_THREAD, new HostDataPoint("numThread", 3));
+        assertEquals(0, mMonitor.getQueueSize());
+    }
+}
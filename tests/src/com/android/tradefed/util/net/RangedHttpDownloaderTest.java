@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util.net;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.tradefed.util.FileUtil;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/** Unit tests for {@link RangedHttpDownloader}, against a local HTTP server. */
+@RunWith(JUnit4.class)
+public class RangedHttpDownloaderTest {
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+    private static final int LENGTH = 10000;
+
+    private HttpServer mServer;
+    private byte[] mContent;
+    private String mETag = "\"v1\"";
+    private String mLastModified = "Tue, 03 Oct 2017 10:00:00 GMT";
+    private boolean mSupportRanges = true;
+    /** Number of range requests to answer before cutting the next one short, or -1 */
+    private int mFailAfterRequests = -1;
+    private final AtomicInteger mRangeRequests = new AtomicInteger();
+    private final AtomicInteger mBytesSent = new AtomicInteger();
+    private final Set<Integer> mRangeStarts = Collections.synchronizedSet(new TreeSet<>());
+    private File mTmpDir;
+    private File mDestFile;
+    private String mUrl;
+    private RangedHttpDownloader mDownloader;
+
+    @Before
+    public void setUp() throws Exception {
+        mContent = new byte[LENGTH];
+        new Random(42).nextBytes(mContent);
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/file", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.start();
+        mUrl = String.format("http://localhost:%d/file", mServer.getAddress().getPort());
+        mTmpDir = FileUtil.createTempDir("ranged-download");
+        mDestFile = new File(mTmpDir, "file.bin");
+        mDownloader = new RangedHttpDownloader(new HttpHelper());
+        mDownloader.setChunkSize(1000);
+        mDownloader.setConnections(3);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+        FileUtil.recursiveDelete(mTmpDir);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        exchange.getResponseHeaders().add("ETag", mETag);
+        exchange.getResponseHeaders().add("Last-Modified", mLastModified);
+        // weak ETags never match in If-Range
+        boolean unchanged = ifRange == null || ifRange.equals(mLastModified)
+                || (ifRange.equals(mETag) && !mETag.startsWith("W/"));
+        Matcher m = range == null ? null : RANGE.matcher(range);
+        if (!mSupportRanges || m == null || !m.matches() || !unchanged) {
+            exchange.sendResponseHeaders(200, mContent.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(mContent);
+            }
+            mBytesSent.addAndGet(mContent.length);
+            return;
+        }
+        int start = Integer.parseInt(m.group(1));
+        if (start >= mContent.length) {
+            exchange.getResponseHeaders().add("Content-Range",
+                    String.format("bytes */%d", mContent.length));
+            exchange.sendResponseHeaders(416, -1);
+            exchange.close();
+            return;
+        }
+        int end = Math.min(mContent.length - 1, Integer.parseInt(m.group(2)));
+        int length = end - start + 1;
+        exchange.getResponseHeaders().add("Content-Range",
+                String.format("bytes %d-%d/%d", start, end, mContent.length));
+        exchange.sendResponseHeaders(206, length);
+        OutputStream out = exchange.getResponseBody();
+        if (length > 1) {
+            // the probe of the first byte is not counted
+            mRangeStarts.add(start);
+        }
+        if (length > 1 && mRangeRequests.incrementAndGet() == mFailAfterRequests + 1) {
+            // send half the range and drop the connection
+            out.write(mContent, start, length / 2);
+            out.flush();
+            mBytesSent.addAndGet(length / 2);
+            exchange.close();
+            return;
+        }
+        out.write(mContent, start, length);
+        mBytesSent.addAndGet(length);
+        out.close();
+    }
+
+    private static String md5(byte[] data) throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("MD5").digest(data)) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /** Test a download split in chunks. */
+    @Test
+    public void testDownload() throws Exception {
+        mDownloader.download(mUrl, mDestFile, md5(mContent));
+        assertArrayEquals(mContent, Files.readAllBytes(mDestFile.toPath()));
+        assertEquals(10, mRangeRequests.get());
+        assertFalse(RangedHttpDownloader.getPartialFile(mDestFile).exists());
+        assertFalse(RangedHttpDownloader.getStateFile(mDestFile).exists());
+    }
+
+    /** Test that a range cut short is resumed from where it stopped. */
+    @Test
+    public void testDownload_retryChunk() throws Exception {
+        mDownloader.setConnections(1);
+        mFailAfterRequests = 2;
+        mDownloader.download(mUrl, mDestFile, null);
+        assertArrayEquals(mContent, Files.readAllBytes(mDestFile.toPath()));
+        assertEquals(11, mRangeRequests.get());
+        // the probe and the content, the chunk cut short is not fetched again from its start
+        assertEquals(1 + LENGTH, mBytesSent.get());
+    }
+
+    /** Test that a failed download is resumed by the next attempt. */
+    @Test
+    public void testDownload_resume() throws Exception {
+        mDownloader.setConnections(1);
+        mDownloader.setMaxChunkAttempts(1);
+        mFailAfterRequests = 4;
+        try {
+            mDownloader.download(mUrl, mDestFile, null);
+            fail("IOException not thrown");
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(RangedHttpDownloader.getStateFile(mDestFile).exists());
+        assertFalse(mDestFile.exists());
+
+        mFailAfterRequests = -1;
+        mRangeStarts.clear();
+        mDownloader.download(mUrl, mDestFile, null);
+        assertArrayEquals(mContent, Files.readAllBytes(mDestFile.toPath()));
+        // only the 6 chunks not completed are fetched again
+        assertEquals(new TreeSet<>(Arrays.asList(4000, 5000, 6000, 7000, 8000, 9000)),
+                mRangeStarts);
+    }
+
+    /** Test that a partial download is discarded if the remote file changed. */
+    @Test
+    public void testDownload_resumeChanged() throws Exception {
+        mDownloader.setConnections(1);
+        mDownloader.setMaxChunkAttempts(1);
+        mFailAfterRequests = 4;
+        try {
+            mDownloader.download(mUrl, mDestFile, null);
+            fail("IOException not thrown");
+        } catch (IOException e) {
+            // expected
+        }
+        mFailAfterRequests = -1;
+        mRangeRequests.set(0);
+        mETag = "\"v2\"";
+        new Random(7).nextBytes(mContent);
+        mDownloader.download(mUrl, mDestFile, null);
+        assertArrayEquals(mContent, Files.readAllBytes(mDestFile.toPath()));
+        assertEquals(10, mRangeRequests.get());
+    }
+
+    /** Test that the Last-Modified date is used to resume ranges when the ETag is weak. */
+    @Test
+    public void testDownload_weakETag() throws Exception {
+        mETag = "W/\"v1\"";
+        mDownloader.download(mUrl, mDestFile, md5(mContent));
+        assertArrayEquals(mContent, Files.readAllBytes(mDestFile.toPath()));
+        assertEquals(10, mRangeRequests.get());
+    }
+
+    /** Test downloading an empty file, of which not even the first byte can be requested. */
+    @Test
+    public void testDownload_empty() throws Exception {
+        mContent = new byte[0];
+        mDownloader.download(mUrl, mDestFile, md5(mContent));
+        assertTrue(mDestFile.exists());
+        assertEquals(0, mDestFile.length());
+        assertFalse(RangedHttpDownloader.getPartialFile(mDestFile).exists());
+    }
+
+    /** Test downloading from a server not supporting ranges. */
+    @Test
+    public void testDownload_noRanges() throws Exception {
+        mSupportRanges = false;
+        mDownloader.download(mUrl, mDestFile, md5(mContent));
+        assertArrayEquals(mContent, Files.readAllBytes(mDestFile.toPath()));
+        assertEquals(LENGTH, mBytesSent.get());
+    }
+
+    /** Test that content not matching the expected md5 is rejected and discarded. */
+    @Test
+    public void testDownload_badMd5() throws Exception {
+        try {
+            mDownloader.download(mUrl, mDestFile, "0123456789abcdef0123456789abcdef");
+            fail("IOException not thrown");
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(mDestFile.exists());
+        assertFalse(RangedHttpDownloader.getPartialFile(mDestFile).exists());
+        assertFalse(RangedHttpDownloader.getStateFile(mDestFile).exists());
+    }
+}
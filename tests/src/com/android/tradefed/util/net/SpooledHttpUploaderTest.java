@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/** Unit tests for {@link SpooledHttpUploader}, against a local HTTP server. */
+@RunWith(JUnit4.class)
+public class SpooledHttpUploaderTest {
+
+    private HttpServer mServer;
+    private File mSpoolDir;
+    private SpooledHttpUploader mUploader;
+    /** Response codes to return, 200 once empty */
+    private final Queue<Integer> mResponseCodes = new LinkedList<>();
+    private final List<String> mReceived = Collections.synchronizedList(new LinkedList<>());
+    private final List<String> mEncodings = Collections.synchronizedList(new LinkedList<>());
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/post", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                mEncodings.add(exchange.getRequestHeaders().getFirst("Content-Encoding") + " "
+                        + exchange.getRequestHeaders().getFirst("Transfer-Encoding"));
+                String body = StreamUtil.getStringFromStream(
+                        new GZIPInputStream(exchange.getRequestBody()));
+                Integer code;
+                synchronized (mResponseCodes) {
+                    code = mResponseCodes.poll();
+                }
+                code = code == null ? 200 : code;
+                if (code == 200) {
+                    mReceived.add(body);
+                }
+                exchange.sendResponseHeaders(code, -1);
+                exchange.close();
+            }
+        });
+        mServer.start();
+        mSpoolDir = FileUtil.createTempDir("spool");
+        mUploader = new SpooledHttpUploader(new HttpHelper(),
+                String.format("http://localhost:%d/post", mServer.getAddress().getPort()),
+                mSpoolDir);
+        mUploader.setRetryDelays(10, 100);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mUploader.stop();
+        mServer.stop(0);
+        FileUtil.recursiveDelete(mSpoolDir);
+    }
+
+    private File enqueue(String content) throws IOException {
+        File payload = mUploader.createPayloadFile();
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(payload))) {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        return mUploader.enqueue(payload);
+    }
+
+    /** Test that payloads are sent in order, compressed and chunked, and removed once sent. */
+    @Test
+    public void testSend() throws Exception {
+        mUploader.start();
+        File first = enqueue("{\"first\":1}");
+        File second = enqueue("{\"second\":2}");
+        assertTrue(mUploader.awaitSent(Arrays.asList(first, second), 10000));
+        assertEquals(Arrays.asList("{\"first\":1}", "{\"second\":2}"), mReceived);
+        assertEquals("gzip chunked", mEncodings.get(0));
+        assertFalse(first.exists());
+    }
+
+    /** Test that server errors are retried, and rejected payloads dropped. */
+    @Test
+    public void testSend_retry() throws Exception {
+        mResponseCodes.addAll(Arrays.asList(500, 503, 400));
+        mUploader.start();
+        File first = enqueue("first");
+        File second = enqueue("second");
+        assertTrue(mUploader.awaitSent(Arrays.asList(first, second), 10000));
+        // first is retried twice and rejected, second is sent
+        assertEquals(Arrays.asList("second"), mReceived);
+        assertEquals(4, mEncodings.size());
+    }
+
+    /** Test that payloads left in the spool are kept until they can be sent. */
+    @Test
+    public void testSend_spooled() throws Exception {
+        File first = enqueue("first");
+        assertFalse(mUploader.awaitSent(Arrays.asList(first), 50));
+        assertTrue(first.exists());
+        mUploader.start();
+        assertTrue(mUploader.awaitSent(Arrays.asList(first), 10000));
+        assertEquals(Arrays.asList("first"), mReceived);
+    }
+}